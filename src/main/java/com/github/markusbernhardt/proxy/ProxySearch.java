@@ -52,10 +52,13 @@ public class ProxySearch implements ProxySearchStrategy {
 
 	private static final CacheScope DEFAULT_PAC_CACHE_SCOPE = CacheScope.CACHE_SCOPE_HOST;
 
+	private static final int ANALYZED_PAC_CACHE_SIZE = 1000;
+
 	private List<ProxySearchStrategy> strategies;
 	private int pacCacheSize;
 	private long pacCacheTTL;
 	private CacheScope pacCacheScope;
+	private boolean pacCacheAutomatic;
 
 	/*****************************************************************************
 	 * Types of proxy detection supported by the builder.
@@ -94,6 +97,7 @@ public class ProxySearch implements ProxySearchStrategy {
 		this.pacCacheSize = DEFAULT_PAC_CACHE_SIZE;
 		this.pacCacheTTL = DEFAULT_PAC_CACHE_TTL;
 		this.pacCacheScope = DEFAULT_PAC_CACHE_SCOPE;
+		this.pacCacheAutomatic = true;
 	}
 
 	/*************************************************************************
@@ -174,7 +178,9 @@ public class ProxySearch implements ProxySearchStrategy {
 	 * number of URLs that are cached together with the PAC script result. This
 	 * improves performance because for URLs that are in the cache the script is
 	 * not executed again. You have to set this before you add any strategies
-	 * that may create a PAC script proxy selector.
+	 * that may create a PAC script proxy selector.<br>
+	 * Without explicit settings they are chosen from the dependencies of the
+	 * PAC script, see {@link #installBufferingAndFallbackBehaviour}.
 	 * 
 	 * @param size
 	 *            of the cache. Set it to 0 to disable caching.
@@ -189,6 +195,7 @@ public class ProxySearch implements ProxySearchStrategy {
 		this.pacCacheSize = size;
 		this.pacCacheTTL = ttl;
 		this.pacCacheScope = cacheScope;
+		this.pacCacheAutomatic = false;
 	}
 
 	/*************************************************************************
@@ -250,7 +257,19 @@ public class ProxySearch implements ProxySearchStrategy {
 	}
 
 	/*************************************************************************
-	 * If it is PAC and we have caching enabled set it here.
+	 * If it is PAC and we have caching enabled set it here.<br>
+	 * Unless the cache settings were set explicitly the PAC selector chooses
+	 * them from the dependencies of each version of its script, see
+	 * {@link PacProxySelector#setAutomaticCacheTtl(long)}:
+	 * <ul>
+	 * <li>If the script does not read the URL the results are cached per host,
+	 * else per URL.</li>
+	 * <li>If the script neither resolves host names nor reads the local
+	 * address, the results are kept until the script changes. Results of time
+	 * based rules still expire when the time crosses a range boundary.</li>
+	 * <li>Otherwise the default time to live is used.</li>
+	 * </ul>
+	 * Scripts that cannot be analyzed use the default settings.
 	 * 
 	 * @param selector
 	 *            the proxy selector to wrap
@@ -260,8 +279,20 @@ public class ProxySearch implements ProxySearchStrategy {
 
 	private ProxySelector installBufferingAndFallbackBehaviour(ProxySelector selector) {
 		if (selector instanceof PacProxySelector) {
-			if (this.pacCacheSize > 0) {
-				selector = new BufferedProxySelector(this.pacCacheSize, this.pacCacheTTL, selector, pacCacheScope);
+			int cacheSize = this.pacCacheSize;
+			long cacheTTL = this.pacCacheTTL;
+			CacheScope cacheScope = this.pacCacheScope;
+			if (this.pacCacheAutomatic) {
+				// The selector limits the time to live per script version
+				PacProxySelector pacSelector = (PacProxySelector) selector;
+				pacSelector.setAutomaticCacheTtl(cacheTTL);
+				cacheSize = ANALYZED_PAC_CACHE_SIZE;
+				cacheTTL = Long.MAX_VALUE;
+				Logger.log(getClass(), LogLevel.DEBUG, "PAC script depends on {0}, cache scope {1}.",
+				        pacSelector.getScriptDependencies(), pacSelector.getCacheScope());
+			}
+			if (cacheSize > 0) {
+				selector = new BufferedProxySelector(cacheSize, cacheTTL, selector, cacheScope);
 			}
 			selector = new ProxyListFallbackSelector(selector);
 		}
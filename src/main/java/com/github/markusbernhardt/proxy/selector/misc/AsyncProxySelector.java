@@ -0,0 +1,243 @@
+package com.github.markusbernhardt.proxy.selector.misc;
+
+import java.io.IOException;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.markusbernhardt.proxy.util.Logger;
+import com.github.markusbernhardt.proxy.util.Logger.LogLevel;
+import com.github.markusbernhardt.proxy.util.ProxyUtil;
+
+/*****************************************************************************
+ * Asynchronous companion for a ProxySelector that may block, e.g. a
+ * PacProxySelector running JavaScript and DNS lookups. The selection runs on a
+ * dedicated thread pool and is returned as <code>CompletableFuture</code>, so
+ * event loop threads are never blocked. If the delegate is a
+ * {@link BufferedProxySelector}, or a {@link ProxyListFallbackSelector} around
+ * one, with a valid cache entry for the URI the future is completed
+ * immediately without switching threads.<br>
+ * The own thread pool queues at most {@value #DEFAULT_QUEUE_SIZE} selections
+ * unless a different limit is given. If the queue is full the future is
+ * completed exceptionally with a
+ * <code>RejectedExecutionException</code> instead of piling up work.<br>
+ * The class is itself a ProxySelector. Its blocking {@link #select(URI)} waits
+ * for the asynchronous selection and can be used wherever a
+ * java.net.ProxySelector is expected. If the selection is rejected it runs the
+ * delegate on the calling thread instead.
+ *
+ * <pre>
+ * AsyncProxySelector selector = new AsyncProxySelector(bufferedPacSelector, 4);
+ * selector.selectAsync(uri).thenAccept(proxies -&gt; connect(proxies));
+ * </pre>
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public class AsyncProxySelector extends ProxySelector {
+
+	public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+	private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+	private final ProxySelector delegate;
+	private final ExecutorService executor;
+	private final boolean ownExecutor;
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param delegate
+	 *            the selector to run asynchronously.
+	 * @param threads
+	 *            the number of threads used to run the delegate.
+	 ************************************************************************/
+
+	public AsyncProxySelector(ProxySelector delegate, int threads) {
+		this(delegate, threads, DEFAULT_QUEUE_SIZE);
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param delegate
+	 *            the selector to run asynchronously.
+	 * @param threads
+	 *            the number of threads used to run the delegate.
+	 * @param queueSize
+	 *            the number of selections that may wait for a thread.
+	 ************************************************************************/
+
+	public AsyncProxySelector(ProxySelector delegate, int threads, int queueSize) {
+		this(delegate, createExecutor(threads, queueSize), true);
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param delegate
+	 *            the selector to run asynchronously.
+	 * @param executor
+	 *            the executor used to run the delegate. It is not shut down by
+	 *            {@link #shutdown()}.
+	 ************************************************************************/
+
+	public AsyncProxySelector(ProxySelector delegate, ExecutorService executor) {
+		this(delegate, executor, false);
+	}
+
+	private AsyncProxySelector(ProxySelector delegate, ExecutorService executor, boolean ownExecutor) {
+		super();
+		if (delegate == null || executor == null) {
+			throw new NullPointerException("Delegate and executor must not be null.");
+		}
+		this.delegate = delegate;
+		this.executor = executor;
+		this.ownExecutor = ownExecutor;
+	}
+
+	/*************************************************************************
+	 * Creates a fixed pool of daemon threads with a bounded queue.
+	 *
+	 * @param threads
+	 *            the number of threads.
+	 * @param queueSize
+	 *            the capacity of the queue.
+	 * @return the executor.
+	 ************************************************************************/
+
+	private static ExecutorService createExecutor(int threads, int queueSize) {
+		final int poolNumber = POOL_NUMBER.incrementAndGet();
+		int poolSize = Math.max(1, threads);
+		return new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS,
+		        new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new ThreadFactory() {
+			private final AtomicInteger threadNumber = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "proxy-select-" + poolNumber + "-" + this.threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/*************************************************************************
+	 * Selects the proxies for the given URI asynchronously.
+	 *
+	 * @param uri
+	 *            the URI to select the proxies for.
+	 * @return a future completed with the proxies. It is already completed if
+	 *         the result was cached.
+	 ************************************************************************/
+
+	public CompletableFuture<List<Proxy>> selectAsync(final URI uri) {
+		if (uri == null) {
+			throw new IllegalArgumentException("URI must not be null.");
+		}
+		List<Proxy> cached = peek(uri);
+		if (cached != null) {
+			return CompletableFuture.completedFuture(cached);
+		}
+
+		final CompletableFuture<List<Proxy>> result = new CompletableFuture<List<Proxy>>();
+		try {
+			this.executor.submit(new Callable<Void>() {
+				public Void call() {
+					try {
+						result.complete(AsyncProxySelector.this.delegate.select(uri));
+					} catch (RuntimeException e) {
+						result.completeExceptionally(e);
+					}
+					return null;
+				}
+			});
+		} catch (RuntimeException e) {
+			// Rejected because the queue is full or the executor was shut down
+			Logger.log(getClass(), LogLevel.WARNING, "Proxy selection for {0} rejected: {1}", uri, e);
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+
+	/*************************************************************************
+	 * Gets the cached result of the delegate without evaluating it.
+	 *
+	 * @param uri
+	 *            the URI to look up.
+	 * @return the cached proxies, null if there is no cache or no valid entry.
+	 ************************************************************************/
+
+	private List<Proxy> peek(URI uri) {
+		if (this.delegate instanceof BufferedProxySelector) {
+			return ((BufferedProxySelector) this.delegate).peek(uri);
+		}
+		if (this.delegate instanceof ProxyListFallbackSelector) {
+			return ((ProxyListFallbackSelector) this.delegate).peek(uri);
+		}
+		return null;
+	}
+
+	/*************************************************************************
+	 * select
+	 *
+	 * Blocking adapter for {@link #selectAsync(URI)}. A selection rejected by
+	 * the executor is run on the calling thread, the caller blocks anyway.
+	 *
+	 * @see java.net.ProxySelector#select(java.net.URI)
+	 ************************************************************************/
+
+	@Override
+	public List<Proxy> select(URI uri) {
+		try {
+			return selectAsync(uri).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			Logger.log(getClass(), LogLevel.WARNING, "Interrupted while selecting proxy for {0}.", uri);
+			return ProxyUtil.noProxyList();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RejectedExecutionException) {
+				return this.delegate.select(uri);
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/*************************************************************************
+	 * connectFailed
+	 *
+	 * @see java.net.ProxySelector#connectFailed(java.net.URI,
+	 *      java.net.SocketAddress, java.io.IOException)
+	 ************************************************************************/
+
+	@Override
+	public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+		this.delegate.connectFailed(uri, sa, ioe);
+	}
+
+	/*************************************************************************
+	 * Stops the threads created by this selector. An executor passed to the
+	 * constructor is not touched.
+	 ************************************************************************/
+
+	public void shutdown() {
+		if (this.ownExecutor) {
+			this.executor.shutdown();
+		}
+	}
+
+}
@@ -16,7 +16,10 @@ import java.util.concurrent.ConcurrentHashMap;
 /*****************************************************************************
  * Implements a cache that can be used to warp it around an existing
  * ProxySelector. You can specify a maximum cache size and a "time to live" for
- * positive resolves.
+ * positive resolves. If the delegate is an {@link ExpiringProxySelector} an
+ * entry expires earlier when the delegate reports that its result changes
+ * before the end of the "time to live", and the cache scope reported by the
+ * delegate replaces the one given to the constructor.
  * 
  * @author Markus Bernhardt, Copyright 2016
  * @author Bernd Rosstauscher, Copyright 2009
@@ -60,13 +63,15 @@ public class BufferedProxySelector extends ProxySelector {
 	private static class CacheEntry {
 		List<Proxy> result;
 		long expireAt;
+		long version;
 
-		public CacheEntry(List<Proxy> r, long expireAt) {
+		public CacheEntry(List<Proxy> r, long expireAt, long version) {
 			super();
 			this.result = new ArrayList<Proxy>(r.size());
 			this.result.addAll(r);
 			this.result = Collections.unmodifiableList(this.result);
 			this.expireAt = expireAt;
+			this.version = version;
 		}
 
 		public boolean isExpired() {
@@ -81,7 +86,8 @@ public class BufferedProxySelector extends ProxySelector {
 	 *            the max size for the cache.
 	 * @param ttl
 	 *            the "time to live" for cache entries as amount in
-	 *            milliseconds.
+	 *            milliseconds, Long.MAX_VALUE to keep them until the delegate
+	 *            reports that they have expired.
 	 * @param delegate
 	 *            the delegate to use.
 	 * @param cacheScope
@@ -117,25 +123,22 @@ public class BufferedProxySelector extends ProxySelector {
 
 	@Override
 	public List<Proxy> select(URI uri) {
-		String cacheKey;
-		switch (cacheScope) {
-		case CACHE_SCOPE_HOST:
-			cacheKey = uri.getHost();
-			break;
-		case CACHE_SCOPE_HOST_PORT:
-			cacheKey = uri.getHost() + ":" + uri.getPort();
-			break;
-		case CACHE_SCOPE_URL:
-			cacheKey = uri.toString();
-			break;
-		default:
-			throw new RuntimeException("FixMe: Unhandled CacheScope enum constant.");
-		}
+		// The version first, a key of a newer scope is then stored as outdated
+		long version = getResultVersion();
+		String cacheKey = getCacheKey(uri);
 
 		CacheEntry entry = this.cache.get(cacheKey);
-		if (entry == null || entry.isExpired()) {
-			List<Proxy> result = this.delegate.select(uri);
-			entry = new CacheEntry(result, System.nanoTime() + this.ttl * 1000 * 1000);
+		if (entry == null || entry.isExpired() || entry.version != version) {
+			List<Proxy> result;
+			long validFor = this.ttl;
+			if (this.delegate instanceof ExpiringProxySelector) {
+				long[] delegateValidFor = new long[] { Long.MAX_VALUE };
+				result = ((ExpiringProxySelector) this.delegate).select(uri, delegateValidFor);
+				validFor = Math.min(validFor, delegateValidFor[0]);
+			} else {
+				result = this.delegate.select(uri);
+			}
+			entry = new CacheEntry(result, getExpireAt(validFor), version);
 
 			synchronized (this.cache) {
 				if (this.cache.size() >= this.maxSize) {
@@ -148,6 +151,90 @@ public class BufferedProxySelector extends ProxySelector {
 		return entry.result;
 	}
 
+	/*************************************************************************
+	 * Gets the cached result for the given URI without calling the delegate.
+	 * 
+	 * @param uri
+	 *            the URI to look up.
+	 * @return the cached proxies or null if there is no valid cache entry.
+	 ************************************************************************/
+
+	public List<Proxy> peek(URI uri) {
+		CacheEntry entry = this.cache.get(getCacheKey(uri));
+		if (entry == null || entry.isExpired() || entry.version != getResultVersion()) {
+			return null;
+		}
+		return entry.result;
+	}
+
+	/*************************************************************************
+	 * Gets the version of the delegate results.
+	 * 
+	 * @return the version, 0 if the delegate does not report one.
+	 ************************************************************************/
+
+	private long getResultVersion() {
+		if (this.delegate instanceof ExpiringProxySelector) {
+			return ((ExpiringProxySelector) this.delegate).getResultVersion();
+		}
+		return 0;
+	}
+
+	/*************************************************************************
+	 * Computes the expiry of a new entry without overflowing for very long
+	 * validities.
+	 * 
+	 * @param validFor
+	 *            the validity in milliseconds.
+	 * @return the expiry in nanoseconds as returned by System.nanoTime().
+	 ************************************************************************/
+
+	private static long getExpireAt(long validFor) {
+		long now = System.nanoTime();
+		if (validFor >= (Long.MAX_VALUE - now) / (1000 * 1000)) {
+			return Long.MAX_VALUE;
+		}
+		return now + Math.max(0, validFor) * 1000 * 1000;
+	}
+
+	/*************************************************************************
+	 * Builds the cache key for the given URI according to the cache scope.
+	 * URIs with the same key get the same result.
+	 * 
+	 * @param uri
+	 *            the URI.
+	 * @return the cache key.
+	 ************************************************************************/
+
+	public String getCacheKey(URI uri) {
+		switch (getCacheScope()) {
+		case CACHE_SCOPE_HOST:
+			return uri.getHost();
+		case CACHE_SCOPE_HOST_PORT:
+			return uri.getHost() + ":" + uri.getPort();
+		case CACHE_SCOPE_URL:
+			return uri.toString();
+		default:
+			throw new RuntimeException("FixMe: Unhandled CacheScope enum constant.");
+		}
+	}
+
+	/*************************************************************************
+	 * Gets the cache scope for the current results of the delegate.
+	 * 
+	 * @return the scope reported by the delegate or else the configured one.
+	 ************************************************************************/
+
+	private CacheScope getCacheScope() {
+		if (this.delegate instanceof ExpiringProxySelector) {
+			CacheScope scope = ((ExpiringProxySelector) this.delegate).getCacheScope();
+			if (scope != null) {
+				return scope;
+			}
+		}
+		return this.cacheScope;
+	}
+
 	/*************************************************************************
 	 * Purge cache to get some free space for a new entry.
 	 ************************************************************************/
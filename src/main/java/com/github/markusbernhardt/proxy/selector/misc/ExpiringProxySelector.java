@@ -0,0 +1,52 @@
+package com.github.markusbernhardt.proxy.selector.misc;
+
+import java.net.Proxy;
+import java.net.URI;
+import java.util.List;
+
+/*****************************************************************************
+ * A proxy selector that knows how long its results are valid, e.g. a PAC
+ * script that returns another proxy outside of office hours. The
+ * {@link BufferedProxySelector} uses this to expire cache entries when the
+ * result changes instead of only after its fixed "time to live", and to drop
+ * all entries when the results change as a whole, e.g. after the PAC script
+ * was updated. It may also tell the cache which parts of the URI its current
+ * results depend on.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public interface ExpiringProxySelector {
+
+	/*************************************************************************
+	 * Selects the proxies for the given URI like
+	 * {@link java.net.ProxySelector#select(URI)}.
+	 *
+	 * @param uri
+	 *            the URI to select the proxies for.
+	 * @param validFor
+	 *            receives at index 0 the time in milliseconds the result
+	 *            stays valid. It is left unchanged if the validity is not
+	 *            known.
+	 * @return the proxies.
+	 ************************************************************************/
+	public List<Proxy> select(URI uri, long[] validFor);
+
+	/*************************************************************************
+	 * Gets the version of the results. It changes whenever all results may
+	 * have changed, independent of their reported validity.
+	 *
+	 * @return the current version.
+	 ************************************************************************/
+	public long getResultVersion();
+
+	/*************************************************************************
+	 * Gets the cache scope the current results need, e.g. per URL if the PAC
+	 * script reads the whole URL. It may only change together with the
+	 * result version.
+	 *
+	 * @return the scope, null to use the scope the cache was created with.
+	 ************************************************************************/
+	public BufferedProxySelector.CacheScope getCacheScope();
+
+}
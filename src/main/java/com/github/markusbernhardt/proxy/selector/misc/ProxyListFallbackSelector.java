@@ -82,6 +82,27 @@ public class ProxyListFallbackSelector extends ProxySelector {
 		return result;
 	}
 
+	/*************************************************************************
+	 * Gets the cached result for the URI without evaluating the delegate. Only
+	 * supported if the delegate is a {@link BufferedProxySelector}.
+	 * 
+	 * @param uri
+	 *            the URI to look up.
+	 * @return the filtered proxies, null if no valid result is cached.
+	 ************************************************************************/
+
+	public List<Proxy> peek(URI uri) {
+		if (!(this.delegate instanceof BufferedProxySelector)) {
+			return null;
+		}
+		List<Proxy> proxyList = ((BufferedProxySelector) this.delegate).peek(uri);
+		if (proxyList == null) {
+			return null;
+		}
+		cleanupCache();
+		return filterUnresponsiveProxiesFromList(proxyList);
+	}
+
 	/*************************************************************************
 	 * Cleanup the entries from the cache that are no longer unresponsive.
 	 ************************************************************************/
@@ -0,0 +1,28 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import java.net.URI;
+import java.util.List;
+
+/*****************************************************************************
+ * PAC script parser that can evaluate many URIs in one call. Parsers backed by
+ * a JavaScript engine implement this to enter the engine only once and loop
+ * over the URIs inside the script context. Parsers not implementing it are
+ * called once per URI by {@link PacProxySelector#selectAll(List)}.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public interface BatchPacScriptParser extends PacScriptParser {
+
+	/*************************************************************************
+	 * Evaluates all given URIs against the PAC script.
+	 *
+	 * @param uris
+	 *            the URIs to evaluate.
+	 * @return the script results in the order of the URIs.
+	 * @throws ProxyEvaluationException
+	 *             on execution error.
+	 ************************************************************************/
+	public List<String> evaluateAll(List<URI> uris) throws ProxyEvaluationException;
+
+}
@@ -0,0 +1,157 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.StringMethod;
+
+/*****************************************************************************
+ * Base class of the Java classes generated from PAC scripts by the
+ * {@link CompiledPacScriptParser}. The generated class implements
+ * {@link #findProxyForURL(String, String)} and uses the helper methods of this
+ * class for the JavaScript operators and type conversions.<br>
+ * The generated classes are loaded by their own class loader, so everything
+ * they use has to be public or protected.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public abstract class CompiledPacScript {
+
+	private static final StringMethod[] STRING_METHODS = StringMethod.values();
+
+	protected final ScriptMethods m;
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param methods
+	 *            the PAC functions the script calls.
+	 ************************************************************************/
+
+	protected CompiledPacScript(ScriptMethods methods) {
+		super();
+		this.m = methods;
+	}
+
+	/*************************************************************************
+	 * Evaluates the FindProxyForURL function of the script.
+	 *
+	 * @param url
+	 *            the URL to evaluate.
+	 * @param host
+	 *            the host name part of the URL.
+	 * @return the script result.
+	 * @throws ProxyEvaluationException
+	 *             on execution error.
+	 ************************************************************************/
+
+	public abstract String findProxyForURL(String url, String host) throws ProxyEvaluationException;
+
+	protected static boolean truthy(Object value) {
+		return PacValues.toBoolean(value);
+	}
+
+	protected static double num(Object value) {
+		return PacValues.toNumber(value);
+	}
+
+	protected static Object num(double value) {
+		return Double.valueOf(value);
+	}
+
+	protected static Object bool(boolean value) {
+		return value ? Boolean.TRUE : Boolean.FALSE;
+	}
+
+	protected static Object fromInt(int value) {
+		return PacValues.fromInt(value);
+	}
+
+	protected static String str(Object value) {
+		return value == null ? null : PacValues.toString(value);
+	}
+
+	protected static String result(Object value) {
+		return value == null ? null : PacValues.toString(value);
+	}
+
+	protected static Object typeOf(Object value) {
+		return PacValues.typeOf(value);
+	}
+
+	protected static Object add(Object a, Object b) {
+		return PacValues.add(a, b);
+	}
+
+	protected static boolean eq(Object a, Object b) {
+		return PacValues.looseEquals(a, b);
+	}
+
+	protected static boolean strictEq(Object a, Object b) {
+		return PacValues.strictEquals(a, b);
+	}
+
+	protected static boolean lt(Object a, Object b) {
+		int cmp = PacValues.compare(a, b);
+		return cmp != Integer.MIN_VALUE && cmp < 0;
+	}
+
+	protected static boolean le(Object a, Object b) {
+		int cmp = PacValues.compare(a, b);
+		return cmp != Integer.MIN_VALUE && cmp <= 0;
+	}
+
+	protected static boolean gt(Object a, Object b) {
+		int cmp = PacValues.compare(a, b);
+		return cmp != Integer.MIN_VALUE && cmp > 0;
+	}
+
+	protected static boolean ge(Object a, Object b) {
+		int cmp = PacValues.compare(a, b);
+		return cmp != Integer.MIN_VALUE && cmp >= 0;
+	}
+
+	protected static void ignore(Object value) {
+		// Result of an expression statement.
+	}
+
+	/*************************************************************************
+	 * Invokes a member of a JavaScript string.
+	 *
+	 * @param method
+	 *            the ordinal of the member.
+	 * @param target
+	 *            the string value.
+	 * @param args
+	 *            the arguments.
+	 * @return the result as script value.
+	 * @throws ProxyEvaluationException
+	 *             if the target is not a string.
+	 ************************************************************************/
+
+	protected static Object member(int method, Object target, Object... args) throws ProxyEvaluationException {
+		StringMethod stringMethod = STRING_METHODS[method];
+		if (!(target instanceof String)) {
+			throw new ProxyEvaluationException(
+			        "Cannot read " + stringMethod.jsName + " of " + PacValues.toString(target));
+		}
+		return stringMethod.invoke((String) target, args);
+	}
+
+	/*************************************************************************
+	 * Converts a string to lower case, the most frequent string operation in
+	 * PAC scripts.
+	 *
+	 * @param target
+	 *            the string value.
+	 * @return the lower case string.
+	 * @throws ProxyEvaluationException
+	 *             if the target is not a string.
+	 ************************************************************************/
+
+	protected static Object toLowerCase(Object target) throws ProxyEvaluationException {
+		if (!(target instanceof String)) {
+			return member(StringMethod.TO_LOWER_CASE.ordinal(), target);
+		}
+		return ((String) target).toLowerCase();
+	}
+
+}
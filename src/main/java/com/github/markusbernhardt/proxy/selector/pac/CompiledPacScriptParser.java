@@ -0,0 +1,232 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import java.io.IOException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Program;
+import com.github.markusbernhardt.proxy.util.Logger;
+import com.github.markusbernhardt.proxy.util.Logger.LogLevel;
+
+/*****************************************************************************
+ * PAC parser that compiles the script to a Java class. This is the fastest
+ * way to evaluate a script, but it needs the Java compiler of a JDK and takes
+ * a moment on first use. The compiled classes are shared by all parsers
+ * evaluating the same script.<br>
+ * Scripts that cannot be compiled are evaluated by a
+ * {@link PureJavaPacScriptParser}, which itself falls back to the JavaScript
+ * engine for scripts it does not understand.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public class CompiledPacScriptParser implements ExpiringPacScriptParser {
+
+	private final PacScriptSource source;
+	private final PacScriptMethods methods;
+	private final int fallbackPoolSize;
+
+	private volatile LoadedScript loaded;
+	private final Lock reloadLock = new ReentrantLock();
+	private PacScriptParser fallback;
+
+	/*************************************************************************
+	 * The compiled script for a script content.
+	 ************************************************************************/
+
+	private static final class LoadedScript {
+		final String content;
+		final CompiledPacScript compiled;
+
+		LoadedScript(String content, CompiledPacScript compiled) {
+			this.content = content;
+			this.compiled = compiled;
+		}
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param source
+	 *            the source for the PAC script.
+	 ************************************************************************/
+
+	public CompiledPacScriptParser(PacScriptSource source) {
+		this(source, 1);
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param source
+	 *            the source for the PAC script.
+	 * @param fallbackPoolSize
+	 *            the number of script engines to use if the script cannot be
+	 *            evaluated in Java.
+	 ************************************************************************/
+
+	public CompiledPacScriptParser(PacScriptSource source, int fallbackPoolSize) {
+		super();
+		this.source = source;
+		this.methods = new PacScriptMethods();
+		this.fallbackPoolSize = fallbackPoolSize;
+	}
+
+	/***************************************************************************
+	 * Gets the source of the PAC script used by this parser.
+	 *
+	 * @return a PacScriptSource.
+	 **************************************************************************/
+
+	public PacScriptSource getScriptSource() {
+		return this.source;
+	}
+
+	/*************************************************************************
+	 * Evaluates the given URL and host against the PAC script.
+	 *
+	 * @param url
+	 *            the URL to evaluate.
+	 * @param host
+	 *            the host name part of the URL.
+	 * @return the script result.
+	 * @throws ProxyEvaluationException
+	 *             on execution error.
+	 ************************************************************************/
+
+	public String evaluate(String url, String host) throws ProxyEvaluationException {
+		return evaluate(url, host, null);
+	}
+
+	/*************************************************************************
+	 * Evaluates the given URL and host against the PAC script and reports how
+	 * long the result is valid.
+	 *
+	 * @param url
+	 *            the URL to evaluate.
+	 * @param host
+	 *            the host name part of the URL.
+	 * @param validFor
+	 *            receives the validity of the result in milliseconds, may be
+	 *            null.
+	 * @return the script result.
+	 * @throws ProxyEvaluationException
+	 *             on execution error.
+	 ************************************************************************/
+
+	public String evaluate(String url, String host, long[] validFor) throws ProxyEvaluationException {
+		LoadedScript script;
+		try {
+			script = loadScript();
+		} catch (IOException e) {
+			throw new ProxyEvaluationException("Error while reading PAC script: " + e.getMessage(), e);
+		}
+		if (script.compiled == null) {
+			return JavaxPacScriptParser.evaluate(getFallback(), url, host, validFor);
+		}
+		this.methods.beginEvaluation();
+		try {
+			return script.compiled.findProxyForURL(url, host);
+		} catch (RuntimeException e) {
+			throw new ProxyEvaluationException("Error while executing PAC script: " + e, e);
+		} finally {
+			long valid = this.methods.endEvaluation();
+			if (validFor != null) {
+				validFor[0] = valid;
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Checks if the current script is evaluated by a compiled class.
+	 *
+	 * @return true if the script was compiled, false if it is evaluated by a
+	 *         fallback parser.
+	 * @throws ProxyEvaluationException
+	 *             if the script cannot be read.
+	 ************************************************************************/
+
+	public boolean isScriptCompiled() throws ProxyEvaluationException {
+		try {
+			return loadScript().compiled != null;
+		} catch (IOException e) {
+			throw new ProxyEvaluationException("Error while reading PAC script: " + e.getMessage(), e);
+		}
+	}
+
+	/*************************************************************************
+	 * Compiles the script if its content has changed since the last call. While
+	 * one thread compiles a changed script the others keep using the previous
+	 * one, so lookups do not wait for a reload.
+	 *
+	 * @return the loaded script.
+	 * @throws IOException
+	 *             on script read error.
+	 ************************************************************************/
+
+	private LoadedScript loadScript() throws IOException {
+		String content = this.source.getScriptContent();
+		LoadedScript script = this.loaded;
+		if (script != null && (script.content == content || script.content.equals(content))) {
+			return script;
+		}
+		if (script == null) {
+			this.reloadLock.lock();
+		} else if (!this.reloadLock.tryLock()) {
+			return script;
+		}
+		try {
+			script = this.loaded;
+			if (script == null || !script.content.equals(content)) {
+				script = new LoadedScript(content, compile(content));
+				this.loaded = script;
+			}
+		} finally {
+			this.reloadLock.unlock();
+		}
+		return script;
+	}
+
+	/*************************************************************************
+	 * Compiles the script and creates an instance of the generated class.
+	 *
+	 * @param content
+	 *            the script.
+	 * @return the compiled script or null if it cannot be compiled.
+	 ************************************************************************/
+
+	private CompiledPacScript compile(String content) {
+		if (!PacScriptCompiler.isAvailable()) {
+			Logger.log(getClass(), LogLevel.INFO, "No Java compiler available. Falling back to Java evaluator.");
+			return null;
+		}
+		try {
+			Program program = PacSyntaxParser.parse(content);
+			Class<? extends CompiledPacScript> compiledClass = PacScriptCompiler.compile(content, program);
+			return compiledClass.getConstructor(ScriptMethods.class).newInstance(this.methods);
+		} catch (ProxyEvaluationException e) {
+			Logger.log(getClass(), LogLevel.INFO, "PAC script cannot be compiled ({0}). Falling back to Java evaluator.",
+			        e.getMessage());
+			return null;
+		} catch (Exception e) {
+			Logger.log(getClass(), LogLevel.INFO, "PAC script cannot be compiled ({0}). Falling back to Java evaluator.",
+			        e);
+			return null;
+		}
+	}
+
+	/*************************************************************************
+	 * Gets the parser used for scripts that cannot be compiled and creates it
+	 * on first use.
+	 *
+	 * @return the fallback parser.
+	 ************************************************************************/
+
+	private synchronized PacScriptParser getFallback() {
+		if (this.fallback == null) {
+			this.fallback = new PureJavaPacScriptParser(this.source, this.fallbackPoolSize);
+		}
+		return this.fallback;
+	}
+
+}
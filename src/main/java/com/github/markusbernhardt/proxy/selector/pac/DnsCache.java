@@ -0,0 +1,384 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.markusbernhardt.proxy.util.Logger;
+import com.github.markusbernhardt.proxy.util.Logger.LogLevel;
+
+/*****************************************************************************
+ * Cache for the DNS lookups done by the PAC functions like
+ * <code>dnsResolve</code> and <code>isInNet</code>. A PAC script often resolves
+ * the same host several times in one evaluation, with the cache only the first
+ * call goes to the resolver.<br>
+ * Successful lookups are kept for the positive TTL, failed ones for the
+ * negative TTL. If several threads resolve the same host at the same time only
+ * one of them does the lookup, the others wait for its result. The number of
+ * entries is bounded, when it is full the expired and then the oldest entries
+ * are removed.<br>
+ * The defaults can be changed with the system properties
+ * <code>com.btr.proxy.pac.dnsCacheSize</code>,
+ * <code>com.btr.proxy.pac.dnsCacheTtl</code> and
+ * <code>com.btr.proxy.pac.dnsCacheNegativeTtl</code> (in milliseconds). A size
+ * of 0 disables the cache.<br>
+ * The lookups are done by a {@link PacDnsResolver}. By default this is the
+ * {@link JdkPacDnsResolver}, with the system property
+ * <code>com.btr.proxy.pac.dnsResolver=parallel</code> the
+ * {@link ParallelPacDnsResolver} is used.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public class DnsCache {
+
+	public static final String OVERRIDE_SIZE = "com.btr.proxy.pac.dnsCacheSize";
+	public static final String OVERRIDE_TTL = "com.btr.proxy.pac.dnsCacheTtl";
+	public static final String OVERRIDE_NEGATIVE_TTL = "com.btr.proxy.pac.dnsCacheNegativeTtl";
+	public static final String OVERRIDE_RESOLVER = "com.btr.proxy.pac.dnsResolver";
+
+	private static final int DEFAULT_SIZE = 1000;
+	private static final long DEFAULT_TTL = 30000;
+	private static final long DEFAULT_NEGATIVE_TTL = 10000;
+
+	private static DnsCache defaultCache;
+
+	private final int maxSize;
+	private final long ttl;
+	private final long negativeTtl;
+	private final ConcurrentMap<String, CacheEntry> cache;
+	private volatile PacDnsResolver resolver;
+
+	private final AtomicLong hits;
+	private final AtomicLong misses;
+
+	private static class CacheEntry {
+		final FutureTask<InetAddress[]> lookup;
+		volatile long expireAt = Long.MAX_VALUE;
+		final long createdAt;
+
+		CacheEntry(FutureTask<InetAddress[]> lookup) {
+			this.lookup = lookup;
+			this.createdAt = System.currentTimeMillis();
+		}
+
+		boolean isExpired() {
+			return System.currentTimeMillis() >= this.expireAt;
+		}
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param maxSize
+	 *            the maximum number of cached hosts, 0 to disable caching.
+	 * @param ttl
+	 *            the time in milliseconds a resolved address is cached.
+	 * @param negativeTtl
+	 *            the time in milliseconds a failed lookup is cached.
+	 ************************************************************************/
+
+	public DnsCache(int maxSize, long ttl, long negativeTtl) {
+		this(maxSize, ttl, negativeTtl, new JdkPacDnsResolver());
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param maxSize
+	 *            the maximum number of cached hosts, 0 to disable caching.
+	 * @param ttl
+	 *            the time in milliseconds a resolved address is cached.
+	 * @param negativeTtl
+	 *            the time in milliseconds a failed lookup is cached.
+	 * @param resolver
+	 *            does the lookups on a cache miss.
+	 ************************************************************************/
+
+	public DnsCache(int maxSize, long ttl, long negativeTtl, PacDnsResolver resolver) {
+		super();
+		if (resolver == null) {
+			throw new NullPointerException("resolver");
+		}
+		this.resolver = resolver;
+		this.maxSize = Math.max(0, maxSize);
+		this.ttl = Math.max(0, ttl);
+		this.negativeTtl = Math.max(0, negativeTtl);
+		this.cache = new ConcurrentHashMap<String, CacheEntry>();
+		this.hits = new AtomicLong();
+		this.misses = new AtomicLong();
+	}
+
+	/*************************************************************************
+	 * Gets the cache shared by all PAC script methods that were not given a
+	 * cache explicitly. It is configured by the system properties.
+	 *
+	 * @return the shared cache.
+	 ************************************************************************/
+
+	public static synchronized DnsCache getDefault() {
+		if (defaultCache == null) {
+			PacDnsResolver resolver = "parallel".equalsIgnoreCase(System.getProperty(OVERRIDE_RESOLVER))
+			        ? new ParallelPacDnsResolver() : new JdkPacDnsResolver();
+			defaultCache = new DnsCache((int) getLongProperty(OVERRIDE_SIZE, DEFAULT_SIZE),
+			        getLongProperty(OVERRIDE_TTL, DEFAULT_TTL),
+			        getLongProperty(OVERRIDE_NEGATIVE_TTL, DEFAULT_NEGATIVE_TTL), resolver);
+		}
+		return defaultCache;
+	}
+
+	/*************************************************************************
+	 * Reads a numeric system property.
+	 *
+	 * @param name
+	 *            the property name.
+	 * @param defaultValue
+	 *            the value to use if the property is not set or invalid.
+	 * @return the value.
+	 ************************************************************************/
+
+	private static long getLongProperty(String name, long defaultValue) {
+		String prop = System.getProperty(name);
+		if (prop != null && prop.trim().length() > 0) {
+			try {
+				return Long.parseLong(prop.trim());
+			} catch (NumberFormatException e) {
+				Logger.log(DnsCache.class, LogLevel.DEBUG, "Invalid override property : {0}={1}", name, prop);
+				// In this case use the default value.
+			}
+		}
+		return defaultValue;
+	}
+
+	/*************************************************************************
+	 * Resolves the given host to its first address.
+	 *
+	 * @param host
+	 *            the host name or IP address.
+	 * @return the address.
+	 * @throws UnknownHostException
+	 *             if the host cannot be resolved.
+	 ************************************************************************/
+
+	public InetAddress resolve(String host) throws UnknownHostException {
+		return resolveAll(host)[0];
+	}
+
+	/*************************************************************************
+	 * Resolves the given host to all its addresses.
+	 *
+	 * @param host
+	 *            the host name or IP address.
+	 * @return the addresses, never empty.
+	 * @throws UnknownHostException
+	 *             if the host cannot be resolved.
+	 ************************************************************************/
+
+	public InetAddress[] resolveAll(final String host) throws UnknownHostException {
+		if (this.maxSize == 0) {
+			this.misses.incrementAndGet();
+			return lookup(host);
+		}
+
+		String key = host == null ? "" : host.toLowerCase();
+		CacheEntry entry = this.cache.get(key);
+		if (entry != null && entry.isExpired()) {
+			this.cache.remove(key, entry);
+			entry = null;
+		}
+
+		boolean owner = false;
+		if (entry == null) {
+			CacheEntry created = new CacheEntry(new FutureTask<InetAddress[]>(new Callable<InetAddress[]>() {
+				public InetAddress[] call() throws UnknownHostException {
+					return lookup(host);
+				}
+			}));
+			entry = this.cache.putIfAbsent(key, created);
+			if (entry == null) {
+				entry = created;
+				owner = true;
+				if (this.cache.size() > this.maxSize) {
+					purgeCache();
+				}
+			}
+		}
+
+		if (owner) {
+			this.misses.incrementAndGet();
+			entry.lookup.run();
+		} else {
+			this.hits.incrementAndGet();
+		}
+		return getResult(entry, owner);
+	}
+
+	/*************************************************************************
+	 * Waits for the lookup of the entry and sets the expiry time once the
+	 * lookup is done.
+	 *
+	 * @param entry
+	 *            the cache entry.
+	 * @param owner
+	 *            true if the current thread did the lookup.
+	 * @return the addresses.
+	 * @throws UnknownHostException
+	 *             if the lookup failed.
+	 ************************************************************************/
+
+	private InetAddress[] getResult(CacheEntry entry, boolean owner) throws UnknownHostException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					InetAddress[] result = entry.lookup.get();
+					if (owner) {
+						entry.expireAt = System.currentTimeMillis() + this.ttl;
+					}
+					return result;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException e) {
+			if (owner) {
+				entry.expireAt = System.currentTimeMillis() + this.negativeTtl;
+			}
+			if (e.getCause() instanceof UnknownHostException) {
+				throw (UnknownHostException) e.getCause();
+			}
+			UnknownHostException error = new UnknownHostException(String.valueOf(e.getCause()));
+			error.initCause(e.getCause());
+			throw error;
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Does the actual lookup with the resolver.
+	 *
+	 * @param host
+	 *            the host name or IP address.
+	 * @return the addresses.
+	 * @throws UnknownHostException
+	 *             if the host cannot be resolved.
+	 ************************************************************************/
+
+	protected InetAddress[] lookup(String host) throws UnknownHostException {
+		InetAddress[] result = this.resolver.resolve(host);
+		if (result == null || result.length == 0) {
+			throw new UnknownHostException(host);
+		}
+		return result;
+	}
+
+	/*************************************************************************
+	 * Sets the resolver used for lookups on a cache miss. The cached entries
+	 * are removed.
+	 *
+	 * @param resolver
+	 *            the resolver to use.
+	 ************************************************************************/
+
+	public void setResolver(PacDnsResolver resolver) {
+		if (resolver == null) {
+			throw new NullPointerException("resolver");
+		}
+		this.resolver = resolver;
+		clear();
+	}
+
+	/*************************************************************************
+	 * Gets the resolver used for lookups on a cache miss.
+	 *
+	 * @return the resolver.
+	 ************************************************************************/
+
+	public PacDnsResolver getResolver() {
+		return this.resolver;
+	}
+
+	/*************************************************************************
+	 * Purge cache to get some free space for a new entry.
+	 ************************************************************************/
+
+	private void purgeCache() {
+
+		// Remove all expired entries and find the oldest.
+		boolean removedOne = false;
+		Entry<String, CacheEntry> oldest = null;
+
+		for (Iterator<Entry<String, CacheEntry>> it = this.cache.entrySet().iterator(); it.hasNext();) {
+			Entry<String, CacheEntry> entry = it.next();
+			if (entry.getValue().isExpired()) {
+				it.remove();
+				removedOne = true;
+			} else if (oldest == null || entry.getValue().createdAt < oldest.getValue().createdAt) {
+				oldest = entry;
+			}
+		}
+
+		// Remove oldest if no expired entries were found.
+		if (!removedOne && oldest != null) {
+			this.cache.remove(oldest.getKey(), oldest.getValue());
+		}
+	}
+
+	/*************************************************************************
+	 * Removes all entries.
+	 ************************************************************************/
+
+	public void clear() {
+		this.cache.clear();
+	}
+
+	/*************************************************************************
+	 * Gets the number of cached hosts, including lookups in progress.
+	 *
+	 * @return the number of entries.
+	 ************************************************************************/
+
+	public int size() {
+		return this.cache.size();
+	}
+
+	/*************************************************************************
+	 * Gets the number of lookups answered from the cache.
+	 *
+	 * @return the number of hits.
+	 ************************************************************************/
+
+	public long getHitCount() {
+		return this.hits.get();
+	}
+
+	/*************************************************************************
+	 * Gets the number of lookups passed to the resolver.
+	 *
+	 * @return the number of misses.
+	 ************************************************************************/
+
+	public long getMissCount() {
+		return this.misses.get();
+	}
+
+	/***************************************************************************
+	 * @see java.lang.Object#toString()
+	 **************************************************************************/
+	@Override
+	public String toString() {
+		return "DnsCache [size=" + size() + "/" + this.maxSize + ", hits=" + getHitCount() + ", misses="
+		        + getMissCount() + "]";
+	}
+
+}
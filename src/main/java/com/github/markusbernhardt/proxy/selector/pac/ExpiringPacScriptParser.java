@@ -0,0 +1,34 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+/*****************************************************************************
+ * PAC script parser that reports how long a result stays valid. A script that
+ * calls <code>weekdayRange</code>, <code>dateRange</code> or
+ * <code>timeRange</code> can return another result once the current time
+ * crosses a boundary of these ranges. The parser reports the time until the
+ * next such boundary, so that caches like the
+ * {@link com.github.markusbernhardt.proxy.selector.misc.BufferedProxySelector}
+ * never return a result that the script would no longer return.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public interface ExpiringPacScriptParser extends PacScriptParser {
+
+	/*************************************************************************
+	 * Evaluates the given URL and host against the PAC script.
+	 *
+	 * @param url
+	 *            the URL to evaluate.
+	 * @param host
+	 *            the host name part of the URL.
+	 * @param validFor
+	 *            receives at index 0 the time in milliseconds the result
+	 *            stays valid, Long.MAX_VALUE if it does not depend on the
+	 *            time. May be null.
+	 * @return the script result.
+	 * @throws ProxyEvaluationException
+	 *             on execution error.
+	 ************************************************************************/
+	public String evaluate(String url, String host, long[] validFor) throws ProxyEvaluationException;
+
+}
@@ -0,0 +1,269 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+import com.github.markusbernhardt.proxy.util.Logger;
+import com.github.markusbernhardt.proxy.util.Logger.LogLevel;
+
+/*****************************************************************************
+ * Script source that reads a PAC file from the local file system and reloads
+ * it when the file changes.<br>
+ * The file is read with NIO and decoded as UTF-8. If it is no valid UTF-8 it
+ * is decoded as ISO-8859-1, the default charset of PAC files served over
+ * HTTP. A byte order mark is removed.<br>
+ * From the first read on the directory of the file is watched with a
+ * {@link WatchService} on a daemon thread. Any change in the directory, e.g.
+ * the file being rewritten, replaced by a rename or a symbolic link being
+ * switched, reloads the file once no more changes are reported for a short
+ * time. The new content replaces the old one in a single volatile write, so
+ * lookups never wait for a reload. If the file cannot be read the last
+ * content is kept.<br>
+ * {@link #close()} stops watching the file.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public class FilePacScriptSource implements PacScriptSource, Closeable {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	// Changes are collected until the directory is quiet for this time
+	private static final long SETTLE_MILLIS = 100;
+
+	private final Path file;
+	private final Charset charset;
+	private final Object loadLock = new Object();
+
+	private volatile String scriptContent;
+	private WatchService watchService;
+	private boolean closed;
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param file
+	 *            the PAC file.
+	 ************************************************************************/
+
+	public FilePacScriptSource(File file) {
+		this(file, null);
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param file
+	 *            the PAC file.
+	 * @param charset
+	 *            the charset of the file, null to detect UTF-8 or ISO-8859-1.
+	 ************************************************************************/
+
+	public FilePacScriptSource(File file, Charset charset) {
+		super();
+		this.file = file.getAbsoluteFile().toPath();
+		this.charset = charset;
+	}
+
+	/*************************************************************************
+	 * getScriptContent
+	 *
+	 * @see com.github.markusbernhardt.proxy.selector.pac.PacScriptSource#getScriptContent()
+	 ************************************************************************/
+
+	public String getScriptContent() throws IOException {
+		String content = this.scriptContent;
+		if (content == null) {
+			synchronized (this.loadLock) {
+				content = this.scriptContent;
+				if (content == null) {
+					// Watch first, so that no change after the read is missed
+					startWatching();
+					content = readContent();
+					this.scriptContent = content;
+				}
+			}
+		}
+		return content;
+	}
+
+	/*************************************************************************
+	 * Reads the file.
+	 *
+	 * @return the content.
+	 * @throws IOException
+	 *             on read error.
+	 ************************************************************************/
+
+	private String readContent() throws IOException {
+		return read(this.file, this.charset);
+	}
+
+	/*************************************************************************
+	 * Reads a PAC file and decodes it. Also used by
+	 * {@link UrlPacScriptSource} for <code>file:</code> URLs.
+	 *
+	 * @param file
+	 *            the PAC file.
+	 * @param charset
+	 *            the charset of the file, null to detect UTF-8 or ISO-8859-1.
+	 * @return the content.
+	 * @throws IOException
+	 *             on read error.
+	 ************************************************************************/
+
+	static String read(Path file, Charset charset) throws IOException {
+		byte[] bytes = Files.readAllBytes(file);
+		int offset = 0;
+		if (bytes.length >= 3 && bytes[0] == (byte) 0xEF && bytes[1] == (byte) 0xBB && bytes[2] == (byte) 0xBF) {
+			offset = 3;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, bytes.length - offset);
+		if (charset != null) {
+			return charset.decode(buffer).toString();
+		}
+		try {
+			return UTF8.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+			        .onUnmappableCharacter(CodingErrorAction.REPORT).decode(buffer).toString();
+		} catch (CharacterCodingException e) {
+			return ISO_8859_1.decode(ByteBuffer.wrap(bytes, offset, bytes.length - offset)).toString();
+		}
+	}
+
+	/*************************************************************************
+	 * Reads the file again and replaces the content if it has changed.
+	 ************************************************************************/
+
+	private void reload() {
+		try {
+			String content = readContent();
+			if (!content.equals(this.scriptContent)) {
+				Logger.log(getClass(), LogLevel.INFO, "PAC file {0} changed, reloading.", this.file);
+				this.scriptContent = content;
+			}
+		} catch (IOException e) {
+			Logger.log(getClass(), LogLevel.WARNING, "Reloading PAC file {0} failed, keeping last content: {1}",
+			        this.file, e);
+		}
+	}
+
+	/*************************************************************************
+	 * Starts watching the directory of the file.
+	 ************************************************************************/
+
+	private synchronized void startWatching() {
+		if (this.watchService != null || this.closed) {
+			return;
+		}
+		Path directory = this.file.getParent();
+		try {
+			final WatchService service = directory.getFileSystem().newWatchService();
+			directory.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+			        StandardWatchEventKinds.ENTRY_DELETE);
+			this.watchService = service;
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					watch(service);
+				}
+			}, "PAC file watcher");
+			thread.setDaemon(true);
+			thread.start();
+		} catch (IOException e) {
+			Logger.log(getClass(), LogLevel.WARNING, "Cannot watch PAC file {0}: {1}", this.file, e);
+		} catch (UnsupportedOperationException e) {
+			Logger.log(getClass(), LogLevel.WARNING, "Cannot watch PAC file {0}: {1}", this.file, e);
+		}
+	}
+
+	/*************************************************************************
+	 * Waits for changes in the directory and reloads the file until the watch
+	 * service is closed.
+	 *
+	 * @param service
+	 *            the watch service.
+	 ************************************************************************/
+
+	private void watch(WatchService service) {
+		try {
+			while (true) {
+				WatchKey key = service.take();
+				do {
+					key.pollEvents();
+					if (!key.reset()) {
+						Logger.log(getClass(), LogLevel.WARNING, "PAC file directory of {0} is no longer watched.",
+						        this.file);
+						return;
+					}
+					key = service.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+				} while (key != null);
+				reload();
+			}
+		} catch (ClosedWatchServiceException e) {
+			// Closed, stop watching
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*************************************************************************
+	 * Stops watching the file. The last content is still returned.
+	 *
+	 * @throws IOException
+	 *             on error closing the watch service.
+	 ************************************************************************/
+
+	public synchronized void close() throws IOException {
+		this.closed = true;
+		if (this.watchService != null) {
+			this.watchService.close();
+			this.watchService = null;
+		}
+	}
+
+	/*************************************************************************
+	 * isScriptValid
+	 *
+	 * @see com.github.markusbernhardt.proxy.selector.pac.PacScriptSource#isScriptValid()
+	 ************************************************************************/
+
+	public boolean isScriptValid() {
+		try {
+			String script = getScriptContent();
+			if (script.trim().length() == 0) {
+				Logger.log(getClass(), LogLevel.DEBUG, "PAC script is empty. Skipping script!");
+				return false;
+			}
+			if (script.indexOf("FindProxyForURL") == -1) {
+				Logger.log(getClass(), LogLevel.DEBUG,
+				        "PAC script entry point FindProxyForURL not found. Skipping script!");
+				return false;
+			}
+			return true;
+		} catch (IOException e) {
+			Logger.log(getClass(), LogLevel.DEBUG, "File reading error: {0}", e);
+			return false;
+		}
+	}
+
+	/***************************************************************************
+	 * @see java.lang.Object#toString()
+	 **************************************************************************/
+	@Override
+	public String toString() {
+		return this.file.toString();
+	}
+
+}
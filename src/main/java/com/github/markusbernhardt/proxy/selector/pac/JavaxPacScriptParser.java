@@ -5,7 +5,19 @@ import com.github.markusbernhardt.proxy.util.Logger.LogLevel;
 import delight.nashornsandbox.NashornSandbox;
 import delight.nashornsandbox.NashornSandboxes;
 
+import java.io.IOException;
 import java.lang.reflect.Method;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.script.ScriptException;
 
 /*****************************************************************************
  * PAC parser using the Rhino JavaScript engine bundled with Java 1.6<br>
@@ -17,15 +29,71 @@ import java.lang.reflect.Method;
  * "http://homepages.tesco.net/~J.deBoynePollard/FGA/web-browser-auto-proxy-configuration.html">
  * web-browser-auto-proxy-configuration</a>
  * 
+ * Scripts are evaluated in the delight-nashorn-sandbox. Scripts from a
+ * {@link TrustedPacScriptSource} are evaluated in a plain Nashorn engine
+ * without sandbox instead. The CPU time of sandboxed scripts can be limited
+ * with the system property <code>com.btr.proxy.pac.maxCpuTime</code> (in
+ * milliseconds), the monitoring then runs on a shared thread pool or on the
+ * executor passed to the constructor.<br>
+ * The functions of {@link ScriptMethods} are defined by a prelude that is
+ * generated once and evaluated in one call per engine. The script only sees
+ * these functions, not the {@link PacScriptMethods} behind them. With the system
+ * property <code>com.btr.proxy.pac.codeCacheDirectory</code> Nashorn keeps the
+ * compiled scripts in this directory, see {@link #getEngineOptions()}.
+ * 
  * @author Markus Bernhardt, Copyright 2016
  * @author Bernd Rosstauscher, Copyright 2009
  ****************************************************************************/
-public class JavaxPacScriptParser implements PacScriptParser {
+public class JavaxPacScriptParser implements BatchPacScriptParser, ExpiringPacScriptParser {
 	static final String SCRIPT_METHODS_OBJECT = "__pacutil";
 	static final String SOURCE_NAME = JavaxPacScriptParser.class.getName();
+	static final String ENTRY_FUNCTION = "FindProxyForURL";
+	static final String EVALUATE_FUNCTION = "__pacEvaluate";
+	static final String BATCH_FUNCTION = "__pacEvaluateAll";
+
+	// Hooks for the start and the end of an evaluation. The prelude captures
+	// them in a closure and removes them from the global scope.
+	static final String BEGIN_HOOK = "__pacBegin";
+	static final String END_HOOK = "__pacEnd";
+
+	// Calls the entry function between beginEvaluation and endEvaluation, so
+	// all time functions of one evaluation see the same time, and stores how
+	// long the result is valid. This is done in the script as the sandbox may
+	// run it on another thread.
+	static final String EVALUATE_FUNCTION_CODE = "function(url, host, validFor) {" + " begin.run();"
+	        + " try { return " + ENTRY_FUNCTION + "(url, host); }" + " finally { var v = end.getAsLong();"
+	        + " if (validFor) { validFor[0] = v; } } }";
+
+	// Loops over a batch inside the engine and stores the results in a Java
+	// array, so the engine is entered only once per batch.
+	static final String BATCH_FUNCTION_CODE = "function(urls, hosts, results) {" + " begin.run();" + " try {"
+	        + " for (var i = 0; i < urls.length; i++) {" + " var r = " + ENTRY_FUNCTION + "(urls[i], hosts[i]);"
+	        + " results[i] = (r === null || r === undefined) ? null : String(r);" + " }"
+	        + " } finally { end.getAsLong(); } }";
+
+	// Defines the evaluation functions as read only globals that keep the
+	// hooks in their closure, so the PAC script can neither call the hooks nor
+	// replace the functions.
+	static final String EVALUATION_FUNCTIONS_CODE = "(function(global, begin, end) {"
+	        + " Object.defineProperty(global, \"" + EVALUATE_FUNCTION + "\", { value: " + EVALUATE_FUNCTION_CODE
+	        + " });" + " Object.defineProperty(global, \"" + BATCH_FUNCTION + "\", { value: " + BATCH_FUNCTION_CODE
+	        + " });" + " })(this, " + BEGIN_HOOK + ", " + END_HOOK + ");" + " " + BEGIN_HOOK + " = undefined; "
+	        + END_HOOK + " = undefined;";
+
+	public static final String OVERRIDE_MAX_CPU_TIME = "com.btr.proxy.pac.maxCpuTime";
+	public static final String OVERRIDE_CODE_CACHE_DIRECTORY = "com.btr.proxy.pac.codeCacheDirectory";
+
+	private static final String NASHORN_CODE_CACHE_DIRECTORY = "nashorn.persistent.code.cache";
+
+	private static ExecutorService sharedMonitorExecutor;
+	private static String prelude;
 
 	private final PacScriptSource source;
 	private final NashornSandbox engine;
+	private final PacScriptParser trustedParser;
+
+	// The script content that is currently loaded into the engine.
+	private volatile String loadedScript;
 
 	/*************************************************************************
 	 * Constructor
@@ -36,55 +104,195 @@ public class JavaxPacScriptParser implements PacScriptParser {
 	 *             on error.
 	 ************************************************************************/
 	public JavaxPacScriptParser(PacScriptSource source) throws ProxyEvaluationException {
+		this(source, getDefaultMaxCpuTime(), null);
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 * 
+	 * @param source
+	 *            the source for the PAC script.
+	 * @param maxCpuTimeMillis
+	 *            the maximum CPU time a sandboxed evaluation may use, 0 for no
+	 *            limit and no monitoring.
+	 * @param monitorExecutor
+	 *            the executor the sandbox uses to monitor the CPU time. If
+	 *            null a shared thread pool is used.
+	 * @throws ProxyEvaluationException
+	 *             on error.
+	 ************************************************************************/
+	public JavaxPacScriptParser(PacScriptSource source, long maxCpuTimeMillis, ExecutorService monitorExecutor)
+	        throws ProxyEvaluationException {
 		this.source = source;
-		this.engine = setupEngine();
+		if (TrustedPacScriptSource.isTrusted(source)) {
+			Logger.log(getClass(), LogLevel.DEBUG, "Running trusted PAC script without sandbox.");
+			this.engine = null;
+			this.trustedParser = new ScriptEnginePacScriptParser(source, "nashorn");
+		} else {
+			this.engine = setupEngine();
+			this.trustedParser = null;
+			if (maxCpuTimeMillis > 0) {
+				this.engine.setMaxCPUTime(maxCpuTimeMillis);
+				this.engine.setExecutor(monitorExecutor != null ? monitorExecutor : getSharedMonitorExecutor());
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Gets the CPU time limit for sandboxed scripts from the system property
+	 * <code>com.btr.proxy.pac.maxCpuTime</code>.
+	 * 
+	 * @return the limit in milliseconds, 0 for no limit.
+	 ************************************************************************/
+	static long getDefaultMaxCpuTime() {
+		String prop = System.getProperty(OVERRIDE_MAX_CPU_TIME);
+		if (prop != null && prop.trim().length() > 0) {
+			try {
+				return Math.max(0, Long.parseLong(prop.trim()));
+			} catch (NumberFormatException e) {
+				Logger.log(JavaxPacScriptParser.class, LogLevel.DEBUG, "Invalid override property : {0}={1}",
+				        OVERRIDE_MAX_CPU_TIME, prop);
+				// In this case use the default value.
+			}
+		}
+		return 0;
+	}
+
+	/*************************************************************************
+	 * Gets the thread pool shared by all sandboxes to monitor the CPU time.
+	 * Threads are reused, so no thread is created per evaluation.
+	 * 
+	 * @return the executor.
+	 ************************************************************************/
+	private static synchronized ExecutorService getSharedMonitorExecutor() {
+		if (sharedMonitorExecutor == null) {
+			sharedMonitorExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "PAC script monitor");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sharedMonitorExecutor;
 	}
 
 	/*************************************************************************
 	 * Initializes the JavaScript engine and adds aliases for the functions
-	 * defined in ScriptMethods.
+	 * defined in ScriptMethods with a single evaluation of the prelude.
 	 * 
 	 * @throws ProxyEvaluationException
 	 *             on error.
 	 ************************************************************************/
 	private NashornSandbox setupEngine() throws ProxyEvaluationException {
-        NashornSandbox engine = NashornSandboxes.create();
-		engine.inject(SCRIPT_METHODS_OBJECT, new PacScriptMethods());
+		NashornSandbox engine = NashornSandboxes.create(getEngineOptions());
+		PacScriptFunctions functions = new PacScriptFunctions(new PacScriptMethods());
+		engine.inject(SCRIPT_METHODS_OBJECT, functions);
+		engine.inject(BEGIN_HOOK, functions.getBeginHook());
+		engine.inject(END_HOOK, functions.getEndHook());
 		// allow String
 		engine.allow(String.class);
+		try {
+			engine.eval(getPrelude());
+		} catch (Exception e) {
+			Logger.log(getClass(), LogLevel.ERROR, "JS evaluation error when creating the PAC functions.", e);
+			throw new ProxyEvaluationException("Error setting up script engine", e);
+		}
+		return engine;
+	}
 
-		Class<?> scriptMethodsClazz = ScriptMethods.class;
-		Method[] scriptMethods = scriptMethodsClazz.getMethods();
-
-		for (Method method : scriptMethods) {
-			String name = method.getName();
-			int args = method.getParameterTypes().length;
-			StringBuilder toEval = new StringBuilder(name).append(" = function(");
-			for (int i = 0; i < args; i++) {
-				if (i > 0) {
-					toEval.append(",");
+	/*************************************************************************
+	 * Gets the script that defines the aliases for all functions of
+	 * {@link ScriptMethods} and the evaluation functions. It is generated once
+	 * and evaluated with a single call in every new engine, instead of one
+	 * call per function. As the text is always the same, the code cache of
+	 * the engine finds it by its hash.
+	 * 
+	 * @return the JS code.
+	 ************************************************************************/
+	static synchronized String getPrelude() {
+		if (prelude == null) {
+			List<Method> methods = new ArrayList<Method>(Arrays.asList(ScriptMethods.class.getMethods()));
+			// getMethods has no defined order, keep the text and its hash stable
+			Collections.sort(methods, new Comparator<Method>() {
+				public int compare(Method m1, Method m2) {
+					return m1.getName().compareTo(m2.getName());
 				}
-				toEval.append("arg").append(i);
+			});
+			StringBuilder script = new StringBuilder();
+			for (Method method : methods) {
+				script.append(buildFunctionAlias(method)).append(";\n");
 			}
-			toEval.append(") {return ");
-
-			String functionCall = buildFunctionCallCode(name, args);
+			script.append(EVALUATION_FUNCTIONS_CODE).append("\n");
+			prelude = script.toString();
+		}
+		return prelude;
+	}
 
-			// If return type is java.lang.String convert it to a JS string
-			if (String.class.isAssignableFrom(method.getReturnType())) {
-				functionCall = "String(" + functionCall + ")";
+	/*************************************************************************
+	 * Gets the options for new Nashorn engines. The persistent code cache of
+	 * Nashorn is opt-in: it is only enabled if the system property
+	 * <code>com.btr.proxy.pac.codeCacheDirectory</code> is set. Nashorn keys
+	 * the cache by the hash of the script, so new engines and later runs of
+	 * the application load the compiled prelude and PAC script from there
+	 * instead of compiling them again.<br>
+	 * Nashorn reads the directory from the JVM wide system property
+	 * <code>nashorn.persistent.code.cache</code>. If the application has
+	 * already set it, it is left unchanged and the application's directory is
+	 * used. Otherwise it is set once to the configured directory, which then
+	 * also applies to other Nashorn engines of the application that enable
+	 * the code cache.
+	 * 
+	 * @return the engine options, empty for the defaults.
+	 ************************************************************************/
+	static String[] getEngineOptions() {
+		String directory = System.getProperty(OVERRIDE_CODE_CACHE_DIRECTORY);
+		if (directory == null || directory.trim().length() == 0) {
+			return new String[0];
+		}
+		synchronized (JavaxPacScriptParser.class) {
+			String configured = System.getProperty(NASHORN_CODE_CACHE_DIRECTORY);
+			if (configured == null) {
+				Logger.log(JavaxPacScriptParser.class, LogLevel.DEBUG, "Setting {0}={1} for the Nashorn code cache.",
+				        NASHORN_CODE_CACHE_DIRECTORY, directory.trim());
+				System.setProperty(NASHORN_CODE_CACHE_DIRECTORY, directory.trim());
+			} else if (!configured.equals(directory.trim())) {
+				Logger.log(JavaxPacScriptParser.class, LogLevel.DEBUG,
+				        "{0} is set by the application, using its code cache directory {1} instead of {2}.",
+				        NASHORN_CODE_CACHE_DIRECTORY, configured, directory.trim());
 			}
-			toEval.append(functionCall).append("; }");
-			try {
-				// Add functions with calls to Java object to global scope 
-				engine.eval(toEval.toString());
-			} catch (Exception e) {
-				Logger.log(getClass(), LogLevel.ERROR, "JS evaluation error when creating alias for " + name + ".", e);
-				throw new ProxyEvaluationException("Error setting up script engine", e);
+		}
+		return new String[] { "--persistent-code-cache" };
+	}
+
+	/*************************************************************************
+	 * Builds the JavaScript code that defines a global function delegating to
+	 * the given method of the script methods object.
+	 * 
+	 * @param method
+	 *            the method of {@link ScriptMethods}.
+	 * @return the JS code defining the function.
+	 ************************************************************************/
+	static String buildFunctionAlias(Method method) {
+		String name = method.getName();
+		int args = method.getParameterTypes().length;
+		StringBuilder toEval = new StringBuilder(name).append(" = function(");
+		for (int i = 0; i < args; i++) {
+			if (i > 0) {
+				toEval.append(",");
 			}
+			toEval.append("arg").append(i);
 		}
+		toEval.append(") {return ");
 
-		return engine;
+		String functionCall = buildFunctionCallCode(name, args);
+
+		// If return type is java.lang.String convert it to a JS string
+		if (String.class.isAssignableFrom(method.getReturnType())) {
+			functionCall = "String(" + functionCall + ")";
+		}
+		toEval.append(functionCall).append("; }");
+		return toEval.toString();
 	}
 
 	/*************************************************************************
@@ -97,7 +305,7 @@ public class JavaxPacScriptParser implements PacScriptParser {
 	 * @return the JS code to invoke the method.
 	 ************************************************************************/
 
-	private String buildFunctionCallCode(String functionName, int args) {
+	private static String buildFunctionCallCode(String functionName, int args) {
 		StringBuilder functionCall = new StringBuilder();
 		functionCall.append(SCRIPT_METHODS_OBJECT).append(".").append(functionName).append("(");
 		for (int i = 0; i < args; i++) {
@@ -131,16 +339,146 @@ public class JavaxPacScriptParser implements PacScriptParser {
 	 *             on execution error.
 	 ************************************************************************/
 	public String evaluate(String url, String host) throws ProxyEvaluationException {
+		return evaluate(url, host, null);
+	}
+
+	/*************************************************************************
+	 * Evaluates the given URL and host against the PAC script and reports how
+	 * long the result is valid.
+	 * 
+	 * @param url
+	 *            the URL to evaluate.
+	 * @param host
+	 *            the host name part of the URL.
+	 * @param validFor
+	 *            receives the validity of the result in milliseconds, may be
+	 *            null.
+	 * @return the script result.
+	 * @throws ProxyEvaluationException
+	 *             on execution error.
+	 ************************************************************************/
+	public String evaluate(String url, String host, long[] validFor) throws ProxyEvaluationException {
+		if (this.trustedParser != null) {
+			return evaluate(this.trustedParser, url, host, validFor);
+		}
 		try {
-			StringBuilder script = new StringBuilder(this.source.getScriptContent());
-			String evalMethod = " ;FindProxyForURL (\"" + url + "\",\"" + host + "\")";
-			script.append(evalMethod);
-			Object result = this.engine.eval(script.toString());
-			return (String) result;
+			loadScript();
+			Object result = this.engine.getSandboxedInvocable().invokeFunction(EVALUATE_FUNCTION, url, host,
+			        validFor);
+			return result == null ? null : result.toString();
 		} catch (Exception e) {
 			Logger.log(getClass(), LogLevel.ERROR, "JS evaluation error.", e);
 			throw new ProxyEvaluationException("Error while executing PAC script: " + e.getMessage(), e);
 		}
 
 	}
+
+	/*************************************************************************
+	 * Evaluates all given URIs with a single call into the script engine.
+	 * 
+	 * @param uris
+	 *            the URIs to evaluate.
+	 * @return the script results in the order of the URIs.
+	 * @throws ProxyEvaluationException
+	 *             on execution error.
+	 ************************************************************************/
+	public List<String> evaluateAll(List<URI> uris) throws ProxyEvaluationException {
+		if (this.trustedParser != null) {
+			return ((BatchPacScriptParser) this.trustedParser).evaluateAll(uris);
+		}
+		String[] urls = new String[uris.size()];
+		String[] hosts = new String[uris.size()];
+		String[] results = new String[uris.size()];
+		splitUris(uris, urls, hosts);
+		try {
+			loadScript();
+			this.engine.getSandboxedInvocable().invokeFunction(BATCH_FUNCTION, urls, hosts, results);
+			return Arrays.asList(results);
+		} catch (Exception e) {
+			Logger.log(getClass(), LogLevel.ERROR, "JS evaluation error.", e);
+			throw new ProxyEvaluationException("Error while executing PAC script: " + e.getMessage(), e);
+		}
+	}
+
+	/*************************************************************************
+	 * Evaluates the given URL and host with any parser. Parsers that do not
+	 * implement {@link ExpiringPacScriptParser} leave the validity unchanged.
+	 * 
+	 * @param parser
+	 *            the parser to use.
+	 * @param url
+	 *            the URL to evaluate.
+	 * @param host
+	 *            the host name part of the URL.
+	 * @param validFor
+	 *            receives the validity of the result in milliseconds, may be
+	 *            null.
+	 * @return the script result.
+	 * @throws ProxyEvaluationException
+	 *             on execution error.
+	 ************************************************************************/
+	static String evaluate(PacScriptParser parser, String url, String host, long[] validFor)
+	        throws ProxyEvaluationException {
+		if (validFor != null && parser instanceof ExpiringPacScriptParser) {
+			return ((ExpiringPacScriptParser) parser).evaluate(url, host, validFor);
+		}
+		return parser.evaluate(url, host);
+	}
+
+	/*************************************************************************
+	 * Splits the URIs into the URL and host arguments of FindProxyForURL.
+	 * 
+	 * @param uris
+	 *            the URIs.
+	 * @param urls
+	 *            receives the URLs.
+	 * @param hosts
+	 *            receives the host names.
+	 ************************************************************************/
+	static void splitUris(List<URI> uris, String[] urls, String[] hosts) {
+		int i = 0;
+		for (URI uri : uris) {
+			urls[i] = uri.toString();
+			hosts[i] = uri.getHost();
+			i++;
+		}
+	}
+
+	/*************************************************************************
+	 * Loads the PAC script into the engine. The script is only evaluated again
+	 * if the content delivered by the script source has changed since the last
+	 * call. Afterwards the FindProxyForURL function can be invoked directly.
+	 * 
+	 * @throws IOException
+	 *             on script read error.
+	 * @throws ScriptException
+	 *             on script evaluation error.
+	 ************************************************************************/
+
+	private void loadScript() throws IOException, ScriptException {
+		String script = this.source.getScriptContent();
+		if (isLoaded(script)) {
+			return;
+		}
+		synchronized (this) {
+			if (!isLoaded(script)) {
+				Logger.log(getClass(), LogLevel.DEBUG, "Loading PAC script into engine.");
+				this.engine.eval(script);
+				this.loadedScript = script;
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Checks if the given script content is the one loaded into the engine.
+	 * 
+	 * @param script
+	 *            the current script content.
+	 * @return true if nothing needs to be reloaded.
+	 ************************************************************************/
+
+	private boolean isLoaded(String script) {
+		String loaded = this.loadedScript;
+		return loaded == script || (loaded != null && loaded.equals(script));
+	}
 }
@@ -0,0 +1,227 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.github.markusbernhardt.proxy.util.Logger;
+import com.github.markusbernhardt.proxy.util.Logger.LogLevel;
+
+/*****************************************************************************
+ * Resolver using the DNS resolver of the JDK, i.e.
+ * <code>InetAddress.getAllByName</code>. The JDK resolver has no timeout, a
+ * slow DNS server blocks it until the timeout of the operating system. With a
+ * timeout the lookup runs on a separate thread and the caller gives up after
+ * the timeout. The lookup itself still finishes in the background.<br>
+ * The default timeout is taken from the system property
+ * <code>com.btr.proxy.pac.dnsTimeout</code> in milliseconds, 5000 if it is
+ * not set. 0 resolves on the calling thread without timeout.<br>
+ * The shared thread pool runs at most {@value #MAX_LOOKUPS} lookups at a
+ * time, including abandoned ones still waiting for the operating system.
+ * Further lookups fail at once with an <code>UnknownHostException</code>, so
+ * a DNS server that does not answer can not pile up threads.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public class JdkPacDnsResolver implements PacDnsResolver {
+
+	public static final String OVERRIDE_TIMEOUT = "com.btr.proxy.pac.dnsTimeout";
+
+	public static final int MAX_LOOKUPS = 32;
+
+	private static final long DEFAULT_TIMEOUT = 5000;
+
+	private static ExecutorService sharedExecutor;
+
+	private final long timeoutMillis;
+	private final ExecutorService executor;
+
+	/*************************************************************************
+	 * Constructor using the timeout of the system property.
+	 ************************************************************************/
+
+	public JdkPacDnsResolver() {
+		this(getDefaultTimeout(), null);
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param timeoutMillis
+	 *            the maximum time a lookup may take, 0 for no limit.
+	 * @param executor
+	 *            the executor to run the lookups with a timeout on. If null a
+	 *            shared thread pool is used.
+	 ************************************************************************/
+
+	public JdkPacDnsResolver(long timeoutMillis, ExecutorService executor) {
+		super();
+		this.timeoutMillis = Math.max(0, timeoutMillis);
+		this.executor = executor;
+	}
+
+	/*************************************************************************
+	 * Gets the default lookup timeout from the system property
+	 * <code>com.btr.proxy.pac.dnsTimeout</code>.
+	 *
+	 * @return the timeout in milliseconds, 0 for no timeout.
+	 ************************************************************************/
+
+	static long getDefaultTimeout() {
+		String prop = System.getProperty(OVERRIDE_TIMEOUT);
+		if (prop != null && prop.trim().length() > 0) {
+			try {
+				return Math.max(0, Long.parseLong(prop.trim()));
+			} catch (NumberFormatException e) {
+				Logger.log(JdkPacDnsResolver.class, LogLevel.DEBUG, "Invalid override property : {0}={1}",
+				        OVERRIDE_TIMEOUT, prop);
+				// In this case use the default value.
+			}
+		}
+		return DEFAULT_TIMEOUT;
+	}
+
+	/*************************************************************************
+	 * Gets the thread pool shared by all resolvers for lookups with timeout.
+	 *
+	 * @return the executor.
+	 ************************************************************************/
+
+	static synchronized ExecutorService getSharedExecutor() {
+		if (sharedExecutor == null) {
+			sharedExecutor = createExecutor(MAX_LOOKUPS);
+		}
+		return sharedExecutor;
+	}
+
+	/*************************************************************************
+	 * Creates a pool of daemon threads that rejects lookups instead of
+	 * queueing them when all threads are busy.
+	 *
+	 * @param maxLookups
+	 *            the maximum number of concurrent lookups.
+	 * @return the executor.
+	 ************************************************************************/
+
+	static ExecutorService createExecutor(int maxLookups) {
+		ThreadFactory threadFactory = new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "PAC DNS lookup");
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		return new ThreadPoolExecutor(0, Math.max(1, maxLookups), 60, TimeUnit.SECONDS,
+		        new SynchronousQueue<Runnable>(), threadFactory);
+	}
+
+	/*************************************************************************
+	 * Gets the maximum time a lookup may take.
+	 *
+	 * @return the timeout in milliseconds, 0 for no limit.
+	 ************************************************************************/
+
+	public long getTimeout() {
+		return this.timeoutMillis;
+	}
+
+	/*************************************************************************
+	 * resolve
+	 *
+	 * @see com.github.markusbernhardt.proxy.selector.pac.PacDnsResolver#resolve(java.lang.String)
+	 ************************************************************************/
+
+	public InetAddress[] resolve(final String host) throws UnknownHostException {
+		if (this.timeoutMillis == 0) {
+			return lookup(host);
+		}
+		return await(submit(new Callable<InetAddress[]>() {
+			public InetAddress[] call() throws UnknownHostException {
+				return lookup(host);
+			}
+		}), host, this.timeoutMillis);
+	}
+
+	/*************************************************************************
+	 * Does the actual lookup on the current thread. Can be overwritten to use
+	 * a different resolver.
+	 *
+	 * @param host
+	 *            the host name or IP address.
+	 * @return the addresses.
+	 * @throws UnknownHostException
+	 *             if the host cannot be resolved.
+	 ************************************************************************/
+
+	protected InetAddress[] lookup(String host) throws UnknownHostException {
+		return InetAddress.getAllByName(host);
+	}
+
+	/*************************************************************************
+	 * Runs a lookup on the executor.
+	 *
+	 * @param lookup
+	 *            the lookup to run.
+	 * @return the future of the lookup.
+	 * @throws UnknownHostException
+	 *             if the executor rejects the lookup.
+	 ************************************************************************/
+
+	<T> Future<T> submit(Callable<T> lookup) throws UnknownHostException {
+		try {
+			return (this.executor != null ? this.executor : getSharedExecutor()).submit(lookup);
+		} catch (RejectedExecutionException e) {
+			Logger.log(JdkPacDnsResolver.class, LogLevel.WARNING, "Too many DNS lookups running, lookup rejected.");
+			UnknownHostException error = new UnknownHostException("DNS lookup rejected.");
+			error.initCause(e);
+			throw error;
+		}
+	}
+
+	/*************************************************************************
+	 * Waits for a lookup and converts all errors to an UnknownHostException.
+	 *
+	 * @param future
+	 *            the lookup.
+	 * @param host
+	 *            the host that is resolved.
+	 * @param timeoutMillis
+	 *            the maximum time to wait.
+	 * @return the result of the lookup.
+	 * @throws UnknownHostException
+	 *             if the lookup failed or did not finish in time.
+	 ************************************************************************/
+
+	static <T> T await(Future<T> future, String host, long timeoutMillis) throws UnknownHostException {
+		try {
+			return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			future.cancel(true);
+			Logger.log(JdkPacDnsResolver.class, LogLevel.WARNING, "DNS lookup for {0} timed out after {1} ms.", host,
+			        timeoutMillis);
+			throw new UnknownHostException(host + ": DNS lookup timed out");
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new UnknownHostException(host + ": DNS lookup interrupted");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof UnknownHostException) {
+				throw (UnknownHostException) e.getCause();
+			}
+			UnknownHostException error = new UnknownHostException(host + ": " + e.getCause());
+			error.initCause(e.getCause());
+			throw error;
+		}
+	}
+
+}
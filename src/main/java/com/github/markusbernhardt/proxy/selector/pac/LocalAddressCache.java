@@ -0,0 +1,231 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.Enumeration;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.github.markusbernhardt.proxy.util.Logger;
+import com.github.markusbernhardt.proxy.util.Logger.LogLevel;
+
+/*****************************************************************************
+ * Cache for the local IP addresses returned by the PAC functions
+ * <code>myIpAddress</code> and <code>myIpAddressEx</code>. Finding them means
+ * walking all network interfaces, which is expensive on hosts with many
+ * (virtual) interfaces and was done on every call before.<br>
+ * The addresses are loaded on first use. When they are older than the refresh
+ * interval the cached value is still returned, but a reload is started in the
+ * background. After a network change {@link #invalidate()} makes the next call
+ * load the addresses again. The refresh interval is taken from the system
+ * property <code>com.btr.proxy.pac.localAddressRefresh</code> in milliseconds,
+ * 0 disables the cache.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public class LocalAddressCache {
+
+	public static final String OVERRIDE_REFRESH_INTERVAL = "com.btr.proxy.pac.localAddressRefresh";
+
+	private static final long DEFAULT_REFRESH_INTERVAL = 60000;
+
+	private static LocalAddressCache defaultCache;
+
+	private final long refreshInterval;
+	private final Executor executor;
+	private final AtomicBoolean refreshing;
+
+	private volatile Addresses addresses;
+
+	/*************************************************************************
+	 * The addresses found in one walk over the network interfaces.
+	 ************************************************************************/
+
+	private static final class Addresses {
+		final String ipv4;
+		final String ipv6;
+		final long loadedAt;
+
+		Addresses(String ipv4, String ipv6) {
+			this.ipv4 = ipv4;
+			this.ipv6 = ipv6;
+			this.loadedAt = System.currentTimeMillis();
+		}
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param refreshInterval
+	 *            the time in milliseconds after which the addresses are reloaded
+	 *            in the background, 0 to load them on every call.
+	 * @param executor
+	 *            runs the background reloads. If null a daemon thread is
+	 *            started for each reload.
+	 ************************************************************************/
+
+	public LocalAddressCache(long refreshInterval, Executor executor) {
+		super();
+		this.refreshInterval = Math.max(0, refreshInterval);
+		this.executor = executor;
+		this.refreshing = new AtomicBoolean();
+	}
+
+	/*************************************************************************
+	 * Gets the cache used by the PAC script methods. The refresh interval is
+	 * taken from the system property.
+	 *
+	 * @return the shared cache.
+	 ************************************************************************/
+
+	public static synchronized LocalAddressCache getDefault() {
+		if (defaultCache == null) {
+			long interval = DEFAULT_REFRESH_INTERVAL;
+			String prop = System.getProperty(OVERRIDE_REFRESH_INTERVAL);
+			if (prop != null && prop.trim().length() > 0) {
+				try {
+					interval = Long.parseLong(prop.trim());
+				} catch (NumberFormatException e) {
+					Logger.log(LocalAddressCache.class, LogLevel.DEBUG, "Invalid override property : {0}={1}",
+					        OVERRIDE_REFRESH_INTERVAL, prop);
+					// In this case use the default value.
+				}
+			}
+			defaultCache = new LocalAddressCache(interval, null);
+		}
+		return defaultCache;
+	}
+
+	/*************************************************************************
+	 * Gets the first IPv4 address of the first network interface that is up
+	 * and not a loopback or virtual interface.
+	 *
+	 * @return the address as string or "" if not found.
+	 ************************************************************************/
+
+	public String getIpv4Address() {
+		return getAddresses().ipv4;
+	}
+
+	/*************************************************************************
+	 * Gets the first IPv6 address of the first network interface that is up
+	 * and not a loopback or virtual interface.
+	 *
+	 * @return the address as string or "" if not found.
+	 ************************************************************************/
+
+	public String getIpv6Address() {
+		return getAddresses().ipv6;
+	}
+
+	/*************************************************************************
+	 * Removes the cached addresses, e.g. after the network configuration has
+	 * changed. The next call loads them again.
+	 ************************************************************************/
+
+	public void invalidate() {
+		this.addresses = null;
+	}
+
+	/*************************************************************************
+	 * Gets the cached addresses, loads them if there are none and starts a
+	 * reload if they are older than the refresh interval.
+	 *
+	 * @return the addresses.
+	 ************************************************************************/
+
+	private Addresses getAddresses() {
+		Addresses current = this.addresses;
+		if (current == null || this.refreshInterval == 0) {
+			current = loadAddresses();
+			this.addresses = current;
+		} else if (System.currentTimeMillis() - current.loadedAt >= this.refreshInterval) {
+			startRefresh();
+		}
+		return current;
+	}
+
+	/*************************************************************************
+	 * Reloads the addresses in the background unless a reload is already
+	 * running.
+	 ************************************************************************/
+
+	private void startRefresh() {
+		if (!this.refreshing.compareAndSet(false, true)) {
+			return;
+		}
+		Runnable refresh = new Runnable() {
+			public void run() {
+				try {
+					LocalAddressCache.this.addresses = loadAddresses();
+				} finally {
+					LocalAddressCache.this.refreshing.set(false);
+				}
+			}
+		};
+		try {
+			if (this.executor != null) {
+				this.executor.execute(refresh);
+			} else {
+				Thread thread = new Thread(refresh, "PAC local address refresh");
+				thread.setDaemon(true);
+				thread.start();
+			}
+		} catch (RuntimeException e) {
+			this.refreshing.set(false);
+			Logger.log(getClass(), LogLevel.DEBUG, "Cannot refresh local address: {0}", e.getMessage());
+		}
+	}
+
+	/*************************************************************************
+	 * Walks the network interfaces and finds the first "real" IPv4 and IPv6
+	 * address.
+	 *
+	 * @return the addresses.
+	 ************************************************************************/
+
+	private Addresses loadAddresses() {
+		String ipv4 = findLocalAddress(Inet4Address.class);
+		String ipv6 = findLocalAddress(Inet6Address.class);
+		return new Addresses(ipv4, ipv6);
+	}
+
+	/*************************************************************************
+	 * Get the current IP address of the computer. This will return the first
+	 * address of the first network interface that is a "real" IP address of the
+	 * given type. Can be overwritten to use a different lookup.
+	 *
+	 * @param cl
+	 *            the type of address we are searching for.
+	 * @return the address as string or "" if not found.
+	 ************************************************************************/
+
+	protected String findLocalAddress(Class<? extends InetAddress> cl) {
+		try {
+			Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+			while (interfaces.hasMoreElements()) {
+				NetworkInterface current = interfaces.nextElement();
+				if (!current.isUp() || current.isLoopback() || current.isVirtual()) {
+					continue;
+				}
+				Enumeration<InetAddress> addresses = current.getInetAddresses();
+				while (addresses.hasMoreElements()) {
+					InetAddress adr = addresses.nextElement();
+					if (cl.isInstance(adr)) {
+						Logger.log(JavaxPacScriptParser.class, LogLevel.TRACE, "Local address resolved to {0}", adr);
+						return adr.getHostAddress();
+					}
+				}
+			}
+			return "";
+		} catch (IOException e) {
+			Logger.log(JavaxPacScriptParser.class, LogLevel.DEBUG, "Local address not resolvable.");
+			return "";
+		}
+	}
+
+}
@@ -0,0 +1,369 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.github.markusbernhardt.proxy.util.Logger;
+import com.github.markusbernhardt.proxy.util.Logger.LogLevel;
+
+/*****************************************************************************
+ * Script source that loads the same PAC script from several mirrors. The
+ * mirrors are tried in the order of their measured latency, mirrors without a
+ * measurement in the given order. If the first mirror has not answered after
+ * the hedge delay the next one is asked in parallel, if it fails the next one
+ * is asked right away. The first valid script wins, slower downloads still
+ * complete in the background to measure their latency.<br>
+ * Each mirror is an {@link UrlPacScriptSource}, so the winning mirror
+ * revalidates the script when it expires and keeps the last good script on
+ * failure. If its revalidation fails all mirrors are asked again in the
+ * background, at most once per minute.<br>
+ * The hedge delay is taken from the system property
+ * <code>com.btr.proxy.url.hedgeDelay</code> in milliseconds unless it is
+ * passed to the constructor.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public class MirroredPacScriptSource implements PacScriptSource {
+
+	public static final String OVERRIDE_HEDGE_DELAY = "com.btr.proxy.url.hedgeDelay";
+
+	private static final long DEFAULT_HEDGE_DELAY = 2000;
+
+	// Latency recorded for a failed download
+	private static final long FAILURE_LATENCY = 60 * 1000;
+
+	// Minimum time between two attempts to replace a failing mirror
+	private static final long FAILOVER_INTERVAL = 60 * 1000;
+
+	private static ExecutorService downloadExecutor;
+
+	/*************************************************************************
+	 * A mirror with its measured latency.
+	 ************************************************************************/
+
+	private static final class Mirror {
+		final UrlPacScriptSource source;
+		// Moving average in milliseconds, -1 if not measured yet
+		volatile long latency = -1;
+
+		Mirror(String url) {
+			this.source = new UrlPacScriptSource(url);
+		}
+
+		synchronized void recordLatency(long millis) {
+			long old = this.latency;
+			this.latency = old < 0 ? millis : (3 * old + millis) / 4;
+		}
+
+		@Override
+		public String toString() {
+			return this.source.toString();
+		}
+	}
+
+	private final List<Mirror> mirrors;
+	private final long hedgeDelay;
+	private final Object loadLock = new Object();
+	private final AtomicBoolean failingOver = new AtomicBoolean();
+
+	private volatile Mirror current;
+	private volatile long failoverAtMillis;
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param urls
+	 *            the URLs of the mirrors in the preferred order.
+	 ************************************************************************/
+
+	public MirroredPacScriptSource(List<String> urls) {
+		this(urls, getDefaultHedgeDelay());
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param urls
+	 *            the URLs of the mirrors in the preferred order.
+	 * @param hedgeDelay
+	 *            the time in milliseconds to wait for a mirror before the next
+	 *            one is asked in parallel.
+	 ************************************************************************/
+
+	public MirroredPacScriptSource(List<String> urls, long hedgeDelay) {
+		super();
+		if (urls == null || urls.isEmpty()) {
+			throw new IllegalArgumentException("At least one mirror URL is required.");
+		}
+		this.mirrors = new ArrayList<Mirror>(urls.size());
+		for (String url : urls) {
+			this.mirrors.add(new Mirror(url));
+		}
+		this.hedgeDelay = Math.max(0, hedgeDelay);
+	}
+
+	/*************************************************************************
+	 * Gets the hedge delay from the system property.
+	 *
+	 * @return the delay in milliseconds.
+	 ************************************************************************/
+
+	private static long getDefaultHedgeDelay() {
+		long delay = DEFAULT_HEDGE_DELAY;
+		String prop = System.getProperty(OVERRIDE_HEDGE_DELAY);
+		if (prop != null && prop.trim().length() > 0) {
+			try {
+				delay = Long.parseLong(prop.trim());
+			} catch (NumberFormatException e) {
+				Logger.log(MirroredPacScriptSource.class, LogLevel.DEBUG, "Invalid override property : {0}={1}",
+				        OVERRIDE_HEDGE_DELAY, prop);
+				// In this case use the default value.
+			}
+		}
+		return delay;
+	}
+
+	/*************************************************************************
+	 * getScriptContent
+	 *
+	 * @see com.github.markusbernhardt.proxy.selector.pac.PacScriptSource#getScriptContent()
+	 ************************************************************************/
+
+	public String getScriptContent() throws IOException {
+		Mirror mirror = this.current;
+		if (mirror == null) {
+			synchronized (this.loadLock) {
+				mirror = this.current;
+				if (mirror == null) {
+					mirror = loadHedged();
+				}
+			}
+		}
+		String content = mirror.source.getScriptContent();
+		if (mirror.source.isFailing()) {
+			startFailover();
+		}
+		return content;
+	}
+
+	/*************************************************************************
+	 * Gets the URL of the mirror the script is currently taken from.
+	 *
+	 * @return the URL, null if no script was loaded yet.
+	 ************************************************************************/
+
+	public String getCurrentMirror() {
+		Mirror mirror = this.current;
+		return mirror == null ? null : mirror.toString();
+	}
+
+	/*************************************************************************
+	 * Gets the mirror URLs in the order they are tried on the next load.
+	 *
+	 * @return the URLs, fastest first.
+	 ************************************************************************/
+
+	public List<String> getMirrorOrder() {
+		List<String> result = new ArrayList<String>(this.mirrors.size());
+		for (Mirror mirror : getMirrorsByLatency()) {
+			result.add(mirror.toString());
+		}
+		return result;
+	}
+
+	/*************************************************************************
+	 * Sorts the mirrors by their latency. A mirror without measurement is
+	 * assumed to answer within the hedge delay. The sort is stable, so mirrors
+	 * with the same latency stay in the given order.
+	 *
+	 * @return the sorted mirrors.
+	 ************************************************************************/
+
+	private List<Mirror> getMirrorsByLatency() {
+		final List<Mirror> order = new ArrayList<Mirror>(this.mirrors);
+		final long[] latencies = new long[order.size()];
+		for (int i = 0; i < latencies.length; i++) {
+			long latency = order.get(i).latency;
+			latencies[i] = latency < 0 ? this.hedgeDelay : latency;
+		}
+		Collections.sort(order, new Comparator<Mirror>() {
+			public int compare(Mirror m1, Mirror m2) {
+				long l1 = latencies[MirroredPacScriptSource.this.mirrors.indexOf(m1)];
+				long l2 = latencies[MirroredPacScriptSource.this.mirrors.indexOf(m2)];
+				return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+			}
+		});
+		return order;
+	}
+
+	/*************************************************************************
+	 * Loads the script from the mirrors with hedged requests and makes the
+	 * first mirror with a valid script the current one.
+	 *
+	 * @return the winning mirror.
+	 * @throws IOException
+	 *             if no mirror delivered a valid script.
+	 ************************************************************************/
+
+	private Mirror loadHedged() throws IOException {
+		List<Mirror> order = getMirrorsByLatency();
+		CompletionService<Mirror> completion = new ExecutorCompletionService<Mirror>(getDownloadExecutor());
+		IOException lastError = null;
+		int next = 0;
+		int pending = 0;
+		try {
+			completion.submit(download(order.get(next++)));
+			pending++;
+			while (pending > 0) {
+				Future<Mirror> done;
+				if (next < order.size()) {
+					done = completion.poll(this.hedgeDelay, TimeUnit.MILLISECONDS);
+				} else {
+					done = completion.take();
+				}
+				if (done == null) {
+					Logger.log(getClass(), LogLevel.DEBUG, "No answer after {0} ms, asking PAC mirror {1}",
+					        this.hedgeDelay, order.get(next));
+					completion.submit(download(order.get(next++)));
+					pending++;
+					continue;
+				}
+				pending--;
+				try {
+					Mirror winner = done.get();
+					Logger.log(getClass(), LogLevel.DEBUG, "Using PAC script from mirror {0}", winner);
+					this.current = winner;
+					return winner;
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					lastError = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+					if (next < order.size()) {
+						completion.submit(download(order.get(next++)));
+						pending++;
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading PAC script from mirrors.");
+		}
+		throw lastError;
+	}
+
+	/*************************************************************************
+	 * Creates the task that downloads the script from a mirror and measures
+	 * its latency.
+	 *
+	 * @param mirror
+	 *            the mirror.
+	 * @return the task, it returns the mirror if the script is valid.
+	 ************************************************************************/
+
+	private Callable<Mirror> download(final Mirror mirror) {
+		return new Callable<Mirror>() {
+			public Mirror call() throws IOException {
+				long start = System.nanoTime();
+				try {
+					String content = mirror.source.reload();
+					if (content.indexOf(JavaxPacScriptParser.ENTRY_FUNCTION) == -1) {
+						throw new IOException("PAC script from mirror " + mirror + " has no FindProxyForURL.");
+					}
+					mirror.recordLatency((System.nanoTime() - start) / 1000000);
+					return mirror;
+				} catch (IOException e) {
+					mirror.recordLatency(FAILURE_LATENCY);
+					throw e;
+				}
+			}
+		};
+	}
+
+	/*************************************************************************
+	 * Asks all mirrors again in the background because the current one
+	 * fails.
+	 ************************************************************************/
+
+	private void startFailover() {
+		long now = System.currentTimeMillis();
+		if (now < this.failoverAtMillis || !this.failingOver.compareAndSet(false, true)) {
+			return;
+		}
+		this.failoverAtMillis = now + FAILOVER_INTERVAL;
+		try {
+			getDownloadExecutor().execute(new Runnable() {
+				public void run() {
+					try {
+						synchronized (MirroredPacScriptSource.this.loadLock) {
+							loadHedged();
+						}
+					} catch (IOException e) {
+						Logger.log(getClass(), LogLevel.WARNING, "No PAC mirror available: {0}", e);
+					} finally {
+						MirroredPacScriptSource.this.failingOver.set(false);
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			this.failingOver.set(false);
+			Logger.log(getClass(), LogLevel.DEBUG, "Cannot switch PAC mirror: {0}", e.getMessage());
+		}
+	}
+
+	/*************************************************************************
+	 * Gets the thread pool for the downloads and creates it on first use.
+	 *
+	 * @return the executor.
+	 ************************************************************************/
+
+	private static synchronized ExecutorService getDownloadExecutor() {
+		if (downloadExecutor == null) {
+			downloadExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "PAC mirror download");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return downloadExecutor;
+	}
+
+	/*************************************************************************
+	 * isScriptValid
+	 *
+	 * @see com.github.markusbernhardt.proxy.selector.pac.PacScriptSource#isScriptValid()
+	 ************************************************************************/
+
+	public boolean isScriptValid() {
+		try {
+			String script = getScriptContent();
+			return script.trim().length() > 0 && script.indexOf(JavaxPacScriptParser.ENTRY_FUNCTION) != -1;
+		} catch (IOException e) {
+			Logger.log(getClass(), LogLevel.DEBUG, "File reading error: {0}", e);
+			return false;
+		}
+	}
+
+	/***************************************************************************
+	 * @see java.lang.Object#toString()
+	 **************************************************************************/
+	@Override
+	public String toString() {
+		return this.mirrors.toString();
+	}
+
+}
@@ -0,0 +1,215 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*****************************************************************************
+ * IP address range in CIDR notation as used by the PAC function
+ * <code>isInNetEx</code>, e.g. <code>10.0.0.0/8</code> or
+ * <code>2001:db8::/32</code>. Parsed ranges are cached by their text, so a
+ * PAC script calling <code>isInNetEx</code> with the same ranges over and over
+ * parses each of them once.<br>
+ * The class also contains the allocation free IPv4 parser used by
+ * <code>isInNet</code>.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+final class NetworkRange {
+
+	private static final int MAX_CACHE_SIZE = 1000;
+
+	private static final ConcurrentMap<String, NetworkRange> CACHE = new ConcurrentHashMap<String, NetworkRange>();
+
+	// Marks a text that is no valid range in the cache
+	private static final NetworkRange INVALID = new NetworkRange(new byte[0], 0);
+
+	private final byte[] network;
+	private final int prefixLength;
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param network
+	 *            the address bytes of the range.
+	 * @param prefixLength
+	 *            the number of leading bits that have to match.
+	 ************************************************************************/
+
+	private NetworkRange(byte[] network, int prefixLength) {
+		super();
+		this.network = network;
+		this.prefixLength = prefixLength;
+	}
+
+	/*************************************************************************
+	 * Gets the range for the given CIDR text from the cache or parses it.
+	 *
+	 * @param cidr
+	 *            the range, e.g. <code>192.168.0.0/16</code>.
+	 * @return the range or null if the text is no valid range.
+	 ************************************************************************/
+
+	static NetworkRange parse(String cidr) {
+		NetworkRange range = CACHE.get(cidr);
+		if (range == null) {
+			range = parseRange(cidr);
+			if (CACHE.size() >= MAX_CACHE_SIZE) {
+				CACHE.clear();
+			}
+			CACHE.put(cidr, range);
+		}
+		return range == INVALID ? null : range;
+	}
+
+	/*************************************************************************
+	 * Parses a CIDR text.
+	 *
+	 * @param cidr
+	 *            the range text.
+	 * @return the range or INVALID.
+	 ************************************************************************/
+
+	private static NetworkRange parseRange(String cidr) {
+		int slash = cidr.indexOf('/');
+		if (slash < 0 || cidr.indexOf('/', slash + 1) >= 0) {
+			return INVALID;
+		}
+		String address = cidr.substring(0, slash).trim();
+		int bits;
+		try {
+			bits = Integer.parseInt(cidr.substring(slash + 1).trim());
+		} catch (NumberFormatException e) {
+			return INVALID;
+		}
+		byte[] bytes;
+		long ipv4 = parseIpv4(address);
+		if (ipv4 >= 0) {
+			bytes = toBytes(ipv4);
+		} else if (address.indexOf(':') >= 0) {
+			try {
+				// An IPv6 literal, so there is no DNS lookup
+				bytes = InetAddress.getByName(address).getAddress();
+			} catch (UnknownHostException e) {
+				return INVALID;
+			}
+		} else {
+			return INVALID;
+		}
+		if (bits < 0 || bits > bytes.length * 8) {
+			return INVALID;
+		}
+		return new NetworkRange(bytes, bits);
+	}
+
+	/*************************************************************************
+	 * Checks if an IPv4 address is in this range.
+	 *
+	 * @param address
+	 *            the address as returned by {@link #parseIpv4(String)}.
+	 * @return true if it is in the range.
+	 ************************************************************************/
+
+	boolean contains(long address) {
+		if (this.network.length != 4) {
+			return false;
+		}
+		long mask = this.prefixLength == 0 ? 0 : (0xFFFFFFFFL << (32 - this.prefixLength)) & 0xFFFFFFFFL;
+		return (address & mask) == (toLong(this.network) & mask);
+	}
+
+	/*************************************************************************
+	 * Checks if an address is in this range.
+	 *
+	 * @param address
+	 *            the address bytes, 4 for IPv4 or 16 for IPv6.
+	 * @return true if it is in the range.
+	 ************************************************************************/
+
+	boolean contains(byte[] address) {
+		if (address.length != this.network.length) {
+			return false;
+		}
+		int fullBytes = this.prefixLength / 8;
+		for (int i = 0; i < fullBytes; i++) {
+			if (address[i] != this.network[i]) {
+				return false;
+			}
+		}
+		int remainingBits = this.prefixLength % 8;
+		if (remainingBits == 0) {
+			return true;
+		}
+		int mask = (0xFF << (8 - remainingBits)) & 0xFF;
+		return (address[fullBytes] & mask) == (this.network[fullBytes] & mask);
+	}
+
+	/*************************************************************************
+	 * Parses an IPv4 address in dotted decimal notation without allocating.
+	 *
+	 * @param address
+	 *            the text to parse.
+	 * @return the address as unsigned 32 bit value or -1 if the text is no
+	 *         IPv4 address.
+	 ************************************************************************/
+
+	static long parseIpv4(String address) {
+		int length = address.length();
+		if (length < 7 || length > 15) {
+			return -1;
+		}
+		long result = 0;
+		int part = 0;
+		int digits = 0;
+		int dots = 0;
+		for (int i = 0; i < length; i++) {
+			char c = address.charAt(i);
+			if (c >= '0' && c <= '9') {
+				part = part * 10 + (c - '0');
+				digits++;
+				if (digits > 3 || part > 255) {
+					return -1;
+				}
+			} else if (c == '.' && digits > 0 && dots < 3) {
+				result = (result << 8) | part;
+				part = 0;
+				digits = 0;
+				dots++;
+			} else {
+				return -1;
+			}
+		}
+		if (dots != 3 || digits == 0) {
+			return -1;
+		}
+		return (result << 8) | part;
+	}
+
+	/*************************************************************************
+	 * Converts IPv4 address bytes to an unsigned 32 bit value.
+	 *
+	 * @param address
+	 *            the 4 address bytes.
+	 * @return the address.
+	 ************************************************************************/
+
+	static long toLong(byte[] address) {
+		return ((address[0] & 0xFFL) << 24) | ((address[1] & 0xFFL) << 16) | ((address[2] & 0xFFL) << 8)
+		        | (address[3] & 0xFFL);
+	}
+
+	/*************************************************************************
+	 * Converts an unsigned 32 bit IPv4 address to its bytes.
+	 *
+	 * @param address
+	 *            the address.
+	 * @return the 4 address bytes.
+	 ************************************************************************/
+
+	private static byte[] toBytes(long address) {
+		return new byte[] { (byte) (address >> 24), (byte) (address >> 16), (byte) (address >> 8), (byte) address };
+	}
+
+}
@@ -0,0 +1,567 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Assign;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Binary;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Block;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Builtin;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Call;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Conditional;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Expression;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.ExpressionStatement;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Function;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.If;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Literal;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Logical;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Program;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Return;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Statement;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.StringMember;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.StringMethod;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Unary;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Variable;
+
+/*****************************************************************************
+ * Translates the syntax tree of a PAC script into the source code of a Java
+ * class extending {@link CompiledPacScript}. Every script function becomes a
+ * Java method, global variables become fields and local variables become
+ * Java locals. Calls of the predefined PAC functions are direct calls of the
+ * {@link ScriptMethods} interface and conditions are evaluated without boxing
+ * where possible.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+final class PacCodeGenerator {
+
+	private static final String BASE_CLASS = CompiledPacScript.class.getName();
+	private static final String METHODS_CLASS = ScriptMethods.class.getName();
+	private static final String EXCEPTION_CLASS = ProxyEvaluationException.class.getName();
+
+	private final Program program;
+	private final String className;
+	private final Map<Function, String> methodNames;
+	private final Map<Double, String> constants;
+	private int temps;
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param program
+	 *            the parsed script.
+	 * @param className
+	 *            the name of the class to generate.
+	 ************************************************************************/
+
+	private PacCodeGenerator(Program program, String className) {
+		this.program = program;
+		this.className = className;
+		this.methodNames = new HashMap<Function, String>();
+		this.constants = new LinkedHashMap<Double, String>();
+	}
+
+	/*************************************************************************
+	 * Generates the Java source code for a parsed PAC script.
+	 *
+	 * @param program
+	 *            the parsed script.
+	 * @param className
+	 *            the name of the class to generate, without package.
+	 * @return the source code.
+	 * @throws ProxyEvaluationException
+	 *             if the script cannot be translated.
+	 ************************************************************************/
+
+	static String generate(Program program, String className) throws ProxyEvaluationException {
+		return new PacCodeGenerator(program, className).generateClass();
+	}
+
+	/*************************************************************************
+	 * Generates the whole class.
+	 *
+	 * @return the source code.
+	 * @throws ProxyEvaluationException
+	 *             on error.
+	 ************************************************************************/
+
+	private String generateClass() throws ProxyEvaluationException {
+		Function entry = this.program.functions.get(JavaxPacScriptParser.ENTRY_FUNCTION);
+		if (entry == null) {
+			throw new ProxyEvaluationException("PAC script entry point FindProxyForURL not found.");
+		}
+		for (Function function : this.program.functions.values()) {
+			this.methodNames.put(function, "f" + this.methodNames.size());
+		}
+
+		StringBuilder members = new StringBuilder();
+		for (int i = 0; i < this.program.globals.size(); i++) {
+			members.append("\tprivate Object g").append(i).append(";\n");
+		}
+
+		// Constructor runs the top level statements
+		this.temps = 0;
+		StringBuilder init = new StringBuilder();
+		if (!statement(init, this.program.init, "\t\t", true)) {
+			throw new ProxyEvaluationException("Return outside of function");
+		}
+		members.append("\n\tpublic ").append(this.className).append("(").append(METHODS_CLASS)
+		        .append(" methods) throws ").append(EXCEPTION_CLASS).append(" {\n\t\tsuper(methods);\n");
+		declareTemps(members, "\t\t");
+		members.append(init).append("\t}\n");
+
+		// Entry point
+		members.append("\n\tpublic String findProxyForURL(String url, String host) throws ").append(EXCEPTION_CLASS)
+		        .append(" {\n\t\treturn result(").append(this.methodNames.get(entry)).append("(");
+		String[] entryArgs = { "url", "host" };
+		for (int i = 0; i < entry.params.length; i++) {
+			members.append(i == 0 ? "" : ", ").append(i < entryArgs.length ? entryArgs[i] : "null");
+		}
+		members.append("));\n\t}\n");
+
+		for (Function function : this.program.functions.values()) {
+			function(members, function);
+		}
+
+		StringBuilder source = new StringBuilder();
+		source.append("public final class ").append(this.className).append(" extends ").append(BASE_CLASS)
+		        .append(" {\n\n");
+		for (Map.Entry<Double, String> constant : this.constants.entrySet()) {
+			source.append("\tprivate static final Double ").append(constant.getValue())
+			        .append(" = Double.valueOf(Double.longBitsToDouble(0x")
+			        .append(Long.toHexString(Double.doubleToRawLongBits(constant.getKey()))).append("L));\n");
+		}
+		source.append(members).append("}\n");
+		return source.toString();
+	}
+
+	/*************************************************************************
+	 * Generates the method for a script function.
+	 *
+	 * @param out
+	 *            the output.
+	 * @param function
+	 *            the function.
+	 * @throws ProxyEvaluationException
+	 *             on error.
+	 ************************************************************************/
+
+	private void function(StringBuilder out, Function function) throws ProxyEvaluationException {
+		out.append("\n\tprivate Object ").append(this.methodNames.get(function)).append("(");
+		for (int i = 0; i < function.params.length; i++) {
+			if (function.locals.get(function.params[i]).intValue() != i) {
+				throw new ProxyEvaluationException("Duplicate parameter " + function.params[i] + " in " + function.name);
+			}
+			out.append(i == 0 ? "" : ", ").append("Object l").append(i);
+		}
+		out.append(") throws ").append(EXCEPTION_CLASS).append(" {\n");
+		for (int i = function.params.length; i < function.locals.size(); i++) {
+			out.append("\t\tObject l").append(i).append(" = null;\n");
+		}
+
+		this.temps = 0;
+		StringBuilder body = new StringBuilder();
+		if (statement(body, function.body, "\t\t", false)) {
+			body.append("\t\treturn null;\n");
+		}
+		declareTemps(out, "\t\t");
+		out.append(body).append("\t}\n");
+	}
+
+	private void declareTemps(StringBuilder out, String indent) {
+		for (int i = 0; i < this.temps; i++) {
+			out.append(indent).append("Object t").append(i).append(" = null;\n");
+		}
+	}
+
+	// ---------------------------------------------------------------------
+	// Statements
+	// ---------------------------------------------------------------------
+
+	/*************************************************************************
+	 * Generates a statement. Statements after a return are dropped, they
+	 * would not compile in Java.
+	 *
+	 * @param out
+	 *            the output.
+	 * @param statement
+	 *            the statement.
+	 * @param indent
+	 *            the current indentation.
+	 * @param topLevel
+	 *            true for the top level statements of the script.
+	 * @return true if the statement can complete normally.
+	 * @throws ProxyEvaluationException
+	 *             on error.
+	 ************************************************************************/
+
+	private boolean statement(StringBuilder out, Statement statement, String indent, boolean topLevel)
+	        throws ProxyEvaluationException {
+		if (statement instanceof Block) {
+			for (Statement s : ((Block) statement).statements) {
+				if (!statement(out, s, indent, topLevel)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		if (statement instanceof ExpressionStatement) {
+			Expression expression = ((ExpressionStatement) statement).expression;
+			if (expression instanceof Assign) {
+				out.append(indent).append(assign((Assign) expression)).append(";\n");
+			} else {
+				out.append(indent).append("ignore(").append(expr(expression)).append(");\n");
+			}
+			return true;
+		}
+		if (statement instanceof If) {
+			If s = (If) statement;
+			out.append(indent).append("if (").append(cond(s.condition)).append(") {\n");
+			boolean completes = statement(out, s.then, indent + "\t", topLevel);
+			if (s.otherwise == null) {
+				completes = true;
+			} else {
+				out.append(indent).append("} else {\n");
+				completes |= statement(out, s.otherwise, indent + "\t", topLevel);
+			}
+			out.append(indent).append("}\n");
+			return completes;
+		}
+		if (statement instanceof Return && !topLevel) {
+			Return s = (Return) statement;
+			out.append(indent).append("return ").append(s.value == null ? "null" : expr(s.value)).append(";\n");
+			return false;
+		}
+		throw new ProxyEvaluationException("Unsupported statement " + statement.getClass().getSimpleName());
+	}
+
+	// ---------------------------------------------------------------------
+	// Expressions
+	// ---------------------------------------------------------------------
+
+	/*************************************************************************
+	 * Generates a Java expression of type Object.
+	 *
+	 * @param e
+	 *            the script expression.
+	 * @return the Java expression.
+	 * @throws ProxyEvaluationException
+	 *             on error.
+	 ************************************************************************/
+
+	private String expr(Expression e) throws ProxyEvaluationException {
+		if (e instanceof Literal) {
+			return literal(((Literal) e).value);
+		}
+		if (e instanceof Variable) {
+			return variable((Variable) e);
+		}
+		if (e instanceof Assign) {
+			return "(" + assign((Assign) e) + ")";
+		}
+		if (e instanceof Unary) {
+			Unary u = (Unary) e;
+			if ("!".equals(u.operator)) {
+				return "bool(!" + cond(u.operand) + ")";
+			}
+			if ("-".equals(u.operator)) {
+				return "num(-num(" + expr(u.operand) + "))";
+			}
+			if ("+".equals(u.operator)) {
+				return "num(num(" + expr(u.operand) + "))";
+			}
+			return "typeOf(" + expr(u.operand) + ")";
+		}
+		if (e instanceof Logical) {
+			Logical l = (Logical) e;
+			String temp = "t" + this.temps++;
+			String left = expr(l.left);
+			String right = expr(l.right);
+			return l.and ? "(truthy(" + temp + " = " + left + ") ? " + right + " : " + temp + ")"
+			        : "(truthy(" + temp + " = " + left + ") ? " + temp + " : " + right + ")";
+		}
+		if (e instanceof Conditional) {
+			Conditional c = (Conditional) e;
+			return "(" + cond(c.condition) + " ? " + expr(c.then) + " : " + expr(c.otherwise) + ")";
+		}
+		if (e instanceof Binary) {
+			Binary b = (Binary) e;
+			char c = b.operator.charAt(0);
+			if (c == '+') {
+				return "add(" + expr(b.left) + ", " + expr(b.right) + ")";
+			}
+			if (c == '-' || c == '*' || c == '/' || c == '%') {
+				return "num(num(" + expr(b.left) + ") " + c + " num(" + expr(b.right) + "))";
+			}
+			return "bool(" + cond(e) + ")";
+		}
+		if (e instanceof Call) {
+			Call call = (Call) e;
+			if (call.function != null) {
+				return functionCall(call);
+			}
+			String invocation = builtinCall(call);
+			switch (call.builtin) {
+			case dnsResolve:
+			case dnsResolveEx:
+			case myIpAddress:
+			case myIpAddressEx:
+			case sortIpAddressList:
+			case getClientVersion:
+				return invocation;
+			case dnsDomainLevels:
+				return "fromInt(" + invocation + ")";
+			default:
+				return "bool(" + invocation + ")";
+			}
+		}
+		if (e instanceof StringMember) {
+			StringMember s = (StringMember) e;
+			if (s.method == StringMethod.TO_LOWER_CASE) {
+				return "toLowerCase(" + expr(s.target) + ")";
+			}
+			StringBuilder result = new StringBuilder("member(").append(s.method.ordinal()).append(", ")
+			        .append(expr(s.target));
+			for (Expression arg : s.args) {
+				result.append(", ").append(expr(arg));
+			}
+			return result.append(")").toString();
+		}
+		throw new ProxyEvaluationException("Unsupported expression " + e.getClass().getSimpleName());
+	}
+
+	/*************************************************************************
+	 * Generates a Java expression of type boolean for the truth value of a
+	 * script expression.
+	 *
+	 * @param e
+	 *            the script expression.
+	 * @return the Java expression.
+	 * @throws ProxyEvaluationException
+	 *             on error.
+	 ************************************************************************/
+
+	private String cond(Expression e) throws ProxyEvaluationException {
+		if (e instanceof Literal && ((Literal) e).value instanceof Boolean) {
+			return ((Literal) e).value.toString();
+		}
+		if (e instanceof Unary && "!".equals(((Unary) e).operator)) {
+			return "!" + cond(((Unary) e).operand);
+		}
+		if (e instanceof Logical) {
+			Logical l = (Logical) e;
+			return "(" + cond(l.left) + (l.and ? " && " : " || ") + cond(l.right) + ")";
+		}
+		if (e instanceof Binary) {
+			Binary b = (Binary) e;
+			String args = "(" + expr(b.left) + ", " + expr(b.right) + ")";
+			if ("==".equals(b.operator)) {
+				return "eq" + args;
+			}
+			if ("!=".equals(b.operator)) {
+				return "!eq" + args;
+			}
+			if ("===".equals(b.operator)) {
+				return "strictEq" + args;
+			}
+			if ("!==".equals(b.operator)) {
+				return "!strictEq" + args;
+			}
+			if ("<".equals(b.operator)) {
+				return "lt" + args;
+			}
+			if ("<=".equals(b.operator)) {
+				return "le" + args;
+			}
+			if (">".equals(b.operator)) {
+				return "gt" + args;
+			}
+			if (">=".equals(b.operator)) {
+				return "ge" + args;
+			}
+		}
+		if (e instanceof Call && ((Call) e).builtin != null) {
+			switch (((Call) e).builtin) {
+			case isPlainHostName:
+			case dnsDomainIs:
+			case localHostOrDomainIs:
+			case isResolvable:
+			case isResolvableEx:
+			case isInNet:
+			case isInNetEx:
+			case shExpMatch:
+			case weekdayRange:
+			case dateRange:
+			case timeRange:
+				return builtinCall((Call) e);
+			default:
+				break;
+			}
+		}
+		return "truthy(" + expr(e) + ")";
+	}
+
+	private String assign(Assign a) throws ProxyEvaluationException {
+		String target = variable(a.target);
+		String value = expr(a.value);
+		if ("+=".equals(a.operator)) {
+			return target + " = add(" + target + ", " + value + ")";
+		}
+		if ("-=".equals(a.operator)) {
+			return target + " = num(num(" + target + ") - num(" + value + "))";
+		}
+		return target + " = " + value;
+	}
+
+	private String variable(Variable v) {
+		return (v.global ? "g" : "l") + v.slot;
+	}
+
+	/*************************************************************************
+	 * Generates a call of a function declared in the script. Missing
+	 * arguments are undefined.
+	 *
+	 * @param call
+	 *            the call.
+	 * @return the Java expression.
+	 * @throws ProxyEvaluationException
+	 *             if there are more arguments than parameters.
+	 ************************************************************************/
+
+	private String functionCall(Call call) throws ProxyEvaluationException {
+		int count = call.function.params.length;
+		if (call.args.length > count) {
+			throw new ProxyEvaluationException("Too many arguments for " + call.name + " in line " + call.line);
+		}
+		StringBuilder result = new StringBuilder(this.methodNames.get(call.function)).append("(");
+		for (int i = 0; i < count; i++) {
+			result.append(i == 0 ? "" : ", ").append(i < call.args.length ? expr(call.args[i]) : "null");
+		}
+		return result.append(")").toString();
+	}
+
+	/*************************************************************************
+	 * Generates a direct call of a predefined PAC function.
+	 *
+	 * @param call
+	 *            the call.
+	 * @return the Java expression with the native return type of the
+	 *         function.
+	 * @throws ProxyEvaluationException
+	 *             if there are more arguments than parameters.
+	 ************************************************************************/
+
+	private String builtinCall(Call call) throws ProxyEvaluationException {
+		Builtin builtin = call.builtin;
+		int count;
+		boolean objectParams = false;
+		switch (builtin) {
+		case myIpAddress:
+		case myIpAddressEx:
+		case getClientVersion:
+			count = 0;
+			break;
+		case dnsDomainIs:
+		case localHostOrDomainIs:
+		case isInNetEx:
+		case shExpMatch:
+			count = 2;
+			break;
+		case isInNet:
+		case weekdayRange:
+			count = 3;
+			break;
+		case dateRange:
+		case timeRange:
+			count = 7;
+			objectParams = true;
+			break;
+		default:
+			count = 1;
+			break;
+		}
+		if (call.args.length > count) {
+			throw new ProxyEvaluationException("Too many arguments for " + call.name + " in line " + call.line);
+		}
+		StringBuilder result = new StringBuilder("m.").append(builtin.name()).append("(");
+		for (int i = 0; i < count; i++) {
+			result.append(i == 0 ? "" : ", ");
+			if (i >= call.args.length) {
+				result.append("null");
+			} else if (objectParams) {
+				result.append(expr(call.args[i]));
+			} else {
+				result.append("str(").append(expr(call.args[i])).append(")");
+			}
+		}
+		return result.append(")").toString();
+	}
+
+	// ---------------------------------------------------------------------
+	// Literals
+	// ---------------------------------------------------------------------
+
+	private String literal(Object value) {
+		if (value == null) {
+			return "null";
+		}
+		if (value instanceof Boolean) {
+			return ((Boolean) value).booleanValue() ? "Boolean.TRUE" : "Boolean.FALSE";
+		}
+		if (value instanceof Double) {
+			String name = this.constants.get(value);
+			if (name == null) {
+				name = "C" + this.constants.size();
+				this.constants.put((Double) value, name);
+			}
+			return name;
+		}
+		return stringLiteral((String) value);
+	}
+
+	/*************************************************************************
+	 * Creates a Java string literal. Unicode escapes are not used for control
+	 * characters because the Java compiler translates them before parsing.
+	 *
+	 * @param s
+	 *            the string.
+	 * @return the literal.
+	 ************************************************************************/
+
+	static String stringLiteral(String s) {
+		StringBuilder result = new StringBuilder(s.length() + 2).append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"':
+				result.append("\\\"");
+				break;
+			case '\\':
+				result.append("\\\\");
+				break;
+			case '\n':
+				result.append("\\n");
+				break;
+			case '\r':
+				result.append("\\r");
+				break;
+			case '\t':
+				result.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					result.append(String.format("\\%03o", Integer.valueOf(c)));
+				} else if (c > 0x7e) {
+					result.append(String.format("\\u%04x", Integer.valueOf(c)));
+				} else {
+					result.append(c);
+				}
+				break;
+			}
+		}
+		return result.append('"').toString();
+	}
+
+}
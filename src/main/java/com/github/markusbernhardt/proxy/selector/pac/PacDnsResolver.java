@@ -0,0 +1,31 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/*****************************************************************************
+ * Resolves host names for the PAC functions like <code>dnsResolve</code> and
+ * <code>isInNet</code>. The results are cached by the {@link DnsCache}, a
+ * resolver is only called on a cache miss.<br>
+ * The library contains the {@link JdkPacDnsResolver} (default) and the
+ * {@link ParallelPacDnsResolver}. Other implementations can be set with
+ * {@link DnsCache#setResolver(PacDnsResolver)}, e.g. an asynchronous resolver
+ * or a stub for tests. Implementations must be thread safe.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public interface PacDnsResolver {
+
+	/*************************************************************************
+	 * Resolves the given host to all its addresses.
+	 *
+	 * @param host
+	 *            the host name or IP address.
+	 * @return the addresses, never empty.
+	 * @throws UnknownHostException
+	 *             if the host cannot be resolved or the lookup took too long.
+	 ************************************************************************/
+	public InetAddress[] resolve(String host) throws UnknownHostException;
+
+}
@@ -1,34 +1,126 @@
 package com.github.markusbernhardt.proxy.selector.pac;
 
+import java.io.Closeable;
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.ProxySelector;
 import java.net.SocketAddress;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.github.markusbernhardt.proxy.selector.misc.BufferedProxySelector.CacheScope;
+import com.github.markusbernhardt.proxy.selector.misc.ExpiringProxySelector;
 import com.github.markusbernhardt.proxy.util.Logger;
 import com.github.markusbernhardt.proxy.util.Logger.LogLevel;
 import com.github.markusbernhardt.proxy.util.ProxyUtil;
 
 /*****************************************************************************
  * ProxySelector that will use a PAC script to find an proxy for a given URI.
+ * If the parser implements {@link ExpiringPacScriptParser} the selector also
+ * reports how long a result is valid, so that a
+ * {@link com.github.markusbernhardt.proxy.selector.misc.BufferedProxySelector}
+ * expires results of time based rules in time.
  *
  * @author Markus Bernhardt, Copyright 2016
  * @author Bernd Rosstauscher, Copyright 2009
  ****************************************************************************/
-public class PacProxySelector extends ProxySelector {
+public class PacProxySelector extends ProxySelector implements ExpiringProxySelector, Closeable {
 
-  // private static final String PAC_PROXY = "PROXY";
-  private static final String PAC_SOCKS = "SOCKS";
-  private static final String PAC_DIRECT = "DIRECT";
+  public static final String OVERRIDE_ENGINE_POOL_SIZE = "com.btr.proxy.pac.enginePoolSize";
+  public static final String OVERRIDE_ENGINE = "com.btr.proxy.pac.engine";
+  public static final String OVERRIDE_EVALUATION_TIMEOUT = "com.btr.proxy.pac.evaluationTimeout";
+
+  public static final String ENGINE_JAVAX = "javax";
+  public static final String ENGINE_JAVA = "java";
+  public static final String ENGINE_COMPILED = "compiled";
+  public static final String ENGINE_NASHORN = "nashorn";
+  public static final String ENGINE_GRAALJS = "graaljs";
+
+  private static final int MAX_LAST_RESULTS = 1000;
+
+  /*************************************************************************
+   * Defines what is returned when the evaluation of the PAC script takes
+   * longer than the evaluation timeout.
+   ************************************************************************/
+
+  public enum TimeoutFallback {
+
+    /*********************************************************************
+     * The last result evaluated for the same host, DIRECT if there is none.
+     ********************************************************************/
+
+    LAST_RESULT,
+
+    /*********************************************************************
+     * The proxy set with {@link PacProxySelector#setTimeoutFallbackProxy}.
+     ********************************************************************/
+
+    FIXED_PROXY,
+
+    /*********************************************************************
+     * No proxy.
+     ********************************************************************/
+
+    DIRECT
+  }
 
   private PacScriptParser pacScriptParser;
+  private final int enginePoolSize;
+
+  private volatile long evaluationTimeout;
+  private volatile TimeoutFallback timeoutFallback = TimeoutFallback.LAST_RESULT;
+  private volatile Proxy timeoutFallbackProxy = Proxy.NO_PROXY;
+  private ExecutorService evaluationExecutor;
+  private final Map<String, List<Proxy>> lastResults;
+  private final AtomicLong timeouts = new AtomicLong();
+  private final AtomicInteger stuckEvaluations = new AtomicInteger();
+  private volatile long automaticCacheTtl = -1;
+  private volatile ScriptState scriptState;
+  private volatile Closeable registration;
 
   private static volatile boolean enabled = true;
 
+  // Evaluations still running after their timeout, more are not started
+  static final int MAX_STUCK_EVALUATIONS = 16;
+
+  // Number of PAC script downloads running on the current thread
+  private static final ThreadLocal<int[]> scriptDownloads = new ThreadLocal<int[]>() {
+    @Override
+    protected int[] initialValue() {
+      return new int[1];
+    }
+  };
+
+  /*************************************************************************
+   * The script content last seen with its version and dependencies.
+   ************************************************************************/
+
+  private static final class ScriptState {
+    final String content;
+    final long version;
+    volatile PacScriptDependencies dependencies;
+
+    ScriptState(String content, long version) {
+      this.content = content;
+      this.version = version;
+    }
+  }
+
   /*************************************************************************
    * Constructor
    * 
@@ -37,8 +129,108 @@ public class PacProxySelector extends ProxySelector {
    ************************************************************************/
 
   public PacProxySelector(PacScriptSource pacSource) {
+    this(pacSource, getDefaultEnginePoolSize());
+  }
+
+  /*************************************************************************
+   * Constructor
+   * 
+   * @param pacSource
+   *          the source for the PAC file.
+   * @param enginePoolSize
+   *          the maximum number of script engines used to evaluate the script
+   *          in parallel.
+   ************************************************************************/
+
+  public PacProxySelector(PacScriptSource pacSource, int enginePoolSize) {
+    this(pacSource, enginePoolSize, PacScriptParserRegistry.getDefaultFactory());
+  }
+
+  /*************************************************************************
+   * Constructor
+   * 
+   * @param pacSource
+   *          the source for the PAC file.
+   * @param enginePoolSize
+   *          the maximum number of script engines used to evaluate the script
+   *          in parallel.
+   * @param parserFactory
+   *          the backend used to evaluate the script, see
+   *          {@link PacScriptParserRegistry}.
+   ************************************************************************/
+
+  public PacProxySelector(PacScriptSource pacSource, int enginePoolSize, PacScriptParserFactory parserFactory) {
+    this((PacScriptParser) null, enginePoolSize);
+    selectEngine(pacSource, enginePoolSize, parserFactory);
+  }
+
+  /*************************************************************************
+   * Constructor for a selector using a parser shared with other selectors,
+   * see {@link PacScriptRegistry}.
+   * 
+   * @param pacScriptParser
+   *          the parser.
+   * @param enginePoolSize
+   *          the maximum number of script engines of the parser.
+   ************************************************************************/
+
+  PacProxySelector(PacScriptParser pacScriptParser, int enginePoolSize) {
     super();
-    selectEngine(pacSource);
+    this.pacScriptParser = pacScriptParser;
+    this.enginePoolSize = enginePoolSize;
+    this.evaluationTimeout = getDefaultEvaluationTimeout();
+    this.lastResults = new LinkedHashMap<String, List<Proxy>>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, List<Proxy>> eldest) {
+        return size() > MAX_LAST_RESULTS;
+      }
+    };
+  }
+
+  /*************************************************************************
+   * Gets the default evaluation timeout from the system property
+   * <code>com.btr.proxy.pac.evaluationTimeout</code>.
+   * 
+   * @return the timeout in milliseconds, 0 for no timeout.
+   ************************************************************************/
+
+  static long getDefaultEvaluationTimeout() {
+    String prop = System.getProperty(OVERRIDE_EVALUATION_TIMEOUT);
+    if (prop != null && prop.trim().length() > 0) {
+      try {
+        return Math.max(0, Long.parseLong(prop.trim()));
+      } catch (NumberFormatException e) {
+        Logger.log(PacProxySelector.class, LogLevel.DEBUG, "Invalid override property : {0}={1}",
+            OVERRIDE_EVALUATION_TIMEOUT, prop);
+        // In this case use the default value.
+      }
+    }
+    return 0;
+  }
+
+  /*************************************************************************
+   * Gets the default size of the script engine pool. This is the number of
+   * available processors unless overridden by the system property
+   * <code>com.btr.proxy.pac.enginePoolSize</code>.
+   * 
+   * @return the pool size to use.
+   ************************************************************************/
+
+  static int getDefaultEnginePoolSize() {
+    int poolSize = Runtime.getRuntime().availableProcessors();
+    String prop = System.getProperty(OVERRIDE_ENGINE_POOL_SIZE);
+    if (prop != null && prop.trim().length() > 0) {
+      try {
+        poolSize = Integer.parseInt(prop.trim());
+      } catch (NumberFormatException e) {
+        Logger.log(PacProxySelector.class, LogLevel.DEBUG, "Invalid override property : {0}={1}",
+            OVERRIDE_ENGINE_POOL_SIZE, prop);
+        // In this case use the default value.
+      }
+    }
+    return Math.max(1, poolSize);
   }
 
   /*************************************************************************
@@ -64,21 +256,319 @@ public class PacProxySelector extends ProxySelector {
   }
 
   /*************************************************************************
-   * Selects one of the available PAC parser engines.
+   * Marks the start of a PAC script download on the current thread. Until
+   * {@link #endScriptDownload()} the selector returns DIRECT for all URLs
+   * selected on this thread, so that the download does not evaluate the
+   * script it is loading. Other threads are not affected. See issue: 26 in
+   * the change tracker.
+   ************************************************************************/
+
+  static void beginScriptDownload() {
+    scriptDownloads.get()[0]++;
+  }
+
+  /*************************************************************************
+   * Marks the end of a PAC script download on the current thread.
+   ************************************************************************/
+
+  static void endScriptDownload() {
+    scriptDownloads.get()[0]--;
+  }
+
+  /*************************************************************************
+   * Checks if the selector is enabled and no PAC script download is running
+   * on the current thread.
+   * 
+   * @return true if the script may be evaluated.
+   ************************************************************************/
+
+  private static boolean isActive() {
+    return enabled && scriptDownloads.get()[0] == 0;
+  }
+
+  /*************************************************************************
+   * Creates the PAC parser with the given backend.
    * 
    * @param pacSource
    *          to use as input.
+   * @param enginePoolSize
+   *          the maximum number of script engines.
+   * @param parserFactory
+   *          the backend.
    ************************************************************************/
 
-  private void selectEngine(PacScriptSource pacSource) {
+  private void selectEngine(PacScriptSource pacSource, int enginePoolSize, PacScriptParserFactory parserFactory) {
     try {
-      Logger.log(getClass(), LogLevel.INFO, "Using javax.script JavaScript engine.");
-      pacScriptParser = new JavaxPacScriptParser(pacSource);
+      Logger.log(getClass(), LogLevel.INFO, "Using PAC engine {0}.", parserFactory.getName());
+      pacScriptParser = parserFactory.createParser(pacSource, enginePoolSize);
     } catch (Exception e) {
       Logger.log(getClass(), LogLevel.ERROR, "PAC parser error.", e);
     }
   }
 
+  /*************************************************************************
+   * Sets the registration to release when the selector is closed.
+   * 
+   * @param registration
+   *          the registration in the {@link PacScriptRegistry}.
+   ************************************************************************/
+
+  void setRegistration(Closeable registration) {
+    this.registration = registration;
+  }
+
+  /*************************************************************************
+   * Releases the script shared through the {@link PacScriptRegistry}, so that
+   * it can be evicted once no selector uses it any more. Does nothing for a
+   * selector that was not obtained from the registry. A closed selector still
+   * works.
+   * 
+   * @throws IOException
+   *           never.
+   ************************************************************************/
+
+  public void close() throws IOException {
+    Closeable registration = this.registration;
+    this.registration = null;
+    if (registration != null) {
+      registration.close();
+    }
+  }
+
+  /*************************************************************************
+   * Gets the parser used to evaluate the PAC script. This can be used to query
+   * the statistics of the script engine pool.
+   * 
+   * @return the parser, null if no parser could be set up.
+   ************************************************************************/
+
+  public PacScriptParser getPacScriptParser() {
+    return pacScriptParser;
+  }
+
+  /*************************************************************************
+   * Sets the maximum time an evaluation of the PAC script may take. If it
+   * takes longer the evaluation is cancelled and the result is determined by
+   * the timeout fallback. With a timeout the script runs on a separate thread
+   * pool, the size of which is the engine pool size.
+   * 
+   * @param timeoutMillis
+   *          the timeout in milliseconds, 0 to wait without limit.
+   ************************************************************************/
+
+  public void setEvaluationTimeout(long timeoutMillis) {
+    this.evaluationTimeout = Math.max(0, timeoutMillis);
+  }
+
+  /*************************************************************************
+   * Gets the maximum time an evaluation of the PAC script may take.
+   * 
+   * @return the timeout in milliseconds, 0 for no limit.
+   ************************************************************************/
+
+  public long getEvaluationTimeout() {
+    return this.evaluationTimeout;
+  }
+
+  /*************************************************************************
+   * Sets what to return if an evaluation times out.
+   * 
+   * @param fallback
+   *          the fallback strategy.
+   ************************************************************************/
+
+  public void setTimeoutFallback(TimeoutFallback fallback) {
+    this.timeoutFallback = fallback == null ? TimeoutFallback.DIRECT : fallback;
+  }
+
+  /*************************************************************************
+   * Sets the proxy returned on timeout if the fallback is
+   * {@link TimeoutFallback#FIXED_PROXY}.
+   * 
+   * @param proxy
+   *          the proxy to use.
+   ************************************************************************/
+
+  public void setTimeoutFallbackProxy(Proxy proxy) {
+    this.timeoutFallbackProxy = proxy == null ? Proxy.NO_PROXY : proxy;
+  }
+
+  /*************************************************************************
+   * Sets the executor the PAC script is evaluated on when a timeout is set.
+   * By default a pool of daemon threads is created on first use. It starts a
+   * new thread when all threads are busy, so evaluations that do not stop
+   * after their timeout do not block later ones. A given executor should
+   * behave the same.
+   * 
+   * @param executor
+   *          the executor to use.
+   ************************************************************************/
+
+  public synchronized void setEvaluationExecutor(ExecutorService executor) {
+    this.evaluationExecutor = executor;
+  }
+
+  /*************************************************************************
+   * Gets the number of evaluations that did not finish within the evaluation
+   * timeout.
+   * 
+   * @return the number of timeouts.
+   ************************************************************************/
+
+  public long getTimeoutCount() {
+    return this.timeouts.get();
+  }
+
+  /*************************************************************************
+   * Gets the number of evaluations that timed out and are still running,
+   * e.g. in an endless loop of the script. No new evaluations are started
+   * while there are {@value #MAX_STUCK_EVALUATIONS} of them, the timeout
+   * fallback is used instead.
+   * 
+   * @return the number of stuck evaluations.
+   ************************************************************************/
+
+  public int getStuckEvaluationCount() {
+    return this.stuckEvaluations.get();
+  }
+
+  /*************************************************************************
+   * Gets the inputs the result of the current PAC script depends on. The
+   * analysis is done once per script content.
+   * 
+   * @return the dependencies, all dependencies if the script could not be
+   *         read or analyzed.
+   ************************************************************************/
+
+  public PacScriptDependencies getScriptDependencies() {
+    ScriptState state = getScriptState();
+    if (state == null) {
+      return PacScriptDependencies.analyze(null);
+    }
+    PacScriptDependencies dependencies = state.dependencies;
+    if (dependencies == null) {
+      dependencies = PacScriptDependencies.analyze(state.content);
+      Logger.log(getClass(), LogLevel.DEBUG, "PAC script depends on {0}.", dependencies);
+      state.dependencies = dependencies;
+    }
+    return dependencies;
+  }
+
+  /*************************************************************************
+   * Lets the selector decide how its results are cached by a
+   * {@link com.github.markusbernhardt.proxy.selector.misc.BufferedProxySelector},
+   * based on the dependencies of the script version that produced them:
+   * <ul>
+   * <li>If the script reads the URL the results are cached per URL, else per
+   * host, see {@link #getCacheScope()}.</li>
+   * <li>If the script resolves host names, reads the local address or has
+   * time based rules the parser cannot expire, the results are valid for at
+   * most the given time to live. Otherwise they are kept until the script
+   * changes.</li>
+   * </ul>
+   * Scripts that cannot be analyzed use the given time to live and the scope
+   * of the cache. As the dependencies are checked for every script version, an
+   * updated script that e.g. starts to use <code>dnsResolve</code> is cached
+   * correctly.
+   * 
+   * @param ttl
+   *          the time to live in milliseconds for results that may change at
+   *          any time, a negative value to turn the automatic caching off
+   *          (default).
+   ************************************************************************/
+
+  public void setAutomaticCacheTtl(long ttl) {
+    this.automaticCacheTtl = ttl;
+  }
+
+  /*************************************************************************
+   * Gets the cache scope the results of the current script need, if
+   * automatic caching is turned on with {@link #setAutomaticCacheTtl(long)}.
+   * 
+   * @see com.github.markusbernhardt.proxy.selector.misc.ExpiringProxySelector#getCacheScope()
+   ************************************************************************/
+
+  public CacheScope getCacheScope() {
+    if (this.automaticCacheTtl < 0) {
+      return null;
+    }
+    PacScriptDependencies dependencies = getScriptDependencies();
+    if (!dependencies.isAnalyzed()) {
+      return null;
+    }
+    return dependencies.usesUrl() ? CacheScope.CACHE_SCOPE_URL : CacheScope.CACHE_SCOPE_HOST;
+  }
+
+  /*************************************************************************
+   * Limits the validity of a script result to the automatic time to live if
+   * the current script depends on inputs that may change at any time.
+   * 
+   * @param validFor
+   *          the validity of the result, may be null.
+   ************************************************************************/
+
+  private void applyAutomaticCacheTtl(long[] validFor) {
+    long ttl = this.automaticCacheTtl;
+    if (ttl < 0 || validFor == null || validFor[0] <= ttl) {
+      return;
+    }
+    PacScriptDependencies dependencies = getScriptDependencies();
+    boolean expiresInTime = !dependencies.usesTime() || this.pacScriptParser instanceof ExpiringPacScriptParser;
+    if (!dependencies.isAnalyzed() || dependencies.usesDns() || dependencies.usesLocalAddress() || !expiresInTime) {
+      validFor[0] = ttl;
+    }
+  }
+
+  /*************************************************************************
+   * Gets the version of the PAC script. It is incremented whenever the script
+   * source delivers another content, e.g. after the script was updated on
+   * the server.
+   * 
+   * @see com.github.markusbernhardt.proxy.selector.misc.ExpiringProxySelector#getResultVersion()
+   ************************************************************************/
+
+  public long getResultVersion() {
+    ScriptState state = getScriptState();
+    return state == null ? 0 : state.version;
+  }
+
+  /*************************************************************************
+   * Gets the state of the current script content. If the content cannot be
+   * read the last known state is kept.
+   * 
+   * @return the state, null if the script was never read.
+   ************************************************************************/
+
+  private ScriptState getScriptState() {
+    ScriptState state = this.scriptState;
+    PacScriptParser parser = this.pacScriptParser;
+    if (parser == null) {
+      return state;
+    }
+    String content;
+    try {
+      content = parser.getScriptSource().getScriptContent();
+    } catch (IOException e) {
+      Logger.log(getClass(), LogLevel.DEBUG, "PAC script cannot be read: {0}", e.getMessage());
+      return state;
+    }
+    if (state != null && isSameContent(state.content, content)) {
+      return state;
+    }
+    synchronized (this) {
+      state = this.scriptState;
+      if (state == null || !isSameContent(state.content, content)) {
+        state = new ScriptState(content, state == null ? 0 : state.version + 1);
+        this.scriptState = state;
+      }
+    }
+    return state;
+  }
+
+  private static boolean isSameContent(String a, String b) {
+    return a == b || (a != null && a.equals(b));
+  }
+
   /*************************************************************************
    * connectFailed
    * 
@@ -97,17 +587,93 @@ public class PacProxySelector extends ProxySelector {
    ************************************************************************/
   @Override
   public List<Proxy> select(URI uri) {
+    return select(uri, null);
+  }
+
+  /*************************************************************************
+   * Selects the proxies for the given URI and reports how long the result is
+   * valid. The validity is only known if the parser implements
+   * {@link ExpiringPacScriptParser}. Results that do not come from the
+   * script, e.g. after an error or timeout, are reported with a validity of
+   * 0.
+   * 
+   * @param uri
+   *          the URI to select the proxies for.
+   * @param validFor
+   *          receives the validity of the result in milliseconds, may be null.
+   * @return the proxies.
+   ************************************************************************/
+
+  public List<Proxy> select(URI uri, long[] validFor) {
     if (uri == null) {
       throw new IllegalArgumentException("URI must not be null.");
     }
 
     // Fix for Java 1.6.16+ where we get a infinite loop because
     // URL.connect(Proxy.NO_PROXY) does not work as expected.
-    if (!enabled) {
+    if (!isActive()) {
+      setNotCacheable(validFor);
       return ProxyUtil.noProxyList();
     }
 
-    return findProxy(uri);
+    List<Proxy> proxies = findProxy(uri, validFor);
+    applyAutomaticCacheTtl(validFor);
+    return proxies;
+  }
+
+  /*************************************************************************
+   * Selects the proxies for many URIs at once. Equal URIs are evaluated only
+   * once and parsers implementing {@link BatchPacScriptParser} evaluate the
+   * whole batch with a single call into the script engine. If an evaluation
+   * timeout is set every URI is evaluated on its own so that the timeout
+   * applies per URI.
+   * 
+   * @param uris
+   *          the URIs to select the proxies for.
+   * @return the proxies for each URI in the order of the given URIs.
+   ************************************************************************/
+
+  public List<List<Proxy>> selectAll(List<URI> uris) {
+    List<List<Proxy>> result = new ArrayList<List<Proxy>>(uris.size());
+    if (!isActive() || pacScriptParser == null || this.evaluationTimeout > 0
+        || !(pacScriptParser instanceof BatchPacScriptParser)) {
+      for (URI uri : uris) {
+        result.add(select(uri));
+      }
+      return result;
+    }
+
+    // Deduplicate, the script only sees the URL and its host.
+    Map<String, Integer> indexes = new HashMap<String, Integer>();
+    List<URI> unique = new ArrayList<URI>();
+    for (URI uri : uris) {
+      if (uri == null) {
+        throw new IllegalArgumentException("URI must not be null.");
+      }
+      String key = uri.toString();
+      if (!indexes.containsKey(key)) {
+        indexes.put(key, unique.size());
+        unique.add(uri);
+      }
+    }
+
+    List<List<Proxy>> uniqueResults = new ArrayList<List<Proxy>>(unique.size());
+    try {
+      List<String> parseResults = ((BatchPacScriptParser) pacScriptParser).evaluateAll(unique);
+      for (String parseResult : parseResults) {
+        uniqueResults.add(parseResult == null ? ProxyUtil.noProxyList() : parsePacResult(parseResult));
+      }
+    } catch (ProxyEvaluationException e) {
+      Logger.log(getClass(), LogLevel.ERROR, "PAC resolving error.", e);
+      for (int i = 0; i < unique.size(); i++) {
+        uniqueResults.add(ProxyUtil.noProxyList());
+      }
+    }
+
+    for (URI uri : uris) {
+      result.add(uniqueResults.get(indexes.get(uri.toString())));
+    }
+    return result;
   }
 
   /*************************************************************************
@@ -119,69 +685,240 @@ public class PacProxySelector extends ProxySelector {
    * 
    * @param uri
    *          <code>URI</code> to be evaluated.
+   * @param validFor
+   *          receives the validity of the result, may be null.
    * @return <code>Proxy</code>-object list as result of the evaluation.
    ************************************************************************/
 
-  private List<Proxy> findProxy(URI uri) {
+  private List<Proxy> findProxy(URI uri, long[] validFor) {
     try {
       if (pacScriptParser == null) {
+        setNotCacheable(validFor);
         return ProxyUtil.noProxyList();
       }
-      String parseResult = pacScriptParser.evaluate(uri.toString(), uri.getHost());
+      String parseResult = evaluate(uri, validFor);
       if (parseResult == null) {
         return ProxyUtil.noProxyList();
       }
-      List<Proxy> proxies = new ArrayList<Proxy>();
-      String[] proxyDefinitions = parseResult.split("[;]");
-      for (String proxyDef : proxyDefinitions) {
-        if (proxyDef.trim().length() > 0) {
-          proxies.add(buildProxyFromPacResult(proxyDef));
-        }
-      }
+      List<Proxy> proxies = parsePacResult(parseResult);
+      rememberResult(uri, proxies);
       return proxies;
     } catch (ProxyEvaluationException e) {
       Logger.log(getClass(), LogLevel.ERROR, "PAC resolving error.", e);
+      setNotCacheable(validFor);
       return ProxyUtil.noProxyList();
+    } catch (TimeoutException e) {
+      setNotCacheable(validFor);
+      this.timeouts.incrementAndGet();
+      Logger.log(getClass(), LogLevel.WARNING, "PAC evaluation for {0} timed out after {1} ms.", uri,
+          this.evaluationTimeout);
+      return getTimeoutFallback(uri);
     }
   }
 
   /*************************************************************************
-   * The proxy evaluator will return a proxy string. This method will take this
-   * string and build a matching <code>Proxy</code> for it.
+   * Reports a result that did not come from the script, e.g. a fallback after
+   * an error or timeout, as not cacheable. Otherwise a cache would keep it
+   * with the validity the caller initialized, possibly forever.
    * 
-   * @param pacResult
-   *          the result from the PAC parser.
-   * @return a Proxy
+   * @param validFor
+   *          receives the validity of the result, may be null.
    ************************************************************************/
 
-  private Proxy buildProxyFromPacResult(String pacResult) {
-    if (pacResult.trim().length() < 6) {
-      return Proxy.NO_PROXY;
+  private static void setNotCacheable(long[] validFor) {
+    if (validFor != null) {
+      validFor[0] = 0;
+    }
+  }
+
+  /*************************************************************************
+   * Evaluates the PAC script for the given URI. If an evaluation timeout is
+   * set, the script runs on the evaluation executor and is cancelled when the
+   * timeout expires. Script engines can not be interrupted, so an
+   * evaluation that is still running is abandoned: its pooled engine is
+   * replaced and later evaluations run on other threads.
+   * 
+   * @param uri
+   *          the URI to evaluate.
+   * @param validFor
+   *          receives the validity of the result, may be null.
+   * @return the script result.
+   * @throws ProxyEvaluationException
+   *           on evaluation error.
+   * @throws TimeoutException
+   *           if the evaluation timed out.
+   ************************************************************************/
+
+  private String evaluate(final URI uri, final long[] validFor) throws ProxyEvaluationException, TimeoutException {
+    long timeout = this.evaluationTimeout;
+    if (timeout <= 0) {
+      return JavaxPacScriptParser.evaluate(pacScriptParser, uri.toString(), uri.getHost(), validFor);
+    }
+    if (this.stuckEvaluations.get() >= MAX_STUCK_EVALUATIONS) {
+      throw new TimeoutException("Too many stuck PAC evaluations.");
+    }
+    // The task writes to its own array, a cancelled task must not change the
+    // validity reported for the fallback result.
+    final long[] taskValidFor = validFor == null ? null : new long[] { validFor[0] };
+    Evaluation evaluation = new Evaluation(uri, taskValidFor);
+    Future<String> future = getEvaluationExecutor().submit(evaluation);
+    try {
+      String result = future.get(timeout, TimeUnit.MILLISECONDS);
+      if (validFor != null) {
+        validFor[0] = taskValidFor[0];
+      }
+      return result;
+    } catch (TimeoutException e) {
+      future.cancel(true);
+      evaluation.abandon();
+      throw e;
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      evaluation.abandon();
+      Thread.currentThread().interrupt();
+      throw new ProxyEvaluationException("Interrupted while waiting for PAC evaluation.", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof ProxyEvaluationException) {
+        throw (ProxyEvaluationException) e.getCause();
+      }
+      throw new ProxyEvaluationException("Error while executing PAC script: " + e.getCause(), e.getCause());
+    }
+  }
+
+  /*************************************************************************
+   * An evaluation running on the evaluation executor. It knows its thread so
+   * that it can be abandoned when it does not stop after its timeout.
+   ************************************************************************/
+
+  private final class Evaluation implements Callable<String> {
+    private final URI uri;
+    private final long[] validFor;
+    private Thread worker;
+    private boolean done;
+    private boolean abandoned;
+
+    Evaluation(URI uri, long[] validFor) {
+      this.uri = uri;
+      this.validFor = validFor;
+    }
+
+    public String call() throws ProxyEvaluationException {
+      synchronized (this) {
+        if (this.abandoned) {
+          return null;
+        }
+        this.worker = Thread.currentThread();
+      }
+      try {
+        return JavaxPacScriptParser.evaluate(pacScriptParser, this.uri.toString(), this.uri.getHost(),
+            this.validFor);
+      } finally {
+        synchronized (this) {
+          this.done = true;
+          this.worker = null;
+          if (this.abandoned) {
+            stuckEvaluations.decrementAndGet();
+          }
+        }
+      }
     }
-    String proxyDef = pacResult.trim();
-    if (proxyDef.toUpperCase().startsWith(PAC_DIRECT)) {
-      return Proxy.NO_PROXY;
+
+    /*************************************************************************
+     * Gives up the evaluation. If it is still running its script engine is
+     * replaced and it is counted as stuck until it returns.
+     ************************************************************************/
+
+    synchronized void abandon() {
+      if (this.abandoned || this.done) {
+        return;
+      }
+      this.abandoned = true;
+      if (this.worker != null) {
+        stuckEvaluations.incrementAndGet();
+        PooledPacScriptParser.abandon(this.worker);
+      }
     }
+  }
 
-    // Check proxy type.
-    Proxy.Type type = Proxy.Type.HTTP;
-    if (proxyDef.toUpperCase().startsWith(PAC_SOCKS)) {
-      type = Proxy.Type.SOCKS;
+  /*************************************************************************
+   * Gets the executor for evaluations with timeout and creates it on first
+   * use. Idle threads are reused, a new thread is started when all threads
+   * are busy. The number of threads is limited by the number of concurrent
+   * callers and {@link #MAX_STUCK_EVALUATIONS}.
+   * 
+   * @return the executor.
+   ************************************************************************/
+
+  private synchronized ExecutorService getEvaluationExecutor() {
+    if (this.evaluationExecutor == null) {
+      this.evaluationExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+          new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+              Thread thread = new Thread(r, "PAC evaluation");
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
     }
+    return this.evaluationExecutor;
+  }
 
-    String host = proxyDef.substring(6);
-    Integer port = ProxyUtil.DEFAULT_PROXY_PORT;
+  /*************************************************************************
+   * Stores the result for the host of the URI so that it can be used as
+   * fallback if a later evaluation times out.
+   * 
+   * @param uri
+   *          the evaluated URI.
+   * @param proxies
+   *          the result.
+   ************************************************************************/
 
-    // Split port from host
-    int indexOfPort = host.indexOf(':');
-    int index2 = host.lastIndexOf(']');
-    if (indexOfPort != -1 && index2 < indexOfPort) {
-      port = Integer.parseInt(host.substring(indexOfPort + 1).trim());
-      host = host.substring(0, indexOfPort).trim();
+  private void rememberResult(URI uri, List<Proxy> proxies) {
+    if (this.evaluationTimeout > 0 && this.timeoutFallback == TimeoutFallback.LAST_RESULT && uri.getHost() != null) {
+      synchronized (this.lastResults) {
+        this.lastResults.put(uri.getHost(), proxies);
+      }
     }
+  }
+
+  /*************************************************************************
+   * Gets the result to use when the evaluation timed out.
+   * 
+   * @param uri
+   *          the URI that was evaluated.
+   * @return the fallback proxies.
+   ************************************************************************/
+
+  private List<Proxy> getTimeoutFallback(URI uri) {
+    switch (this.timeoutFallback) {
+    case LAST_RESULT:
+      List<Proxy> last = null;
+      if (uri.getHost() != null) {
+        synchronized (this.lastResults) {
+          last = this.lastResults.get(uri.getHost());
+        }
+      }
+      return last != null ? last : ProxyUtil.noProxyList();
+    case FIXED_PROXY:
+      List<Proxy> result = new ArrayList<Proxy>(1);
+      result.add(this.timeoutFallbackProxy);
+      return result;
+    default:
+      return ProxyUtil.noProxyList();
+    }
+  }
+
+  /*************************************************************************
+   * Converts the result of the PAC script to a list of proxies. Repeated
+   * results return the same cached list, see {@link PacResultParser}.
+   * 
+   * @param parseResult
+   *          the semicolon separated proxy definitions.
+   * @return the proxies as unmodifiable list.
+   ************************************************************************/
 
-    SocketAddress adr = InetSocketAddress.createUnresolved(host, port);
-    return new Proxy(type, adr);
+  private List<Proxy> parsePacResult(String parseResult) {
+    return PacResultParser.parse(parseResult);
   }
 
 }
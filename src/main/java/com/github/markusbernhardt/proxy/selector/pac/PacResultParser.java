@@ -0,0 +1,212 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.github.markusbernhardt.proxy.util.Logger;
+import com.github.markusbernhardt.proxy.util.Logger.LogLevel;
+import com.github.markusbernhardt.proxy.util.ProxyUtil;
+
+/*****************************************************************************
+ * Converts the string returned by <code>FindProxyForURL</code> to a list of
+ * proxies. The result consists of semicolon separated entries like
+ * <code>PROXY host:port</code>, <code>HTTPS host:port</code>,
+ * <code>SOCKS host:port</code>, <code>SOCKS4 host:port</code>,
+ * <code>SOCKS5 host:port</code> or <code>DIRECT</code>. Keywords are not case
+ * sensitive. <code>HTTPS</code> proxies are returned as HTTP proxies and
+ * <code>SOCKS4</code> and <code>SOCKS5</code> proxies as SOCKS proxies, as
+ * java.net.Proxy has no finer distinction. Entries that cannot be parsed are
+ * skipped.<br>
+ * A script returns the same few strings over and over. The parsed, immutable
+ * lists are therefore kept in a bounded cache keyed by the result string, so a
+ * repeated result returns the identical list without allocation.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+final class PacResultParser {
+
+	private static final int MAX_CACHE_SIZE = 1000;
+
+	private static final ConcurrentMap<String, List<Proxy>> CACHE = new ConcurrentHashMap<String, List<Proxy>>();
+
+	private static final String[] HTTP_KEYWORDS = { "PROXY", "HTTP", "HTTPS" };
+	private static final String[] SOCKS_KEYWORDS = { "SOCKS", "SOCKS4", "SOCKS5" };
+	private static final String DIRECT_KEYWORD = "DIRECT";
+
+	private PacResultParser() {
+		super();
+	}
+
+	/*************************************************************************
+	 * Gets the proxies for the given script result from the cache or parses
+	 * it.
+	 *
+	 * @param pacResult
+	 *            the semicolon separated proxy definitions.
+	 * @return the proxies as unmodifiable list.
+	 ************************************************************************/
+
+	static List<Proxy> parse(String pacResult) {
+		List<Proxy> proxies = CACHE.get(pacResult);
+		if (proxies == null) {
+			proxies = parseResult(pacResult);
+			if (CACHE.size() >= MAX_CACHE_SIZE) {
+				// Results built at runtime, start over instead of growing
+				CACHE.clear();
+			}
+			CACHE.put(pacResult, proxies);
+		}
+		return proxies;
+	}
+
+	/*************************************************************************
+	 * Parses all entries of the script result.
+	 *
+	 * @param pacResult
+	 *            the semicolon separated proxy definitions.
+	 * @return the proxies as unmodifiable list.
+	 ************************************************************************/
+
+	private static List<Proxy> parseResult(String pacResult) {
+		List<Proxy> proxies = new ArrayList<Proxy>(2);
+		boolean empty = true;
+		int start = 0;
+		int length = pacResult.length();
+		while (start <= length) {
+			int end = pacResult.indexOf(';', start);
+			if (end < 0) {
+				end = length;
+			}
+			int from = skipWhitespace(pacResult, start, end);
+			int to = trimWhitespace(pacResult, from, end);
+			if (from < to) {
+				empty = false;
+				Proxy proxy = parseEntry(pacResult, from, to);
+				if (proxy != null) {
+					proxies.add(proxy);
+				}
+			}
+			start = end + 1;
+		}
+		if (proxies.isEmpty()) {
+			return empty ? Collections.<Proxy> emptyList() : ProxyUtil.noProxyList();
+		}
+		if (proxies.size() == 1) {
+			return Collections.singletonList(proxies.get(0));
+		}
+		return Collections.unmodifiableList(proxies);
+	}
+
+	/*************************************************************************
+	 * Parses a single entry of the script result.
+	 *
+	 * @param pacResult
+	 *            the script result.
+	 * @param from
+	 *            the index of the first character of the entry.
+	 * @param to
+	 *            the index after the last character of the entry.
+	 * @return the proxy, null if the entry is invalid.
+	 ************************************************************************/
+
+	private static Proxy parseEntry(String pacResult, int from, int to) {
+		int keywordEnd = from;
+		while (keywordEnd < to && !Character.isWhitespace(pacResult.charAt(keywordEnd))) {
+			keywordEnd++;
+		}
+		if (matches(pacResult, from, keywordEnd, DIRECT_KEYWORD)) {
+			return Proxy.NO_PROXY;
+		}
+		Proxy.Type type;
+		if (matchesAny(pacResult, from, keywordEnd, HTTP_KEYWORDS)) {
+			type = Proxy.Type.HTTP;
+		} else if (matchesAny(pacResult, from, keywordEnd, SOCKS_KEYWORDS)) {
+			type = Proxy.Type.SOCKS;
+		} else {
+			Logger.log(PacResultParser.class, LogLevel.WARNING, "Unknown PAC result entry {0}",
+			        pacResult.substring(from, to));
+			return null;
+		}
+
+		int hostStart = skipWhitespace(pacResult, keywordEnd, to);
+		int hostEnd = to;
+		int port = ProxyUtil.DEFAULT_PROXY_PORT;
+
+		// Split port from host, the colons of an IPv6 address are in brackets
+		int colon = pacResult.lastIndexOf(':', to - 1);
+		if (colon >= hostStart) {
+			int bracket = pacResult.lastIndexOf(']', to - 1);
+			if (bracket >= hostStart ? bracket < colon : pacResult.indexOf(':', hostStart) == colon) {
+				port = parsePort(pacResult, skipWhitespace(pacResult, colon + 1, to), to);
+				hostEnd = trimWhitespace(pacResult, hostStart, colon);
+			}
+		}
+		if (hostStart >= hostEnd || port < 0) {
+			Logger.log(PacResultParser.class, LogLevel.WARNING, "Invalid PAC result entry {0}",
+			        pacResult.substring(from, to));
+			return null;
+		}
+		return new Proxy(type, InetSocketAddress.createUnresolved(pacResult.substring(hostStart, hostEnd), port));
+	}
+
+	/*************************************************************************
+	 * Parses a port number.
+	 *
+	 * @param text
+	 *            the text containing the port.
+	 * @param from
+	 *            the index of the first digit.
+	 * @param to
+	 *            the index after the last digit.
+	 * @return the port, -1 if it is not a valid port number.
+	 ************************************************************************/
+
+	private static int parsePort(String text, int from, int to) {
+		if (from >= to || to - from > 5) {
+			return -1;
+		}
+		int port = 0;
+		for (int i = from; i < to; i++) {
+			char c = text.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			port = port * 10 + (c - '0');
+		}
+		return port <= 0xFFFF ? port : -1;
+	}
+
+	private static boolean matchesAny(String text, int from, int to, String[] keywords) {
+		for (String keyword : keywords) {
+			if (matches(text, from, to, keyword)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean matches(String text, int from, int to, String keyword) {
+		return to - from == keyword.length() && text.regionMatches(true, from, keyword, 0, keyword.length());
+	}
+
+	private static int skipWhitespace(String text, int from, int to) {
+		while (from < to && Character.isWhitespace(text.charAt(from))) {
+			from++;
+		}
+		return from;
+	}
+
+	private static int trimWhitespace(String text, int from, int to) {
+		while (to > from && Character.isWhitespace(text.charAt(to - 1))) {
+			to--;
+		}
+		return to;
+	}
+
+}
@@ -0,0 +1,244 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Program;
+import com.github.markusbernhardt.proxy.util.Logger;
+import com.github.markusbernhardt.proxy.util.Logger.LogLevel;
+
+/*****************************************************************************
+ * Compiles PAC scripts to Java classes with the system Java compiler. The
+ * generated classes are cached by the SHA-256 hash of the script, so every
+ * distinct script is compiled only once per JVM.<br>
+ * The compiler is only available when running on a JDK. On a plain JRE
+ * {@link #isAvailable()} returns false.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+final class PacScriptCompiler {
+
+	private static final int MAX_CACHED_CLASSES = 16;
+	private static final String CLASS_PREFIX = "CompiledPacScript_";
+
+	private static final Map<String, Class<? extends CompiledPacScript>> CACHE = Collections
+	        .synchronizedMap(new LinkedHashMap<String, Class<? extends CompiledPacScript>>(16, 0.75f, true) {
+		        private static final long serialVersionUID = 1L;
+
+		        @Override
+		        protected boolean removeEldestEntry(Map.Entry<String, Class<? extends CompiledPacScript>> eldest) {
+			        return size() > MAX_CACHED_CLASSES;
+		        }
+	        });
+
+	/*************************************************************************
+	 * Constructor
+	 ************************************************************************/
+
+	private PacScriptCompiler() {
+		super();
+	}
+
+	/*************************************************************************
+	 * Checks if a Java compiler is available in this runtime.
+	 *
+	 * @return true if scripts can be compiled.
+	 ************************************************************************/
+
+	static boolean isAvailable() {
+		return ToolProvider.getSystemJavaCompiler() != null;
+	}
+
+	/*************************************************************************
+	 * Gets the compiled class for a script. The class is taken from the cache
+	 * if the same script was compiled before.
+	 *
+	 * @param script
+	 *            the script content.
+	 * @param program
+	 *            the parsed script.
+	 * @return the generated class.
+	 * @throws ProxyEvaluationException
+	 *             if the script cannot be compiled.
+	 ************************************************************************/
+
+	static Class<? extends CompiledPacScript> compile(String script, Program program)
+	        throws ProxyEvaluationException {
+		String hash = hash(script);
+		Class<? extends CompiledPacScript> result = CACHE.get(hash);
+		if (result == null) {
+			synchronized (PacScriptCompiler.class) {
+				result = CACHE.get(hash);
+				if (result == null) {
+					String className = CLASS_PREFIX + hash.substring(0, 16);
+					result = compileClass(className, PacCodeGenerator.generate(program, className));
+					CACHE.put(hash, result);
+				}
+			}
+		}
+		return result;
+	}
+
+	/*************************************************************************
+	 * Compiles the generated source code and loads the class.
+	 *
+	 * @param className
+	 *            the class name.
+	 * @param source
+	 *            the source code.
+	 * @return the loaded class.
+	 * @throws ProxyEvaluationException
+	 *             on compile error.
+	 ************************************************************************/
+
+	private static Class<? extends CompiledPacScript> compileClass(String className, final String source)
+	        throws ProxyEvaluationException {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler == null) {
+			throw new ProxyEvaluationException("No Java compiler available.");
+		}
+		long start = System.currentTimeMillis();
+		MemoryFileManager fileManager = new MemoryFileManager(compiler.getStandardFileManager(null, null, null));
+		StringWriter errors = new StringWriter();
+		JavaFileObject sourceFile = new SimpleJavaFileObject(URI.create("string:///" + className + ".java"),
+		        Kind.SOURCE) {
+			@Override
+			public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+				return source;
+			}
+		};
+		Boolean success = compiler.getTask(errors, fileManager, null,
+		        Arrays.asList("-g:none", "-nowarn", "-classpath", getClassPath()), null, Arrays.asList(sourceFile))
+		        .call();
+		if (success == null || !success.booleanValue()) {
+			throw new ProxyEvaluationException("Compiling PAC script failed: " + errors);
+		}
+		Logger.log(PacScriptCompiler.class, LogLevel.DEBUG, "Compiled PAC script to {0} in {1} ms.", className,
+		        System.currentTimeMillis() - start);
+
+		ScriptClassLoader loader = new ScriptClassLoader(fileManager.classes);
+		try {
+			return loader.loadClass(className).asSubclass(CompiledPacScript.class);
+		} catch (ClassNotFoundException e) {
+			throw new ProxyEvaluationException("Compiled PAC script not found: " + className, e);
+		}
+	}
+
+	/*************************************************************************
+	 * Builds the class path for the compiler. It contains the location of this
+	 * library, which may differ from the application class path.
+	 *
+	 * @return the class path.
+	 ************************************************************************/
+
+	private static String getClassPath() {
+		String classPath = System.getProperty("java.class.path", "");
+		CodeSource codeSource = CompiledPacScript.class.getProtectionDomain().getCodeSource();
+		if (codeSource != null && codeSource.getLocation() != null) {
+			try {
+				String location = new File(codeSource.getLocation().toURI()).getPath();
+				classPath = location + File.pathSeparator + classPath;
+			} catch (Exception e) {
+				Logger.log(PacScriptCompiler.class, LogLevel.DEBUG, "Cannot resolve library location {0}",
+				        codeSource.getLocation());
+			}
+		}
+		return classPath;
+	}
+
+	/*************************************************************************
+	 * Calculates the SHA-256 hash of a script.
+	 *
+	 * @param script
+	 *            the script.
+	 * @return the hash as hex string.
+	 ************************************************************************/
+
+	static String hash(String script) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(script.getBytes("UTF-8"));
+			StringBuilder result = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return result.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*************************************************************************
+	 * File manager that keeps the compiled classes in memory.
+	 ************************************************************************/
+
+	private static final class MemoryFileManager extends ForwardingJavaFileManager<JavaFileManager> {
+		final Map<String, ByteArrayOutputStream> classes = new HashMap<String, ByteArrayOutputStream>();
+
+		MemoryFileManager(JavaFileManager fileManager) {
+			super(fileManager);
+		}
+
+		@Override
+		public JavaFileObject getJavaFileForOutput(Location location, final String className, Kind kind,
+		        FileObject sibling) {
+			return new SimpleJavaFileObject(URI.create("mem:///" + className.replace('.', '/') + kind.extension),
+			        kind) {
+				@Override
+				public OutputStream openOutputStream() {
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					MemoryFileManager.this.classes.put(className, out);
+					return out;
+				}
+			};
+		}
+	}
+
+	/*************************************************************************
+	 * Class loader for the generated classes. Everything else is loaded from
+	 * the class loader of this library.
+	 ************************************************************************/
+
+	private static final class ScriptClassLoader extends ClassLoader {
+		private final Map<String, ByteArrayOutputStream> classes;
+
+		ScriptClassLoader(Map<String, ByteArrayOutputStream> classes) {
+			super(CompiledPacScript.class.getClassLoader());
+			this.classes = classes;
+		}
+
+		@Override
+		protected Class<?> findClass(String name) throws ClassNotFoundException {
+			ByteArrayOutputStream bytes = this.classes.get(name);
+			if (bytes == null) {
+				throw new ClassNotFoundException(name);
+			}
+			byte[] data = bytes.toByteArray();
+			return defineClass(name, data, 0, data.length);
+		}
+	}
+
+}
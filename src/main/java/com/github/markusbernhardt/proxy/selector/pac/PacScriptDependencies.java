@@ -0,0 +1,305 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Assign;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Binary;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Block;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Call;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Conditional;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Expression;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.ExpressionStatement;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Function;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.If;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Logical;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Program;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Return;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Statement;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.StringMember;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Unary;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Variable;
+import com.github.markusbernhardt.proxy.util.Logger;
+import com.github.markusbernhardt.proxy.util.Logger.LogLevel;
+
+/*****************************************************************************
+ * The inputs the result of a PAC script depends on, found by a static
+ * analysis of the script. The script is parsed with the {@link PacSyntaxParser}
+ * and all functions and top level statements are inspected for
+ * <ul>
+ * <li>reads of the <code>url</code> parameter of <code>FindProxyForURL</code>,
+ * </li>
+ * <li>calls of the DNS functions <code>dnsResolve</code>,
+ * <code>isResolvable</code>, <code>isInNet</code> and their <code>Ex</code>
+ * variants,</li>
+ * <li>calls of <code>myIpAddress</code> and <code>myIpAddressEx</code>,</li>
+ * <li>calls of the time functions <code>weekdayRange</code>,
+ * <code>dateRange</code> and <code>timeRange</code>.</li>
+ * </ul>
+ * The analysis is conservative: a function is counted even if the branch
+ * calling it is never taken. Scripts using constructs the Java parser does not
+ * support cannot be analyzed, for them {@link #isAnalyzed()} is false and all
+ * dependencies are reported.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public final class PacScriptDependencies {
+
+	private static final PacScriptDependencies UNKNOWN = new PacScriptDependencies(false);
+
+	private final boolean analyzed;
+	private boolean url;
+	private boolean dns;
+	private boolean localAddress;
+	private boolean time;
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param analyzed
+	 *            false if nothing is known about the script.
+	 ************************************************************************/
+
+	private PacScriptDependencies(boolean analyzed) {
+		super();
+		this.analyzed = analyzed;
+		this.url = !analyzed;
+		this.dns = !analyzed;
+		this.localAddress = !analyzed;
+		this.time = !analyzed;
+	}
+
+	/*************************************************************************
+	 * Analyzes the given script.
+	 *
+	 * @param script
+	 *            the PAC script.
+	 * @return the dependencies of the script.
+	 ************************************************************************/
+
+	public static PacScriptDependencies analyze(String script) {
+		if (script == null) {
+			return UNKNOWN;
+		}
+		Program program;
+		try {
+			program = PacSyntaxParser.parse(script);
+		} catch (ProxyEvaluationException e) {
+			Logger.log(PacScriptDependencies.class, LogLevel.DEBUG, "PAC script cannot be analyzed: {0}",
+			        e.getMessage());
+			return UNKNOWN;
+		}
+		Function entry = program.functions.get(JavaxPacScriptParser.ENTRY_FUNCTION);
+		if (entry == null) {
+			return UNKNOWN;
+		}
+		PacScriptDependencies result = new PacScriptDependencies(true);
+		String urlParam = entry.params.length > 0 ? entry.params[0] : null;
+		result.visit(program.init, null, null);
+		for (Function function : program.functions.values()) {
+			result.visit(function.body, function == entry ? entry : null, urlParam);
+		}
+		return result;
+	}
+
+	/*************************************************************************
+	 * Visits a statement and all statements and expressions in it.
+	 *
+	 * @param statement
+	 *            the statement, may be null.
+	 * @param entry
+	 *            the entry function if the statement belongs to it, else null.
+	 * @param urlParam
+	 *            the name of the url parameter of the entry function.
+	 ************************************************************************/
+
+	private void visit(Statement statement, Function entry, String urlParam) {
+		if (statement instanceof Block) {
+			for (Statement child : ((Block) statement).statements) {
+				visit(child, entry, urlParam);
+			}
+		} else if (statement instanceof ExpressionStatement) {
+			visit(((ExpressionStatement) statement).expression, entry, urlParam);
+		} else if (statement instanceof If) {
+			If node = (If) statement;
+			visit(node.condition, entry, urlParam);
+			visit(node.then, entry, urlParam);
+			visit(node.otherwise, entry, urlParam);
+		} else if (statement instanceof Return) {
+			visit(((Return) statement).value, entry, urlParam);
+		}
+	}
+
+	/*************************************************************************
+	 * Visits an expression and all expressions in it.
+	 *
+	 * @param expression
+	 *            the expression, may be null.
+	 * @param entry
+	 *            the entry function if the expression belongs to it, else
+	 *            null.
+	 * @param urlParam
+	 *            the name of the url parameter of the entry function.
+	 ************************************************************************/
+
+	private void visit(Expression expression, Function entry, String urlParam) {
+		if (expression instanceof Variable) {
+			Variable node = (Variable) expression;
+			if (entry != null && !node.global && node.name.equals(urlParam)) {
+				this.url = true;
+			}
+		} else if (expression instanceof Assign) {
+			Assign node = (Assign) expression;
+			visit(node.target, entry, urlParam);
+			visit(node.value, entry, urlParam);
+		} else if (expression instanceof Unary) {
+			visit(((Unary) expression).operand, entry, urlParam);
+		} else if (expression instanceof Logical) {
+			Logical node = (Logical) expression;
+			visit(node.left, entry, urlParam);
+			visit(node.right, entry, urlParam);
+		} else if (expression instanceof Conditional) {
+			Conditional node = (Conditional) expression;
+			visit(node.condition, entry, urlParam);
+			visit(node.then, entry, urlParam);
+			visit(node.otherwise, entry, urlParam);
+		} else if (expression instanceof Binary) {
+			Binary node = (Binary) expression;
+			visit(node.left, entry, urlParam);
+			visit(node.right, entry, urlParam);
+		} else if (expression instanceof Call) {
+			Call node = (Call) expression;
+			if (node.builtin != null) {
+				visitBuiltin(node);
+			}
+			for (Expression arg : node.args) {
+				visit(arg, entry, urlParam);
+			}
+		} else if (expression instanceof StringMember) {
+			StringMember node = (StringMember) expression;
+			visit(node.target, entry, urlParam);
+			for (Expression arg : node.args) {
+				visit(arg, entry, urlParam);
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Records the dependency of a call of a predefined function.
+	 *
+	 * @param call
+	 *            the call.
+	 ************************************************************************/
+
+	private void visitBuiltin(Call call) {
+		switch (call.builtin) {
+		case isResolvable:
+		case isResolvableEx:
+		case isInNet:
+		case isInNetEx:
+		case dnsResolve:
+		case dnsResolveEx:
+			this.dns = true;
+			break;
+		case myIpAddress:
+		case myIpAddressEx:
+			this.localAddress = true;
+			break;
+		case weekdayRange:
+		case dateRange:
+		case timeRange:
+			this.time = true;
+			break;
+		default:
+			break;
+		}
+	}
+
+	/*************************************************************************
+	 * Checks if the script could be analyzed.
+	 *
+	 * @return true if the dependencies are known, false if the script uses
+	 *         constructs the analysis does not support.
+	 ************************************************************************/
+
+	public boolean isAnalyzed() {
+		return this.analyzed;
+	}
+
+	/*************************************************************************
+	 * Checks if the script reads the <code>url</code> parameter.
+	 *
+	 * @return true if the result may differ for URLs with the same host.
+	 ************************************************************************/
+
+	public boolean usesUrl() {
+		return this.url;
+	}
+
+	/*************************************************************************
+	 * Checks if the script resolves host names.
+	 *
+	 * @return true if the result may change with DNS records.
+	 ************************************************************************/
+
+	public boolean usesDns() {
+		return this.dns;
+	}
+
+	/*************************************************************************
+	 * Checks if the script reads the local IP address.
+	 *
+	 * @return true if the result may change with the network configuration.
+	 ************************************************************************/
+
+	public boolean usesLocalAddress() {
+		return this.localAddress;
+	}
+
+	/*************************************************************************
+	 * Checks if the script calls the time functions.
+	 *
+	 * @return true if the result may change with the current time.
+	 ************************************************************************/
+
+	public boolean usesTime() {
+		return this.time;
+	}
+
+	/*************************************************************************
+	 * Checks if the result only depends on the URL and host passed to the
+	 * script, so it stays the same until the script changes.
+	 *
+	 * @return true if the script uses no DNS, local address or time.
+	 ************************************************************************/
+
+	public boolean isPure() {
+		return !this.dns && !this.localAddress && !this.time;
+	}
+
+	/*************************************************************************
+	 * toString
+	 *
+	 * @see java.lang.Object#toString()
+	 ************************************************************************/
+
+	@Override
+	public String toString() {
+		if (!this.analyzed) {
+			return "unknown";
+		}
+		StringBuilder sb = new StringBuilder("host");
+		if (this.url) {
+			sb.append(", url");
+		}
+		if (this.dns) {
+			sb.append(", dns");
+		}
+		if (this.localAddress) {
+			sb.append(", local address");
+		}
+		if (this.time) {
+			sb.append(", time");
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,238 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+/*****************************************************************************
+ * Keeps the last PAC script downloaded from an URL in a directory, so that it
+ * can be used right away after a restart, even if the server is slow or
+ * unreachable.<br>
+ * For each URL two files are written: the script in UTF-8 and a properties
+ * file with the HTTP validators, the expiry and a SHA-256 hash of the script.
+ * Both are written to a temporary file first and then moved into place, so a
+ * reader never sees a partially written file. A script that does not match
+ * the hash, e.g. because the process died between the two writes, is ignored.
+ * An unchanged script is not written again, e.g. after a revalidation only
+ * the properties file is replaced.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+final class PacScriptDiskCache {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String KEY_URL = "url";
+	private static final String KEY_HASH = "sha256";
+	private static final String KEY_ETAG = "etag";
+	private static final String KEY_LAST_MODIFIED = "lastModified";
+	private static final String KEY_EXPIRES = "expires";
+
+	/*************************************************************************
+	 * A script with the metadata of its download.
+	 ************************************************************************/
+
+	static final class Entry {
+		final String content;
+		final String entityTag;
+		final String lastModified;
+		final long expireAtMillis;
+
+		Entry(String content, String entityTag, String lastModified, long expireAtMillis) {
+			this.content = content;
+			this.entityTag = entityTag;
+			this.lastModified = lastModified;
+			this.expireAtMillis = expireAtMillis;
+		}
+	}
+
+	private final File directory;
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param directory
+	 *            the directory to store the scripts in. It is created if it
+	 *            does not exist.
+	 ************************************************************************/
+
+	PacScriptDiskCache(File directory) {
+		super();
+		this.directory = directory;
+	}
+
+	/*************************************************************************
+	 * Reads the script stored for the given URL.
+	 *
+	 * @param url
+	 *            the URL the script was downloaded from.
+	 * @return the entry, null if there is none or it is damaged.
+	 * @throws IOException
+	 *             on read error.
+	 ************************************************************************/
+
+	Entry load(String url) throws IOException {
+		String name = hash(url.getBytes(UTF8));
+		File scriptFile = new File(this.directory, name + ".pac");
+		File metaFile = new File(this.directory, name + ".properties");
+		if (!scriptFile.isFile() || !metaFile.isFile()) {
+			return null;
+		}
+
+		Properties meta = new Properties();
+		InputStream in = new FileInputStream(metaFile);
+		try {
+			meta.load(in);
+		} finally {
+			in.close();
+		}
+		if (!url.equals(meta.getProperty(KEY_URL))) {
+			return null;
+		}
+
+		byte[] bytes = Files.readAllBytes(scriptFile.toPath());
+		if (!hash(bytes).equals(meta.getProperty(KEY_HASH))) {
+			return null;
+		}
+
+		long expireAtMillis = 0;
+		try {
+			expireAtMillis = Long.parseLong(meta.getProperty(KEY_EXPIRES, "0"));
+		} catch (NumberFormatException e) {
+			// Revalidated on first use anyway
+		}
+		return new Entry(new String(bytes, UTF8), meta.getProperty(KEY_ETAG), meta.getProperty(KEY_LAST_MODIFIED),
+		        expireAtMillis);
+	}
+
+	/*************************************************************************
+	 * Stores the script for the given URL.
+	 *
+	 * @param url
+	 *            the URL the script was downloaded from.
+	 * @param entry
+	 *            the script and its metadata.
+	 * @throws IOException
+	 *             on write error.
+	 ************************************************************************/
+
+	void store(String url, Entry entry) throws IOException {
+		if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+			throw new IOException("Cannot create PAC cache directory " + this.directory);
+		}
+		String name = hash(url.getBytes(UTF8));
+		byte[] bytes = entry.content.getBytes(UTF8);
+
+		String hash = hash(bytes);
+
+		Properties meta = new Properties();
+		meta.setProperty(KEY_URL, url);
+		meta.setProperty(KEY_HASH, hash);
+		meta.setProperty(KEY_EXPIRES, String.valueOf(entry.expireAtMillis));
+		if (entry.entityTag != null) {
+			meta.setProperty(KEY_ETAG, entry.entityTag);
+		}
+		if (entry.lastModified != null) {
+			meta.setProperty(KEY_LAST_MODIFIED, entry.lastModified);
+		}
+
+		File scriptFile = new File(this.directory, name + ".pac");
+		if (!isStored(scriptFile, hash)) {
+			File tempFile = File.createTempFile(name, ".tmp", this.directory);
+			OutputStream out = new FileOutputStream(tempFile);
+			try {
+				out.write(bytes);
+			} finally {
+				out.close();
+			}
+			moveAtomically(tempFile, scriptFile);
+		}
+
+		File metaFile = new File(this.directory, name + ".properties");
+		File tempFile = File.createTempFile(name, ".tmp", this.directory);
+		OutputStream out = new FileOutputStream(tempFile);
+		try {
+			meta.store(out, "PAC script cache");
+		} finally {
+			out.close();
+		}
+		moveAtomically(tempFile, metaFile);
+	}
+
+	/*************************************************************************
+	 * Checks if the file already contains the script with the given hash.
+	 *
+	 * @param scriptFile
+	 *            the stored script.
+	 * @param hash
+	 *            the hash of the script to store.
+	 * @return true if the file does not need to be written.
+	 ************************************************************************/
+
+	private static boolean isStored(File scriptFile, String hash) {
+		if (!scriptFile.isFile()) {
+			return false;
+		}
+		try {
+			return hash(Files.readAllBytes(scriptFile.toPath())).equals(hash);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/*************************************************************************
+	 * Replaces the target file by the source file.
+	 *
+	 * @param source
+	 *            the completely written temporary file.
+	 * @param target
+	 *            the file to replace.
+	 * @throws IOException
+	 *             on error.
+	 ************************************************************************/
+
+	private static void moveAtomically(File source, File target) throws IOException {
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+			        StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			source.delete();
+		}
+	}
+
+	/*************************************************************************
+	 * Computes the SHA-256 hash of the given bytes.
+	 *
+	 * @param bytes
+	 *            the data.
+	 * @return the hash as hex string.
+	 ************************************************************************/
+
+	static String hash(byte[] bytes) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+			StringBuilder sb = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform supports SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
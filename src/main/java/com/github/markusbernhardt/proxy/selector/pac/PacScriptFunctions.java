@@ -0,0 +1,253 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import java.util.function.LongSupplier;
+
+/*****************************************************************************
+ * The PAC functions of a {@link PacScriptMethods} as they are passed into a
+ * script engine. Only the methods of {@link ScriptMethods} can be called by
+ * the script, the configuration of the PacScriptMethods, e.g. its clock and
+ * its DNS cache, stays out of reach.<br>
+ * The hooks that mark the start and the end of an evaluation are handed out
+ * separately, the prelude captures them in a closure so the script cannot call
+ * them.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+final class PacScriptFunctions implements ScriptMethods {
+
+	private final PacScriptMethods methods;
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param methods
+	 *            the implementation of the PAC functions.
+	 ************************************************************************/
+
+	PacScriptFunctions(PacScriptMethods methods) {
+		super();
+		this.methods = methods;
+	}
+
+	/*************************************************************************
+	 * Gets the hook the prelude calls before <code>FindProxyForURL</code>.
+	 *
+	 * @return calls {@link PacScriptMethods#beginEvaluation()}.
+	 ************************************************************************/
+
+	Runnable getBeginHook() {
+		return new Runnable() {
+			public void run() {
+				PacScriptFunctions.this.methods.beginEvaluation();
+			}
+		};
+	}
+
+	/*************************************************************************
+	 * Gets the hook the prelude calls after <code>FindProxyForURL</code>.
+	 *
+	 * @return calls {@link PacScriptMethods#endEvaluation()}.
+	 ************************************************************************/
+
+	LongSupplier getEndHook() {
+		return new LongSupplier() {
+			public long getAsLong() {
+				return PacScriptFunctions.this.methods.endEvaluation();
+			}
+		};
+	}
+
+	/*************************************************************************
+	 * isPlainHostName
+	 *
+	 * @see com.github.markusbernhardt.proxy.selector.pac.ScriptMethods#isPlainHostName(java.lang.String)
+	 ************************************************************************/
+
+	public boolean isPlainHostName(String host) {
+		return this.methods.isPlainHostName(host);
+	}
+
+	/*************************************************************************
+	 * dnsDomainIs
+	 *
+	 * @see com.github.markusbernhardt.proxy.selector.pac.ScriptMethods#dnsDomainIs(java.lang.String,
+	 *      java.lang.String)
+	 ************************************************************************/
+
+	public boolean dnsDomainIs(String host, String domain) {
+		return this.methods.dnsDomainIs(host, domain);
+	}
+
+	/*************************************************************************
+	 * localHostOrDomainIs
+	 *
+	 * @see com.github.markusbernhardt.proxy.selector.pac.ScriptMethods#localHostOrDomainIs(java.lang.String,
+	 *      java.lang.String)
+	 ************************************************************************/
+
+	public boolean localHostOrDomainIs(String host, String domain) {
+		return this.methods.localHostOrDomainIs(host, domain);
+	}
+
+	/*************************************************************************
+	 * isResolvable
+	 *
+	 * @see com.github.markusbernhardt.proxy.selector.pac.ScriptMethods#isResolvable(java.lang.String)
+	 ************************************************************************/
+
+	public boolean isResolvable(String host) {
+		return this.methods.isResolvable(host);
+	}
+
+	/*************************************************************************
+	 * isResolvableEx
+	 *
+	 * @see com.github.markusbernhardt.proxy.selector.pac.ScriptMethods#isResolvableEx(java.lang.String)
+	 ************************************************************************/
+
+	public boolean isResolvableEx(String host) {
+		return this.methods.isResolvableEx(host);
+	}
+
+	/*************************************************************************
+	 * isInNet
+	 *
+	 * @see com.github.markusbernhardt.proxy.selector.pac.ScriptMethods#isInNet(java.lang.String,
+	 *      java.lang.String, java.lang.String)
+	 ************************************************************************/
+
+	public boolean isInNet(String host, String pattern, String mask) {
+		return this.methods.isInNet(host, pattern, mask);
+	}
+
+	/*************************************************************************
+	 * isInNetEx
+	 *
+	 * @see com.github.markusbernhardt.proxy.selector.pac.ScriptMethods#isInNetEx(java.lang.String,
+	 *      java.lang.String)
+	 ************************************************************************/
+
+	public boolean isInNetEx(String ipAddress, String ipPrefix) {
+		return this.methods.isInNetEx(ipAddress, ipPrefix);
+	}
+
+	/*************************************************************************
+	 * dnsResolve
+	 *
+	 * @see com.github.markusbernhardt.proxy.selector.pac.ScriptMethods#dnsResolve(java.lang.String)
+	 ************************************************************************/
+
+	public String dnsResolve(String host) {
+		return this.methods.dnsResolve(host);
+	}
+
+	/*************************************************************************
+	 * dnsResolveEx
+	 *
+	 * @see com.github.markusbernhardt.proxy.selector.pac.ScriptMethods#dnsResolveEx(java.lang.String)
+	 ************************************************************************/
+
+	public String dnsResolveEx(String host) {
+		return this.methods.dnsResolveEx(host);
+	}
+
+	/*************************************************************************
+	 * myIpAddress
+	 *
+	 * @see com.github.markusbernhardt.proxy.selector.pac.ScriptMethods#myIpAddress()
+	 ************************************************************************/
+
+	public String myIpAddress() {
+		return this.methods.myIpAddress();
+	}
+
+	/*************************************************************************
+	 * myIpAddressEx
+	 *
+	 * @see com.github.markusbernhardt.proxy.selector.pac.ScriptMethods#myIpAddressEx()
+	 ************************************************************************/
+
+	public String myIpAddressEx() {
+		return this.methods.myIpAddressEx();
+	}
+
+	/*************************************************************************
+	 * dnsDomainLevels
+	 *
+	 * @see com.github.markusbernhardt.proxy.selector.pac.ScriptMethods#dnsDomainLevels(java.lang.String)
+	 ************************************************************************/
+
+	public int dnsDomainLevels(String host) {
+		return this.methods.dnsDomainLevels(host);
+	}
+
+	/*************************************************************************
+	 * shExpMatch
+	 *
+	 * @see com.github.markusbernhardt.proxy.selector.pac.ScriptMethods#shExpMatch(java.lang.String,
+	 *      java.lang.String)
+	 ************************************************************************/
+
+	public boolean shExpMatch(String str, String shexp) {
+		return this.methods.shExpMatch(str, shexp);
+	}
+
+	/*************************************************************************
+	 * weekdayRange
+	 *
+	 * @see com.github.markusbernhardt.proxy.selector.pac.ScriptMethods#weekdayRange(java.lang.String,
+	 *      java.lang.String, java.lang.String)
+	 ************************************************************************/
+
+	public boolean weekdayRange(String wd1, String wd2, String gmt) {
+		return this.methods.weekdayRange(wd1, wd2, gmt);
+	}
+
+	/*************************************************************************
+	 * dateRange
+	 *
+	 * @see com.github.markusbernhardt.proxy.selector.pac.ScriptMethods#dateRange(java.lang.Object,
+	 *      java.lang.Object, java.lang.Object, java.lang.Object,
+	 *      java.lang.Object, java.lang.Object, java.lang.Object)
+	 ************************************************************************/
+
+	public boolean dateRange(Object day1, Object month1, Object year1, Object day2, Object month2, Object year2,
+	        Object gmt) {
+		return this.methods.dateRange(day1, month1, year1, day2, month2, year2, gmt);
+	}
+
+	/*************************************************************************
+	 * timeRange
+	 *
+	 * @see com.github.markusbernhardt.proxy.selector.pac.ScriptMethods#timeRange(java.lang.Object,
+	 *      java.lang.Object, java.lang.Object, java.lang.Object,
+	 *      java.lang.Object, java.lang.Object, java.lang.Object)
+	 ************************************************************************/
+
+	public boolean timeRange(Object hour1, Object min1, Object sec1, Object hour2, Object min2, Object sec2,
+	        Object gmt) {
+		return this.methods.timeRange(hour1, min1, sec1, hour2, min2, sec2, gmt);
+	}
+
+	/*************************************************************************
+	 * sortIpAddressList
+	 *
+	 * @see com.github.markusbernhardt.proxy.selector.pac.ScriptMethods#sortIpAddressList(java.lang.String)
+	 ************************************************************************/
+
+	public String sortIpAddressList(String ipAddressList) {
+		return this.methods.sortIpAddressList(ipAddressList);
+	}
+
+	/*************************************************************************
+	 * getClientVersion
+	 *
+	 * @see com.github.markusbernhardt.proxy.selector.pac.ScriptMethods#getClientVersion()
+	 ************************************************************************/
+
+	public String getClientVersion() {
+		return this.methods.getClientVersion();
+	}
+
+}
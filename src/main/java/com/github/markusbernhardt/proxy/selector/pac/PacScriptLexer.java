@@ -0,0 +1,329 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*****************************************************************************
+ * Splits a PAC script into tokens. Only the part of the JavaScript syntax that
+ * is understood by the {@link PacSyntaxParser} is recognized, everything else
+ * is reported as error.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+final class PacScriptLexer {
+
+	/*************************************************************************
+	 * The different kinds of tokens.
+	 ************************************************************************/
+
+	enum Kind {
+		IDENTIFIER, STRING, NUMBER, PUNCTUATOR, END
+	}
+
+	/*************************************************************************
+	 * A single token of the script.
+	 ************************************************************************/
+
+	static final class Token {
+		final Kind kind;
+		final String text;
+		final Object value;
+		final int line;
+		final boolean newLineBefore;
+
+		Token(Kind kind, String text, Object value, int line, boolean newLineBefore) {
+			this.kind = kind;
+			this.text = text;
+			this.value = value;
+			this.line = line;
+			this.newLineBefore = newLineBefore;
+		}
+
+		boolean is(String punctuatorOrName) {
+			return (this.kind == Kind.PUNCTUATOR || this.kind == Kind.IDENTIFIER)
+			        && this.text.equals(punctuatorOrName);
+		}
+
+		@Override
+		public String toString() {
+			return this.kind == Kind.END ? "end of script" : "'" + this.text + "'";
+		}
+	}
+
+	// Longest punctuators first.
+	private static final String[] PUNCTUATORS = { ">>>=", "===", "!==", ">>>", "<<=", ">>=", "==", "!=", "<=", ">=",
+	        "&&", "||", "++", "--", "+=", "-=", "*=", "/=", "%=", "&=", "|=", "^=", "<<", ">>", "{", "}", "(", ")", "[",
+	        "]", ";", ",", ".", "?", ":", "!", "~", "+", "-", "*", "/", "%", "=", "<", ">", "&", "|", "^" };
+
+	private final String script;
+	private int pos;
+	private int line;
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param script
+	 *            the script to tokenize.
+	 ************************************************************************/
+
+	PacScriptLexer(String script) {
+		this.script = script;
+		this.pos = 0;
+		this.line = 1;
+	}
+
+	/*************************************************************************
+	 * Tokenizes the whole script.
+	 *
+	 * @return the list of tokens, terminated by an END token.
+	 * @throws ProxyEvaluationException
+	 *             on an unknown character or an unterminated literal.
+	 ************************************************************************/
+
+	List<Token> tokenize() throws ProxyEvaluationException {
+		List<Token> tokens = new ArrayList<Token>();
+		while (true) {
+			boolean newLine = skipWhitespaceAndComments();
+			if (this.pos >= this.script.length()) {
+				tokens.add(new Token(Kind.END, "", null, this.line, true));
+				return tokens;
+			}
+			tokens.add(nextToken(newLine));
+		}
+	}
+
+	/*************************************************************************
+	 * Skips white space and comments.
+	 *
+	 * @return true if a line break was skipped.
+	 * @throws ProxyEvaluationException
+	 *             on an unterminated comment.
+	 ************************************************************************/
+
+	private boolean skipWhitespaceAndComments() throws ProxyEvaluationException {
+		boolean newLine = false;
+		while (this.pos < this.script.length()) {
+			char c = this.script.charAt(this.pos);
+			if (c == '\n') {
+				newLine = true;
+				this.line++;
+				this.pos++;
+			} else if (Character.isWhitespace(c) || c == '\u00A0' || c == '\uFEFF') {
+				this.pos++;
+			} else if (this.script.startsWith("//", this.pos)) {
+				while (this.pos < this.script.length() && this.script.charAt(this.pos) != '\n') {
+					this.pos++;
+				}
+			} else if (this.script.startsWith("/*", this.pos)) {
+				int end = this.script.indexOf("*/", this.pos + 2);
+				if (end == -1) {
+					throw error("Unterminated comment");
+				}
+				for (int i = this.pos; i < end; i++) {
+					if (this.script.charAt(i) == '\n') {
+						newLine = true;
+						this.line++;
+					}
+				}
+				this.pos = end + 2;
+			} else {
+				break;
+			}
+		}
+		return newLine;
+	}
+
+	/*************************************************************************
+	 * Reads the token at the current position.
+	 *
+	 * @param newLine
+	 *            true if a line break precedes the token.
+	 * @return the token.
+	 * @throws ProxyEvaluationException
+	 *             on syntax error.
+	 ************************************************************************/
+
+	private Token nextToken(boolean newLine) throws ProxyEvaluationException {
+		char c = this.script.charAt(this.pos);
+		int start = this.pos;
+
+		if (Character.isJavaIdentifierStart(c)) {
+			while (this.pos < this.script.length() && Character.isJavaIdentifierPart(this.script.charAt(this.pos))) {
+				this.pos++;
+			}
+			String name = this.script.substring(start, this.pos);
+			return new Token(Kind.IDENTIFIER, name, null, this.line, newLine);
+		}
+
+		if (c == '"' || c == '\'') {
+			String value = readString(c);
+			return new Token(Kind.STRING, this.script.substring(start, this.pos), value, this.line, newLine);
+		}
+
+		if (Character.isDigit(c) || (c == '.' && this.pos + 1 < this.script.length()
+		        && Character.isDigit(this.script.charAt(this.pos + 1)))) {
+			Double value = readNumber();
+			return new Token(Kind.NUMBER, this.script.substring(start, this.pos), value, this.line, newLine);
+		}
+
+		for (String punctuator : PUNCTUATORS) {
+			if (this.script.startsWith(punctuator, this.pos)) {
+				this.pos += punctuator.length();
+				return new Token(Kind.PUNCTUATOR, punctuator, null, this.line, newLine);
+			}
+		}
+
+		throw error("Unexpected character '" + c + "'");
+	}
+
+	/*************************************************************************
+	 * Reads a string literal.
+	 *
+	 * @param quote
+	 *            the quote character that started the literal.
+	 * @return the value of the string.
+	 * @throws ProxyEvaluationException
+	 *             on an unterminated string or unsupported escape sequence.
+	 ************************************************************************/
+
+	private String readString(char quote) throws ProxyEvaluationException {
+		StringBuilder result = new StringBuilder();
+		this.pos++;
+		while (true) {
+			if (this.pos >= this.script.length()) {
+				throw error("Unterminated string");
+			}
+			char c = this.script.charAt(this.pos++);
+			if (c == quote) {
+				return result.toString();
+			}
+			if (c == '\n') {
+				throw error("Unterminated string");
+			}
+			if (c != '\\') {
+				result.append(c);
+				continue;
+			}
+			if (this.pos >= this.script.length()) {
+				throw error("Unterminated string");
+			}
+			char e = this.script.charAt(this.pos++);
+			switch (e) {
+			case 'n':
+				result.append('\n');
+				break;
+			case 't':
+				result.append('\t');
+				break;
+			case 'r':
+				result.append('\r');
+				break;
+			case 'b':
+				result.append('\b');
+				break;
+			case 'f':
+				result.append('\f');
+				break;
+			case 'v':
+				result.append('\u000B');
+				break;
+			case '0':
+				result.append('\0');
+				break;
+			case 'x':
+				result.append((char) readHex(2));
+				break;
+			case 'u':
+				result.append((char) readHex(4));
+				break;
+			case '\n':
+				this.line++;
+				break;
+			default:
+				result.append(e);
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Reads a hex number of the given length for an escape sequence.
+	 *
+	 * @param digits
+	 *            number of hex digits.
+	 * @return the parsed value.
+	 * @throws ProxyEvaluationException
+	 *             on invalid hex digits.
+	 ************************************************************************/
+
+	private int readHex(int digits) throws ProxyEvaluationException {
+		if (this.pos + digits > this.script.length()) {
+			throw error("Invalid escape sequence");
+		}
+		try {
+			int value = Integer.parseInt(this.script.substring(this.pos, this.pos + digits), 16);
+			this.pos += digits;
+			return value;
+		} catch (NumberFormatException e) {
+			throw error("Invalid escape sequence");
+		}
+	}
+
+	/*************************************************************************
+	 * Reads a decimal or hexadecimal number literal.
+	 *
+	 * @return the value of the number.
+	 * @throws ProxyEvaluationException
+	 *             on an invalid number.
+	 ************************************************************************/
+
+	private Double readNumber() throws ProxyEvaluationException {
+		int start = this.pos;
+		if (this.script.startsWith("0x", this.pos) || this.script.startsWith("0X", this.pos)) {
+			this.pos += 2;
+			while (this.pos < this.script.length() && Character.digit(this.script.charAt(this.pos), 16) != -1) {
+				this.pos++;
+			}
+			try {
+				return Double.valueOf(Long.parseLong(this.script.substring(start + 2, this.pos), 16));
+			} catch (NumberFormatException e) {
+				throw error("Invalid number");
+			}
+		}
+		while (this.pos < this.script.length()) {
+			char c = this.script.charAt(this.pos);
+			if (Character.isDigit(c) || c == '.') {
+				this.pos++;
+			} else if ((c == 'e' || c == 'E') && this.pos + 1 < this.script.length()) {
+				this.pos++;
+				char sign = this.script.charAt(this.pos);
+				if (sign == '+' || sign == '-') {
+					this.pos++;
+				}
+			} else {
+				break;
+			}
+		}
+		if (this.pos < this.script.length() && Character.isJavaIdentifierStart(this.script.charAt(this.pos))) {
+			throw error("Invalid number");
+		}
+		try {
+			return Double.valueOf(this.script.substring(start, this.pos));
+		} catch (NumberFormatException e) {
+			throw error("Invalid number");
+		}
+	}
+
+	/*************************************************************************
+	 * Builds an exception with the current line number.
+	 *
+	 * @param message
+	 *            the error message.
+	 * @return the exception to throw.
+	 ************************************************************************/
+
+	private ProxyEvaluationException error(String message) {
+		return new ProxyEvaluationException(message + " in line " + this.line);
+	}
+
+}
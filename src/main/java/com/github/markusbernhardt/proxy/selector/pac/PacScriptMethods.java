@@ -1,22 +1,17 @@
 package com.github.markusbernhardt.proxy.selector.pac;
 
-import java.io.IOException;
 import java.math.BigInteger;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
-import java.net.NetworkInterface;
 import java.net.UnknownHostException;
+import java.time.Clock;
+import java.time.Instant;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Date;
-import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.StringTokenizer;
 import java.util.TimeZone;
 import java.util.TreeMap;
 
@@ -44,14 +39,147 @@ public class PacScriptMethods implements ScriptMethods {
 	private final static List<String> MONTH = Collections.unmodifiableList(
 	        Arrays.asList("JAN", "FEB", "MAR", "APR", "MAY", "JUN", "JUL", "AUG", "SEP", "OCT", "NOV", "DEC"));
 
-	private Calendar currentTime;
+	// Indexes of the parsed dateRange parameters
+	private final static int DATE_DAY1 = 0;
+	private final static int DATE_MONTH1 = 1;
+	private final static int DATE_YEAR1 = 2;
+	private final static int DATE_DAY2 = 3;
+	private final static int DATE_MONTH2 = 4;
+	private final static int DATE_YEAR2 = 5;
+
+	private static volatile TimeSource defaultTimeSource = new TimeSource(Clock.systemDefaultZone());
+
+	// Null to use the default
+	private volatile TimeSource timeSource;
+	// Set by setCurrentTime, which always used the given calendar
+	private volatile boolean ignoreGmt;
+
+	private final ThreadLocal<TimeSnapshot> timeSnapshot = new ThreadLocal<TimeSnapshot>() {
+		@Override
+		protected TimeSnapshot initialValue() {
+			return new TimeSnapshot();
+		}
+	};
+
+	private final DnsCache dnsCache;
+	private final LocalAddressCache localAddressCache;
+
+	/*************************************************************************
+	 * A clock together with its zone converted once to a TimeZone.
+	 ************************************************************************/
+
+	private static final class TimeSource {
+		final Clock clock;
+		final TimeZone zone;
+
+		TimeSource(Clock clock) {
+			this.clock = clock;
+			this.zone = TimeZone.getTimeZone(clock.getZone());
+		}
+	}
 
 	/*************************************************************************
 	 * Constructor
 	 ************************************************************************/
 
 	public PacScriptMethods() {
+		this(DnsCache.getDefault());
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 * 
+	 * @param dnsCache
+	 *            the cache used for the DNS lookups of the PAC functions.
+	 ************************************************************************/
+
+	public PacScriptMethods(DnsCache dnsCache) {
+		this(dnsCache, LocalAddressCache.getDefault());
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 * 
+	 * @param dnsCache
+	 *            the cache used for the DNS lookups of the PAC functions.
+	 * @param localAddressCache
+	 *            the cache for the addresses returned by myIpAddress.
+	 ************************************************************************/
+
+	public PacScriptMethods(DnsCache dnsCache, LocalAddressCache localAddressCache) {
 		super();
+		this.dnsCache = dnsCache;
+		this.localAddressCache = localAddressCache;
+	}
+
+	/*************************************************************************
+	 * Gets the cache used for the DNS lookups, e.g. to query its statistics.
+	 * 
+	 * @return the DNS cache.
+	 ************************************************************************/
+
+	public DnsCache getDnsCache() {
+		return this.dnsCache;
+	}
+
+	/*************************************************************************
+	 * Sets the clock used by all PacScriptMethods that have no own clock.
+	 * 
+	 * @param clock
+	 *            the clock or null for the system clock in the current default
+	 *            time zone.
+	 ************************************************************************/
+
+	public static void setDefaultClock(Clock clock) {
+		defaultTimeSource = new TimeSource(clock == null ? Clock.systemDefaultZone() : clock);
+	}
+
+	/*************************************************************************
+	 * Sets the clock used by <code>weekdayRange</code>,
+	 * <code>dateRange</code> and <code>timeRange</code>. The zone of the
+	 * clock is the local time zone of these functions. A fixed clock makes the
+	 * results of time based PAC rules reproducible, e.g. in tests and
+	 * benchmarks.
+	 * 
+	 * @param clock
+	 *            the clock or null to use the default clock.
+	 ************************************************************************/
+
+	public void setClock(Clock clock) {
+		this.timeSource = clock == null ? null : new TimeSource(clock);
+		this.ignoreGmt = false;
+	}
+
+	/*************************************************************************
+	 * Marks the start of a <code>FindProxyForURL</code> evaluation on the
+	 * current thread. All time functions called until
+	 * {@link #endEvaluation()} see the same point in time, which is taken on
+	 * the first call. A nested evaluation keeps the time of the outer one.
+	 ************************************************************************/
+
+	public void beginEvaluation() {
+		TimeSnapshot snapshot = this.timeSnapshot.get();
+		if (snapshot.depth++ > 0) {
+			return;
+		}
+		snapshot.taken = false;
+		snapshot.changesAt = Long.MAX_VALUE;
+	}
+
+	/*************************************************************************
+	 * Marks the end of an evaluation started with {@link #beginEvaluation()}.
+	 * 
+	 * @return the time in milliseconds the results of the time functions
+	 *         called in the evaluation stay the same, Long.MAX_VALUE if no
+	 *         time function was called.
+	 ************************************************************************/
+
+	public long endEvaluation() {
+		TimeSnapshot snapshot = this.timeSnapshot.get();
+		if (snapshot.depth > 0) {
+			snapshot.depth--;
+		}
+		return snapshot.taken ? snapshot.getValidFor() : Long.MAX_VALUE;
 	}
 
 	/*************************************************************************
@@ -104,7 +232,7 @@ public class PacScriptMethods implements ScriptMethods {
 
 	public boolean isResolvable(String host) {
 		try {
-			InetAddress.getByName(host).getHostAddress();
+			this.dnsCache.resolve(host);
 			return true;
 		} catch (UnknownHostException ex) {
 			Logger.log(JavaxPacScriptParser.class, LogLevel.DEBUG, "Hostname not resolveable {0}.", host);
@@ -133,35 +261,44 @@ public class PacScriptMethods implements ScriptMethods {
 	 ************************************************************************/
 
 	public boolean isInNet(String host, String pattern, String mask) {
-		host = dnsResolve(host);
-		if (host == null || host.length() == 0) {
+		long lhost = resolveIpv4(host);
+		if (lhost < 0) {
+			return false;
+		}
+		long lpattern = NetworkRange.parseIpv4(pattern);
+		long lmask = NetworkRange.parseIpv4(mask);
+		if (lpattern < 0 || lmask < 0) {
+			Logger.log(JavaxPacScriptParser.class, LogLevel.DEBUG, "Invalid isInNet pattern {0} / {1}.", pattern, mask);
 			return false;
 		}
-		long lhost = parseIpAddressToLong(host);
-		long lpattern = parseIpAddressToLong(pattern);
-		long lmask = parseIpAddressToLong(mask);
 		return (lhost & lmask) == lpattern;
 	}
 
 	/*************************************************************************
-	 * Convert a string representation of a IP to a long.
+	 * Gets the IPv4 address of a host. IP literals are parsed directly, host
+	 * names are resolved with the DNS cache.
 	 * 
-	 * @param address
-	 *            to convert.
-	 * @return the address as long.
+	 * @param host
+	 *            the host name or IP address.
+	 * @return the address as unsigned 32 bit value or -1 if the host has no
+	 *         IPv4 address.
 	 ************************************************************************/
 
-	private long parseIpAddressToLong(String address) {
-		long result = 0;
-		String[] parts = address.split("\\.");
-		long shift = 24;
-		for (String part : parts) {
-			long lpart = Long.parseLong(part);
-
-			result |= (lpart << shift);
-			shift -= 8;
+	private long resolveIpv4(String host) {
+		if (host == null || host.length() == 0) {
+			return -1;
+		}
+		long literal = NetworkRange.parseIpv4(host);
+		if (literal >= 0) {
+			return literal;
+		}
+		try {
+			byte[] address = this.dnsCache.resolve(host).getAddress();
+			return address.length == 4 ? NetworkRange.toLong(address) : -1;
+		} catch (UnknownHostException e) {
+			Logger.log(JavaxPacScriptParser.class, LogLevel.DEBUG, "DNS name not resolvable {0}.", host);
+			return -1;
 		}
-		return result;
 	}
 
 	/*************************************************************************
@@ -175,7 +312,7 @@ public class PacScriptMethods implements ScriptMethods {
 
 	public String dnsResolve(String host) {
 		try {
-			InetAddress ina = InetAddress.getByName(host);
+			InetAddress ina = this.dnsCache.resolve(host);
 			return ina.getHostAddress();
 		} catch (UnknownHostException e) {
 			Logger.log(JavaxPacScriptParser.class, LogLevel.DEBUG, "DNS name not resolvable {0}.", host);
@@ -195,9 +332,9 @@ public class PacScriptMethods implements ScriptMethods {
 	}
 
 	/*************************************************************************
-	 * Get the current IP address of the computer. This will return the first
-	 * address of the first network interface that is a "real" IP address of the
-	 * given type.
+	 * Get the current IP address of the computer from the local address
+	 * cache, unless it is overridden by the system property
+	 * <code>com.btr.proxy.pac.overrideLocalIP</code>.
 	 * 
 	 * @param cl
 	 *            the type of address we are searching for.
@@ -205,31 +342,14 @@ public class PacScriptMethods implements ScriptMethods {
 	 ************************************************************************/
 
 	private String getLocalAddressOfType(Class<? extends InetAddress> cl) {
-		try {
-			String overrideIP = System.getProperty(OVERRIDE_LOCAL_IP);
-			if (overrideIP != null && overrideIP.trim().length() > 0) {
-				return overrideIP.trim();
-			}
-			Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
-			while (interfaces.hasMoreElements()) {
-				NetworkInterface current = interfaces.nextElement();
-				if (!current.isUp() || current.isLoopback() || current.isVirtual()) {
-					continue;
-				}
-				Enumeration<InetAddress> addresses = current.getInetAddresses();
-				while (addresses.hasMoreElements()) {
-					InetAddress adr = addresses.nextElement();
-					if (cl.isInstance(adr)) {
-						Logger.log(JavaxPacScriptParser.class, LogLevel.TRACE, "Local address resolved to {0}", adr);
-						return adr.getHostAddress();
-					}
-				}
-			}
-			return "";
-		} catch (IOException e) {
-			Logger.log(JavaxPacScriptParser.class, LogLevel.DEBUG, "Local address not resolvable.");
-			return "";
+		String overrideIP = System.getProperty(OVERRIDE_LOCAL_IP);
+		if (overrideIP != null && overrideIP.trim().length() > 0) {
+			return overrideIP.trim();
+		}
+		if (Inet6Address.class.equals(cl)) {
+			return this.localAddressCache.getIpv6Address();
 		}
+		return this.localAddressCache.getIpv4Address();
 	}
 
 	/*************************************************************************
@@ -253,7 +373,8 @@ public class PacScriptMethods implements ScriptMethods {
 	/*************************************************************************
 	 * Returns true if the string matches the specified shell expression.
 	 * Actually, currently the patterns are shell expressions, not regular
-	 * expressions.
+	 * expressions. A <code>*</code> matches any characters, a <code>?</code>
+	 * a single character. The compiled patterns are cached.
 	 * 
 	 * @param str
 	 *            is any string to compare (e.g. the URL, or the host name).
@@ -263,29 +384,7 @@ public class PacScriptMethods implements ScriptMethods {
 	 ************************************************************************/
 
 	public boolean shExpMatch(String str, String shexp) {
-		StringTokenizer tokenizer = new StringTokenizer(shexp, "*");
-		int startPos = 0;
-		while (tokenizer.hasMoreTokens()) {
-			String token = tokenizer.nextToken();
-			int temp = str.indexOf(token, startPos);
-
-			// Must start with first token
-			if (startPos == 0 && !shexp.startsWith("*") && temp != 0) {
-				return false;
-			}
-			// Last one ends with last token
-			if (!tokenizer.hasMoreTokens() && !shexp.endsWith("*") && !str.endsWith(token)) {
-				return false;
-			}
-
-			if (temp == -1) {
-				return false;
-			} else {
-				startPos = temp + token.length();
-			}
-		}
-
-		return true;
+		return ShellExpression.compile(shexp).matches(str);
 	}
 
 	/*************************************************************************
@@ -309,9 +408,11 @@ public class PacScriptMethods implements ScriptMethods {
 
 	public boolean weekdayRange(String wd1, String wd2, String gmt) {
 		boolean useGmt = GMT.equalsIgnoreCase(wd2) || GMT.equalsIgnoreCase(gmt);
-		Calendar cal = getCurrentTime(useGmt);
-
-		int currentDay = cal.get(Calendar.DAY_OF_WEEK) - 1;
+		TimeSnapshot snapshot = getTimeSnapshot();
+		useGmt &= !this.ignoreGmt;
+		int currentDay = snapshot.get(useGmt).dayOfWeek;
+		// The result can only change at midnight
+		snapshot.changesAt(useGmt, 1, 0);
 		int from = DAYS.indexOf(wd1 == null ? null : wd1.toUpperCase());
 		int to = DAYS.indexOf(wd2 == null ? null : wd2.toUpperCase());
 		if (to == -1) {
@@ -328,32 +429,42 @@ public class PacScriptMethods implements ScriptMethods {
 	/*************************************************************************
 	 * Sets a calendar with the current time. If this is set all date and time
 	 * based methods will use this calendar to determine the current time
-	 * instead of the real time. This is only be used by unit tests and is not
-	 * part of the public API.
+	 * instead of the real time, in the time zone of the calendar even if GMT
+	 * is requested. This is only be used by unit tests and is not part of the
+	 * public API, use {@link #setClock(Clock)} instead.
 	 * 
 	 * @param cal
-	 *            a Calendar to set.
+	 *            a Calendar to set or null to use the clock again.
 	 ************************************************************************/
 
 	public void setCurrentTime(Calendar cal) {
-		this.currentTime = cal;
+		if (cal == null) {
+			setClock(null);
+			return;
+		}
+		setClock(Clock.fixed(Instant.ofEpochMilli(cal.getTimeInMillis()), cal.getTimeZone().toZoneId()));
+		this.ignoreGmt = true;
 	}
 
 	/*************************************************************************
-	 * Gets a calendar set to the current time. This is used by the date and
-	 * time based methods.
+	 * Gets the time snapshot of the current thread and takes the time if it
+	 * has not been taken in the current evaluation. Outside of an evaluation
+	 * the time is taken on every call.
 	 * 
-	 * @param useGmt
-	 *            flag to indicate if the calendar is to be created in GMT time
-	 *            or local time.
-	 * @return a Calendar set to the current time.
+	 * @return the snapshot.
 	 ************************************************************************/
 
-	private Calendar getCurrentTime(boolean useGmt) {
-		if (this.currentTime != null) { // Only used for unit tests
-			return (Calendar) this.currentTime.clone();
+	private TimeSnapshot getTimeSnapshot() {
+		TimeSnapshot snapshot = this.timeSnapshot.get();
+		if (snapshot.depth == 0 || !snapshot.taken) {
+			TimeSource source = this.timeSource;
+			if (source == null) {
+				source = defaultTimeSource;
+			}
+			snapshot.take(source.clock.millis(), source.zone);
+			snapshot.taken = true;
 		}
-		return Calendar.getInstance(useGmt ? TimeZone.getTimeZone(GMT) : TimeZone.getDefault());
+		return snapshot;
 	}
 
 	/*************************************************************************
@@ -388,104 +499,109 @@ public class PacScriptMethods implements ScriptMethods {
 	        Object gmt) {
 
 		// Guess the parameter meanings.
-		Map<String, Integer> params = new HashMap<String, Integer>();
-		parseDateParam(params, day1);
-		parseDateParam(params, month1);
-		parseDateParam(params, year1);
-		parseDateParam(params, day2);
-		parseDateParam(params, month2);
-		parseDateParam(params, year2);
-		parseDateParam(params, gmt);
-
-		// Get current date
-		boolean useGmt = params.get("gmt") != null;
-		Calendar cal = getCurrentTime(useGmt);
-		Date current = cal.getTime();
-
-		// Build the "from" date
-		if (params.get("day1") != null) {
-			cal.set(Calendar.DAY_OF_MONTH, params.get("day1"));
-		}
-		if (params.get("month1") != null) {
-			cal.set(Calendar.MONTH, params.get("month1"));
-		}
-		if (params.get("year1") != null) {
-			cal.set(Calendar.YEAR, params.get("year1"));
-		}
-		Date from = cal.getTime();
-
-		// Build the "to" date
-		Date to;
-		if (params.get("day2") != null) {
-			cal.set(Calendar.DAY_OF_MONTH, params.get("day2"));
-		}
-		if (params.get("month2") != null) {
-			cal.set(Calendar.MONTH, params.get("month2"));
-		}
-		if (params.get("year2") != null) {
-			cal.set(Calendar.YEAR, params.get("year2"));
-		}
-		to = cal.getTime();
+		TimeSnapshot snapshot = getTimeSnapshot();
+		int[] params = snapshot.dateParams;
+		Arrays.fill(params, -1);
+		boolean useGmt = parseDateParam(params, day1);
+		useGmt |= parseDateParam(params, month1);
+		useGmt |= parseDateParam(params, year1);
+		useGmt |= parseDateParam(params, day2);
+		useGmt |= parseDateParam(params, month2);
+		useGmt |= parseDateParam(params, year2);
+		useGmt |= parseDateParam(params, gmt);
+
+		// Get current date, the result can only change at midnight
+		useGmt &= !this.ignoreGmt;
+		TimeSnapshot.Fields current = snapshot.get(useGmt);
+		snapshot.changesAt(useGmt, 1, 0);
+
+		// Build the "from" date, missing values are taken from today
+		TimeSnapshot.Fields date = snapshot.scratch;
+		long from = TimeSnapshot.epochDay(params[DATE_YEAR1] >= 0 ? params[DATE_YEAR1] : current.year,
+		        params[DATE_MONTH1] >= 0 ? params[DATE_MONTH1] : current.month,
+		        params[DATE_DAY1] >= 0 ? params[DATE_DAY1] : current.day);
+		TimeSnapshot.setDate(date, from);
+
+		// Build the "to" date, missing values are taken from the "from" date
+		long to = TimeSnapshot.epochDay(params[DATE_YEAR2] >= 0 ? params[DATE_YEAR2] : date.year,
+		        params[DATE_MONTH2] >= 0 ? params[DATE_MONTH2] : date.month,
+		        params[DATE_DAY2] >= 0 ? params[DATE_DAY2] : date.day);
+		TimeSnapshot.setDate(date, to);
 
 		// Need to increment to the next month?
-		if (to.before(from)) {
-			cal.add(Calendar.MONTH, +1);
-			to = cal.getTime();
+		if (to < from) {
+			TimeSnapshot.addMonths(date, 1);
+			to = date.epochDay;
 		}
 		// Need to increment to the next year?
-		if (to.before(from)) {
-			cal.add(Calendar.YEAR, +1);
-			cal.add(Calendar.MONTH, -1);
-			to = cal.getTime();
+		if (to < from) {
+			TimeSnapshot.addMonths(date, 12);
+			TimeSnapshot.addMonths(date, -1);
+			to = date.epochDay;
 		}
 
-		return current.compareTo(from) >= 0 && current.compareTo(to) <= 0;
+		return current.epochDay >= from && current.epochDay <= to;
 	}
 
 	/*************************************************************************
 	 * Try to guess the type of the given parameter and put it into the params
-	 * map.
+	 * array.
 	 * 
 	 * @param params
-	 *            a map to put the parsed parameters into.
+	 *            the array to put the parsed parameters into, -1 for not set.
 	 * @param value
 	 *            to parse and specify the type for.
+	 * @return true if the parameter is "GMT".
 	 ************************************************************************/
 
-	private void parseDateParam(Map<String, Integer> params, Object value) {
+	private boolean parseDateParam(int[] params, Object value) {
 		if (value instanceof Number) {
 			int n = ((Number) value).intValue();
 			if (n <= 31) {
 				// Its a day
-				if (params.get("day1") == null) {
-					params.put("day1", n);
-				} else {
-					params.put("day2", n);
-				}
+				putDateParam(params, DATE_DAY1, DATE_DAY2, n);
 			} else {
 				// Its a year
-				if (params.get("year1") == null) {
-					params.put("year1", n);
-				} else {
-					params.put("year2", n);
-				}
+				putDateParam(params, DATE_YEAR1, DATE_YEAR2, n);
 			}
+			return false;
 		}
 
 		if (value instanceof String) {
-			int n = MONTH.indexOf(((String) value).toUpperCase());
-			if (n > -1) {
-				// Its a month
-				if (params.get("month1") == null) {
-					params.put("month1", n);
-				} else {
-					params.put("month2", n);
+			String text = (String) value;
+			if (GMT.equalsIgnoreCase(text)) {
+				return true;
+			}
+			for (int n = 0; n < MONTH.size(); n++) {
+				if (MONTH.get(n).equalsIgnoreCase(text)) {
+					// Its a month
+					putDateParam(params, DATE_MONTH1, DATE_MONTH2, n);
+					break;
 				}
 			}
 		}
+		return false;
+	}
 
-		if (GMT.equalsIgnoreCase(String.valueOf(value))) {
-			params.put("gmt", 1);
+	/*************************************************************************
+	 * Puts a parameter into the first slot or if that is taken into the
+	 * second one.
+	 * 
+	 * @param params
+	 *            the parsed parameters.
+	 * @param first
+	 *            index of the "from" value.
+	 * @param second
+	 *            index of the "to" value.
+	 * @param value
+	 *            the value.
+	 ************************************************************************/
+
+	private void putDateParam(int[] params, int first, int second, int value) {
+		if (params[first] == -1) {
+			params[first] = value;
+		} else {
+			params[second] = value;
 		}
 	}
 
@@ -524,63 +640,81 @@ public class PacScriptMethods implements ScriptMethods {
 
 	public boolean timeRange(Object hour1, Object min1, Object sec1, Object hour2, Object min2, Object sec2,
 	        Object gmt) {
-		boolean useGmt = GMT.equalsIgnoreCase(String.valueOf(min1)) || GMT.equalsIgnoreCase(String.valueOf(sec1))
-		        || GMT.equalsIgnoreCase(String.valueOf(min2)) || GMT.equalsIgnoreCase(String.valueOf(gmt));
-
-		Calendar cal = getCurrentTime(useGmt);
-		cal.set(Calendar.MILLISECOND, 0);
-		Date current = cal.getTime();
-		Date from;
-		Date to;
+		boolean useGmt = isGmt(min1) || isGmt(sec1) || isGmt(min2) || isGmt(gmt);
+
+		TimeSnapshot snapshot = getTimeSnapshot();
+		useGmt &= !this.ignoreGmt;
+		int current = snapshot.get(useGmt).secondOfDay;
+		int from;
+		int to;
 		if (sec2 instanceof Number) {
-			cal.set(Calendar.HOUR_OF_DAY, ((Number) hour1).intValue());
-			cal.set(Calendar.MINUTE, ((Number) min1).intValue());
-			cal.set(Calendar.SECOND, ((Number) sec1).intValue());
-			from = cal.getTime();
-
-			cal.set(Calendar.HOUR_OF_DAY, ((Number) hour2).intValue());
-			cal.set(Calendar.MINUTE, ((Number) min2).intValue());
-			cal.set(Calendar.SECOND, ((Number) sec2).intValue());
-			to = cal.getTime();
+			from = secondOfDay(hour1, min1, sec1);
+			to = secondOfDay(hour2, min2, sec2);
 		} else if (hour2 instanceof Number) {
-			cal.set(Calendar.HOUR_OF_DAY, ((Number) hour1).intValue());
-			cal.set(Calendar.MINUTE, ((Number) min1).intValue());
-			cal.set(Calendar.SECOND, 0);
-			from = cal.getTime();
-
-			cal.set(Calendar.HOUR_OF_DAY, ((Number) sec1).intValue());
-			cal.set(Calendar.MINUTE, ((Number) hour2).intValue());
-			cal.set(Calendar.SECOND, 59);
-			to = cal.getTime();
+			from = secondOfDay(hour1, min1, 0);
+			to = secondOfDay(sec1, hour2, 59);
 		} else if (min1 instanceof Number) {
-			cal.set(Calendar.HOUR_OF_DAY, ((Number) hour1).intValue());
-			cal.set(Calendar.MINUTE, 0);
-			cal.set(Calendar.SECOND, 0);
-			from = cal.getTime();
-
-			cal.set(Calendar.HOUR_OF_DAY, ((Number) min1).intValue());
-			cal.set(Calendar.MINUTE, 59);
-			cal.set(Calendar.SECOND, 59);
-			to = cal.getTime();
+			from = secondOfDay(hour1, 0, 0);
+			to = secondOfDay(min1, 59, 59);
 		} else {
-			cal.set(Calendar.HOUR_OF_DAY, ((Number) hour1).intValue());
-			cal.set(Calendar.MINUTE, 0);
-			cal.set(Calendar.SECOND, 0);
-			from = cal.getTime();
-
-			cal.set(Calendar.HOUR_OF_DAY, ((Number) hour1).intValue());
-			cal.set(Calendar.MINUTE, 59);
-			cal.set(Calendar.SECOND, 59);
-			to = cal.getTime();
+			from = secondOfDay(hour1, 0, 0);
+			to = secondOfDay(hour1, 59, 59);
 		}
 
-		if (to.before(from)) {
-			cal.setTime(to);
-			cal.add(Calendar.DATE, +1);
-			to = cal.getTime();
+		// The result changes when the range starts or ends
+		changesAt(snapshot, useGmt, current, from);
+		changesAt(snapshot, useGmt, current, to + 1);
+
+		// The range goes over midnight
+		if (to < from) {
+			return current >= from || current <= to;
 		}
+		return current >= from && current <= to;
+	}
 
-		return current.compareTo(from) >= 0 && current.compareTo(to) <= 0;
+	/*************************************************************************
+	 * Records the next time the clock reaches the given second of the day.
+	 * 
+	 * @param snapshot
+	 *            the time snapshot.
+	 * @param useGmt
+	 *            true for GMT, false for local time.
+	 * @param current
+	 *            the current second of the day.
+	 * @param secondOfDay
+	 *            the second of the day at which the result changes.
+	 ************************************************************************/
+
+	private void changesAt(TimeSnapshot snapshot, boolean useGmt, int current, int secondOfDay) {
+		snapshot.changesAt(useGmt, secondOfDay > current ? 0 : 1, secondOfDay);
+	}
+
+	/*************************************************************************
+	 * Checks if a parameter is the "GMT" flag.
+	 * 
+	 * @param value
+	 *            the parameter.
+	 * @return true if it is "GMT".
+	 ************************************************************************/
+
+	private boolean isGmt(Object value) {
+		return value instanceof String && GMT.equalsIgnoreCase((String) value);
+	}
+
+	/*************************************************************************
+	 * Computes the seconds since midnight.
+	 * 
+	 * @param hour
+	 *            the hour as Number.
+	 * @param min
+	 *            the minute as Number.
+	 * @param sec
+	 *            the second as Number.
+	 * @return the seconds since midnight.
+	 ************************************************************************/
+
+	private int secondOfDay(Object hour, Object min, Object sec) {
+		return ((Number) hour).intValue() * 3600 + ((Number) min).intValue() * 60 + ((Number) sec).intValue();
 	}
 
 	// Microsoft PAC extensions for IPv6 support.
@@ -595,14 +729,8 @@ public class PacScriptMethods implements ScriptMethods {
 		return isResolvable(host);
 	}
 
-	// constants
-	private static final BigInteger HIGH_32_INT = new BigInteger(new byte[] { -1, -1, -1, -1 });
-	private static final BigInteger HIGH_128_INT = new BigInteger(
-	        new byte[] { -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1 });
-
 	/*************************************************************************
-	 * isInNetEx Implementation from
-	 * http://fhanik.blogspot.ch/2013/11/ip-magic-check-if-ipv6-address-is.html
+	 * isInNetEx
 	 * 
 	 * @see com.github.markusbernhardt.proxy.selector.pac.ScriptMethods#isInNetEx(java.lang.String,
 	 *      java.lang.String)
@@ -612,27 +740,18 @@ public class PacScriptMethods implements ScriptMethods {
 		if (ipOrHost == null || ipOrHost.length() == 0 || cidr == null || cidr.length() == 0) {
 			return false;
 		}
+		NetworkRange range = NetworkRange.parse(cidr);
+		if (range == null) {
+			return false;
+		}
 
+		long ipv4 = NetworkRange.parseIpv4(ipOrHost);
+		if (ipv4 >= 0) {
+			return range.contains(ipv4);
+		}
 		try {
-			// Split CIDR, usually written like 2000::/64"
-			String[] cidrParts = cidr.split("/");
-			if (cidrParts.length != 2) {
-				return false;
-			}
-			String cidrRange = cidrParts[0];
-			int cidrBits = Integer.parseInt(cidrParts[1]);
-
-			byte[] addressBytes = InetAddress.getByName(ipOrHost).getAddress();
-			BigInteger ip = new BigInteger(addressBytes);
-			BigInteger mask = addressBytes.length == 4 ? HIGH_32_INT.shiftLeft(32 - cidrBits)
-			        : HIGH_128_INT.shiftLeft(128 - cidrBits);
-
-			byte[] rangeBytes = InetAddress.getByName(cidrRange).getAddress();
-			BigInteger range = new BigInteger(rangeBytes);
-			BigInteger lowIP = range.and(mask);
-			BigInteger highIP = lowIP.add(mask.not());
-
-			return lowIP.compareTo(ip) <= 0 && highIP.compareTo(ip) >= 0;
+			// IPv6 literals are resolved without a DNS lookup
+			return range.contains(this.dnsCache.resolve(ipOrHost).getAddress());
 		} catch (UnknownHostException e) {
 			return false;
 		}
@@ -647,7 +766,7 @@ public class PacScriptMethods implements ScriptMethods {
 	public String dnsResolveEx(String host) {
 		StringBuilder result = new StringBuilder();
 		try {
-			InetAddress[] list = InetAddress.getAllByName(host);
+			InetAddress[] list = this.dnsCache.resolveAll(host);
 			for (InetAddress inetAddress : list) {
 				result.append(inetAddress.getHostAddress());
 				result.append("; ");
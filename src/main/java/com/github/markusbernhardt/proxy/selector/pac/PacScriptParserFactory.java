@@ -0,0 +1,41 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+/***************************************************************************
+ * Factory for a PAC script parser backend. Factories are registered at the
+ * {@link PacScriptParserRegistry}, either directly or as service provider in
+ * <code>META-INF/services/com.github.markusbernhardt.proxy.selector.pac.PacScriptParserFactory</code>.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ***************************************************************************/
+public interface PacScriptParserFactory {
+
+	/***************************************************************************
+	 * Gets the name used to select this backend, e.g. with the system
+	 * property <code>com.btr.proxy.pac.engine</code>.
+	 *
+	 * @return the name of the backend.
+	 **************************************************************************/
+	public String getName();
+
+	/***************************************************************************
+	 * Checks if the backend can be used in the current runtime, e.g. if the
+	 * required script engine is on the class path.
+	 *
+	 * @return true if {@link #createParser(PacScriptSource, int)} can be used.
+	 **************************************************************************/
+	public boolean isAvailable();
+
+	/*************************************************************************
+	 * Creates a parser for the given script. The parser has to be thread safe.
+	 *
+	 * @param source
+	 *            the source for the PAC script.
+	 * @param enginePoolSize
+	 *            the maximum number of script engines used to evaluate the
+	 *            script in parallel, if the backend needs engines at all.
+	 * @return the parser.
+	 * @throws ProxyEvaluationException
+	 *             on setup error.
+	 ************************************************************************/
+	public PacScriptParser createParser(PacScriptSource source, int enginePoolSize) throws ProxyEvaluationException;
+}
@@ -0,0 +1,159 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import com.github.markusbernhardt.proxy.util.Logger;
+import com.github.markusbernhardt.proxy.util.Logger.LogLevel;
+
+/*****************************************************************************
+ * Registry of the available PAC script parser backends. It contains the
+ * backends shipped with this library:
+ * <ul>
+ * <li><code>javax</code>: Nashorn in a sandbox (default)</li>
+ * <li><code>nashorn</code>: plain javax.script Nashorn engine without sandbox
+ * </li>
+ * <li><code>graaljs</code>: GraalJS, if it is on the class path</li>
+ * <li><code>java</code>: evaluates the script in Java</li>
+ * <li><code>compiled</code>: compiles the script to a Java class</li>
+ * </ul>
+ * Further backends are loaded with the {@link ServiceLoader} or can be
+ * registered with {@link #register(PacScriptParserFactory)}. The backend is
+ * selected by the system property <code>com.btr.proxy.pac.engine</code> or
+ * with {@link #setDefaultEngine(String)}.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public final class PacScriptParserRegistry {
+
+	private static final Map<String, PacScriptParserFactory> FACTORIES = new LinkedHashMap<String, PacScriptParserFactory>();
+
+	private static volatile String defaultEngine;
+
+	static {
+		for (PacScriptParserFactory factory : StandardPacScriptParserFactory.values()) {
+			FACTORIES.put(factory.getName(), factory);
+		}
+		loadServices();
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 ************************************************************************/
+
+	private PacScriptParserRegistry() {
+		super();
+	}
+
+	/*************************************************************************
+	 * Registers the factories found by the service loader.
+	 ************************************************************************/
+
+	private static void loadServices() {
+		Iterator<PacScriptParserFactory> services = ServiceLoader
+		        .load(PacScriptParserFactory.class, PacScriptParserRegistry.class.getClassLoader()).iterator();
+		while (true) {
+			try {
+				if (!services.hasNext()) {
+					break;
+				}
+				register(services.next());
+			} catch (ServiceConfigurationError e) {
+				Logger.log(PacScriptParserRegistry.class, LogLevel.WARNING, "Cannot load PAC parser factory: {0}",
+				        e.getMessage());
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Registers a backend. A backend registered before with the same name is
+	 * replaced.
+	 *
+	 * @param factory
+	 *            the factory of the backend.
+	 ************************************************************************/
+
+	public static void register(PacScriptParserFactory factory) {
+		synchronized (FACTORIES) {
+			FACTORIES.put(factory.getName().toLowerCase(), factory);
+		}
+		Logger.log(PacScriptParserRegistry.class, LogLevel.DEBUG, "Registered PAC parser backend {0}",
+		        factory.getName());
+	}
+
+	/*************************************************************************
+	 * Gets a backend by its name.
+	 *
+	 * @param name
+	 *            the name of the backend, case insensitive.
+	 * @return the factory or null if there is no backend with this name.
+	 ************************************************************************/
+
+	public static PacScriptParserFactory getFactory(String name) {
+		synchronized (FACTORIES) {
+			return FACTORIES.get(name.trim().toLowerCase());
+		}
+	}
+
+	/*************************************************************************
+	 * Gets all registered backends, including the ones not available in this
+	 * runtime.
+	 *
+	 * @return the factories in registration order.
+	 ************************************************************************/
+
+	public static List<PacScriptParserFactory> getFactories() {
+		synchronized (FACTORIES) {
+			return new ArrayList<PacScriptParserFactory>(FACTORIES.values());
+		}
+	}
+
+	/*************************************************************************
+	 * Sets the backend used when no engine is given explicitly. This overrides
+	 * the system property <code>com.btr.proxy.pac.engine</code>.
+	 *
+	 * @param name
+	 *            the name of the backend or null to use the system property.
+	 ************************************************************************/
+
+	public static void setDefaultEngine(String name) {
+		defaultEngine = name;
+	}
+
+	/*************************************************************************
+	 * Gets the backend to use. This is the one set with
+	 * {@link #setDefaultEngine(String)}, the one named by the system property
+	 * <code>com.btr.proxy.pac.engine</code> or else the sandboxed JavaScript
+	 * engine. Unknown or unavailable backends are logged and replaced by the
+	 * default.
+	 *
+	 * @return the factory.
+	 ************************************************************************/
+
+	public static PacScriptParserFactory getDefaultFactory() {
+		String name = defaultEngine;
+		if (name == null) {
+			name = System.getProperty(PacProxySelector.OVERRIDE_ENGINE);
+		}
+		if (name != null && name.trim().length() > 0) {
+			PacScriptParserFactory factory = getFactory(name);
+			if (factory == null) {
+				Logger.log(PacScriptParserRegistry.class, LogLevel.WARNING, "Unknown PAC engine {0}, using default.",
+				        name);
+			} else if (!factory.isAvailable()) {
+				Logger.log(PacScriptParserRegistry.class, LogLevel.WARNING,
+				        "PAC engine {0} not available, using default.", name);
+			} else {
+				return factory;
+			}
+		}
+		return StandardPacScriptParserFactory.SANDBOX;
+	}
+
+}
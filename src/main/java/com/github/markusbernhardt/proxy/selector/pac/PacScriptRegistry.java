@@ -0,0 +1,506 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.github.markusbernhardt.proxy.util.Logger;
+import com.github.markusbernhardt.proxy.util.Logger.LogLevel;
+
+/*****************************************************************************
+ * Shares PAC scripts and their parsers among all selectors of the process.
+ * The search strategies of the browsers, the desktops and WPAD often find the
+ * same PAC URL, and every call of
+ * {@link com.github.markusbernhardt.proxy.ProxySearch#getProxySelector()}
+ * searches again. Without sharing each of them downloads the script and sets
+ * up its script engines anew.<br>
+ * Each URL has its own entry with its own script source, so it follows the
+ * updates of its own server only. The parsers with their script engines are
+ * shared by the SHA-256 hash of the script, so different URLs delivering the
+ * same script, e.g. <code>wpad.dat</code> and <code>proxy.pac</code>, use the
+ * same engines as long as their scripts are equal. When the script of a URL
+ * changes its selectors switch to the parser for the new script. Each call of
+ * {@link #getSelector(String)} returns a new {@link PacProxySelector} with its
+ * own timeout settings.<br>
+ * The registry counts the selectors using an entry. A selector is released by
+ * {@link PacProxySelector#close()} or when it is garbage collected. Entries
+ * no longer used are evicted once they have been idle for the time given by
+ * the system property <code>com.btr.proxy.pac.registryIdleTime</code> in
+ * milliseconds (default 5 minutes). Eviction is checked whenever the registry
+ * is used, there is no background thread.<br>
+ * Not to be confused with the {@link PacScriptParserRegistry}, which knows the
+ * available parser backends.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public final class PacScriptRegistry {
+
+	public static final String OVERRIDE_IDLE_TIME = "com.btr.proxy.pac.registryIdleTime";
+
+	private static final long DEFAULT_IDLE_TIME = 5 * 60 * 1000;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final PacScriptRegistry DEFAULT = new PacScriptRegistry(getDefaultIdleTime());
+
+	/*************************************************************************
+	 * The script source of a URL with the parser its selectors use.
+	 ************************************************************************/
+
+	private static final class Entry {
+		final PacScriptSource source;
+		final UrlParser parser;
+		final int enginePoolSize;
+		int references;
+		long idleSince;
+
+		Entry(PacScriptSource source, UrlParser parser, int enginePoolSize) {
+			this.source = source;
+			this.parser = parser;
+			this.enginePoolSize = enginePoolSize;
+		}
+	}
+
+	/*************************************************************************
+	 * A parser for one script content, shared by all URLs delivering it.
+	 ************************************************************************/
+
+	private static final class SharedParser {
+		final String key;
+		final String content;
+		final PacScriptParser parser;
+		int users;
+
+		SharedParser(String key, String content, PacScriptParser parser) {
+			this.key = key;
+			this.content = content;
+			this.parser = parser;
+		}
+	}
+
+	/*************************************************************************
+	 * Source of a shared parser. It always delivers the content the parser
+	 * was created for.
+	 ************************************************************************/
+
+	private static final class ContentSource implements PacScriptSource {
+		private final String content;
+
+		ContentSource(String content) {
+			this.content = content;
+		}
+
+		public String getScriptContent() {
+			return this.content;
+		}
+
+		public boolean isScriptValid() {
+			return this.content.indexOf(JavaxPacScriptParser.ENTRY_FUNCTION) != -1;
+		}
+	}
+
+	/*************************************************************************
+	 * The parser of a URL. It reads the script from the source of the URL and
+	 * evaluates it with the shared parser for the current content.
+	 ************************************************************************/
+
+	private final class UrlParser implements BatchPacScriptParser, ExpiringPacScriptParser {
+		private final PacScriptSource source;
+		private final PacScriptParserFactory factory;
+		private final int enginePoolSize;
+		private final String engineKey;
+		private final AtomicReference<SharedParser> shared = new AtomicReference<SharedParser>();
+
+		UrlParser(PacScriptSource source, PacScriptParserFactory factory, int enginePoolSize, String engineKey) {
+			this.source = source;
+			this.factory = factory;
+			this.enginePoolSize = enginePoolSize;
+			this.engineKey = engineKey;
+		}
+
+		public PacScriptSource getScriptSource() {
+			return this.source;
+		}
+
+		public String evaluate(String url, String host) throws ProxyEvaluationException {
+			return getParser().evaluate(url, host);
+		}
+
+		public String evaluate(String url, String host, long[] validFor) throws ProxyEvaluationException {
+			return JavaxPacScriptParser.evaluate(getParser(), url, host, validFor);
+		}
+
+		public List<String> evaluateAll(List<URI> uris) throws ProxyEvaluationException {
+			PacScriptParser parser = getParser();
+			if (parser instanceof BatchPacScriptParser) {
+				return ((BatchPacScriptParser) parser).evaluateAll(uris);
+			}
+			List<String> results = new ArrayList<String>(uris.size());
+			for (URI uri : uris) {
+				results.add(parser.evaluate(uri.toString(), uri.getHost()));
+			}
+			return results;
+		}
+
+		/*********************************************************************
+		 * Gets the shared parser for the current script of the URL and
+		 * switches to another one if the script has changed.
+		 *
+		 * @return the parser.
+		 * @throws ProxyEvaluationException
+		 *             if the script cannot be read or the parser not be set
+		 *             up.
+		 ********************************************************************/
+
+		PacScriptParser getParser() throws ProxyEvaluationException {
+			String content;
+			try {
+				content = this.source.getScriptContent();
+			} catch (IOException e) {
+				throw new ProxyEvaluationException("Error while reading PAC script: " + e.getMessage(), e);
+			}
+			SharedParser current = this.shared.get();
+			if (current != null && current.content.equals(content)) {
+				return current.parser;
+			}
+			synchronized (this) {
+				current = this.shared.get();
+				if (current != null && current.content.equals(content)) {
+					return current.parser;
+				}
+				SharedParser next = acquire(this.engineKey + hash(content), content, this.factory,
+				        this.enginePoolSize);
+				SharedParser old = this.shared.getAndSet(next);
+				if (old != null) {
+					releaseParser(old);
+				}
+				return next.parser;
+			}
+		}
+
+		/*********************************************************************
+		 * Stops using the shared parser.
+		 ********************************************************************/
+
+		void release() {
+			SharedParser old = this.shared.getAndSet(null);
+			if (old != null) {
+				releaseParser(old);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return this.source.toString();
+		}
+	}
+
+	/*************************************************************************
+	 * The reference of a selector to an entry. It is released when the
+	 * selector is closed or garbage collected.
+	 ************************************************************************/
+
+	private final class Registration extends WeakReference<PacProxySelector> implements Closeable {
+		final Entry entry;
+
+		Registration(PacProxySelector selector, Entry entry) {
+			super(selector, PacScriptRegistry.this.queue);
+			this.entry = entry;
+		}
+
+		public void close() {
+			release(this);
+		}
+	}
+
+	private final long idleTime;
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private final Map<String, SharedParser> parsers = new HashMap<String, SharedParser>();
+	private final Set<Registration> registrations = new HashSet<Registration>();
+	private final ReferenceQueue<PacProxySelector> queue = new ReferenceQueue<PacProxySelector>();
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param idleTime
+	 *            the time in milliseconds an unused entry is kept.
+	 ************************************************************************/
+
+	PacScriptRegistry(long idleTime) {
+		super();
+		this.idleTime = Math.max(0, idleTime);
+	}
+
+	/*************************************************************************
+	 * Gets the registry shared by the whole process.
+	 *
+	 * @return the registry.
+	 ************************************************************************/
+
+	public static PacScriptRegistry getDefault() {
+		return DEFAULT;
+	}
+
+	/*************************************************************************
+	 * Gets the idle time from the system property.
+	 *
+	 * @return the idle time in milliseconds.
+	 ************************************************************************/
+
+	private static long getDefaultIdleTime() {
+		long idleTime = DEFAULT_IDLE_TIME;
+		String prop = System.getProperty(OVERRIDE_IDLE_TIME);
+		if (prop != null && prop.trim().length() > 0) {
+			try {
+				idleTime = Long.parseLong(prop.trim());
+			} catch (NumberFormatException e) {
+				Logger.log(PacScriptRegistry.class, LogLevel.DEBUG, "Invalid override property : {0}={1}",
+				        OVERRIDE_IDLE_TIME, prop);
+				// In this case use the default value.
+			}
+		}
+		return idleTime;
+	}
+
+	/*************************************************************************
+	 * Gets a selector for the PAC script at the given URL. The script source
+	 * is shared with all other selectors for the same URL, the parser with all
+	 * URLs delivering the same script. Local files are watched and reloaded
+	 * when they change, see {@link FilePacScriptSource}.
+	 *
+	 * @param url
+	 *            to fetch the PAC script from.
+	 * @return a new selector, null if the URL does not deliver a valid script.
+	 ************************************************************************/
+
+	public PacProxySelector getSelector(String url) {
+		PacScriptParserFactory factory = PacScriptParserRegistry.getDefaultFactory();
+		int enginePoolSize = PacProxySelector.getDefaultEnginePoolSize();
+		String engineKey = factory.getName() + "/" + enginePoolSize + " ";
+		String urlKey = engineKey + url;
+		synchronized (this) {
+			cleanUp();
+			Entry entry = this.entries.get(urlKey);
+			if (entry != null) {
+				return register(entry);
+			}
+		}
+
+		// Download and set up outside the lock, a parallel call may win
+		PacScriptSource source = createSource(url);
+		if (!source.isScriptValid()) {
+			discard(source);
+			return null;
+		}
+		UrlParser parser = new UrlParser(source, factory, enginePoolSize, engineKey);
+		try {
+			Logger.log(getClass(), LogLevel.INFO, "Using PAC engine {0}.", factory.getName());
+			parser.getParser();
+		} catch (Exception e) {
+			Logger.log(getClass(), LogLevel.ERROR, "PAC parser error.", e);
+			discard(source);
+			return new PacProxySelector((PacScriptParser) null, enginePoolSize);
+		}
+		synchronized (this) {
+			Entry entry = this.entries.get(urlKey);
+			if (entry != null) {
+				parser.release();
+				discard(source);
+			} else {
+				entry = new Entry(source, parser, enginePoolSize);
+				this.entries.put(urlKey, entry);
+			}
+			return register(entry);
+		}
+	}
+
+	/*************************************************************************
+	 * Gets the number of entries in the registry.
+	 *
+	 * @return the number of URLs with a shared script.
+	 ************************************************************************/
+
+	public synchronized int size() {
+		cleanUp();
+		return this.entries.size();
+	}
+
+	/*************************************************************************
+	 * Gets the number of parsers used by the entries.
+	 *
+	 * @return the number of different scripts.
+	 ************************************************************************/
+
+	synchronized int getParserCount() {
+		return this.parsers.size();
+	}
+
+	/*************************************************************************
+	 * Gets the shared parser for a script and creates it if there is none.
+	 *
+	 * @param key
+	 *            the key of the backend and the script hash.
+	 * @param content
+	 *            the script.
+	 * @param factory
+	 *            the backend.
+	 * @param enginePoolSize
+	 *            the number of script engines.
+	 * @return the parser, it has to be released with
+	 *         {@link #releaseParser(SharedParser)}.
+	 * @throws ProxyEvaluationException
+	 *             if the parser cannot be set up.
+	 ************************************************************************/
+
+	private SharedParser acquire(String key, String content, PacScriptParserFactory factory, int enginePoolSize)
+	        throws ProxyEvaluationException {
+		synchronized (this) {
+			SharedParser shared = this.parsers.get(key);
+			if (shared != null) {
+				shared.users++;
+				return shared;
+			}
+		}
+		// Set up outside the lock, a parallel call may win
+		PacScriptParser parser = factory.createParser(new ContentSource(content), enginePoolSize);
+		synchronized (this) {
+			SharedParser shared = this.parsers.get(key);
+			if (shared == null) {
+				shared = new SharedParser(key, content, parser);
+				this.parsers.put(key, shared);
+			}
+			shared.users++;
+			return shared;
+		}
+	}
+
+	/*************************************************************************
+	 * Releases a shared parser. It is dropped once no URL uses it.
+	 *
+	 * @param shared
+	 *            the parser.
+	 ************************************************************************/
+
+	private synchronized void releaseParser(SharedParser shared) {
+		shared.users--;
+		if (shared.users == 0) {
+			this.parsers.remove(shared.key);
+		}
+	}
+
+	/*************************************************************************
+	 * Creates a new selector using the entry.
+	 *
+	 * @param entry
+	 *            the entry.
+	 * @return the selector.
+	 ************************************************************************/
+
+	private PacProxySelector register(Entry entry) {
+		PacProxySelector selector = new PacProxySelector(entry.parser, entry.enginePoolSize);
+		Registration registration = new Registration(selector, entry);
+		this.registrations.add(registration);
+		entry.references++;
+		selector.setRegistration(registration);
+		return selector;
+	}
+
+	/*************************************************************************
+	 * Releases the reference of a selector.
+	 *
+	 * @param registration
+	 *            the reference.
+	 ************************************************************************/
+
+	private synchronized void release(Registration registration) {
+		unregister(registration);
+		cleanUp();
+	}
+
+	private void unregister(Registration registration) {
+		if (this.registrations.remove(registration)) {
+			Entry entry = registration.entry;
+			entry.references--;
+			if (entry.references == 0) {
+				entry.idleSince = System.currentTimeMillis();
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Releases the references of garbage collected selectors and evicts the
+	 * entries that are idle for too long.
+	 ************************************************************************/
+
+	private void cleanUp() {
+		Object reference;
+		while ((reference = this.queue.poll()) != null) {
+			unregister((Registration) reference);
+		}
+		long now = System.currentTimeMillis();
+		for (Iterator<Entry> it = this.entries.values().iterator(); it.hasNext();) {
+			Entry entry = it.next();
+			if (entry.references == 0 && now - entry.idleSince >= this.idleTime) {
+				Logger.log(getClass(), LogLevel.DEBUG, "Evicting unused PAC script {0}", entry.source);
+				it.remove();
+				entry.parser.release();
+				discard(entry.source);
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Creates the script source for the given URL.
+	 *
+	 * @param url
+	 *            the URL.
+	 * @return the source.
+	 ************************************************************************/
+
+	private static PacScriptSource createSource(String url) {
+		if (url.startsWith("file:/")) {
+			try {
+				return new FilePacScriptSource(new File(new URL(url).toURI()));
+			} catch (Exception e) {
+				Logger.log(PacScriptRegistry.class, LogLevel.DEBUG, "Cannot watch PAC file {0}: {1}", url, e);
+			}
+		}
+		return new UrlPacScriptSource(url);
+	}
+
+	/*************************************************************************
+	 * Closes a source that is no longer used.
+	 *
+	 * @param source
+	 *            the source.
+	 ************************************************************************/
+
+	private static void discard(PacScriptSource source) {
+		if (source instanceof Closeable) {
+			try {
+				((Closeable) source).close();
+			} catch (IOException e) {
+				Logger.log(PacScriptRegistry.class, LogLevel.DEBUG, "Cannot close PAC source {0}: {1}", source, e);
+			}
+		}
+	}
+
+	private static String hash(String content) {
+		return PacScriptDiskCache.hash(content.getBytes(UTF8));
+	}
+
+}
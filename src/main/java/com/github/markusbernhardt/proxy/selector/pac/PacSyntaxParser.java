@@ -0,0 +1,534 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.github.markusbernhardt.proxy.selector.pac.PacScriptLexer.Kind;
+import com.github.markusbernhardt.proxy.selector.pac.PacScriptLexer.Token;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Assign;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Binary;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Block;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Builtin;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Call;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Conditional;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Expression;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.ExpressionStatement;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Function;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.If;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Literal;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Logical;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Program;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Return;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Statement;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.StringMember;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.StringMethod;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Unary;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Variable;
+
+/*****************************************************************************
+ * Recursive descent parser for the subset of JavaScript that is used by most
+ * PAC scripts: function declarations, variables, if / else, return, string and
+ * number literals, the usual operators, the predefined PAC functions and a few
+ * string methods. Everything else (loops, arrays, objects, regular expressions,
+ * assignments to global variables inside functions ...) is reported with a
+ * ProxyEvaluationException, so that the caller can fall back to a real
+ * JavaScript engine.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+final class PacSyntaxParser {
+
+	private static final Set<String> RESERVED_WORDS = new HashSet<String>(Arrays.asList("break", "case", "catch",
+	        "class", "const", "continue", "debugger", "default", "delete", "do", "else", "export", "extends",
+	        "finally", "for", "function", "if", "import", "in", "instanceof", "let", "new", "return", "super",
+	        "switch", "this", "throw", "try", "typeof", "var", "void", "while", "with", "yield"));
+
+	private final List<Token> tokens;
+	private int pos;
+
+	private final Program program;
+	private final List<Variable> variables;
+	private final List<Call> calls;
+	private Function currentFunction;
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param script
+	 *            the script to parse.
+	 * @throws ProxyEvaluationException
+	 *             on a lexical error.
+	 ************************************************************************/
+
+	PacSyntaxParser(String script) throws ProxyEvaluationException {
+		this.tokens = new PacScriptLexer(script).tokenize();
+		this.pos = 0;
+		this.program = new Program();
+		this.variables = new ArrayList<Variable>();
+		this.calls = new ArrayList<Call>();
+	}
+
+	/*************************************************************************
+	 * Parses the script.
+	 *
+	 * @param script
+	 *            the script to parse.
+	 * @return the syntax tree.
+	 * @throws ProxyEvaluationException
+	 *             if the script uses an unsupported construct.
+	 ************************************************************************/
+
+	static Program parse(String script) throws ProxyEvaluationException {
+		return new PacSyntaxParser(script).parseProgram();
+	}
+
+	/*************************************************************************
+	 * Parses the whole program and resolves all names.
+	 *
+	 * @return the syntax tree.
+	 * @throws ProxyEvaluationException
+	 *             on error.
+	 ************************************************************************/
+
+	private Program parseProgram() throws ProxyEvaluationException {
+		List<Statement> init = new ArrayList<Statement>();
+		while (peek().kind != Kind.END) {
+			if (peek().is("function")) {
+				parseFunction();
+			} else {
+				init.add(parseStatement());
+			}
+		}
+		this.program.init = new Block(init.toArray(new Statement[init.size()]));
+		resolve();
+		return this.program;
+	}
+
+	/*************************************************************************
+	 * Parses a function declaration.
+	 *
+	 * @throws ProxyEvaluationException
+	 *             on error.
+	 ************************************************************************/
+
+	private void parseFunction() throws ProxyEvaluationException {
+		expect("function");
+		String name = expectIdentifier();
+		expect("(");
+		List<String> params = new ArrayList<String>();
+		if (!peek().is(")")) {
+			do {
+				params.add(expectIdentifier());
+			} while (accept(","));
+		}
+		expect(")");
+
+		Function function = new Function(name, params.toArray(new String[params.size()]));
+		for (String param : params) {
+			declare(function, param);
+		}
+		if (this.program.functions.put(name, function) != null) {
+			throw error("Function " + name + " declared twice", peek());
+		}
+		this.currentFunction = function;
+		function.body = parseBlock();
+		this.currentFunction = null;
+	}
+
+	/*************************************************************************
+	 * Parses a block of statements in curly braces.
+	 *
+	 * @return the block.
+	 * @throws ProxyEvaluationException
+	 *             on error.
+	 ************************************************************************/
+
+	private Block parseBlock() throws ProxyEvaluationException {
+		expect("{");
+		List<Statement> statements = new ArrayList<Statement>();
+		while (!accept("}")) {
+			statements.add(parseStatement());
+		}
+		return new Block(statements.toArray(new Statement[statements.size()]));
+	}
+
+	/*************************************************************************
+	 * Parses a single statement.
+	 *
+	 * @return the statement.
+	 * @throws ProxyEvaluationException
+	 *             on error.
+	 ************************************************************************/
+
+	private Statement parseStatement() throws ProxyEvaluationException {
+		Token token = peek();
+		if (token.is("{")) {
+			return parseBlock();
+		}
+		if (accept(";")) {
+			return new Block(new Statement[0]);
+		}
+		if (accept("var")) {
+			List<Statement> assignments = new ArrayList<Statement>();
+			do {
+				Token nameToken = peek();
+				String name = expectIdentifier();
+				declare(this.currentFunction, name);
+				if (accept("=")) {
+					Variable target = newVariable(name, nameToken);
+					assignments.add(new ExpressionStatement(new Assign(target, "=", parseAssignment())));
+				}
+			} while (accept(","));
+			endStatement();
+			return new Block(assignments.toArray(new Statement[assignments.size()]));
+		}
+		if (accept("if")) {
+			expect("(");
+			Expression condition = parseExpression();
+			expect(")");
+			Statement then = parseStatement();
+			Statement otherwise = accept("else") ? parseStatement() : null;
+			return new If(condition, then, otherwise);
+		}
+		if (accept("return")) {
+			if (this.currentFunction == null) {
+				throw error("Return outside of function", token);
+			}
+			Expression value = null;
+			if (!peek().is(";") && !peek().is("}") && !peek().newLineBefore && peek().kind != Kind.END) {
+				value = parseExpression();
+			}
+			endStatement();
+			return new Return(value);
+		}
+		if (token.kind == Kind.IDENTIFIER && RESERVED_WORDS.contains(token.text) && !token.is("typeof")) {
+			throw error("Unsupported statement " + token, token);
+		}
+		Expression expression = parseExpression();
+		endStatement();
+		return new ExpressionStatement(expression);
+	}
+
+	/*************************************************************************
+	 * Consumes the end of a statement. Like JavaScript the semicolon can be
+	 * omitted at the end of a line or before a closing brace.
+	 *
+	 * @throws ProxyEvaluationException
+	 *             if the statement is not terminated.
+	 ************************************************************************/
+
+	private void endStatement() throws ProxyEvaluationException {
+		if (accept(";")) {
+			return;
+		}
+		Token token = peek();
+		if (token.is("}") || token.newLineBefore || token.kind == Kind.END) {
+			return;
+		}
+		throw error("Unexpected " + token, token);
+	}
+
+	/*************************************************************************
+	 * Parses an expression. The comma operator is not supported.
+	 *
+	 * @return the expression.
+	 * @throws ProxyEvaluationException
+	 *             on error.
+	 ************************************************************************/
+
+	private Expression parseExpression() throws ProxyEvaluationException {
+		return parseAssignment();
+	}
+
+	private Expression parseAssignment() throws ProxyEvaluationException {
+		Token token = peek();
+		Expression left = parseConditional();
+		if (peek().is("=") || peek().is("+=") || peek().is("-=")) {
+			String operator = next().text;
+			if (!(left instanceof Variable)) {
+				throw error("Invalid assignment target", token);
+			}
+			Variable target = (Variable) left;
+			if (this.currentFunction != null && !this.currentFunction.locals.containsKey(target.name)) {
+				throw error("Assignment to global variable " + target.name + " is not supported", token);
+			}
+			return new Assign(target, operator, parseAssignment());
+		}
+		return left;
+	}
+
+	private Expression parseConditional() throws ProxyEvaluationException {
+		Expression condition = parseLogical(true);
+		if (accept("?")) {
+			Expression then = parseAssignment();
+			expect(":");
+			Expression otherwise = parseAssignment();
+			return new Conditional(condition, then, otherwise);
+		}
+		return condition;
+	}
+
+	private Expression parseLogical(boolean or) throws ProxyEvaluationException {
+		String operator = or ? "||" : "&&";
+		Expression left = or ? parseLogical(false) : parseEquality();
+		while (accept(operator)) {
+			Expression right = or ? parseLogical(false) : parseEquality();
+			left = new Logical(!or, left, right);
+		}
+		return left;
+	}
+
+	private Expression parseEquality() throws ProxyEvaluationException {
+		Expression left = parseRelational();
+		while (peek().is("==") || peek().is("!=") || peek().is("===") || peek().is("!==")) {
+			String operator = next().text;
+			left = new Binary(operator, left, parseRelational());
+		}
+		return left;
+	}
+
+	private Expression parseRelational() throws ProxyEvaluationException {
+		Expression left = parseAdditive();
+		while (peek().is("<") || peek().is(">") || peek().is("<=") || peek().is(">=")) {
+			String operator = next().text;
+			left = new Binary(operator, left, parseAdditive());
+		}
+		return left;
+	}
+
+	private Expression parseAdditive() throws ProxyEvaluationException {
+		Expression left = parseMultiplicative();
+		while (peek().is("+") || peek().is("-")) {
+			String operator = next().text;
+			left = new Binary(operator, left, parseMultiplicative());
+		}
+		return left;
+	}
+
+	private Expression parseMultiplicative() throws ProxyEvaluationException {
+		Expression left = parseUnary();
+		while (peek().is("*") || peek().is("/") || peek().is("%")) {
+			String operator = next().text;
+			left = new Binary(operator, left, parseUnary());
+		}
+		return left;
+	}
+
+	private Expression parseUnary() throws ProxyEvaluationException {
+		if (peek().is("!") || peek().is("-") || peek().is("+") || peek().is("typeof")) {
+			String operator = next().text;
+			return new Unary(operator, parseUnary());
+		}
+		return parsePostfix();
+	}
+
+	/*************************************************************************
+	 * Parses a primary expression followed by calls and member accesses.
+	 *
+	 * @return the expression.
+	 * @throws ProxyEvaluationException
+	 *             on error.
+	 ************************************************************************/
+
+	private Expression parsePostfix() throws ProxyEvaluationException {
+		Token token = peek();
+		Expression expression;
+		if (token.kind == Kind.IDENTIFIER && !RESERVED_WORDS.contains(token.text) && lookAhead(1).is("(")) {
+			next();
+			expression = parseCall(token);
+		} else {
+			expression = parsePrimary();
+		}
+
+		while (accept(".")) {
+			Token member = peek();
+			String name = expectIdentifier();
+			StringMethod method = StringMethod.forName(name);
+			if (method == null) {
+				throw error("Unsupported member " + member, member);
+			}
+			Expression[] args = new Expression[0];
+			if (method != StringMethod.LENGTH) {
+				args = parseArguments();
+			}
+			expression = new StringMember(method, expression, args);
+		}
+		if (peek().is("(") || peek().is("[") || peek().is("++") || peek().is("--")) {
+			throw error("Unsupported expression " + peek(), peek());
+		}
+		return expression;
+	}
+
+	/*************************************************************************
+	 * Parses a function call. The target is resolved later, when all
+	 * functions of the script are known.
+	 *
+	 * @param nameToken
+	 *            the token with the function name.
+	 * @return the call expression.
+	 * @throws ProxyEvaluationException
+	 *             on error.
+	 ************************************************************************/
+
+	private Expression parseCall(Token nameToken) throws ProxyEvaluationException {
+		Expression[] args = parseArguments();
+		Call call = new Call(nameToken.text, args, nameToken.line);
+		this.calls.add(call);
+		return call;
+	}
+
+	private Expression[] parseArguments() throws ProxyEvaluationException {
+		expect("(");
+		List<Expression> args = new ArrayList<Expression>();
+		if (!peek().is(")")) {
+			do {
+				args.add(parseAssignment());
+			} while (accept(","));
+		}
+		expect(")");
+		return args.toArray(new Expression[args.size()]);
+	}
+
+	private Expression parsePrimary() throws ProxyEvaluationException {
+		Token token = next();
+		switch (token.kind) {
+		case STRING:
+		case NUMBER:
+			return new Literal(token.value);
+		case IDENTIFIER:
+			if (token.is("true")) {
+				return new Literal(Boolean.TRUE);
+			}
+			if (token.is("false")) {
+				return new Literal(Boolean.FALSE);
+			}
+			if (token.is("null") || token.is("undefined")) {
+				return new Literal(null);
+			}
+			if (token.is("NaN")) {
+				return new Literal(Double.valueOf(Double.NaN));
+			}
+			if (token.is("Infinity")) {
+				return new Literal(Double.valueOf(Double.POSITIVE_INFINITY));
+			}
+			if (RESERVED_WORDS.contains(token.text)) {
+				throw error("Unsupported expression " + token, token);
+			}
+			return newVariable(token.text, token);
+		case PUNCTUATOR:
+			if (token.is("(")) {
+				Expression expression = parseExpression();
+				expect(")");
+				return expression;
+			}
+			throw error("Unsupported expression " + token, token);
+		default:
+			throw error("Unexpected " + token, token);
+		}
+	}
+
+	// ---------------------------------------------------------------------
+	// Name resolution
+	// ---------------------------------------------------------------------
+
+	private Variable newVariable(String name, Token token) {
+		Variable variable = new Variable(name, this.currentFunction, token.line);
+		this.variables.add(variable);
+		return variable;
+	}
+
+	private void declare(Function function, String name) {
+		if (function == null) {
+			if (!this.program.globals.containsKey(name)) {
+				this.program.globals.put(name, this.program.globals.size());
+			}
+		} else if (!function.locals.containsKey(name)) {
+			function.locals.put(name, function.locals.size());
+		}
+	}
+
+	/*************************************************************************
+	 * Resolves all variables to local or global slots and all calls to
+	 * functions declared in the script or predefined PAC functions.
+	 *
+	 * @throws ProxyEvaluationException
+	 *             on an unknown name.
+	 ************************************************************************/
+
+	private void resolve() throws ProxyEvaluationException {
+		for (Variable variable : this.variables) {
+			Integer slot = variable.owner == null ? null : variable.owner.locals.get(variable.name);
+			if (slot == null) {
+				slot = this.program.globals.get(variable.name);
+				variable.global = true;
+			}
+			if (slot == null) {
+				throw new ProxyEvaluationException(
+				        "Unsupported identifier '" + variable.name + "' in line " + variable.line);
+			}
+			variable.slot = slot;
+		}
+
+		for (Call call : this.calls) {
+			call.function = this.program.functions.get(call.name);
+			if (call.function == null) {
+				call.builtin = Builtin.forName(call.name);
+			}
+			if (call.function == null && call.builtin == null) {
+				throw new ProxyEvaluationException("Unsupported function '" + call.name + "' in line " + call.line);
+			}
+		}
+	}
+
+	// ---------------------------------------------------------------------
+	// Token helpers
+	// ---------------------------------------------------------------------
+
+	private Token peek() {
+		return this.tokens.get(this.pos);
+	}
+
+	private Token lookAhead(int offset) {
+		return this.tokens.get(Math.min(this.pos + offset, this.tokens.size() - 1));
+	}
+
+	private Token next() {
+		Token token = this.tokens.get(this.pos);
+		if (token.kind != Kind.END) {
+			this.pos++;
+		}
+		return token;
+	}
+
+	private boolean accept(String text) {
+		if (peek().is(text)) {
+			this.pos++;
+			return true;
+		}
+		return false;
+	}
+
+	private void expect(String text) throws ProxyEvaluationException {
+		if (!accept(text)) {
+			throw error("Expected '" + text + "' but found " + peek(), peek());
+		}
+	}
+
+	private String expectIdentifier() throws ProxyEvaluationException {
+		Token token = peek();
+		if (token.kind != Kind.IDENTIFIER || RESERVED_WORDS.contains(token.text)) {
+			throw error("Expected identifier but found " + token, token);
+		}
+		this.pos++;
+		return token.text;
+	}
+
+	private ProxyEvaluationException error(String message, Token token) {
+		return new ProxyEvaluationException(message + " in line " + token.line);
+	}
+
+}
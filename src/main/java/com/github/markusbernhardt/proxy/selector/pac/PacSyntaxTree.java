@@ -0,0 +1,682 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*****************************************************************************
+ * The syntax tree of a PAC script as built by the {@link PacSyntaxParser}.
+ * The nodes can be evaluated directly against a {@link ScriptMethods}
+ * implementation. After parsing the tree is immutable and can be evaluated by
+ * many threads in parallel, every evaluation uses its own {@link Frame}.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+final class PacSyntaxTree {
+
+	/*************************************************************************
+	 * Constructor
+	 ************************************************************************/
+
+	private PacSyntaxTree() {
+		super();
+	}
+
+	/*************************************************************************
+	 * The state of a single function invocation.
+	 ************************************************************************/
+
+	static final class Frame {
+		final Object[] locals;
+		final Object[] globals;
+		final ScriptMethods methods;
+		Object result;
+
+		Frame(Object[] locals, Object[] globals, ScriptMethods methods) {
+			this.locals = locals;
+			this.globals = globals;
+			this.methods = methods;
+		}
+	}
+
+	/*************************************************************************
+	 * A parsed script: the declared functions, the global variables and the
+	 * top level statements that initialize them.
+	 ************************************************************************/
+
+	static final class Program {
+		final Map<String, Function> functions = new LinkedHashMap<String, Function>();
+		final Map<String, Integer> globals = new LinkedHashMap<String, Integer>();
+		Block init;
+
+		/*********************************************************************
+		 * Runs the top level statements of the script.
+		 *
+		 * @param methods
+		 *            the script methods to use.
+		 * @return the initialized global variables.
+		 * @throws ProxyEvaluationException
+		 *             on evaluation error.
+		 ********************************************************************/
+
+		Object[] initGlobals(ScriptMethods methods) throws ProxyEvaluationException {
+			Object[] values = new Object[this.globals.size()];
+			this.init.execute(new Frame(values, values, methods));
+			return values;
+		}
+	}
+
+	/*************************************************************************
+	 * A function declared in the script.
+	 ************************************************************************/
+
+	static final class Function {
+		final String name;
+		final String[] params;
+		final Map<String, Integer> locals = new LinkedHashMap<String, Integer>();
+		Block body;
+
+		Function(String name, String[] params) {
+			this.name = name;
+			this.params = params;
+		}
+
+		/*********************************************************************
+		 * Invokes the function.
+		 *
+		 * @param args
+		 *            the arguments.
+		 * @param globals
+		 *            the global variables.
+		 * @param methods
+		 *            the script methods.
+		 * @return the return value.
+		 * @throws ProxyEvaluationException
+		 *             on evaluation error.
+		 ********************************************************************/
+
+		Object invoke(Object[] args, Object[] globals, ScriptMethods methods) throws ProxyEvaluationException {
+			Object[] frameLocals = new Object[this.locals.size()];
+			System.arraycopy(args, 0, frameLocals, 0, Math.min(args.length, this.params.length));
+			Frame frame = new Frame(frameLocals, globals, methods);
+			this.body.execute(frame);
+			return frame.result;
+		}
+	}
+
+	// ---------------------------------------------------------------------
+	// Statements
+	// ---------------------------------------------------------------------
+
+	/*************************************************************************
+	 * Base class of all statements.
+	 ************************************************************************/
+
+	abstract static class Statement {
+
+		/*********************************************************************
+		 * Executes the statement.
+		 *
+		 * @param frame
+		 *            the current frame.
+		 * @return true if a return statement was executed.
+		 * @throws ProxyEvaluationException
+		 *             on evaluation error.
+		 ********************************************************************/
+
+		abstract boolean execute(Frame frame) throws ProxyEvaluationException;
+	}
+
+	static final class Block extends Statement {
+		final Statement[] statements;
+
+		Block(Statement[] statements) {
+			this.statements = statements;
+		}
+
+		@Override
+		boolean execute(Frame frame) throws ProxyEvaluationException {
+			for (Statement statement : this.statements) {
+				if (statement.execute(frame)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	static final class ExpressionStatement extends Statement {
+		final Expression expression;
+
+		ExpressionStatement(Expression expression) {
+			this.expression = expression;
+		}
+
+		@Override
+		boolean execute(Frame frame) throws ProxyEvaluationException {
+			this.expression.evaluate(frame);
+			return false;
+		}
+	}
+
+	static final class If extends Statement {
+		final Expression condition;
+		final Statement then;
+		final Statement otherwise;
+
+		If(Expression condition, Statement then, Statement otherwise) {
+			this.condition = condition;
+			this.then = then;
+			this.otherwise = otherwise;
+		}
+
+		@Override
+		boolean execute(Frame frame) throws ProxyEvaluationException {
+			if (PacValues.toBoolean(this.condition.evaluate(frame))) {
+				return this.then.execute(frame);
+			}
+			return this.otherwise != null && this.otherwise.execute(frame);
+		}
+	}
+
+	static final class Return extends Statement {
+		final Expression value;
+
+		Return(Expression value) {
+			this.value = value;
+		}
+
+		@Override
+		boolean execute(Frame frame) throws ProxyEvaluationException {
+			frame.result = this.value == null ? null : this.value.evaluate(frame);
+			return true;
+		}
+	}
+
+	// ---------------------------------------------------------------------
+	// Expressions
+	// ---------------------------------------------------------------------
+
+	/*************************************************************************
+	 * Base class of all expressions.
+	 ************************************************************************/
+
+	abstract static class Expression {
+
+		/*********************************************************************
+		 * Evaluates the expression.
+		 *
+		 * @param frame
+		 *            the current frame.
+		 * @return the value.
+		 * @throws ProxyEvaluationException
+		 *             on evaluation error.
+		 ********************************************************************/
+
+		abstract Object evaluate(Frame frame) throws ProxyEvaluationException;
+	}
+
+	static final class Literal extends Expression {
+		final Object value;
+
+		Literal(Object value) {
+			this.value = value;
+		}
+
+		@Override
+		Object evaluate(Frame frame) {
+			return this.value;
+		}
+	}
+
+	/*************************************************************************
+	 * A reference to a variable. The parser creates it unresolved, the slot
+	 * is assigned when the whole script is known.
+	 ************************************************************************/
+
+	static final class Variable extends Expression {
+		final String name;
+		final Function owner;
+		final int line;
+		boolean global;
+		int slot = -1;
+
+		Variable(String name, Function owner, int line) {
+			this.name = name;
+			this.owner = owner;
+			this.line = line;
+		}
+
+		@Override
+		Object evaluate(Frame frame) {
+			return this.global ? frame.globals[this.slot] : frame.locals[this.slot];
+		}
+	}
+
+	static final class Assign extends Expression {
+		final Variable target;
+		final String operator;
+		final Expression value;
+
+		Assign(Variable target, String operator, Expression value) {
+			this.target = target;
+			this.operator = operator;
+			this.value = value;
+		}
+
+		@Override
+		Object evaluate(Frame frame) throws ProxyEvaluationException {
+			Object result = this.value.evaluate(frame);
+			if ("+=".equals(this.operator)) {
+				result = PacValues.add(this.target.evaluate(frame), result);
+			} else if ("-=".equals(this.operator)) {
+				result = Double.valueOf(
+				        PacValues.toNumber(this.target.evaluate(frame)) - PacValues.toNumber(result));
+			}
+			if (this.target.global) {
+				frame.globals[this.target.slot] = result;
+			} else {
+				frame.locals[this.target.slot] = result;
+			}
+			return result;
+		}
+	}
+
+	static final class Unary extends Expression {
+		final String operator;
+		final Expression operand;
+
+		Unary(String operator, Expression operand) {
+			this.operator = operator;
+			this.operand = operand;
+		}
+
+		@Override
+		Object evaluate(Frame frame) throws ProxyEvaluationException {
+			Object value = this.operand.evaluate(frame);
+			if ("!".equals(this.operator)) {
+				return Boolean.valueOf(!PacValues.toBoolean(value));
+			}
+			if ("-".equals(this.operator)) {
+				return Double.valueOf(-PacValues.toNumber(value));
+			}
+			if ("+".equals(this.operator)) {
+				return Double.valueOf(PacValues.toNumber(value));
+			}
+			return PacValues.typeOf(value);
+		}
+	}
+
+	static final class Logical extends Expression {
+		final boolean and;
+		final Expression left;
+		final Expression right;
+
+		Logical(boolean and, Expression left, Expression right) {
+			this.and = and;
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		Object evaluate(Frame frame) throws ProxyEvaluationException {
+			Object value = this.left.evaluate(frame);
+			if (PacValues.toBoolean(value) != this.and) {
+				return value;
+			}
+			return this.right.evaluate(frame);
+		}
+	}
+
+	static final class Conditional extends Expression {
+		final Expression condition;
+		final Expression then;
+		final Expression otherwise;
+
+		Conditional(Expression condition, Expression then, Expression otherwise) {
+			this.condition = condition;
+			this.then = then;
+			this.otherwise = otherwise;
+		}
+
+		@Override
+		Object evaluate(Frame frame) throws ProxyEvaluationException {
+			return PacValues.toBoolean(this.condition.evaluate(frame)) ? this.then.evaluate(frame)
+			        : this.otherwise.evaluate(frame);
+		}
+	}
+
+	static final class Binary extends Expression {
+		final String operator;
+		final Expression left;
+		final Expression right;
+
+		Binary(String operator, Expression left, Expression right) {
+			this.operator = operator;
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		Object evaluate(Frame frame) throws ProxyEvaluationException {
+			Object a = this.left.evaluate(frame);
+			Object b = this.right.evaluate(frame);
+			return apply(this.operator, a, b);
+		}
+
+		/*********************************************************************
+		 * Applies a binary operator.
+		 *
+		 * @param operator
+		 *            the operator.
+		 * @param a
+		 *            left operand.
+		 * @param b
+		 *            right operand.
+		 * @return the result.
+		 ********************************************************************/
+
+		static Object apply(String operator, Object a, Object b) {
+			char c = operator.charAt(0);
+			switch (c) {
+			case '+':
+				return PacValues.add(a, b);
+			case '-':
+				return Double.valueOf(PacValues.toNumber(a) - PacValues.toNumber(b));
+			case '*':
+				return Double.valueOf(PacValues.toNumber(a) * PacValues.toNumber(b));
+			case '/':
+				return Double.valueOf(PacValues.toNumber(a) / PacValues.toNumber(b));
+			case '%':
+				return Double.valueOf(PacValues.toNumber(a) % PacValues.toNumber(b));
+			case '=':
+				return Boolean.valueOf(operator.length() == 3 ? PacValues.strictEquals(a, b)
+				        : PacValues.looseEquals(a, b));
+			case '!':
+				return Boolean.valueOf(operator.length() == 3 ? !PacValues.strictEquals(a, b)
+				        : !PacValues.looseEquals(a, b));
+			default:
+				int cmp = PacValues.compare(a, b);
+				if (cmp == Integer.MIN_VALUE) {
+					return Boolean.FALSE;
+				}
+				if ("<".equals(operator)) {
+					return Boolean.valueOf(cmp < 0);
+				}
+				if ("<=".equals(operator)) {
+					return Boolean.valueOf(cmp <= 0);
+				}
+				if (">".equals(operator)) {
+					return Boolean.valueOf(cmp > 0);
+				}
+				return Boolean.valueOf(cmp >= 0);
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Call of a function declared in the script or of one of the predefined
+	 * PAC functions. Functions declared in the script take precedence.
+	 ************************************************************************/
+
+	static final class Call extends Expression {
+		final String name;
+		final Expression[] args;
+		final int line;
+		Function function;
+		Builtin builtin;
+
+		Call(String name, Expression[] args, int line) {
+			this.name = name;
+			this.args = args;
+			this.line = line;
+		}
+
+		@Override
+		Object evaluate(Frame frame) throws ProxyEvaluationException {
+			Object[] values = evaluateAll(this.args, frame);
+			if (this.function != null) {
+				return this.function.invoke(values, frame.globals, frame.methods);
+			}
+			return this.builtin.invoke(frame.methods, values);
+		}
+	}
+
+	/*************************************************************************
+	 * Access to the length property or a method of a string.
+	 ************************************************************************/
+
+	static final class StringMember extends Expression {
+		final StringMethod method;
+		final Expression target;
+		final Expression[] args;
+
+		StringMember(StringMethod method, Expression target, Expression[] args) {
+			this.method = method;
+			this.target = target;
+			this.args = args;
+		}
+
+		@Override
+		Object evaluate(Frame frame) throws ProxyEvaluationException {
+			Object value = this.target.evaluate(frame);
+			if (!(value instanceof String)) {
+				throw new ProxyEvaluationException(
+				        "Cannot read " + this.method.jsName + " of " + PacValues.toString(value));
+			}
+			return this.method.invoke((String) value, evaluateAll(this.args, frame));
+		}
+	}
+
+	/*************************************************************************
+	 * Evaluates a list of argument expressions.
+	 *
+	 * @param args
+	 *            the expressions.
+	 * @param frame
+	 *            the current frame.
+	 * @return the values.
+	 * @throws ProxyEvaluationException
+	 *             on evaluation error.
+	 ************************************************************************/
+
+	static Object[] evaluateAll(Expression[] args, Frame frame) throws ProxyEvaluationException {
+		Object[] values = new Object[args.length];
+		for (int i = 0; i < args.length; i++) {
+			values[i] = args[i].evaluate(frame);
+		}
+		return values;
+	}
+
+	// ---------------------------------------------------------------------
+	// Predefined functions
+	// ---------------------------------------------------------------------
+
+	/*************************************************************************
+	 * The PAC functions defined in {@link ScriptMethods}.
+	 ************************************************************************/
+
+	enum Builtin {
+		isPlainHostName, dnsDomainIs, localHostOrDomainIs, isResolvable, isResolvableEx, isInNet, isInNetEx,
+		dnsResolve, dnsResolveEx, myIpAddress, myIpAddressEx, dnsDomainLevels, shExpMatch, weekdayRange, dateRange,
+		timeRange, sortIpAddressList, getClientVersion;
+
+		/*********************************************************************
+		 * Looks up a predefined function by name.
+		 *
+		 * @param name
+		 *            the function name.
+		 * @return the function or null if there is none with this name.
+		 ********************************************************************/
+
+		static Builtin forName(String name) {
+			for (Builtin builtin : values()) {
+				if (builtin.name().equals(name)) {
+					return builtin;
+				}
+			}
+			return null;
+		}
+
+		/*********************************************************************
+		 * Invokes the function.
+		 *
+		 * @param m
+		 *            the script methods implementation.
+		 * @param a
+		 *            the arguments.
+		 * @return the result as script value.
+		 * @throws ProxyEvaluationException
+		 *             on evaluation error.
+		 ********************************************************************/
+
+		Object invoke(ScriptMethods m, Object[] a) throws ProxyEvaluationException {
+			try {
+				switch (this) {
+				case isPlainHostName:
+					return m.isPlainHostName(str(a, 0));
+				case dnsDomainIs:
+					return m.dnsDomainIs(str(a, 0), str(a, 1));
+				case localHostOrDomainIs:
+					return m.localHostOrDomainIs(str(a, 0), str(a, 1));
+				case isResolvable:
+					return m.isResolvable(str(a, 0));
+				case isResolvableEx:
+					return m.isResolvableEx(str(a, 0));
+				case isInNet:
+					return m.isInNet(str(a, 0), str(a, 1), str(a, 2));
+				case isInNetEx:
+					return m.isInNetEx(str(a, 0), str(a, 1));
+				case dnsResolve:
+					return m.dnsResolve(str(a, 0));
+				case dnsResolveEx:
+					return m.dnsResolveEx(str(a, 0));
+				case myIpAddress:
+					return m.myIpAddress();
+				case myIpAddressEx:
+					return m.myIpAddressEx();
+				case dnsDomainLevels:
+					return PacValues.fromInt(m.dnsDomainLevels(str(a, 0)));
+				case shExpMatch:
+					return m.shExpMatch(str(a, 0), str(a, 1));
+				case weekdayRange:
+					return m.weekdayRange(str(a, 0), str(a, 1), str(a, 2));
+				case dateRange:
+					return m.dateRange(obj(a, 0), obj(a, 1), obj(a, 2), obj(a, 3), obj(a, 4), obj(a, 5), obj(a, 6));
+				case timeRange:
+					return m.timeRange(obj(a, 0), obj(a, 1), obj(a, 2), obj(a, 3), obj(a, 4), obj(a, 5), obj(a, 6));
+				case sortIpAddressList:
+					return m.sortIpAddressList(str(a, 0));
+				default:
+					return m.getClientVersion();
+				}
+			} catch (RuntimeException e) {
+				throw new ProxyEvaluationException("Error in " + name() + ": " + e, e);
+			}
+		}
+
+		private static String str(Object[] args, int index) {
+			return index < args.length && args[index] != null ? PacValues.toString(args[index]) : null;
+		}
+
+		private static Object obj(Object[] args, int index) {
+			return index < args.length ? args[index] : null;
+		}
+	}
+
+	/*************************************************************************
+	 * The supported members of JavaScript strings.
+	 ************************************************************************/
+
+	enum StringMethod {
+		LENGTH("length"), TO_LOWER_CASE("toLowerCase"), TO_UPPER_CASE("toUpperCase"), INDEX_OF("indexOf"),
+		LAST_INDEX_OF("lastIndexOf"), SUBSTRING("substring"), SUBSTR("substr"), CHAR_AT("charAt"), TRIM("trim");
+
+		final String jsName;
+
+		StringMethod(String jsName) {
+			this.jsName = jsName;
+		}
+
+		/*********************************************************************
+		 * Looks up a string member by its JavaScript name.
+		 *
+		 * @param jsName
+		 *            the name.
+		 * @return the member or null if it is not supported.
+		 ********************************************************************/
+
+		static StringMethod forName(String jsName) {
+			for (StringMethod method : values()) {
+				if (method.jsName.equals(jsName)) {
+					return method;
+				}
+			}
+			return null;
+		}
+
+		/*********************************************************************
+		 * Invokes the method on the given string.
+		 *
+		 * @param s
+		 *            the string.
+		 * @param a
+		 *            the arguments.
+		 * @return the result as script value.
+		 ********************************************************************/
+
+		Object invoke(String s, Object[] a) {
+			int length = s.length();
+			switch (this) {
+			case LENGTH:
+				return PacValues.fromInt(length);
+			case TO_LOWER_CASE:
+				return s.toLowerCase();
+			case TO_UPPER_CASE:
+				return s.toUpperCase();
+			case INDEX_OF:
+				return PacValues.fromInt(s.indexOf(PacValues.toString(arg(a, 0)), clamp(a, 1, 0, 0, length)));
+			case LAST_INDEX_OF:
+				return PacValues.fromInt(s.lastIndexOf(PacValues.toString(arg(a, 0)), clamp(a, 1, length, 0, length)));
+			case SUBSTRING: {
+				int start = clamp(a, 0, 0, 0, length);
+				int end = clamp(a, 1, length, 0, length);
+				return start <= end ? s.substring(start, end) : s.substring(end, start);
+			}
+			case SUBSTR: {
+				int start = (int) integer(arg(a, 0), 0);
+				if (start < 0) {
+					start = Math.max(0, length + start);
+				}
+				start = Math.min(start, length);
+				int count = (int) Math.max(0, Math.min(integer(arg(a, 1), length), length - start));
+				return s.substring(start, start + count);
+			}
+			case CHAR_AT: {
+				int index = (int) integer(arg(a, 0), 0);
+				return index >= 0 && index < length ? String.valueOf(s.charAt(index)) : "";
+			}
+			default:
+				return s.trim();
+			}
+		}
+
+		private static Object arg(Object[] args, int index) {
+			return index < args.length ? args[index] : null;
+		}
+
+		private static double integer(Object value, double defaultValue) {
+			if (value == null) {
+				return defaultValue;
+			}
+			double d = PacValues.toNumber(value);
+			return Double.isNaN(d) ? 0 : d < 0 ? Math.ceil(d) : Math.floor(d);
+		}
+
+		private static int clamp(Object[] args, int index, int defaultValue, int min, int max) {
+			double d = integer(arg(args, index), defaultValue);
+			return (int) Math.max(min, Math.min(max, d));
+		}
+	}
+
+}
@@ -0,0 +1,243 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+/*****************************************************************************
+ * The JavaScript type conversion and operator rules needed to evaluate PAC
+ * scripts in Java. Values are represented as <code>String</code>,
+ * <code>Double</code>, <code>Boolean</code> or <code>null</code> for both
+ * <code>null</code> and <code>undefined</code>.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+final class PacValues {
+
+	private static final Double ZERO = Double.valueOf(0);
+	private static final Double ONE = Double.valueOf(1);
+
+	/*************************************************************************
+	 * Constructor
+	 ************************************************************************/
+
+	private PacValues() {
+		super();
+	}
+
+	/*************************************************************************
+	 * JavaScript ToBoolean conversion.
+	 *
+	 * @param value
+	 *            to convert.
+	 * @return the boolean value.
+	 ************************************************************************/
+
+	static boolean toBoolean(Object value) {
+		if (value instanceof Boolean) {
+			return ((Boolean) value).booleanValue();
+		}
+		if (value instanceof String) {
+			return ((String) value).length() > 0;
+		}
+		if (value instanceof Double) {
+			double d = ((Double) value).doubleValue();
+			return d != 0 && !Double.isNaN(d);
+		}
+		return value != null;
+	}
+
+	/*************************************************************************
+	 * JavaScript ToNumber conversion.
+	 *
+	 * @param value
+	 *            to convert.
+	 * @return the number value.
+	 ************************************************************************/
+
+	static double toNumber(Object value) {
+		if (value instanceof Double) {
+			return ((Double) value).doubleValue();
+		}
+		if (value instanceof Boolean) {
+			return ((Boolean) value).booleanValue() ? 1 : 0;
+		}
+		if (value instanceof String) {
+			String s = ((String) value).trim();
+			if (s.length() == 0) {
+				return 0;
+			}
+			try {
+				if (s.startsWith("0x") || s.startsWith("0X")) {
+					return Long.parseLong(s.substring(2), 16);
+				}
+				if (s.endsWith("Infinity")) {
+					return s.startsWith("-") ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+				}
+				char last = s.charAt(s.length() - 1);
+				if (!Character.isDigit(last) && last != '.') {
+					return Double.NaN;
+				}
+				return Double.parseDouble(s);
+			} catch (NumberFormatException e) {
+				return Double.NaN;
+			}
+		}
+		return Double.NaN;
+	}
+
+	/*************************************************************************
+	 * JavaScript ToString conversion.
+	 *
+	 * @param value
+	 *            to convert.
+	 * @return the string value.
+	 ************************************************************************/
+
+	static String toString(Object value) {
+		if (value instanceof String) {
+			return (String) value;
+		}
+		if (value instanceof Double) {
+			return numberToString(((Double) value).doubleValue());
+		}
+		if (value == null) {
+			return "undefined";
+		}
+		return value.toString();
+	}
+
+	/*************************************************************************
+	 * Formats a number the way JavaScript does for the common cases.
+	 *
+	 * @param d
+	 *            the number.
+	 * @return the string representation.
+	 ************************************************************************/
+
+	static String numberToString(double d) {
+		if (Double.isNaN(d)) {
+			return "NaN";
+		}
+		if (Double.isInfinite(d)) {
+			return d > 0 ? "Infinity" : "-Infinity";
+		}
+		if (d == Math.rint(d) && Math.abs(d) < 1e21) {
+			return Long.toString((long) d);
+		}
+		return Double.toString(d);
+	}
+
+	/*************************************************************************
+	 * Converts a Java value returned by a script method into a script value.
+	 *
+	 * @param value
+	 *            the Java value.
+	 * @return the script value.
+	 ************************************************************************/
+
+	static Object fromInt(int value) {
+		return value == 0 ? ZERO : value == 1 ? ONE : Double.valueOf(value);
+	}
+
+	/*************************************************************************
+	 * JavaScript typeof operator.
+	 *
+	 * @param value
+	 *            the operand.
+	 * @return the type name.
+	 ************************************************************************/
+
+	static String typeOf(Object value) {
+		if (value instanceof String) {
+			return "string";
+		}
+		if (value instanceof Double) {
+			return "number";
+		}
+		if (value instanceof Boolean) {
+			return "boolean";
+		}
+		return "undefined";
+	}
+
+	/*************************************************************************
+	 * JavaScript + operator.
+	 *
+	 * @param a
+	 *            left operand.
+	 * @param b
+	 *            right operand.
+	 * @return the concatenated string or the sum.
+	 ************************************************************************/
+
+	static Object add(Object a, Object b) {
+		if (a instanceof String || b instanceof String) {
+			return toString(a).concat(toString(b));
+		}
+		return Double.valueOf(toNumber(a) + toNumber(b));
+	}
+
+	/*************************************************************************
+	 * JavaScript === operator.
+	 *
+	 * @param a
+	 *            left operand.
+	 * @param b
+	 *            right operand.
+	 * @return true if both values are strictly equal.
+	 ************************************************************************/
+
+	static boolean strictEquals(Object a, Object b) {
+		if (a == null || b == null) {
+			return a == b;
+		}
+		if (a instanceof Double && b instanceof Double) {
+			return ((Double) a).doubleValue() == ((Double) b).doubleValue();
+		}
+		return a.getClass() == b.getClass() && a.equals(b);
+	}
+
+	/*************************************************************************
+	 * JavaScript == operator.
+	 *
+	 * @param a
+	 *            left operand.
+	 * @param b
+	 *            right operand.
+	 * @return true if both values are loosely equal.
+	 ************************************************************************/
+
+	static boolean looseEquals(Object a, Object b) {
+		if (a == null || b == null) {
+			return a == b;
+		}
+		if (a.getClass() == b.getClass()) {
+			return strictEquals(a, b);
+		}
+		return toNumber(a) == toNumber(b);
+	}
+
+	/*************************************************************************
+	 * JavaScript relational comparison. Strings are compared
+	 * lexicographically, everything else as numbers.
+	 *
+	 * @param a
+	 *            left operand.
+	 * @param b
+	 *            right operand.
+	 * @return negative, zero or positive like a comparator, or
+	 *         <code>Integer.MIN_VALUE</code> if the values are not comparable
+	 *         (NaN).
+	 ************************************************************************/
+
+	static int compare(Object a, Object b) {
+		if (a instanceof String && b instanceof String) {
+			return ((String) a).compareTo((String) b);
+		}
+		double x = toNumber(a);
+		double y = toNumber(b);
+		if (Double.isNaN(x) || Double.isNaN(y)) {
+			return Integer.MIN_VALUE;
+		}
+		return x < y ? -1 : x > y ? 1 : 0;
+	}
+
+}
@@ -0,0 +1,204 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+
+import com.github.markusbernhardt.proxy.util.Logger;
+import com.github.markusbernhardt.proxy.util.Logger.LogLevel;
+
+/*****************************************************************************
+ * Resolver that queries the IPv4 (A) and IPv6 (AAAA) addresses of a host in
+ * parallel with the DNS provider of the JDK (JNDI). The DNS servers of the
+ * operating system are used. Names the DNS servers do not know, e.g. entries
+ * of the hosts file or plain host names that need the search domains, are
+ * resolved by the JDK resolver afterwards. The timeout applies to the whole
+ * lookup including this fallback.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public class ParallelPacDnsResolver extends JdkPacDnsResolver {
+
+	private static final Pattern IPV4_LITERAL = Pattern.compile("\\d{1,3}(\\.\\d{1,3}){3}");
+
+	/*************************************************************************
+	 * Constructor using the timeout of the system property.
+	 ************************************************************************/
+
+	public ParallelPacDnsResolver() {
+		this(getDefaultTimeout(), null);
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param timeoutMillis
+	 *            the maximum time a lookup may take, 0 for no limit.
+	 * @param executor
+	 *            the executor to run the queries on. If null a shared thread
+	 *            pool is used.
+	 ************************************************************************/
+
+	public ParallelPacDnsResolver(long timeoutMillis, ExecutorService executor) {
+		super(timeoutMillis, executor);
+	}
+
+	/*************************************************************************
+	 * resolve
+	 *
+	 * @see com.github.markusbernhardt.proxy.selector.pac.PacDnsResolver#resolve(java.lang.String)
+	 ************************************************************************/
+
+	@Override
+	public InetAddress[] resolve(final String host) throws UnknownHostException {
+		if (host == null || host.length() == 0 || isLiteral(host)) {
+			return lookup(host);
+		}
+
+		long deadline = getTimeout() > 0 ? System.currentTimeMillis() + getTimeout() : Long.MAX_VALUE;
+		Future<List<InetAddress>> ipv4 = submit(createQuery(host, "A"));
+		Future<List<InetAddress>> ipv6 = submit(createQuery(host, "AAAA"));
+
+		List<InetAddress> result = new ArrayList<InetAddress>();
+		collect(ipv4, host, deadline, result);
+		collect(ipv6, host, deadline, result);
+		if (!result.isEmpty()) {
+			return result.toArray(new InetAddress[result.size()]);
+		}
+
+		Logger.log(getClass(), LogLevel.DEBUG, "No DNS records for {0}, using JDK resolver.", host);
+		if (deadline == Long.MAX_VALUE) {
+			return lookup(host);
+		}
+		return await(submit(new Callable<InetAddress[]>() {
+			public InetAddress[] call() throws UnknownHostException {
+				return lookup(host);
+			}
+		}), host, Math.max(1, deadline - System.currentTimeMillis()));
+	}
+
+	/*************************************************************************
+	 * Waits for a query and adds its addresses to the result. Failed queries
+	 * are ignored.
+	 *
+	 * @param query
+	 *            the running query.
+	 * @param host
+	 *            the queried host.
+	 * @param deadline
+	 *            the time the lookup has to be finished.
+	 * @param result
+	 *            receives the addresses.
+	 * @throws UnknownHostException
+	 *             if the deadline has passed.
+	 ************************************************************************/
+
+	private void collect(Future<List<InetAddress>> query, String host, long deadline, List<InetAddress> result)
+	        throws UnknownHostException {
+		try {
+			long remaining = deadline == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - System.currentTimeMillis();
+			result.addAll(await(query, host, Math.max(1, remaining)));
+		} catch (UnknownHostException e) {
+			if (deadline != Long.MAX_VALUE && System.currentTimeMillis() >= deadline) {
+				throw e;
+			}
+			Logger.log(getClass(), LogLevel.DEBUG, "DNS query failed: {0}", e.getMessage());
+		}
+	}
+
+	/*************************************************************************
+	 * Creates the task for a DNS query.
+	 *
+	 * @param host
+	 *            the host to query.
+	 * @param type
+	 *            the record type, A or AAAA.
+	 * @return the task.
+	 ************************************************************************/
+
+	private Callable<List<InetAddress>> createQuery(final String host, final String type) {
+		return new Callable<List<InetAddress>>() {
+			public List<InetAddress> call() throws UnknownHostException {
+				return query(host, type);
+			}
+		};
+	}
+
+	/*************************************************************************
+	 * Queries the DNS records of the given type. Can be overwritten to use a
+	 * different DNS client.
+	 *
+	 * @param host
+	 *            the host to query.
+	 * @param type
+	 *            the record type, A or AAAA.
+	 * @return the addresses, empty if there are no records of this type.
+	 * @throws UnknownHostException
+	 *             if the query failed.
+	 ************************************************************************/
+
+	protected List<InetAddress> query(String host, String type) throws UnknownHostException {
+		Hashtable<String, String> env = new Hashtable<String, String>();
+		env.put(DirContext.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.dns.DnsContextFactory");
+		env.put(DirContext.PROVIDER_URL, "dns:");
+		if (getTimeout() > 0) {
+			env.put("com.sun.jndi.dns.timeout.initial", String.valueOf(Math.max(1, getTimeout() / 2)));
+			env.put("com.sun.jndi.dns.timeout.retries", "1");
+		}
+		List<InetAddress> result = new ArrayList<InetAddress>();
+		DirContext context = null;
+		try {
+			context = new InitialDirContext(env);
+			Attributes attributes = context.getAttributes(host, new String[] { type });
+			Attribute records = attributes.get(type);
+			if (records != null) {
+				NamingEnumeration<?> values = records.getAll();
+				while (values.hasMore()) {
+					// The values are IP literals, so this does no lookup
+					byte[] address = InetAddress.getByName(values.next().toString()).getAddress();
+					result.add(InetAddress.getByAddress(host, address));
+				}
+			}
+			return result;
+		} catch (NamingException e) {
+			UnknownHostException error = new UnknownHostException(host + ": " + e.getMessage());
+			error.initCause(e);
+			throw error;
+		} finally {
+			if (context != null) {
+				try {
+					context.close();
+				} catch (NamingException e) {
+					// Ignore
+				}
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Checks if the host is an IP address that needs no lookup.
+	 *
+	 * @param host
+	 *            the host.
+	 * @return true for IPv4 and IPv6 literals.
+	 ************************************************************************/
+
+	private static boolean isLiteral(String host) {
+		return host.indexOf(':') >= 0 || IPV4_LITERAL.matcher(host).matches();
+	}
+
+}
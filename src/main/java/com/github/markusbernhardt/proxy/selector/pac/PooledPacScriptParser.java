@@ -0,0 +1,426 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.markusbernhardt.proxy.util.Logger;
+import com.github.markusbernhardt.proxy.util.Logger.LogLevel;
+
+/*****************************************************************************
+ * PAC script parser that manages a pool of script engines. A script engine and
+ * its script methods can only be used by one thread at a time, therefore every
+ * evaluation borrows a parser from the pool and returns it afterwards.<br>
+ * New parsers are created lazily when all existing ones are busy until the
+ * maximum pool size is reached. After that callers wait for a free parser. The
+ * time spent waiting is recorded and can be queried for monitoring.<br>
+ * A script engine can not be stopped while it runs, e.g. in an endless loop.
+ * If an evaluation is given up with {@link #abandon(Thread)} its engine no
+ * longer counts against the pool size and is dropped once it returns, so a
+ * replacement is created for the next caller.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public class PooledPacScriptParser implements BatchPacScriptParser, ExpiringPacScriptParser {
+
+	// Interval in which waiting callers check for a slot freed by abandon()
+	private static final long WAIT_SLICE_MILLIS = 100;
+
+	// The pool and parser each thread currently evaluates with
+	private static final ConcurrentMap<Thread, Borrowed> borrowed = new ConcurrentHashMap<Thread, Borrowed>();
+
+	/*************************************************************************
+	 * A parser borrowed by a thread.
+	 ************************************************************************/
+
+	private static final class Borrowed {
+		final PooledPacScriptParser pool;
+		final PacScriptParser parser;
+
+		Borrowed(PooledPacScriptParser pool, PacScriptParser parser) {
+			this.pool = pool;
+			this.parser = parser;
+		}
+	}
+
+	private final PacScriptSource source;
+	private final PacScriptParserFactory engineFactory;
+	private final int maxSize;
+	private final BlockingQueue<PacScriptParser> idleParsers;
+	private final AtomicInteger size;
+
+	private final AtomicLong evaluations;
+	private final AtomicLong waits;
+	private final AtomicLong totalWaitNanos;
+	private final AtomicLong maxWaitNanos;
+	private final AtomicLong abandoned;
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param source
+	 *            the source for the PAC script.
+	 * @param maxSize
+	 *            the maximum number of script engines to create.
+	 * @throws ProxyEvaluationException
+	 *             if the first script engine cannot be set up.
+	 ************************************************************************/
+
+	public PooledPacScriptParser(PacScriptSource source, int maxSize) throws ProxyEvaluationException {
+		this(source, maxSize, null);
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param source
+	 *            the source for the PAC script.
+	 * @param maxSize
+	 *            the maximum number of script engines to create.
+	 * @param engineFactory
+	 *            creates the parsers in the pool. Each of them is used by one
+	 *            thread at a time. Null to use a {@link JavaxPacScriptParser}.
+	 * @throws ProxyEvaluationException
+	 *             if the first script engine cannot be set up.
+	 ************************************************************************/
+
+	public PooledPacScriptParser(PacScriptSource source, int maxSize, PacScriptParserFactory engineFactory)
+	        throws ProxyEvaluationException {
+		super();
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("Pool size must be at least 1.");
+		}
+		this.source = source;
+		this.engineFactory = engineFactory;
+		this.maxSize = maxSize;
+		this.idleParsers = new LinkedBlockingQueue<PacScriptParser>();
+		this.size = new AtomicInteger();
+		this.evaluations = new AtomicLong();
+		this.waits = new AtomicLong();
+		this.totalWaitNanos = new AtomicLong();
+		this.maxWaitNanos = new AtomicLong();
+		this.abandoned = new AtomicLong();
+
+		// Create the first engine eagerly to report setup errors early.
+		this.size.incrementAndGet();
+		this.idleParsers.add(createParser());
+	}
+
+	/*************************************************************************
+	 * Creates a new parser with its own script engine and script methods. Can
+	 * be overwritten to use a different parser implementation.
+	 *
+	 * @return a new parser.
+	 * @throws ProxyEvaluationException
+	 *             on setup error.
+	 ************************************************************************/
+
+	protected PacScriptParser createParser() throws ProxyEvaluationException {
+		if (this.engineFactory != null) {
+			return this.engineFactory.createParser(this.source, 1);
+		}
+		return new JavaxPacScriptParser(this.source);
+	}
+
+	/***************************************************************************
+	 * Gets the source of the PAC script used by this parser.
+	 *
+	 * @return a PacScriptSource.
+	 **************************************************************************/
+
+	public PacScriptSource getScriptSource() {
+		return this.source;
+	}
+
+	/*************************************************************************
+	 * Evaluates the given URL and host against the PAC script with a parser
+	 * borrowed from the pool.
+	 *
+	 * @param url
+	 *            the URL to evaluate.
+	 * @param host
+	 *            the host name part of the URL.
+	 * @return the script result.
+	 * @throws ProxyEvaluationException
+	 *             on execution error.
+	 ************************************************************************/
+
+	public String evaluate(String url, String host) throws ProxyEvaluationException {
+		return evaluate(url, host, null);
+	}
+
+	/*************************************************************************
+	 * Evaluates the given URL and host with a parser borrowed from the pool
+	 * and reports how long the result is valid.
+	 *
+	 * @param url
+	 *            the URL to evaluate.
+	 * @param host
+	 *            the host name part of the URL.
+	 * @param validFor
+	 *            receives the validity of the result in milliseconds, may be
+	 *            null.
+	 * @return the script result.
+	 * @throws ProxyEvaluationException
+	 *             on execution error.
+	 ************************************************************************/
+
+	public String evaluate(String url, String host, long[] validFor) throws ProxyEvaluationException {
+		PacScriptParser parser = borrowParser();
+		try {
+			return JavaxPacScriptParser.evaluate(parser, url, host, validFor);
+		} finally {
+			returnParser(parser);
+		}
+	}
+
+	/*************************************************************************
+	 * Evaluates all given URIs with one parser borrowed from the pool. If the
+	 * parser supports batches the script engine is entered only once.
+	 *
+	 * @param uris
+	 *            the URIs to evaluate.
+	 * @return the script results in the order of the URIs.
+	 * @throws ProxyEvaluationException
+	 *             on execution error.
+	 ************************************************************************/
+
+	public List<String> evaluateAll(List<URI> uris) throws ProxyEvaluationException {
+		PacScriptParser parser = borrowParser();
+		try {
+			if (parser instanceof BatchPacScriptParser) {
+				return ((BatchPacScriptParser) parser).evaluateAll(uris);
+			}
+			List<String> results = new ArrayList<String>(uris.size());
+			for (URI uri : uris) {
+				results.add(parser.evaluate(uri.toString(), uri.getHost()));
+			}
+			return results;
+		} finally {
+			returnParser(parser);
+		}
+	}
+
+	/*************************************************************************
+	 * Takes an idle parser from the pool. Creates a new one if none is idle
+	 * and the pool is not exhausted, otherwise waits for one to be returned.
+	 *
+	 * @return a parser for exclusive use by the current thread.
+	 * @throws ProxyEvaluationException
+	 *             on setup error or if interrupted while waiting.
+	 ************************************************************************/
+
+	private PacScriptParser borrowParser() throws ProxyEvaluationException {
+		this.evaluations.incrementAndGet();
+		PacScriptParser parser = this.idleParsers.poll();
+		if (parser == null) {
+			parser = createOrWait();
+		}
+		borrowed.put(Thread.currentThread(), new Borrowed(this, parser));
+		return parser;
+	}
+
+	/*************************************************************************
+	 * Creates a new parser if the pool is not exhausted, otherwise waits for
+	 * one to be returned or for a slot freed by an abandoned evaluation.
+	 *
+	 * @return a parser for exclusive use by the current thread.
+	 * @throws ProxyEvaluationException
+	 *             on setup error or if interrupted while waiting.
+	 ************************************************************************/
+
+	private PacScriptParser createOrWait() throws ProxyEvaluationException {
+		long start = 0;
+		while (true) {
+			if (reserveSlot()) {
+				try {
+					Logger.log(getClass(), LogLevel.DEBUG, "Creating PAC script engine {0} of {1}.", this.size.get(),
+					        this.maxSize);
+					return createParser();
+				} catch (ProxyEvaluationException e) {
+					this.size.decrementAndGet();
+					throw e;
+				}
+			}
+			if (start == 0) {
+				start = System.nanoTime();
+			}
+			PacScriptParser parser;
+			try {
+				parser = this.idleParsers.poll(WAIT_SLICE_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ProxyEvaluationException("Interrupted while waiting for a PAC script engine.", e);
+			}
+			if (parser != null) {
+				recordWait(System.nanoTime() - start);
+				return parser;
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Returns a parser to the pool. The parser of an abandoned evaluation is
+	 * dropped instead, its slot was already freed.
+	 *
+	 * @param parser
+	 *            the parser borrowed by the current thread.
+	 ************************************************************************/
+
+	private void returnParser(PacScriptParser parser) {
+		Thread thread = Thread.currentThread();
+		Borrowed entry = borrowed.get(thread);
+		if (entry != null && entry.parser == parser && borrowed.remove(thread, entry)) {
+			this.idleParsers.add(parser);
+		} else {
+			Logger.log(getClass(), LogLevel.DEBUG, "Dropping PAC script engine of an abandoned evaluation.");
+		}
+	}
+
+	/*************************************************************************
+	 * Gives up the evaluation running on the given thread, e.g. after a
+	 * timeout. The script engine it uses no longer counts against the size of
+	 * its pool, so a new one can be created, and it is dropped when the
+	 * evaluation eventually returns.
+	 *
+	 * @param thread
+	 *            the thread running the evaluation.
+	 * @return true if the thread was evaluating with a pooled engine.
+	 ************************************************************************/
+
+	static boolean abandon(Thread thread) {
+		Borrowed entry = borrowed.remove(thread);
+		if (entry == null) {
+			return false;
+		}
+		entry.pool.size.decrementAndGet();
+		entry.pool.abandoned.incrementAndGet();
+		Logger.log(PooledPacScriptParser.class, LogLevel.WARNING,
+		        "Replacing PAC script engine stuck in an evaluation on {0}.", thread.getName());
+		return true;
+	}
+
+	/*************************************************************************
+	 * Reserves a slot for a new parser if the pool is not yet full.
+	 *
+	 * @return true if a new parser may be created.
+	 ************************************************************************/
+
+	private boolean reserveSlot() {
+		while (true) {
+			int current = this.size.get();
+			if (current >= this.maxSize) {
+				return false;
+			}
+			if (this.size.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Records the time a caller had to wait for a parser.
+	 *
+	 * @param nanos
+	 *            the wait time in nanoseconds.
+	 ************************************************************************/
+
+	private void recordWait(long nanos) {
+		this.waits.incrementAndGet();
+		this.totalWaitNanos.addAndGet(nanos);
+		long max = this.maxWaitNanos.get();
+		while (nanos > max && !this.maxWaitNanos.compareAndSet(max, nanos)) {
+			max = this.maxWaitNanos.get();
+		}
+	}
+
+	/*************************************************************************
+	 * Gets the maximum number of script engines in this pool.
+	 *
+	 * @return the maximum pool size.
+	 ************************************************************************/
+
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+
+	/*************************************************************************
+	 * Gets the number of script engines created so far.
+	 *
+	 * @return the current pool size.
+	 ************************************************************************/
+
+	public int getSize() {
+		return this.size.get();
+	}
+
+	/*************************************************************************
+	 * Gets the number of evaluations requested from this pool.
+	 *
+	 * @return the number of evaluations.
+	 ************************************************************************/
+
+	public long getEvaluationCount() {
+		return this.evaluations.get();
+	}
+
+	/*************************************************************************
+	 * Gets the number of evaluations that had to wait for a free engine.
+	 *
+	 * @return the number of waits.
+	 ************************************************************************/
+
+	public long getWaitCount() {
+		return this.waits.get();
+	}
+
+	/*************************************************************************
+	 * Gets the accumulated time evaluations have waited for a free engine.
+	 *
+	 * @return the total queue wait time in nanoseconds.
+	 ************************************************************************/
+
+	public long getTotalWaitTimeNanos() {
+		return this.totalWaitNanos.get();
+	}
+
+	/*************************************************************************
+	 * Gets the longest time a single evaluation waited for a free engine.
+	 *
+	 * @return the maximum queue wait time in nanoseconds.
+	 ************************************************************************/
+
+	public long getMaxWaitTimeNanos() {
+		return this.maxWaitNanos.get();
+	}
+
+	/*************************************************************************
+	 * Gets the number of script engines dropped because their evaluation was
+	 * abandoned.
+	 *
+	 * @return the number of abandoned engines.
+	 ************************************************************************/
+
+	public long getAbandonedCount() {
+		return this.abandoned.get();
+	}
+
+	/***************************************************************************
+	 * @see java.lang.Object#toString()
+	 **************************************************************************/
+	@Override
+	public String toString() {
+		return "PooledPacScriptParser [size=" + getSize() + "/" + this.maxSize + ", evaluations="
+		        + getEvaluationCount() + ", waits=" + getWaitCount() + ", totalWaitMillis="
+		        + getTotalWaitTimeNanos() / 1000000 + "]";
+	}
+
+}
@@ -0,0 +1,233 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import java.io.IOException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Function;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Program;
+import com.github.markusbernhardt.proxy.util.Logger;
+import com.github.markusbernhardt.proxy.util.Logger.LogLevel;
+
+/*****************************************************************************
+ * PAC parser that evaluates the script directly in Java without a JavaScript
+ * engine. It understands the subset of JavaScript used by most PAC files:
+ * if / else chains, variables, string operations and the predefined PAC
+ * functions from {@link ScriptMethods}.<br>
+ * If the script uses anything else the evaluation is delegated to a
+ * {@link JavaxPacScriptParser}, which is only created in this case.<br>
+ * The parser is thread safe, the parsed script is shared by all threads.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public class PureJavaPacScriptParser implements ExpiringPacScriptParser {
+
+	private final PacScriptSource source;
+	private final PacScriptMethods methods;
+	private final int fallbackPoolSize;
+
+	private volatile LoadedScript loaded;
+	private final Lock reloadLock = new ReentrantLock();
+	private PacScriptParser fallback;
+
+	/*************************************************************************
+	 * The parsed script together with its initialized global variables.
+	 ************************************************************************/
+
+	private static final class LoadedScript {
+		final String content;
+		final Function entry;
+		final Object[] globals;
+
+		LoadedScript(String content, Function entry, Object[] globals) {
+			this.content = content;
+			this.entry = entry;
+			this.globals = globals;
+		}
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param source
+	 *            the source for the PAC script.
+	 ************************************************************************/
+
+	public PureJavaPacScriptParser(PacScriptSource source) {
+		this(source, 1);
+	}
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param source
+	 *            the source for the PAC script.
+	 * @param fallbackPoolSize
+	 *            the number of script engines to use if the script cannot be
+	 *            evaluated in Java.
+	 ************************************************************************/
+
+	public PureJavaPacScriptParser(PacScriptSource source, int fallbackPoolSize) {
+		super();
+		this.source = source;
+		this.methods = new PacScriptMethods();
+		this.fallbackPoolSize = fallbackPoolSize;
+	}
+
+	/***************************************************************************
+	 * Gets the source of the PAC script used by this parser.
+	 *
+	 * @return a PacScriptSource.
+	 **************************************************************************/
+
+	public PacScriptSource getScriptSource() {
+		return this.source;
+	}
+
+	/*************************************************************************
+	 * Evaluates the given URL and host against the PAC script.
+	 *
+	 * @param url
+	 *            the URL to evaluate.
+	 * @param host
+	 *            the host name part of the URL.
+	 * @return the script result.
+	 * @throws ProxyEvaluationException
+	 *             on execution error.
+	 ************************************************************************/
+
+	public String evaluate(String url, String host) throws ProxyEvaluationException {
+		return evaluate(url, host, null);
+	}
+
+	/*************************************************************************
+	 * Evaluates the given URL and host against the PAC script and reports how
+	 * long the result is valid.
+	 *
+	 * @param url
+	 *            the URL to evaluate.
+	 * @param host
+	 *            the host name part of the URL.
+	 * @param validFor
+	 *            receives the validity of the result in milliseconds, may be
+	 *            null.
+	 * @return the script result.
+	 * @throws ProxyEvaluationException
+	 *             on execution error.
+	 ************************************************************************/
+
+	public String evaluate(String url, String host, long[] validFor) throws ProxyEvaluationException {
+		LoadedScript script;
+		try {
+			script = loadScript();
+		} catch (IOException e) {
+			throw new ProxyEvaluationException("Error while reading PAC script: " + e.getMessage(), e);
+		}
+		if (script == null) {
+			return JavaxPacScriptParser.evaluate(getFallback(), url, host, validFor);
+		}
+		this.methods.beginEvaluation();
+		try {
+			Object result = script.entry.invoke(new Object[] { url, host }, script.globals, this.methods);
+			return result == null ? null : PacValues.toString(result);
+		} finally {
+			long valid = this.methods.endEvaluation();
+			if (validFor != null) {
+				validFor[0] = valid;
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Checks if the current script is evaluated in Java.
+	 *
+	 * @return true if no JavaScript engine is needed, false if the script uses
+	 *         unsupported constructs.
+	 * @throws ProxyEvaluationException
+	 *             if the script cannot be read.
+	 ************************************************************************/
+
+	public boolean isScriptSupported() throws ProxyEvaluationException {
+		try {
+			return loadScript() != null;
+		} catch (IOException e) {
+			throw new ProxyEvaluationException("Error while reading PAC script: " + e.getMessage(), e);
+		}
+	}
+
+	/*************************************************************************
+	 * Parses the script if its content has changed since the last call. While
+	 * one thread parses a changed script the others keep using the previous
+	 * one, so lookups do not wait for a reload.
+	 *
+	 * @return the parsed script or null if the fallback has to be used.
+	 * @throws IOException
+	 *             on script read error.
+	 ************************************************************************/
+
+	private LoadedScript loadScript() throws IOException {
+		String content = this.source.getScriptContent();
+		LoadedScript script = this.loaded;
+		if (script != null && (script.content == content || script.content.equals(content))) {
+			return script.entry == null ? null : script;
+		}
+		if (script == null) {
+			this.reloadLock.lock();
+		} else if (!this.reloadLock.tryLock()) {
+			return script.entry == null ? null : script;
+		}
+		try {
+			script = this.loaded;
+			if (script == null || !script.content.equals(content)) {
+				script = parse(content);
+				this.loaded = script;
+			}
+		} finally {
+			this.reloadLock.unlock();
+		}
+		return script.entry == null ? null : script;
+	}
+
+	/*************************************************************************
+	 * Parses the script and runs its top level statements.
+	 *
+	 * @param content
+	 *            the script.
+	 * @return the loaded script. The entry function is null if the script
+	 *         needs to be evaluated by a JavaScript engine.
+	 ************************************************************************/
+
+	private LoadedScript parse(String content) {
+		try {
+			Program program = PacSyntaxParser.parse(content);
+			Function entry = program.functions.get(JavaxPacScriptParser.ENTRY_FUNCTION);
+			if (entry == null) {
+				throw new ProxyEvaluationException("PAC script entry point FindProxyForURL not found.");
+			}
+			Object[] globals = program.initGlobals(this.methods);
+			Logger.log(getClass(), LogLevel.DEBUG, "PAC script is evaluated in Java.");
+			return new LoadedScript(content, entry, globals);
+		} catch (ProxyEvaluationException e) {
+			Logger.log(getClass(), LogLevel.INFO, "PAC script not supported by Java evaluator ({0}). "
+			        + "Falling back to JavaScript engine.", e.getMessage());
+			return new LoadedScript(content, null, null);
+		}
+	}
+
+	/*************************************************************************
+	 * Gets the JavaScript engine based parser and creates it on first use.
+	 *
+	 * @return the fallback parser.
+	 * @throws ProxyEvaluationException
+	 *             if the engine cannot be set up.
+	 ************************************************************************/
+
+	private synchronized PacScriptParser getFallback() throws ProxyEvaluationException {
+		if (this.fallback == null) {
+			this.fallback = new PooledPacScriptParser(this.source, this.fallbackPoolSize);
+		}
+		return this.fallback;
+	}
+
+}
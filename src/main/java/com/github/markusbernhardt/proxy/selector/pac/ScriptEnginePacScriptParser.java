@@ -0,0 +1,247 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.script.Invocable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+
+import com.github.markusbernhardt.proxy.util.Logger;
+import com.github.markusbernhardt.proxy.util.Logger.LogLevel;
+
+/*****************************************************************************
+ * PAC parser using a plain javax.script engine, e.g. Nashorn or GraalJS,
+ * without the sandbox of the {@link JavaxPacScriptParser}. This avoids the
+ * overhead of the sandbox, but the script has full access to the JVM. Use it
+ * only for PAC scripts from a trusted source.<br>
+ * Like the sandboxed parser an instance must only be used by one thread at a
+ * time, use a {@link PooledPacScriptParser} for parallel evaluations.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public class ScriptEnginePacScriptParser implements BatchPacScriptParser, ExpiringPacScriptParser {
+
+	private static final String NASHORN_FACTORY = "jdk.nashorn.api.scripting.NashornScriptEngineFactory";
+
+	private final PacScriptSource source;
+	private final ScriptEngine engine;
+
+	// The script content that is currently loaded into the engine.
+	private volatile String loadedScript;
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param source
+	 *            the source for the PAC script.
+	 * @param engineName
+	 *            the name of the javax.script engine, e.g. "nashorn".
+	 * @throws ProxyEvaluationException
+	 *             if the engine is not available or cannot be set up.
+	 ************************************************************************/
+
+	public ScriptEnginePacScriptParser(PacScriptSource source, String engineName) throws ProxyEvaluationException {
+		super();
+		this.source = source;
+		this.engine = setupEngine(engineName);
+	}
+
+	/*************************************************************************
+	 * Checks if a javax.script engine with the given name is available.
+	 *
+	 * @param engineName
+	 *            the name of the engine.
+	 * @return true if the engine can be created.
+	 ************************************************************************/
+
+	public static boolean isEngineAvailable(String engineName) {
+		try {
+			for (ScriptEngineFactory factory : new ScriptEngineManager().getEngineFactories()) {
+				if (factory.getNames().contains(engineName)) {
+					return true;
+				}
+			}
+			return false;
+		} catch (RuntimeException e) {
+			return false;
+		} catch (LinkageError e) {
+			return false;
+		}
+	}
+
+	/*************************************************************************
+	 * Creates the engine and adds aliases for the functions defined in
+	 * ScriptMethods.
+	 *
+	 * @param engineName
+	 *            the name of the engine.
+	 * @return the engine.
+	 * @throws ProxyEvaluationException
+	 *             on error.
+	 ************************************************************************/
+
+	private ScriptEngine setupEngine(String engineName) throws ProxyEvaluationException {
+		ScriptEngine engine = createEngine(engineName);
+		if (engine == null) {
+			throw new ProxyEvaluationException("Script engine " + engineName + " not available.");
+		}
+		if (!(engine instanceof Invocable)) {
+			throw new ProxyEvaluationException("Script engine " + engineName + " cannot invoke functions.");
+		}
+		// GraalJS needs explicit permission to call the script methods object
+		engine.getBindings(ScriptContext.ENGINE_SCOPE).put("polyglot.js.allowHostAccess", Boolean.TRUE);
+		PacScriptFunctions functions = new PacScriptFunctions(new PacScriptMethods());
+		engine.put(JavaxPacScriptParser.SCRIPT_METHODS_OBJECT, functions);
+		engine.put(JavaxPacScriptParser.BEGIN_HOOK, functions.getBeginHook());
+		engine.put(JavaxPacScriptParser.END_HOOK, functions.getEndHook());
+		try {
+			engine.eval(JavaxPacScriptParser.getPrelude());
+		} catch (ScriptException e) {
+			Logger.log(getClass(), LogLevel.ERROR, "JS evaluation error when creating the PAC functions.", e);
+			throw new ProxyEvaluationException("Error setting up script engine", e);
+		}
+		return engine;
+	}
+
+	/*************************************************************************
+	 * Creates the engine. Nashorn gets the options of
+	 * {@link JavaxPacScriptParser#getEngineOptions()}, e.g. to enable its
+	 * persistent code cache. The Nashorn API is called by reflection, as it is
+	 * missing in newer Java versions.
+	 *
+	 * @param engineName
+	 *            the name of the engine.
+	 * @return the engine, null if it is not available.
+	 ************************************************************************/
+
+	private ScriptEngine createEngine(String engineName) {
+		ScriptEngineManager manager = new ScriptEngineManager();
+		String[] options = JavaxPacScriptParser.getEngineOptions();
+		if (options.length > 0) {
+			for (ScriptEngineFactory factory : manager.getEngineFactories()) {
+				if (factory.getNames().contains(engineName)
+				        && NASHORN_FACTORY.equals(factory.getClass().getName())) {
+					try {
+						return (ScriptEngine) factory.getClass().getMethod("getScriptEngine", String[].class)
+						        .invoke(factory, (Object) options);
+					} catch (Exception e) {
+						Logger.log(getClass(), LogLevel.WARNING, "Cannot set Nashorn options: {0}", e);
+					}
+				}
+			}
+		}
+		return manager.getEngineByName(engineName);
+	}
+
+	/***************************************************************************
+	 * Gets the source of the PAC script used by this parser.
+	 *
+	 * @return a PacScriptSource.
+	 **************************************************************************/
+
+	public PacScriptSource getScriptSource() {
+		return this.source;
+	}
+
+	/*************************************************************************
+	 * Evaluates the given URL and host against the PAC script.
+	 *
+	 * @param url
+	 *            the URL to evaluate.
+	 * @param host
+	 *            the host name part of the URL.
+	 * @return the script result.
+	 * @throws ProxyEvaluationException
+	 *             on execution error.
+	 ************************************************************************/
+
+	public String evaluate(String url, String host) throws ProxyEvaluationException {
+		return evaluate(url, host, null);
+	}
+
+	/*************************************************************************
+	 * Evaluates the given URL and host against the PAC script and reports how
+	 * long the result is valid.
+	 *
+	 * @param url
+	 *            the URL to evaluate.
+	 * @param host
+	 *            the host name part of the URL.
+	 * @param validFor
+	 *            receives the validity of the result in milliseconds, may be
+	 *            null.
+	 * @return the script result.
+	 * @throws ProxyEvaluationException
+	 *             on execution error.
+	 ************************************************************************/
+
+	public String evaluate(String url, String host, long[] validFor) throws ProxyEvaluationException {
+		try {
+			loadScript();
+			Object result = ((Invocable) this.engine).invokeFunction(JavaxPacScriptParser.EVALUATE_FUNCTION, url,
+			        host, validFor);
+			return result == null ? null : result.toString();
+		} catch (Exception e) {
+			Logger.log(getClass(), LogLevel.ERROR, "JS evaluation error.", e);
+			throw new ProxyEvaluationException("Error while executing PAC script: " + e.getMessage(), e);
+		}
+	}
+
+	/*************************************************************************
+	 * Evaluates all given URIs with a single call into the script engine.
+	 *
+	 * @param uris
+	 *            the URIs to evaluate.
+	 * @return the script results in the order of the URIs.
+	 * @throws ProxyEvaluationException
+	 *             on execution error.
+	 ************************************************************************/
+
+	public List<String> evaluateAll(List<URI> uris) throws ProxyEvaluationException {
+		String[] urls = new String[uris.size()];
+		String[] hosts = new String[uris.size()];
+		String[] results = new String[uris.size()];
+		JavaxPacScriptParser.splitUris(uris, urls, hosts);
+		try {
+			loadScript();
+			((Invocable) this.engine).invokeFunction(JavaxPacScriptParser.BATCH_FUNCTION, urls, hosts, results);
+			return Arrays.asList(results);
+		} catch (Exception e) {
+			Logger.log(getClass(), LogLevel.ERROR, "JS evaluation error.", e);
+			throw new ProxyEvaluationException("Error while executing PAC script: " + e.getMessage(), e);
+		}
+	}
+
+	/*************************************************************************
+	 * Loads the PAC script into the engine if its content has changed since
+	 * the last call.
+	 *
+	 * @throws IOException
+	 *             on script read error.
+	 * @throws ScriptException
+	 *             on script evaluation error.
+	 ************************************************************************/
+
+	private void loadScript() throws IOException, ScriptException {
+		String script = this.source.getScriptContent();
+		String loaded = this.loadedScript;
+		if (loaded == script || (loaded != null && loaded.equals(script))) {
+			return;
+		}
+		synchronized (this) {
+			if (!script.equals(this.loadedScript)) {
+				Logger.log(getClass(), LogLevel.DEBUG, "Loading PAC script into engine.");
+				this.engine.eval(script);
+				this.loadedScript = script;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,246 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*****************************************************************************
+ * Compiled shell expression as used by the PAC function
+ * <code>shExpMatch</code>. A <code>*</code> matches any sequence of
+ * characters, a <code>?</code> matches exactly one character.<br>
+ * The pattern is split into the literal segments between the stars once.
+ * Patterns without <code>?</code> and with at most two stars are matched with
+ * plain <code>equals</code>, <code>startsWith</code>, <code>endsWith</code>
+ * or <code>indexOf</code> calls. For other patterns every segment is searched
+ * once from left to right, there is no backtracking. Matching does not
+ * allocate.<br>
+ * Compiled expressions are kept in a bounded cache keyed by the pattern, as
+ * PAC scripts use the same few patterns over and over.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+final class ShellExpression {
+
+	private static final int MAX_CACHE_SIZE = 1000;
+
+	private static final ConcurrentMap<String, ShellExpression> CACHE = new ConcurrentHashMap<String, ShellExpression>();
+
+	private enum Kind {
+		EXACT, PREFIX, SUFFIX, CONTAINS, PREFIX_SUFFIX, ANY, GENERAL
+	}
+
+	private final Kind kind;
+	private final String[] segments;
+	private final int minLength;
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param pattern
+	 *            the shell expression.
+	 ************************************************************************/
+
+	private ShellExpression(String pattern) {
+		super();
+		List<String> parts = new ArrayList<String>();
+		int start = 0;
+		int star;
+		while ((star = pattern.indexOf('*', start)) >= 0) {
+			parts.add(pattern.substring(start, star));
+			start = star + 1;
+		}
+		parts.add(pattern.substring(start));
+
+		// Consecutive stars are the same as one star
+		List<String> merged = new ArrayList<String>();
+		for (int i = 0; i < parts.size(); i++) {
+			if (i == 0 || i == parts.size() - 1 || parts.get(i).length() > 0) {
+				merged.add(parts.get(i));
+			}
+		}
+		this.segments = merged.toArray(new String[merged.size()]);
+
+		int length = 0;
+		for (String segment : this.segments) {
+			length += segment.length();
+		}
+		this.minLength = length;
+		this.kind = pattern.indexOf('?') >= 0 ? Kind.GENERAL : getKind(this.segments);
+	}
+
+	/*************************************************************************
+	 * Determines the fast path for a pattern without question marks.
+	 *
+	 * @param segments
+	 *            the literal segments between the stars.
+	 * @return the kind of the pattern.
+	 ************************************************************************/
+
+	private static Kind getKind(String[] segments) {
+		String first = segments[0];
+		String last = segments[segments.length - 1];
+		switch (segments.length) {
+		case 1:
+			return Kind.EXACT;
+		case 2:
+			if (first.length() == 0 && last.length() == 0) {
+				return Kind.ANY;
+			}
+			if (last.length() == 0) {
+				return Kind.PREFIX;
+			}
+			return first.length() == 0 ? Kind.SUFFIX : Kind.PREFIX_SUFFIX;
+		case 3:
+			if (first.length() == 0 && last.length() == 0) {
+				return Kind.CONTAINS;
+			}
+			return Kind.GENERAL;
+		default:
+			return Kind.GENERAL;
+		}
+	}
+
+	/*************************************************************************
+	 * Gets the compiled form of the given pattern from the cache or compiles
+	 * it.
+	 *
+	 * @param pattern
+	 *            the shell expression.
+	 * @return the compiled expression.
+	 ************************************************************************/
+
+	static ShellExpression compile(String pattern) {
+		ShellExpression expression = CACHE.get(pattern);
+		if (expression == null) {
+			expression = new ShellExpression(pattern);
+			if (CACHE.size() >= MAX_CACHE_SIZE) {
+				// Patterns built at runtime, start over instead of growing
+				CACHE.clear();
+			}
+			CACHE.put(pattern, expression);
+		}
+		return expression;
+	}
+
+	/*************************************************************************
+	 * Checks if the given string matches this expression.
+	 *
+	 * @param str
+	 *            the string to check.
+	 * @return true if the whole string matches.
+	 ************************************************************************/
+
+	boolean matches(String str) {
+		if (str.length() < this.minLength) {
+			return false;
+		}
+		String[] s = this.segments;
+		switch (this.kind) {
+		case EXACT:
+			return str.equals(s[0]);
+		case ANY:
+			return true;
+		case PREFIX:
+			return str.startsWith(s[0]);
+		case SUFFIX:
+			return str.endsWith(s[1]);
+		case PREFIX_SUFFIX:
+			return str.startsWith(s[0]) && str.endsWith(s[1]);
+		case CONTAINS:
+			return str.indexOf(s[1]) >= 0;
+		default:
+			return matchesGeneral(str);
+		}
+	}
+
+	/*************************************************************************
+	 * Matches patterns with question marks or many stars. The first segment
+	 * has to match at the start, the last one at the end and the segments in
+	 * between are searched from left to right. Taking the leftmost match of
+	 * each segment is always correct, as it leaves the most room for the
+	 * following ones.
+	 *
+	 * @param str
+	 *            the string to check.
+	 * @return true if the whole string matches.
+	 ************************************************************************/
+
+	private boolean matchesGeneral(String str) {
+		String[] s = this.segments;
+		String first = s[0];
+		if (s.length == 1) {
+			return str.length() == first.length() && regionMatches(str, 0, first);
+		}
+		String last = s[s.length - 1];
+		int end = str.length() - last.length();
+		if (!regionMatches(str, 0, first) || !regionMatches(str, end, last)) {
+			return false;
+		}
+		int pos = first.length();
+		for (int i = 1; i < s.length - 1; i++) {
+			int found = indexOf(str, s[i], pos, end);
+			if (found < 0) {
+				return false;
+			}
+			pos = found + s[i].length();
+		}
+		return true;
+	}
+
+	/*************************************************************************
+	 * Finds the first occurrence of a segment.
+	 *
+	 * @param str
+	 *            the string to search.
+	 * @param segment
+	 *            the segment, may contain question marks.
+	 * @param from
+	 *            the first index to check.
+	 * @param end
+	 *            the index the segment has to end before.
+	 * @return the index or -1 if not found.
+	 ************************************************************************/
+
+	private static int indexOf(String str, String segment, int from, int end) {
+		int limit = end - segment.length();
+		if (segment.indexOf('?') < 0) {
+			int found = str.indexOf(segment, from);
+			return found <= limit ? found : -1;
+		}
+		for (int i = from; i <= limit; i++) {
+			if (regionMatches(str, i, segment)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/*************************************************************************
+	 * Checks if the segment matches the string at the given offset. A question
+	 * mark in the segment matches any character.
+	 *
+	 * @param str
+	 *            the string.
+	 * @param offset
+	 *            the position in the string.
+	 * @param segment
+	 *            the segment.
+	 * @return true if it matches.
+	 ************************************************************************/
+
+	private static boolean regionMatches(String str, int offset, String segment) {
+		if (offset < 0 || offset + segment.length() > str.length()) {
+			return false;
+		}
+		for (int i = 0; i < segment.length(); i++) {
+			char c = segment.charAt(i);
+			if (c != '?' && c != str.charAt(offset + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,147 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import com.github.markusbernhardt.proxy.util.Logger;
+import com.github.markusbernhardt.proxy.util.Logger.LogLevel;
+
+/*****************************************************************************
+ * The PAC script parser backends shipped with this library.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+enum StandardPacScriptParserFactory implements PacScriptParserFactory {
+
+	/**
+	 * Nashorn in the delight-nashorn-sandbox. Safe for untrusted scripts.
+	 */
+	SANDBOX(PacProxySelector.ENGINE_JAVAX) {
+		public boolean isAvailable() {
+			return ScriptEnginePacScriptParser.isEngineAvailable("nashorn");
+		}
+
+		public PacScriptParser createParser(PacScriptSource source, int enginePoolSize)
+		        throws ProxyEvaluationException {
+			return new PooledPacScriptParser(source, enginePoolSize);
+		}
+	},
+
+	/**
+	 * Plain javax.script Nashorn engine without sandbox. Only used for scripts
+	 * from a {@link TrustedPacScriptSource}, others run in the sandbox.
+	 */
+	NASHORN(PacProxySelector.ENGINE_NASHORN) {
+		public boolean isAvailable() {
+			return ScriptEnginePacScriptParser.isEngineAvailable("nashorn");
+		}
+
+		public PacScriptParser createParser(PacScriptSource source, int enginePoolSize)
+		        throws ProxyEvaluationException {
+			return createUnsandboxed(source, enginePoolSize, "nashorn");
+		}
+	},
+
+	/**
+	 * GraalJS through javax.script, if it is on the class path. Only used for
+	 * scripts from a {@link TrustedPacScriptSource}, others run in the sandbox.
+	 */
+	GRAALJS(PacProxySelector.ENGINE_GRAALJS) {
+		public boolean isAvailable() {
+			return ScriptEnginePacScriptParser.isEngineAvailable("graal.js");
+		}
+
+		public PacScriptParser createParser(PacScriptSource source, int enginePoolSize)
+		        throws ProxyEvaluationException {
+			return createUnsandboxed(source, enginePoolSize, "graal.js");
+		}
+	},
+
+	/**
+	 * Evaluates the script in Java, see {@link PureJavaPacScriptParser}.
+	 */
+	JAVA(PacProxySelector.ENGINE_JAVA) {
+		public boolean isAvailable() {
+			return true;
+		}
+
+		public PacScriptParser createParser(PacScriptSource source, int enginePoolSize) {
+			return new PureJavaPacScriptParser(source, enginePoolSize);
+		}
+	},
+
+	/**
+	 * Compiles the script to a Java class, see
+	 * {@link CompiledPacScriptParser}.
+	 */
+	COMPILED(PacProxySelector.ENGINE_COMPILED) {
+		public boolean isAvailable() {
+			return PacScriptCompiler.isAvailable();
+		}
+
+		public PacScriptParser createParser(PacScriptSource source, int enginePoolSize) {
+			return new CompiledPacScriptParser(source, enginePoolSize);
+		}
+	};
+
+	private final String name;
+
+	private StandardPacScriptParserFactory(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	/*************************************************************************
+	 * Creates a pool of plain javax.script engines for a trusted script. An
+	 * untrusted script, e.g. one found by WPAD, gets full access to the JVM in
+	 * such an engine, so it is evaluated in the sandbox instead.
+	 *
+	 * @param source
+	 *            the source of the script.
+	 * @param enginePoolSize
+	 *            the maximum number of engines.
+	 * @param engineName
+	 *            the name of the javax.script engine.
+	 * @return the parser.
+	 * @throws ProxyEvaluationException
+	 *             on error.
+	 ************************************************************************/
+
+	private static PacScriptParser createUnsandboxed(PacScriptSource source, int enginePoolSize, String engineName)
+	        throws ProxyEvaluationException {
+		if (!TrustedPacScriptSource.isTrusted(source)) {
+			Logger.log(StandardPacScriptParserFactory.class, LogLevel.WARNING,
+			        "PAC script {0} is not trusted, evaluating it in the sandbox instead of {1}.", source, engineName);
+			return new PooledPacScriptParser(source, enginePoolSize);
+		}
+		return new PooledPacScriptParser(source, enginePoolSize, new ScriptEngineFactory(engineName));
+	}
+
+	/*************************************************************************
+	 * Creates the single threaded parsers for a pool of plain javax.script
+	 * engines.
+	 ************************************************************************/
+
+	private static final class ScriptEngineFactory implements PacScriptParserFactory {
+		private final String engineName;
+
+		ScriptEngineFactory(String engineName) {
+			this.engineName = engineName;
+		}
+
+		public String getName() {
+			return this.engineName;
+		}
+
+		public boolean isAvailable() {
+			return ScriptEnginePacScriptParser.isEngineAvailable(this.engineName);
+		}
+
+		public PacScriptParser createParser(PacScriptSource source, int enginePoolSize)
+		        throws ProxyEvaluationException {
+			return new ScriptEnginePacScriptParser(source, this.engineName);
+		}
+	}
+
+}
@@ -0,0 +1,237 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import java.util.TimeZone;
+
+/*****************************************************************************
+ * The current time as seen by the PAC date and time functions during one
+ * evaluation. The calendar fields are computed with integer arithmetic from
+ * the epoch milliseconds and the time zone offset, once for local time and
+ * once for GMT, and then reused by all calls of <code>weekdayRange</code>,
+ * <code>dateRange</code> and <code>timeRange</code> in the evaluation.<br>
+ * The functions also record the next point in time their result could
+ * change, so that the result of the evaluation can be cached until then.<br>
+ * An instance belongs to one thread and is reused for its evaluations.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+final class TimeSnapshot {
+
+	private static final long MILLIS_PER_DAY = 86400000L;
+
+	/*************************************************************************
+	 * Calendar fields of the snapshot in one time zone.
+	 ************************************************************************/
+
+	static final class Fields {
+		boolean valid;
+		int year;
+		// 0 = January as in java.util.Calendar
+		int month;
+		int day;
+		// 0 = Sunday
+		int dayOfWeek;
+		int secondOfDay;
+		// Days since 1970-01-01 of the date
+		long epochDay;
+	}
+
+	// Number of evaluations started with beginEvaluation and not yet ended
+	int depth;
+	boolean taken;
+	// Epoch milliseconds at which a time function result may change
+	long changesAt = Long.MAX_VALUE;
+
+	private long millis;
+	private TimeZone localZone;
+	private final Fields local = new Fields();
+	private final Fields gmt = new Fields();
+
+	// Reused by dateRange to sort its parameters and compute its bounds
+	final int[] dateParams = new int[6];
+	final Fields scratch = new Fields();
+
+	/*************************************************************************
+	 * Sets the time of the snapshot. The fields are computed on first use.
+	 *
+	 * @param millis
+	 *            the epoch milliseconds.
+	 * @param localZone
+	 *            the time zone for local time.
+	 ************************************************************************/
+
+	void take(long millis, TimeZone localZone) {
+		this.millis = millis;
+		this.localZone = localZone;
+		this.local.valid = false;
+		this.gmt.valid = false;
+	}
+
+	/*************************************************************************
+	 * Gets the calendar fields of the snapshot.
+	 *
+	 * @param useGmt
+	 *            true for GMT, false for local time.
+	 * @return the fields.
+	 ************************************************************************/
+
+	Fields get(boolean useGmt) {
+		Fields fields = useGmt ? this.gmt : this.local;
+		if (!fields.valid) {
+			long offset = useGmt ? 0 : this.localZone.getOffset(this.millis);
+			compute(fields, this.millis + offset);
+		}
+		return fields;
+	}
+
+	/*************************************************************************
+	 * Records that a time function result may change at the given wall clock
+	 * time. Over a change of the zone offset, e.g. for daylight saving time,
+	 * the earlier of the possible instants is used.
+	 *
+	 * @param useGmt
+	 *            true if the time is in GMT, false for local time.
+	 * @param days
+	 *            the days after the date of the snapshot.
+	 * @param secondOfDay
+	 *            the second of that day.
+	 ************************************************************************/
+
+	void changesAt(boolean useGmt, int days, int secondOfDay) {
+		long wallMillis = (get(useGmt).epochDay + days) * MILLIS_PER_DAY + secondOfDay * 1000L;
+		long instant = wallMillis;
+		if (!useGmt) {
+			instant = wallMillis - this.localZone.getOffset(this.millis);
+			instant = Math.min(instant, wallMillis - this.localZone.getOffset(instant));
+		}
+		this.changesAt = Math.min(this.changesAt, instant);
+	}
+
+	/*************************************************************************
+	 * Gets how long the results of the time functions called since the
+	 * snapshot was taken stay the same.
+	 *
+	 * @return the time in milliseconds, Long.MAX_VALUE if no time function was
+	 *         called.
+	 ************************************************************************/
+
+	long getValidFor() {
+		if (this.changesAt == Long.MAX_VALUE) {
+			return Long.MAX_VALUE;
+		}
+		return Math.max(0, this.changesAt - this.millis);
+	}
+
+	/*************************************************************************
+	 * Computes the calendar fields from the wall clock milliseconds.
+	 *
+	 * @param fields
+	 *            receives the result.
+	 * @param wallMillis
+	 *            epoch milliseconds shifted by the zone offset.
+	 ************************************************************************/
+
+	private static void compute(Fields fields, long wallMillis) {
+		long epochDay = floorDiv(wallMillis, MILLIS_PER_DAY);
+		fields.secondOfDay = (int) ((wallMillis - epochDay * MILLIS_PER_DAY) / 1000);
+		setDate(fields, epochDay);
+	}
+
+	/*************************************************************************
+	 * Sets the date fields from the days since 1970-01-01.
+	 *
+	 * @param fields
+	 *            receives the result.
+	 * @param epochDay
+	 *            the epoch day.
+	 ************************************************************************/
+
+	static void setDate(Fields fields, long epochDay) {
+		fields.epochDay = epochDay;
+		// 1970-01-01 was a Thursday
+		fields.dayOfWeek = (int) floorMod(epochDay + 4, 7);
+
+		// Civil from days, see H. Hinnant "chrono-Compatible Low-Level Date
+		// Algorithms"
+		long z = epochDay + 719468;
+		long era = floorDiv(z, 146097);
+		long doe = z - era * 146097;
+		long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		long mp = (5 * doy + 2) / 153;
+		int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+		int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+		int year = (int) (yoe + era * 400 + (month <= 2 ? 1 : 0));
+
+		fields.year = year;
+		fields.month = month - 1;
+		fields.day = day;
+		fields.valid = true;
+	}
+
+	/*************************************************************************
+	 * Adds months to the date in the fields. Like java.util.Calendar the day
+	 * is reduced to the last day of the month if the month is shorter.
+	 *
+	 * @param fields
+	 *            the date to change.
+	 * @param months
+	 *            the months to add, may be negative.
+	 ************************************************************************/
+
+	static void addMonths(Fields fields, int months) {
+		int month = fields.month + months;
+		int year = fields.year + (int) floorDiv(month, 12);
+		month = (int) floorMod(month, 12);
+		int day = Math.min(fields.day, lengthOfMonth(year, month));
+		setDate(fields, epochDay(year, month, day));
+	}
+
+	/*************************************************************************
+	 * Computes the days since 1970-01-01 of a date. Days and months out of
+	 * range roll over into the next month or year like a lenient calendar.
+	 *
+	 * @param year
+	 *            the year.
+	 * @param month
+	 *            the month, 0 = January.
+	 * @param day
+	 *            the day of month, starting with 1.
+	 * @return the epoch day.
+	 ************************************************************************/
+
+	static long epochDay(int year, int month, int day) {
+		long y = year + floorDiv(month, 12);
+		long m = floorMod(month, 12) + 1;
+		y -= m <= 2 ? 1 : 0;
+		long era = floorDiv(y, 400);
+		long yoe = y - era * 400;
+		long doy = (153 * (m > 2 ? m - 3 : m + 9) + 2) / 5;
+		long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097 + doe - 719468 + (day - 1);
+	}
+
+	/*************************************************************************
+	 * Gets the number of days of a month.
+	 *
+	 * @param year
+	 *            the year.
+	 * @param month
+	 *            the month, 0 = January.
+	 * @return the number of days.
+	 ************************************************************************/
+
+	static int lengthOfMonth(int year, int month) {
+		return (int) (epochDay(year, month + 1, 1) - epochDay(year, month, 1));
+	}
+
+	private static long floorDiv(long x, long y) {
+		long r = x / y;
+		return (x % y != 0 && (x ^ y) < 0) ? r - 1 : r;
+	}
+
+	private static long floorMod(long x, long y) {
+		return x - floorDiv(x, y) * y;
+	}
+
+}
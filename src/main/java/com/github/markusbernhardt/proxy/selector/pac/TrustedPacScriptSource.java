@@ -0,0 +1,88 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import java.io.IOException;
+
+/*****************************************************************************
+ * Marks a script source as trusted. Scripts from a trusted source are run by
+ * the {@link JavaxPacScriptParser} in a plain Nashorn engine without the
+ * sandbox, so there is no script rewriting and no CPU and memory monitoring.
+ * Only use this for PAC scripts you control, e.g. from your own signed
+ * internal server. All other sources keep the sandbox.
+ *
+ * <pre>
+ * PacScriptSource source = new TrustedPacScriptSource(new UrlPacScriptSource(url));
+ * </pre>
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public class TrustedPacScriptSource implements PacScriptSource {
+
+	private final PacScriptSource delegate;
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param delegate
+	 *            the source to load the script from.
+	 ************************************************************************/
+
+	public TrustedPacScriptSource(PacScriptSource delegate) {
+		super();
+		if (delegate == null) {
+			throw new NullPointerException("delegate");
+		}
+		this.delegate = delegate;
+	}
+
+	/*************************************************************************
+	 * Checks if the given source is trusted.
+	 *
+	 * @param source
+	 *            the source to check.
+	 * @return true if the scripts of the source may run without sandbox.
+	 ************************************************************************/
+
+	public static boolean isTrusted(PacScriptSource source) {
+		return source instanceof TrustedPacScriptSource;
+	}
+
+	/*************************************************************************
+	 * Gets the wrapped source.
+	 *
+	 * @return the source the script is loaded from.
+	 ************************************************************************/
+
+	public PacScriptSource getDelegate() {
+		return this.delegate;
+	}
+
+	/*************************************************************************
+	 * getScriptContent
+	 *
+	 * @see com.github.markusbernhardt.proxy.selector.pac.PacScriptSource#getScriptContent()
+	 ************************************************************************/
+
+	public String getScriptContent() throws IOException {
+		return this.delegate.getScriptContent();
+	}
+
+	/*************************************************************************
+	 * isScriptValid
+	 *
+	 * @see com.github.markusbernhardt.proxy.selector.pac.PacScriptSource#isScriptValid()
+	 ************************************************************************/
+
+	public boolean isScriptValid() {
+		return this.delegate.isScriptValid();
+	}
+
+	/***************************************************************************
+	 * @see java.lang.Object#toString()
+	 **************************************************************************/
+	@Override
+	public String toString() {
+		return "trusted:" + this.delegate;
+	}
+
+}
@@ -2,22 +2,39 @@ package com.github.markusbernhardt.proxy.selector.pac;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.Proxy;
-import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
 
 import com.github.markusbernhardt.proxy.util.Logger;
 import com.github.markusbernhardt.proxy.util.Logger.LogLevel;
 
 /*****************************************************************************
  * Script source that will load the content of a PAC file from an webserver. The
- * script content is cached once it was downloaded.
+ * script content is cached once it was downloaded.<br>
+ * When the content expires according to the <code>Expires</code> or
+ * <code>Cache-Control: max-age</code> header, the cached content is still
+ * returned while it is revalidated in the background. The revalidation sends
+ * <code>If-None-Match</code> and <code>If-Modified-Since</code>, so an
+ * unchanged script is not transferred again. Downloads accept gzip encoding.
+ * <br>
+ * If a download fails the last content that was loaded successfully is kept.
+ * The next attempt is made after a delay that doubles with every failure, from
+ * <code>com.btr.proxy.url.retryDelay</code> up to
+ * <code>com.btr.proxy.url.maxRetryDelay</code> milliseconds.<br>
+ * With a cache directory, set by {@link #setCacheDirectory(File)} or the
+ * system property <code>com.btr.proxy.url.cacheDirectory</code>, the last good
+ * script is also stored on disk. After a restart it is used right away while
+ * it is revalidated in the background, so the first proxy decision does not
+ * wait for the server.
  *
  * @author Markus Bernhardt, Copyright 2016
  * @author Bernd Rosstauscher, Copyright 2009
@@ -27,12 +44,26 @@ public class UrlPacScriptSource implements PacScriptSource {
 
 	private static final int DEFAULT_CONNECT_TIMEOUT = 15 * 1000; // seconds
 	private static final int DEFAULT_READ_TIMEOUT = 20 * 1000; // seconds
+	private static final int DEFAULT_RETRY_DELAY = 5 * 1000; // seconds
+	private static final int DEFAULT_MAX_RETRY_DELAY = 10 * 60 * 1000; // minutes
 	public static final String OVERRIDE_CONNECT_TIMEOUT = "com.btr.proxy.url.connectTimeout";
 	public static final String OVERRIDE_READ_TIMEOUT = "com.btr.proxy.url.readTimeout";
+	public static final String OVERRIDE_RETRY_DELAY = "com.btr.proxy.url.retryDelay";
+	public static final String OVERRIDE_MAX_RETRY_DELAY = "com.btr.proxy.url.maxRetryDelay";
+	public static final String OVERRIDE_CACHE_DIRECTORY = "com.btr.proxy.url.cacheDirectory";
 
 	private final String scriptUrl;
-	private String scriptContent;
-	private long expireAtMillis;
+	private final Object loadLock = new Object();
+	private final AtomicBoolean refreshing = new AtomicBoolean();
+	private volatile Executor refreshExecutor;
+	private volatile PacScriptDiskCache diskCache;
+
+	private volatile String scriptContent;
+	private volatile long expireAtMillis;
+	private volatile String entityTag;
+	private volatile String lastModified;
+	private volatile int failures;
+	private volatile long retryAtMillis;
 
 	/*************************************************************************
 	 * Constructor
@@ -45,6 +76,35 @@ public class UrlPacScriptSource implements PacScriptSource {
 		super();
 		this.expireAtMillis = 0;
 		this.scriptUrl = url;
+		String cacheDirectory = System.getProperty(OVERRIDE_CACHE_DIRECTORY);
+		if (cacheDirectory != null && cacheDirectory.trim().length() > 0) {
+			setCacheDirectory(new File(cacheDirectory.trim()));
+		}
+	}
+
+	/*************************************************************************
+	 * Sets the directory the last good script is stored in. Must be set before
+	 * the script is loaded for the first time.
+	 * 
+	 * @param directory
+	 *            the directory, null to disable the disk cache.
+	 ************************************************************************/
+
+	public void setCacheDirectory(File directory) {
+		this.diskCache = directory == null ? null : new PacScriptDiskCache(directory);
+	}
+
+	/*************************************************************************
+	 * Sets the executor that runs the background revalidation of expired
+	 * content.
+	 * 
+	 * @param executor
+	 *            the executor. If null a daemon thread is started for each
+	 *            revalidation.
+	 ************************************************************************/
+
+	public void setRefreshExecutor(Executor executor) {
+		this.refreshExecutor = executor;
 	}
 
 	/*************************************************************************
@@ -53,36 +113,209 @@ public class UrlPacScriptSource implements PacScriptSource {
 	 * @see com.github.markusbernhardt.proxy.selector.pac.PacScriptSource#getScriptContent()
 	 ************************************************************************/
 
-	public synchronized String getScriptContent() throws IOException {
-		if (this.scriptContent == null
-		        || (this.expireAtMillis > 0 && this.expireAtMillis < System.currentTimeMillis())) {
-			try {
-				// Reset it again with next download we should get a new expire
-				// info
-				this.expireAtMillis = 0;
+	public String getScriptContent() throws IOException {
+		String content = this.scriptContent;
+		if (content == null) {
+			synchronized (this.loadLock) {
+				content = this.scriptContent;
+				if (content == null) {
+					content = loadFromDisk();
+					if (content != null) {
+						startRefresh();
+						return content;
+					}
+					long retryIn = this.retryAtMillis - System.currentTimeMillis();
+					if (retryIn > 0) {
+						throw new IOException("Loading script from " + this.scriptUrl + " failed, next retry in "
+						        + retryIn + " ms");
+					}
+					content = load();
+				}
+			}
+		} else if (isExpired()) {
+			startRefresh();
+		}
+		return content;
+	}
+
+	/*************************************************************************
+	 * Checks if the content has expired and the retry delay after a failed
+	 * download has passed.
+	 * 
+	 * @return true if the content should be revalidated.
+	 ************************************************************************/
+
+	private boolean isExpired() {
+		long expireAt = this.expireAtMillis;
+		long now = System.currentTimeMillis();
+		return expireAt > 0 && expireAt <= now && this.retryAtMillis <= now;
+	}
+
+	/*************************************************************************
+	 * Loads the content and stores it. On failure the previous content is kept
+	 * and the next attempt is delayed.
+	 * 
+	 * @return the content.
+	 * @throws IOException
+	 *             on read error.
+	 ************************************************************************/
 
-				if (this.scriptUrl.startsWith("file:/") || this.scriptUrl.indexOf(":/") == -1) {
-					this.scriptContent = readPacFileContent(this.scriptUrl);
+	private String load() throws IOException {
+		synchronized (this.loadLock) {
+			try {
+				String content;
+				if (isLocalFile()) {
+					content = readPacFileContent(this.scriptUrl);
 				} else {
-					this.scriptContent = downloadPacContent(this.scriptUrl);
+					content = downloadPacContent(this.scriptUrl);
 				}
+				this.scriptContent = content;
+				this.failures = 0;
+				this.retryAtMillis = 0;
+				storeToDisk(content);
+				return content;
 			} catch (IOException e) {
-				Logger.log(getClass(), LogLevel.ERROR, "Loading script failed from: {0} with error {1}", this.scriptUrl,
-				        e);
-				this.scriptContent = "";
+				long delay = getRetryDelay(++this.failures);
+				this.retryAtMillis = System.currentTimeMillis() + delay;
+				Logger.log(getClass(), LogLevel.ERROR, "Loading script failed from: {0} with error {1}, retry in {2} ms",
+				        this.scriptUrl, e, delay);
 				throw e;
 			}
 		}
-		return this.scriptContent;
 	}
 
 	/*************************************************************************
-	 * Reads a PAC script from a local file.
+	 * Loads the script now, with a conditional request if it was loaded
+	 * before. Used by {@link MirroredPacScriptSource} to query its mirrors.
+	 * 
+	 * @return the content.
+	 * @throws IOException
+	 *             on read error.
+	 ************************************************************************/
+
+	String reload() throws IOException {
+		return load();
+	}
+
+	/*************************************************************************
+	 * Checks if the last attempt to load the script failed.
+	 * 
+	 * @return true if the script could not be loaded the last time.
+	 ************************************************************************/
+
+	boolean isFailing() {
+		return this.failures > 0;
+	}
+
+	/*************************************************************************
+	 * Uses the script stored in the cache directory, if there is one.
+	 * 
+	 * @return the stored script, null if there is none.
+	 ************************************************************************/
+
+	private String loadFromDisk() {
+		PacScriptDiskCache cache = this.diskCache;
+		if (cache == null || isLocalFile()) {
+			return null;
+		}
+		try {
+			PacScriptDiskCache.Entry entry = cache.load(this.scriptUrl);
+			if (entry == null) {
+				return null;
+			}
+			Logger.log(getClass(), LogLevel.DEBUG, "Using cached PAC script for {0}", this.scriptUrl);
+			this.entityTag = entry.entityTag;
+			this.lastModified = entry.lastModified;
+			this.expireAtMillis = entry.expireAtMillis;
+			this.scriptContent = entry.content;
+			return entry.content;
+		} catch (IOException e) {
+			Logger.log(getClass(), LogLevel.WARNING, "Reading cached PAC script failed: {0}", e);
+			return null;
+		}
+	}
+
+	/*************************************************************************
+	 * Stores the downloaded script in the cache directory, if one is set.
+	 * 
+	 * @param content
+	 *            the script.
+	 ************************************************************************/
+
+	private void storeToDisk(String content) {
+		PacScriptDiskCache cache = this.diskCache;
+		if (cache == null || isLocalFile()) {
+			return;
+		}
+		try {
+			cache.store(this.scriptUrl,
+			        new PacScriptDiskCache.Entry(content, this.entityTag, this.lastModified, this.expireAtMillis));
+		} catch (IOException e) {
+			Logger.log(getClass(), LogLevel.WARNING, "Writing cached PAC script failed: {0}", e);
+		}
+	}
+
+	private boolean isLocalFile() {
+		return this.scriptUrl.startsWith("file:/") || this.scriptUrl.indexOf(":/") == -1;
+	}
+
+	/*************************************************************************
+	 * Gets the delay before the next download after the given number of
+	 * failures in a row.
+	 * 
+	 * @param failures
+	 *            the number of failed downloads.
+	 * @return the delay in milliseconds.
+	 ************************************************************************/
+
+	private long getRetryDelay(int failures) {
+		long delay = getTimeOut(OVERRIDE_RETRY_DELAY, DEFAULT_RETRY_DELAY);
+		long maxDelay = getTimeOut(OVERRIDE_MAX_RETRY_DELAY, DEFAULT_MAX_RETRY_DELAY);
+		return Math.min(maxDelay, delay << Math.min(failures - 1, 20));
+	}
+
+	/*************************************************************************
+	 * Revalidates the content in the background unless a revalidation is
+	 * already running.
+	 ************************************************************************/
+
+	private void startRefresh() {
+		if (!this.refreshing.compareAndSet(false, true)) {
+			return;
+		}
+		Runnable refresh = new Runnable() {
+			public void run() {
+				try {
+					load();
+				} catch (IOException e) {
+					// Logged by load, the last content is kept
+				} finally {
+					UrlPacScriptSource.this.refreshing.set(false);
+				}
+			}
+		};
+		try {
+			Executor executor = this.refreshExecutor;
+			if (executor != null) {
+				executor.execute(refresh);
+			} else {
+				Thread thread = new Thread(refresh, "PAC script refresh");
+				thread.setDaemon(true);
+				thread.start();
+			}
+		} catch (RuntimeException e) {
+			this.refreshing.set(false);
+			Logger.log(getClass(), LogLevel.DEBUG, "Cannot refresh PAC script: {0}", e.getMessage());
+		}
+	}
+
+	/*************************************************************************
+	 * Reads a PAC script from a local file. It is decoded like by the
+	 * {@link FilePacScriptSource}.
 	 * 
 	 * @param scriptUrl
 	 * @return the content of the script file.
 	 * @throws IOException
-	 * @throws URISyntaxException
 	 ************************************************************************/
 
 	private String readPacFileContent(String scriptUrl) throws IOException {
@@ -93,26 +326,16 @@ public class UrlPacScriptSource implements PacScriptSource {
 			} else {
 				file = new File(new URL(scriptUrl).toURI());
 			}
-			BufferedReader r = new BufferedReader(new FileReader(file));
-			StringBuilder result = new StringBuilder();
-			try {
-				String line;
-				while ((line = r.readLine()) != null) {
-					result.append(line).append("\n");
-				}
-			} finally {
-				r.close();
-			}
-			return result.toString();
+			return FilePacScriptSource.read(file.toPath(), null);
 		} catch (Exception e) {
-			System.out.println(System.getProperty("user.dir"));
 			Logger.log(getClass(), LogLevel.ERROR, "File reading error.", e);
 			throw new IOException(e.getMessage());
 		}
 	}
 
 	/*************************************************************************
-	 * Downloads the script from a webserver.
+	 * Downloads the script from a webserver. If a script was loaded before it
+	 * is only transferred again if it has changed.
 	 * 
 	 * @param url
 	 *            the URL to the script file.
@@ -126,23 +349,41 @@ public class UrlPacScriptSource implements PacScriptSource {
 			throw new IOException("Invalid PAC script URL: null");
 		}
 
-		setPacProxySelectorEnabled(false);
+		PacProxySelector.beginScriptDownload();
 
 		HttpURLConnection con = null;
 		try {
 			con = setupHTTPConnection(url);
-			if (con.getResponseCode() != 200) {
-				throw new IOException("Server returned: " + con.getResponseCode() + " " + con.getResponseMessage());
+			String current = this.scriptContent;
+			if (current != null) {
+				if (this.entityTag != null) {
+					con.setRequestProperty("If-None-Match", this.entityTag);
+				}
+				if (this.lastModified != null) {
+					con.setRequestProperty("If-Modified-Since", this.lastModified);
+				}
+			}
+			int responseCode = con.getResponseCode();
+			if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && current != null) {
+				Logger.log(getClass(), LogLevel.DEBUG, "PAC script not modified: {0}", url);
+				this.expireAtMillis = getExpiration(con);
+				return current;
+			}
+			if (responseCode != HttpURLConnection.HTTP_OK) {
+				throw new IOException("Server returned: " + responseCode + " " + con.getResponseMessage());
 			}
-			// Read expire date.
-			this.expireAtMillis = con.getExpiration();
 
 			BufferedReader r = getReader(con);
 			String result = readAllContent(r);
 			r.close();
+
+			// Read expire date and validators for the next revalidation.
+			this.expireAtMillis = getExpiration(con);
+			this.entityTag = con.getHeaderField("ETag");
+			this.lastModified = con.getHeaderField("Last-Modified");
 			return result;
 		} finally {
-			setPacProxySelectorEnabled(true);
+			PacProxySelector.endScriptDownload();
 			if (con != null) {
 				con.disconnect();
 			}
@@ -150,12 +391,31 @@ public class UrlPacScriptSource implements PacScriptSource {
 	}
 
 	/*************************************************************************
-	 * Enables/disables the PAC proxy selector while we download to prevent
-	 * recursion. See issue: 26 in the change tracker.
+	 * Gets the time the downloaded content expires. A
+	 * <code>Cache-Control: max-age</code> takes precedence over the
+	 * <code>Expires</code> header.
+	 * 
+	 * @param con
+	 *            the connection with the response.
+	 * @return the expiry in epoch milliseconds, 0 if the content does not
+	 *         expire.
 	 ************************************************************************/
 
-	private void setPacProxySelectorEnabled(boolean enable) {
-		PacProxySelector.setEnabled(enable);
+	private long getExpiration(HttpURLConnection con) {
+		String cacheControl = con.getHeaderField("Cache-Control");
+		if (cacheControl != null) {
+			for (String directive : cacheControl.split(",")) {
+				directive = directive.trim().toLowerCase();
+				if (directive.startsWith("max-age=")) {
+					try {
+						return System.currentTimeMillis() + Long.parseLong(directive.substring(8).trim()) * 1000;
+					} catch (NumberFormatException e) {
+						Logger.log(getClass(), LogLevel.DEBUG, "Invalid Cache-Control header: {0}", cacheControl);
+					}
+				}
+			}
+		}
+		return con.getExpiration();
 	}
 
 	/*************************************************************************
@@ -188,7 +448,11 @@ public class UrlPacScriptSource implements PacScriptSource {
 
 	private BufferedReader getReader(HttpURLConnection con) throws UnsupportedEncodingException, IOException {
 		String charsetName = parseCharsetFromHeader(con.getContentType());
-		BufferedReader r = new BufferedReader(new InputStreamReader(con.getInputStream(), charsetName));
+		InputStream in = con.getInputStream();
+		if ("gzip".equalsIgnoreCase(con.getContentEncoding())) {
+			in = new GZIPInputStream(in);
+		}
+		BufferedReader r = new BufferedReader(new InputStreamReader(in, charsetName));
 		return r;
 	}
 
@@ -208,6 +472,7 @@ public class UrlPacScriptSource implements PacScriptSource {
 		con.setReadTimeout(getTimeOut(OVERRIDE_READ_TIMEOUT, DEFAULT_READ_TIMEOUT));
 		con.setInstanceFollowRedirects(true);
 		con.setRequestProperty("accept", "application/x-ns-proxy-autoconfig, */*;q=0.8");
+		con.setRequestProperty("Accept-Encoding", "gzip");
 		return con;
 	}
 
@@ -9,8 +9,7 @@ import java.util.List;
 
 import com.github.markusbernhardt.proxy.selector.fixed.FixedProxySelector;
 import com.github.markusbernhardt.proxy.selector.pac.PacProxySelector;
-import com.github.markusbernhardt.proxy.selector.pac.PacScriptSource;
-import com.github.markusbernhardt.proxy.selector.pac.UrlPacScriptSource;
+import com.github.markusbernhardt.proxy.selector.pac.PacScriptRegistry;
 
 /*****************************************************************************
  * Small helper class for some common utility methods.
@@ -75,7 +74,9 @@ public class ProxyUtil {
 	}
 
 	/*************************************************************************
-	 * Build a PAC proxy selector for the given URL.
+	 * Build a PAC proxy selector for the given URL. The script and its parser
+	 * are shared with all other selectors for the same URL, see
+	 * {@link PacScriptRegistry}.
 	 * 
 	 * @param url
 	 *            to fetch the PAC script from.
@@ -84,12 +85,7 @@ public class ProxyUtil {
 	 ************************************************************************/
 
 	public static PacProxySelector buildPacSelectorForUrl(String url) {
-		PacProxySelector result = null;
-		PacScriptSource pacSource = new UrlPacScriptSource(url);
-		if (pacSource.isScriptValid()) {
-			result = new PacProxySelector(pacSource);
-		}
-		return result;
+		return PacScriptRegistry.getDefault().getSelector(url);
 	}
 
 	/*************************************************************************
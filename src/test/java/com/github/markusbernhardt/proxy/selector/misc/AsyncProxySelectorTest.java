@@ -0,0 +1,196 @@
+package com.github.markusbernhardt.proxy.selector.misc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.markusbernhardt.proxy.TestUtil;
+import com.github.markusbernhardt.proxy.selector.misc.BufferedProxySelector.CacheScope;
+
+/*****************************************************************************
+ * Unit Tests for the AsyncProxySelector
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public class AsyncProxySelectorTest {
+
+	private final AtomicInteger calls = new AtomicInteger();
+	private final CountDownLatch release = new CountDownLatch(1);
+	private ProxySelector delegate;
+	private AsyncProxySelector selector;
+
+	/*************************************************************************
+	 * Setup before tests.
+	 ************************************************************************/
+	@Before
+	public void setup() {
+		this.delegate = new ProxySelector() {
+			@Override
+			public List<Proxy> select(URI uri) {
+				AsyncProxySelectorTest.this.calls.incrementAndGet();
+				if ("fail.unit-test.invalid".equals(uri.getHost())) {
+					throw new IllegalStateException("unit-test");
+				}
+				if ("block.unit-test.invalid".equals(uri.getHost())) {
+					try {
+						AsyncProxySelectorTest.this.release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				return Arrays.asList(TestUtil.HTTP_TEST_PROXY);
+			}
+
+			@Override
+			public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+				// Not used on the delegate
+			}
+		};
+	}
+
+	/*************************************************************************
+	 * Cleanup after tests.
+	 ************************************************************************/
+	@After
+	public void teardown() {
+		this.release.countDown();
+		if (this.selector != null) {
+			this.selector.shutdown();
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void asyncSelectShouldReturnDelegateResult() throws Exception {
+		this.selector = new AsyncProxySelector(this.delegate, 2);
+		List<Proxy> result = this.selector.selectAsync(TestUtil.HTTP_TEST_URI).get();
+		assertEquals(TestUtil.HTTP_TEST_PROXY, result.get(0));
+		assertEquals(TestUtil.HTTP_TEST_PROXY, this.selector.select(TestUtil.HTTP_TEST_URI).get(0));
+		assertEquals(2, this.calls.get());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void cachedResultShouldCompleteImmediately() throws Exception {
+		BufferedProxySelector buffered = new BufferedProxySelector(10, 60000, this.delegate, CacheScope.CACHE_SCOPE_HOST);
+		this.selector = new AsyncProxySelector(buffered, 1);
+		this.selector.selectAsync(TestUtil.HTTP_TEST_URI).get();
+
+		CompletableFuture<List<Proxy>> future = this.selector.selectAsync(TestUtil.HTTP_TEST_URI);
+		assertTrue(future.isDone());
+		assertEquals(TestUtil.HTTP_TEST_PROXY, future.get().get(0));
+		assertEquals(1, this.calls.get());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void delegateErrorShouldCompleteExceptionally() throws Exception {
+		this.selector = new AsyncProxySelector(this.delegate, 1);
+		CompletableFuture<List<Proxy>> future = this.selector.selectAsync(URI.create("http://fail.unit-test.invalid/"));
+		try {
+			future.get();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+		assertTrue(future.isCompletedExceptionally());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void cachedResultBehindFallbackSelectorShouldCompleteImmediately() throws Exception {
+		BufferedProxySelector buffered = new BufferedProxySelector(10, 60000, this.delegate, CacheScope.CACHE_SCOPE_HOST);
+		this.selector = new AsyncProxySelector(new ProxyListFallbackSelector(buffered), 1);
+		this.selector.selectAsync(TestUtil.HTTP_TEST_URI).get();
+
+		CompletableFuture<List<Proxy>> future = this.selector.selectAsync(TestUtil.HTTP_TEST_URI);
+		assertTrue(future.isDone());
+		assertEquals(TestUtil.HTTP_TEST_PROXY, future.get().get(0));
+		assertEquals(1, this.calls.get());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void fullQueueShouldCompleteExceptionally() throws Exception {
+		this.selector = new AsyncProxySelector(this.delegate, 1, 1);
+		URI blocking = URI.create("http://block.unit-test.invalid/");
+		CompletableFuture<List<Proxy>> running = this.selector.selectAsync(blocking);
+		CompletableFuture<List<Proxy>> queued = this.selector.selectAsync(blocking);
+		CompletableFuture<List<Proxy>> rejected = this.selector.selectAsync(blocking);
+		assertTrue(rejected.isCompletedExceptionally());
+		try {
+			rejected.get();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+
+		this.release.countDown();
+		assertEquals(TestUtil.HTTP_TEST_PROXY, running.get().get(0));
+		assertEquals(TestUtil.HTTP_TEST_PROXY, queued.get().get(0));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void selectShouldRunInlineWhenQueueIsFull() throws Exception {
+		this.selector = new AsyncProxySelector(this.delegate, 1, 1);
+		URI blocking = URI.create("http://block.unit-test.invalid/");
+		CompletableFuture<List<Proxy>> running = this.selector.selectAsync(blocking);
+		CompletableFuture<List<Proxy>> queued = this.selector.selectAsync(blocking);
+		assertTrue(this.selector.selectAsync(blocking).isCompletedExceptionally());
+
+		List<Proxy> result = this.selector.select(TestUtil.HTTP_TEST_URI);
+		assertEquals(TestUtil.HTTP_TEST_PROXY, result.get(0));
+
+		this.release.countDown();
+		assertEquals(TestUtil.HTTP_TEST_PROXY, running.get().get(0));
+		assertEquals(TestUtil.HTTP_TEST_PROXY, queued.get().get(0));
+		assertEquals(3, this.calls.get());
+	}
+
+}
@@ -0,0 +1,189 @@
+package com.github.markusbernhardt.proxy.selector.misc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.github.markusbernhardt.proxy.TestUtil;
+import com.github.markusbernhardt.proxy.selector.misc.BufferedProxySelector.CacheScope;
+import com.github.markusbernhardt.proxy.selector.pac.PacProxySelector;
+import com.github.markusbernhardt.proxy.selector.pac.PacScriptParser;
+import com.github.markusbernhardt.proxy.selector.pac.PacScriptParserFactory;
+import com.github.markusbernhardt.proxy.selector.pac.PacScriptSource;
+import com.github.markusbernhardt.proxy.selector.pac.ProxyEvaluationException;
+
+/*****************************************************************************
+ * Unit Tests for the BufferedProxySelector
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public class BufferedProxySelectorTest {
+
+	/*************************************************************************
+	 * Delegate that reports a fixed validity and counts the calls.
+	 ************************************************************************/
+
+	private static class ExpiringDelegate extends ProxySelector implements ExpiringProxySelector {
+		final AtomicInteger calls = new AtomicInteger();
+		final long validFor;
+		volatile long version;
+
+		ExpiringDelegate(long validFor) {
+			this.validFor = validFor;
+		}
+
+		@Override
+		public List<Proxy> select(URI uri) {
+			return select(uri, new long[1]);
+		}
+
+		public List<Proxy> select(URI uri, long[] validFor) {
+			this.calls.incrementAndGet();
+			validFor[0] = this.validFor;
+			return Arrays.asList(TestUtil.HTTP_TEST_PROXY);
+		}
+
+		public long getResultVersion() {
+			return this.version;
+		}
+
+		public CacheScope getCacheScope() {
+			return null;
+		}
+
+		@Override
+		public void connectFailed(URI uri, SocketAddress sa, IOException ioe) {
+			// Not used on the delegate
+		}
+	}
+
+	/*************************************************************************
+	 * Parser factory whose parsers hang or fail on the first evaluation.
+	 ************************************************************************/
+
+	private static class FirstEvaluationFactory implements PacScriptParserFactory {
+		final AtomicInteger evaluations = new AtomicInteger();
+		final boolean hang;
+
+		FirstEvaluationFactory(boolean hang) {
+			this.hang = hang;
+		}
+
+		public String getName() {
+			return "first-evaluation";
+		}
+
+		public boolean isAvailable() {
+			return true;
+		}
+
+		public PacScriptParser createParser(final PacScriptSource source, int enginePoolSize) {
+			return new PacScriptParser() {
+				public PacScriptSource getScriptSource() {
+					return source;
+				}
+
+				public String evaluate(String url, String host) throws ProxyEvaluationException {
+					if (FirstEvaluationFactory.this.evaluations.incrementAndGet() == 1) {
+						if (!FirstEvaluationFactory.this.hang) {
+							throw new ProxyEvaluationException("unit-test");
+						}
+						try {
+							Thread.sleep(2000);
+						} catch (InterruptedException e) {
+							throw new ProxyEvaluationException("Interrupted", e);
+						}
+					}
+					return "PROXY pac.unit-test.invalid:8080";
+				}
+			};
+		}
+	}
+
+	private static final PacScriptSource SCRIPT = new PacScriptSource() {
+		public String getScriptContent() {
+			return "function FindProxyForURL(url, host) { return \"PROXY pac.unit-test.invalid:8080\"; }";
+		}
+
+		public boolean isScriptValid() {
+			return true;
+		}
+	};
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void fallbackResultShouldNotBeCached() {
+		Proxy expected = new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved("pac.unit-test.invalid", 8080));
+		for (boolean hang : new boolean[] { true, false }) {
+			FirstEvaluationFactory factory = new FirstEvaluationFactory(hang);
+			PacProxySelector pacSelector = new PacProxySelector(SCRIPT, 1, factory);
+			pacSelector.setEvaluationTimeout(100);
+			pacSelector.setTimeoutFallback(PacProxySelector.TimeoutFallback.DIRECT);
+			BufferedProxySelector selector = new BufferedProxySelector(10, Long.MAX_VALUE, pacSelector,
+			        CacheScope.CACHE_SCOPE_HOST);
+
+			assertEquals(Proxy.NO_PROXY, selector.select(TestUtil.HTTP_TEST_URI).get(0));
+			assertEquals(expected, selector.select(TestUtil.HTTP_TEST_URI).get(0));
+			assertEquals(2, factory.evaluations.get());
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void resultShouldBeCachedForTtl() {
+		ExpiringDelegate delegate = new ExpiringDelegate(Long.MAX_VALUE);
+		BufferedProxySelector selector = new BufferedProxySelector(10, 60000, delegate, CacheScope.CACHE_SCOPE_HOST);
+		selector.select(TestUtil.HTTP_TEST_URI);
+		assertEquals(TestUtil.HTTP_TEST_PROXY, selector.select(TestUtil.HTTP_TEST_URI).get(0));
+		assertEquals(1, delegate.calls.get());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws InterruptedException
+	 *             if interrupted.
+	 ************************************************************************/
+	@Test
+	public void resultShouldExpireWhenDelegateResultChanges() throws InterruptedException {
+		ExpiringDelegate delegate = new ExpiringDelegate(1);
+		BufferedProxySelector selector = new BufferedProxySelector(10, 60000, delegate, CacheScope.CACHE_SCOPE_HOST);
+		selector.select(TestUtil.HTTP_TEST_URI);
+		Thread.sleep(5);
+		assertEquals(null, selector.peek(TestUtil.HTTP_TEST_URI));
+		selector.select(TestUtil.HTTP_TEST_URI);
+		assertEquals(2, delegate.calls.get());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void resultShouldBeKeptUntilVersionChanges() {
+		ExpiringDelegate delegate = new ExpiringDelegate(Long.MAX_VALUE);
+		BufferedProxySelector selector = new BufferedProxySelector(10, Long.MAX_VALUE, delegate,
+		        CacheScope.CACHE_SCOPE_HOST);
+		selector.select(TestUtil.HTTP_TEST_URI);
+		assertEquals(TestUtil.HTTP_TEST_PROXY, selector.peek(TestUtil.HTTP_TEST_URI).get(0));
+		delegate.version++;
+		assertEquals(null, selector.peek(TestUtil.HTTP_TEST_URI));
+		selector.select(TestUtil.HTTP_TEST_URI);
+		assertEquals(2, delegate.calls.get());
+	}
+
+}
@@ -0,0 +1,215 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.markusbernhardt.proxy.TestUtil;
+import com.github.markusbernhardt.proxy.selector.pac.PacSyntaxTree.Program;
+import com.github.markusbernhardt.proxy.util.ProxyException;
+
+/*****************************************************************************
+ * Tests for the PAC script parser that compiles scripts to Java classes.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public class CompiledPacScriptParserTest {
+
+	/*************************************************************************
+	 * The tests need the Java compiler of a JDK.
+	 ************************************************************************/
+	@Before
+	public void checkCompiler() {
+		assumeTrue(PacScriptCompiler.isAvailable());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws ProxyException
+	 *             on proxy detection error.
+	 * @throws MalformedURLException
+	 *             on URL erros
+	 ************************************************************************/
+	@Test
+	public void testScriptExecution() throws ProxyException, MalformedURLException {
+		CompiledPacScriptParser p = new CompiledPacScriptParser(new UrlPacScriptSource(toUrl("test1.pac")));
+		assertEquals("PROXY http_proxy.unit-test.invalid:8090",
+		        p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid"));
+		assertTrue(p.isScriptCompiled());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws ProxyException
+	 *             on proxy detection error.
+	 * @throws MalformedURLException
+	 *             on URL erros
+	 ************************************************************************/
+	@Test
+	public void testDateAndTimeScripts() throws ProxyException, MalformedURLException {
+		for (String script : new String[] { "testWeekDay.pac", "testDateRange.pac", "testTimeRange.pac" }) {
+			CompiledPacScriptParser p = new CompiledPacScriptParser(new UrlPacScriptSource(toUrl(script)));
+			assertEquals("DIRECT", p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid"));
+			assertTrue(p.isScriptCompiled());
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws ProxyException
+	 *             on proxy detection error.
+	 * @throws MalformedURLException
+	 *             on URL erros
+	 ************************************************************************/
+	@Test
+	public void methodsShouldReturnJsTypes() throws ProxyException, MalformedURLException {
+		CompiledPacScriptParser p = new CompiledPacScriptParser(new UrlPacScriptSource(toUrl("testReturnTypes.pac")));
+		assertEquals("number boolean string", p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid"));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws ProxyException
+	 *             on proxy detection error.
+	 * @throws MalformedURLException
+	 *             on URL erros
+	 ************************************************************************/
+	@Test
+	public void shouldGiveSameResultsAsInterpreter() throws ProxyException, MalformedURLException {
+		UrlPacScriptSource source = new UrlPacScriptSource(toUrl("testEnterprise.pac"));
+		CompiledPacScriptParser compiled = new CompiledPacScriptParser(source);
+		PureJavaPacScriptParser interpreter = new PureJavaPacScriptParser(source);
+		assertTrue(compiled.isScriptCompiled());
+
+		String[][] tests = { { "http://myhost/", "myhost" }, { "http://localhost/", "LOCALHOST" },
+		        { "http://www.intranet.unit-test.invalid/", "www.intranet.unit-test.invalid" },
+		        { "http://www.corp.unit-test.invalid/", "www.corp.unit-test.invalid" },
+		        { "http://10.1.2.3/", "10.1.2.3" }, { "ftp://192.0.2.1/", "192.0.2.1" },
+		        { "https://192.0.2.7/", "192.0.2.7" } };
+		for (String[] test : tests) {
+			assertEquals(test[1], interpreter.evaluate(test[0], test[1]), compiled.evaluate(test[0], test[1]));
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws ProxyException
+	 *             on proxy detection error.
+	 ************************************************************************/
+	@Test
+	public void shouldEvaluateOperators() throws ProxyException {
+		assertEquals("12", eval("return '1' + 2;"));
+		assertEquals("3", eval("return 1 + 2;"));
+		assertEquals("0.5", eval("return 1 / 2;"));
+		assertEquals("true", eval("return '10' == 10;"));
+		assertEquals("false", eval("return '10' === 10;"));
+		assertEquals("b", eval("return '' || 'b';"));
+		assertEquals("a", eval("var x = 'a'; return x && x;"));
+		assertEquals("yes", eval("return 'abc'.indexOf('c') > 1 ? 'yes' : 'no';"));
+		assertEquals("bc", eval("return 'abcd'.substr(1, 2);"));
+		assertEquals("4", eval("var s = 'ab'; s += 'cd'; return s.length;"));
+		assertEquals("undefined", eval("var s; return typeof s;"));
+		assertEquals("a\"\\\nä", eval("return 'a\"\\\\\\nä';"));
+		assertEquals("x", eval("if (true) { return 'x'; } else { return 'y'; } return 'z';"));
+		assertNull(eval("'unused'; if (!host) return 'x';"));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws ProxyException
+	 *             on proxy detection error.
+	 ************************************************************************/
+	@Test
+	public void sameScriptShouldBeCompiledOnce() throws ProxyException {
+		String script = "function FindProxyForURL(url, host) { return 'DIRECT'; }";
+		Program program = PacSyntaxParser.parse(script);
+		assertSame(PacScriptCompiler.compile(script, program), PacScriptCompiler.compile(script, program));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws ProxyException
+	 *             on proxy detection error.
+	 * @throws MalformedURLException
+	 *             on URL erros
+	 ************************************************************************/
+	@Test(expected = Exception.class)
+	public void shouldFallBackForUnsupportedScripts() throws ProxyException, MalformedURLException {
+		CompiledPacScriptParser p = new CompiledPacScriptParser(
+		        new UrlPacScriptSource(toUrl("testRemoteCodeExecution.pac")));
+		assertFalse(p.isScriptCompiled());
+		p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host.does.not.matter");
+	}
+
+	/*************************************************************************
+	 * Compiles a FindProxyForURL body and compares the result with the Java
+	 * evaluator.
+	 *
+	 * @param body
+	 *            the function body.
+	 * @return the result.
+	 * @throws ProxyException
+	 *             on error.
+	 ************************************************************************/
+
+	private String eval(String body) throws ProxyException {
+		PacScriptSource source = new StringPacScriptSource("function FindProxyForURL(url, host) { " + body + " }");
+		CompiledPacScriptParser compiled = new CompiledPacScriptParser(source);
+		assertTrue(body, compiled.isScriptCompiled());
+		String result = compiled.evaluate("http://host/", "host");
+		assertEquals(body, new PureJavaPacScriptParser(source).evaluate("http://host/", "host"), result);
+		return result;
+	}
+
+	/*************************************************************************
+	 * Script source for inline test scripts.
+	 ************************************************************************/
+
+	private static class StringPacScriptSource implements PacScriptSource {
+		private final String script;
+
+		StringPacScriptSource(String script) {
+			this.script = script;
+		}
+
+		public String getScriptContent() throws IOException {
+			return this.script;
+		}
+
+		public boolean isScriptValid() {
+			return true;
+		}
+	}
+
+	/*************************************************************************
+	 * Helper method to build the url to the given test file
+	 *
+	 * @param testFile
+	 *            the name of the test file.
+	 * @return the URL.
+	 * @throws MalformedURLException
+	 ************************************************************************/
+
+	private String toUrl(String testFile) throws MalformedURLException {
+		return new File(TestUtil.TEST_DATA_FOLDER + "pac", testFile).toURI().toURL().toString();
+	}
+
+}
@@ -0,0 +1,146 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/*****************************************************************************
+ * Tests for the DNS cache of the PAC functions.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public class DnsCacheTest {
+
+	/*************************************************************************
+	 * Cache with a fake resolver that counts the lookups.
+	 ************************************************************************/
+
+	private static class CountingDnsCache extends DnsCache {
+		final AtomicInteger lookups = new AtomicInteger();
+		volatile CountDownLatch block;
+
+		CountingDnsCache(int maxSize, long ttl, long negativeTtl) {
+			super(maxSize, ttl, negativeTtl);
+		}
+
+		@Override
+		protected InetAddress[] lookup(String host) throws UnknownHostException {
+			this.lookups.incrementAndGet();
+			CountDownLatch latch = this.block;
+			if (latch != null) {
+				try {
+					latch.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			if (host.endsWith(".invalid")) {
+				throw new UnknownHostException(host);
+			}
+			return new InetAddress[] { InetAddress.getByAddress(host, new byte[] { 10, 0, 0, 1 }) };
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws UnknownHostException
+	 *             on resolve error.
+	 ************************************************************************/
+	@Test
+	public void repeatedLookupsShouldBeCached() throws UnknownHostException {
+		CountingDnsCache cache = new CountingDnsCache(10, 60000, 60000);
+		PacScriptMethods methods = new PacScriptMethods(cache);
+		assertEquals("10.0.0.1", methods.dnsResolve("host.example.com"));
+		assertTrue(methods.isInNet("HOST.example.com", "10.0.0.0", "255.0.0.0"));
+		assertTrue(methods.isResolvable("host.example.com"));
+		assertEquals("10.0.0.1; ", methods.dnsResolveEx("host.example.com"));
+
+		assertEquals(1, cache.lookups.get());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(3, cache.getHitCount());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void failedLookupsShouldBeCachedForNegativeTtl() {
+		CountingDnsCache cache = new CountingDnsCache(10, 60000, 60000);
+		PacScriptMethods methods = new PacScriptMethods(cache);
+		assertFalse(methods.isResolvable("host.unit-test.invalid"));
+		assertEquals("", methods.dnsResolve("host.unit-test.invalid"));
+		assertEquals(1, cache.lookups.get());
+
+		CountingDnsCache noNegativeCache = new CountingDnsCache(10, 60000, 0);
+		methods = new PacScriptMethods(noNegativeCache);
+		assertFalse(methods.isResolvable("host.unit-test.invalid"));
+		assertFalse(methods.isResolvable("host.unit-test.invalid"));
+		assertEquals(2, noNegativeCache.lookups.get());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws UnknownHostException
+	 *             on resolve error.
+	 ************************************************************************/
+	@Test
+	public void cacheShouldBeBounded() throws UnknownHostException {
+		CountingDnsCache cache = new CountingDnsCache(5, 60000, 60000);
+		for (int i = 0; i < 20; i++) {
+			cache.resolve("host" + i + ".example.com");
+		}
+		assertTrue(cache.size() <= 5);
+
+		CountingDnsCache disabled = new CountingDnsCache(0, 60000, 60000);
+		disabled.resolve("host.example.com");
+		disabled.resolve("host.example.com");
+		assertEquals(2, disabled.lookups.get());
+		assertEquals(0, disabled.size());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void concurrentLookupsShouldResolveOnce() throws Exception {
+		final CountingDnsCache cache = new CountingDnsCache(10, 60000, 60000);
+		cache.block = new CountDownLatch(1);
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						cache.resolve("host.example.com");
+					} catch (UnknownHostException e) {
+						// Checked by the lookup count
+					}
+				}
+			};
+			threads[i].start();
+		}
+		while (cache.getHitCount() + cache.getMissCount() < threads.length) {
+			Thread.sleep(10);
+		}
+		cache.block.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(1, cache.lookups.get());
+		assertEquals(3, cache.getHitCount());
+	}
+
+}
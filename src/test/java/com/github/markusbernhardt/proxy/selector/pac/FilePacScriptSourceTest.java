@@ -0,0 +1,109 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.markusbernhardt.proxy.TestUtil;
+
+/*****************************************************************************
+ * Tests for the FilePacScriptSource.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public class FilePacScriptSourceTest {
+
+	private static final String DIRECT_SCRIPT = "function FindProxyForURL(url, host) { return \"DIRECT\"; }\n";
+	private static final String PROXY_SCRIPT = "function FindProxyForURL(url, host) { return \"PROXY p1:8080\"; }\n";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws IOException
+	 *             on read error.
+	 ************************************************************************/
+	@Test
+	public void testCharsetDetection() throws IOException {
+		File utf8 = this.folder.newFile("utf8.pac");
+		Files.write(utf8.toPath(), new byte[] { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF, 'a', (byte) 0xC3, (byte) 0xA4 });
+		File latin1 = this.folder.newFile("latin1.pac");
+		Files.write(latin1.toPath(), new byte[] { 'a', (byte) 0xE4 });
+
+		FilePacScriptSource utf8Source = new FilePacScriptSource(utf8);
+		FilePacScriptSource latin1Source = new FilePacScriptSource(latin1);
+		try {
+			assertEquals("a\u00e4", utf8Source.getScriptContent());
+			assertEquals("a\u00e4", latin1Source.getScriptContent());
+		} finally {
+			utf8Source.close();
+			latin1Source.close();
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void changedFileShouldBeReloaded() throws Exception {
+		File file = this.folder.newFile("proxy.pac");
+		Files.write(file.toPath(), DIRECT_SCRIPT.getBytes("UTF-8"));
+		FilePacScriptSource source = new FilePacScriptSource(file);
+		try {
+			PureJavaPacScriptParser parser = new PureJavaPacScriptParser(source);
+			String url = TestUtil.HTTP_TEST_URI.toString();
+			String host = TestUtil.HTTP_TEST_URI.getHost();
+			assertEquals("DIRECT", parser.evaluate(url, host));
+
+			// Replace the file like a config agent does
+			File temp = this.folder.newFile("proxy.pac.tmp");
+			Files.write(temp.toPath(), PROXY_SCRIPT.getBytes("UTF-8"));
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+			        StandardCopyOption.ATOMIC_MOVE);
+
+			long timeout = System.currentTimeMillis() + 30000;
+			while (!PROXY_SCRIPT.equals(source.getScriptContent()) && System.currentTimeMillis() < timeout) {
+				Thread.sleep(20);
+			}
+			assertEquals(PROXY_SCRIPT, source.getScriptContent());
+			assertEquals("PROXY p1:8080", parser.evaluate(url, host));
+		} finally {
+			source.close();
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void deletedFileShouldKeepLastContent() throws Exception {
+		File file = this.folder.newFile("proxy.pac");
+		Files.write(file.toPath(), DIRECT_SCRIPT.getBytes("UTF-8"));
+		FilePacScriptSource source = new FilePacScriptSource(file);
+		try {
+			assertEquals(DIRECT_SCRIPT, source.getScriptContent());
+			assertEquals(true, file.delete());
+			Thread.sleep(500);
+			assertEquals(DIRECT_SCRIPT, source.getScriptContent());
+		} finally {
+			source.close();
+		}
+	}
+
+}
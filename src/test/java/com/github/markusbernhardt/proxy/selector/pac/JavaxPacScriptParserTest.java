@@ -1,13 +1,21 @@
 package com.github.markusbernhardt.proxy.selector.pac;
 
 import java.io.File;
+import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.util.Calendar;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.AfterClass;
 import org.junit.Assert;
 import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import com.github.markusbernhardt.proxy.TestUtil;
 import com.github.markusbernhardt.proxy.util.ProxyException;
@@ -21,6 +29,9 @@ import com.github.markusbernhardt.proxy.util.ProxyException;
 
 public class JavaxPacScriptParserTest {
 
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
   /*************************************************************************
    * Set calendar for date and time base tests. Current date for all tests is: 15.
    * December 1994 12:00.00 its a Thursday
@@ -147,6 +158,176 @@ public class JavaxPacScriptParserTest {
     p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host.does.not.matter");
   }
 
+  /*************************************************************************
+   * Test method
+   * 
+   * @throws ProxyException
+   *           on proxy detection error.
+   * @throws MalformedURLException
+   *           on URL erros
+   ************************************************************************/
+  @Test
+  public void trustedScriptShouldRunWithoutSandbox() throws ProxyException, MalformedURLException {
+    PacScriptParser p = new JavaxPacScriptParser(
+        new TrustedPacScriptSource(new UrlPacScriptSource(toUrl("testReturnTypes.pac"))));
+    Assert.assertEquals("number boolean string",
+        p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid"));
+    Assert.assertEquals("PROXY http_proxy.unit-test.invalid:8090",
+        new JavaxPacScriptParser(new TrustedPacScriptSource(new UrlPacScriptSource(toUrl("test1.pac"))))
+            .evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid"));
+  }
+
+  /*************************************************************************
+   * Test method
+   * 
+   * @throws ProxyException
+   *           on proxy detection error.
+   * @throws MalformedURLException
+   *           on URL erros
+   ************************************************************************/
+  @Test
+  public void cpuLimitShouldBeMonitoredOnGivenExecutor() throws ProxyException, MalformedURLException {
+    final AtomicInteger tasks = new AtomicInteger();
+    ExecutorService executor = new ThreadPoolExecutor(0, 4, 10, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>()) {
+      @Override
+      public void execute(Runnable command) {
+        tasks.incrementAndGet();
+        super.execute(command);
+      }
+    };
+    try {
+      PacScriptParser p = new JavaxPacScriptParser(new UrlPacScriptSource(toUrl("test1.pac")), 5000, executor);
+      Assert.assertEquals("PROXY http_proxy.unit-test.invalid:8090",
+          p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid"));
+      Assert.assertTrue(tasks.get() > 0);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /*************************************************************************
+   * Test method
+   ************************************************************************/
+  @Test
+  public void preludeShouldDefineAllScriptMethods() {
+    String prelude = JavaxPacScriptParser.getPrelude();
+    Assert.assertSame(prelude, JavaxPacScriptParser.getPrelude());
+    for (Method method : ScriptMethods.class.getMethods()) {
+      Assert.assertTrue(method.getName(), prelude.contains(method.getName() + " = function("));
+    }
+    Assert.assertTrue(prelude.contains(JavaxPacScriptParser.EVALUATE_FUNCTION_CODE));
+    Assert.assertTrue(prelude.contains(JavaxPacScriptParser.BATCH_FUNCTION_CODE));
+  }
+
+  /*************************************************************************
+   * Test method
+   * 
+   * @throws ProxyException
+   *           on proxy detection error.
+   * @throws MalformedURLException
+   *           on URL erros
+   ************************************************************************/
+  @Test
+  public void codeCacheShouldBeWrittenToDirectory() throws ProxyException, MalformedURLException {
+    File directory = new File(this.folder.getRoot(), "codeCache");
+    String nashornDirectory = System.getProperty("nashorn.persistent.code.cache");
+    System.setProperty(JavaxPacScriptParser.OVERRIDE_CODE_CACHE_DIRECTORY, directory.getPath());
+    try {
+      Assert.assertArrayEquals(new String[] { "--persistent-code-cache" }, JavaxPacScriptParser.getEngineOptions());
+      if (nashornDirectory != null) {
+        // Configured for the whole JVM, the test cannot pick the directory
+        return;
+      }
+      PacScriptParser p = new ScriptEnginePacScriptParser(new UrlPacScriptSource(toUrl("test1.pac")), "nashorn");
+      Assert.assertEquals("PROXY http_proxy.unit-test.invalid:8090",
+          p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid"));
+      Assert.assertTrue(directory.isDirectory() && directory.list().length > 0);
+    } finally {
+      System.clearProperty(JavaxPacScriptParser.OVERRIDE_CODE_CACHE_DIRECTORY);
+      if (nashornDirectory == null) {
+        System.clearProperty("nashorn.persistent.code.cache");
+      }
+    }
+    Assert.assertEquals(0, JavaxPacScriptParser.getEngineOptions().length);
+  }
+
+  /*************************************************************************
+   * Test method
+   ************************************************************************/
+  @Test
+  public void codeCacheDirectoryOfApplicationShouldBeKept() {
+    String nashornDirectory = System.getProperty("nashorn.persistent.code.cache");
+    String applicationDirectory = new File(this.folder.getRoot(), "application").getPath();
+    System.setProperty("nashorn.persistent.code.cache", applicationDirectory);
+    System.setProperty(JavaxPacScriptParser.OVERRIDE_CODE_CACHE_DIRECTORY,
+        new File(this.folder.getRoot(), "pac").getPath());
+    try {
+      Assert.assertArrayEquals(new String[] { "--persistent-code-cache" }, JavaxPacScriptParser.getEngineOptions());
+      Assert.assertEquals(applicationDirectory, System.getProperty("nashorn.persistent.code.cache"));
+    } finally {
+      System.clearProperty(JavaxPacScriptParser.OVERRIDE_CODE_CACHE_DIRECTORY);
+      if (nashornDirectory == null) {
+        System.clearProperty("nashorn.persistent.code.cache");
+      } else {
+        System.setProperty("nashorn.persistent.code.cache", nashornDirectory);
+      }
+    }
+  }
+
+  /*************************************************************************
+   * Test method
+   * 
+   * @throws ProxyException
+   *           on proxy detection error.
+   * @throws MalformedURLException
+   *           on URL erros
+   ************************************************************************/
+  @Test
+  public void scriptShouldNotReachScriptMethodsObject() throws ProxyException, MalformedURLException {
+    PacDnsResolver resolver = DnsCache.getDefault().getResolver();
+    PacScriptParser p = new JavaxPacScriptParser(new UrlPacScriptSource(toUrl("testScriptMethodsObject.pac")));
+    Assert.assertEquals("undefined undefined undefined undefined undefined",
+        p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid"));
+    try {
+      p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "resolver.unit-test.invalid");
+      Assert.fail("DNS cache reachable from the script");
+    } catch (ProxyEvaluationException e) {
+      // Expected
+    }
+    Assert.assertSame(resolver, DnsCache.getDefault().getResolver());
+  }
+
+  /*************************************************************************
+   * Test method
+   * 
+   * @throws ProxyException
+   *           on proxy detection error.
+   * @throws MalformedURLException
+   *           on URL erros
+   ************************************************************************/
+  @Test
+  public void scriptShouldNotRestartEvaluation() throws ProxyException, MalformedURLException {
+    JavaxPacScriptParser p = new JavaxPacScriptParser(new UrlPacScriptSource(toUrl("testNestedEvaluation.pac")));
+    long[] validFor = new long[] { -1 };
+    Assert.assertEquals("DIRECT", p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid", validFor));
+    Assert.assertTrue(validFor[0] >= 0 && validFor[0] <= 86400000L);
+  }
+
+  /*************************************************************************
+   * Test method
+   * 
+   * @throws ProxyException
+   *           on proxy detection error.
+   * @throws MalformedURLException
+   *           on URL erros
+   ************************************************************************/
+  @Test(expected = ProxyEvaluationException.class)
+  public void scriptShouldNotReplaceEvaluationFunction() throws ProxyException, MalformedURLException {
+    PacScriptParser p = new JavaxPacScriptParser(new UrlPacScriptSource(toUrl("testReplaceEvaluation.pac")));
+    p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid");
+  }
+
   /*************************************************************************
    * Helper method to build the url to the given test file
    * 
@@ -0,0 +1,100 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/*****************************************************************************
+ * Tests for the cache of the local addresses returned by myIpAddress.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public class LocalAddressCacheTest {
+
+	private static final Executor SAME_THREAD = new Executor() {
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	/*************************************************************************
+	 * Cache with fake network interfaces that counts the walks.
+	 ************************************************************************/
+
+	private static class CountingLocalAddressCache extends LocalAddressCache {
+		final AtomicInteger walks = new AtomicInteger();
+
+		CountingLocalAddressCache(long refreshInterval) {
+			super(refreshInterval, SAME_THREAD);
+		}
+
+		@Override
+		protected String findLocalAddress(Class<? extends InetAddress> cl) {
+			if (Inet4Address.class.equals(cl)) {
+				return "10.0.0." + this.walks.incrementAndGet();
+			}
+			return "fe80::1";
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void addressShouldBeLoadedOnceUntilInvalidated() {
+		CountingLocalAddressCache cache = new CountingLocalAddressCache(60000);
+		PacScriptMethods methods = new PacScriptMethods(DnsCache.getDefault(), cache);
+		assertEquals("10.0.0.1", methods.myIpAddress());
+		assertEquals("10.0.0.1", methods.myIpAddress());
+		assertEquals("fe80::1", methods.myIpAddressEx());
+		assertEquals(1, cache.walks.get());
+
+		cache.invalidate();
+		assertEquals("10.0.0.2", methods.myIpAddress());
+		assertEquals(2, cache.walks.get());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws InterruptedException
+	 *             if interrupted.
+	 ************************************************************************/
+	@Test
+	public void staleAddressShouldBeRefreshed() throws InterruptedException {
+		CountingLocalAddressCache cache = new CountingLocalAddressCache(1);
+		assertEquals("10.0.0.1", cache.getIpv4Address());
+		Thread.sleep(5);
+		// The stale value is returned while the refresh runs
+		assertEquals("10.0.0.1", cache.getIpv4Address());
+		assertEquals("10.0.0.2", cache.getIpv4Address());
+
+		CountingLocalAddressCache disabled = new CountingLocalAddressCache(0);
+		disabled.getIpv4Address();
+		disabled.getIpv4Address();
+		assertEquals(2, disabled.walks.get());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void overridePropertyShouldWin() {
+		CountingLocalAddressCache cache = new CountingLocalAddressCache(60000);
+		PacScriptMethods methods = new PacScriptMethods(DnsCache.getDefault(), cache);
+		System.setProperty(PacScriptMethods.OVERRIDE_LOCAL_IP, "123.123.123.123");
+		try {
+			assertEquals("123.123.123.123", methods.myIpAddress());
+		} finally {
+			System.setProperty(PacScriptMethods.OVERRIDE_LOCAL_IP, "");
+		}
+		assertEquals("10.0.0.1", methods.myIpAddress());
+	}
+
+}
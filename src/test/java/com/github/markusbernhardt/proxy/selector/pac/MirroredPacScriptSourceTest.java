@@ -0,0 +1,182 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/*****************************************************************************
+ * Tests for the MirroredPacScriptSource.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public class MirroredPacScriptSourceTest {
+
+	private static final String SCRIPT = "function FindProxyForURL(url, host) { return \"DIRECT\"; }\n";
+
+	/*************************************************************************
+	 * Serves a script after a delay or answers with an error status.
+	 ************************************************************************/
+
+	private static class MirrorHandler implements HttpHandler {
+		volatile int status = 200;
+		volatile long delay;
+		volatile String body = SCRIPT;
+
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				Thread.sleep(this.delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			exchange.getResponseHeaders().add("Cache-Control", "max-age=0");
+			if (this.status != 200) {
+				exchange.sendResponseHeaders(this.status, -1);
+			} else {
+				byte[] bytes = this.body.getBytes("ISO-8859-1");
+				exchange.sendResponseHeaders(200, bytes.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(bytes);
+				out.close();
+			}
+			exchange.close();
+		}
+	}
+
+	private final List<HttpServer> servers = new ArrayList<HttpServer>();
+
+	/*************************************************************************
+	 * Starts an embedded HTTP server for a mirror.
+	 *
+	 * @param handler
+	 *            the handler of the mirror.
+	 * @return the URL of the script.
+	 * @throws IOException
+	 *             if the server cannot be started.
+	 ************************************************************************/
+
+	private String startMirror(MirrorHandler handler) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/proxy.pac", handler);
+		server.start();
+		this.servers.add(server);
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/proxy.pac";
+	}
+
+	/*************************************************************************
+	 * Stops the embedded HTTP servers.
+	 ************************************************************************/
+	@After
+	public void stopServers() {
+		for (HttpServer server : this.servers) {
+			server.stop(0);
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws IOException
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void slowMirrorShouldBeHedged() throws IOException {
+		MirrorHandler slow = new MirrorHandler();
+		slow.delay = 3000;
+		String slowUrl = startMirror(slow);
+		String fastUrl = startMirror(new MirrorHandler());
+
+		MirroredPacScriptSource source = new MirroredPacScriptSource(Arrays.asList(slowUrl, fastUrl), 100);
+		long start = System.currentTimeMillis();
+		assertEquals(SCRIPT, source.getScriptContent());
+		assertTrue(System.currentTimeMillis() - start < 2000);
+		assertEquals(fastUrl, source.getCurrentMirror());
+		assertEquals(fastUrl, source.getMirrorOrder().get(0));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws IOException
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void failingMirrorShouldBeSkipped() throws IOException {
+		MirrorHandler failing = new MirrorHandler();
+		failing.status = 500;
+		MirrorHandler invalid = new MirrorHandler();
+		invalid.body = "<html>Login required</html>";
+		String failingUrl = startMirror(failing);
+		String invalidUrl = startMirror(invalid);
+		String goodUrl = startMirror(new MirrorHandler());
+
+		// The hedge delay is never reached, failures ask the next mirror
+		MirroredPacScriptSource source = new MirroredPacScriptSource(Arrays.asList(failingUrl, invalidUrl, goodUrl),
+		        60000);
+		assertEquals(SCRIPT, source.getScriptContent());
+		assertEquals(goodUrl, source.getCurrentMirror());
+		assertEquals(Arrays.asList(goodUrl, failingUrl, invalidUrl), source.getMirrorOrder());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws IOException
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void allMirrorsFailingShouldThrow() throws IOException {
+		MirrorHandler failing = new MirrorHandler();
+		failing.status = 404;
+		MirroredPacScriptSource source = new MirroredPacScriptSource(
+		        Arrays.asList(startMirror(failing), startMirror(failing)), 100);
+		try {
+			source.getScriptContent();
+			fail("IOException expected");
+		} catch (IOException e) {
+			// Expected
+		}
+		assertEquals(false, source.isScriptValid());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void failingCurrentMirrorShouldBeReplaced() throws Exception {
+		MirrorHandler first = new MirrorHandler();
+		String firstUrl = startMirror(first);
+		String secondUrl = startMirror(new MirrorHandler());
+
+		MirroredPacScriptSource source = new MirroredPacScriptSource(Arrays.asList(firstUrl, secondUrl), 60000);
+		assertEquals(SCRIPT, source.getScriptContent());
+		assertEquals(firstUrl, source.getCurrentMirror());
+
+		// The script is expired, so the next lookups revalidate and fail
+		first.status = 500;
+		long timeout = System.currentTimeMillis() + 30000;
+		while (!secondUrl.equals(source.getCurrentMirror()) && System.currentTimeMillis() < timeout) {
+			assertEquals(SCRIPT, source.getScriptContent());
+			Thread.sleep(20);
+		}
+		assertEquals(secondUrl, source.getCurrentMirror());
+	}
+
+}
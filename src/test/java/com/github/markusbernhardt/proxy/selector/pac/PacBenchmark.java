@@ -0,0 +1,630 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URI;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.StringTokenizer;
+import java.util.TimeZone;
+
+import delight.nashornsandbox.NashornSandbox;
+import delight.nashornsandbox.NashornSandboxes;
+
+/*****************************************************************************
+ * Small benchmark program for the PAC evaluation. This is not a unit test, it
+ * is started manually and prints the measured values to the console.
+ *
+ * <pre>
+ * java ... PacBenchmark [rules] [iterations]
+ * </pre>
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public class PacBenchmark {
+
+	private static final String TEST_URL = "http://host42.unit-test.invalid/index.html";
+	private static final String TEST_HOST = "host42.unit-test.invalid";
+
+	private final File pacFile;
+	private final int iterations;
+
+	/*************************************************************************
+	 * Constructor
+	 *
+	 * @param pacFile
+	 *            the PAC file to run the benchmark with.
+	 * @param iterations
+	 *            the number of measured evaluations.
+	 ************************************************************************/
+
+	public PacBenchmark(File pacFile, int iterations) {
+		super();
+		this.pacFile = pacFile;
+		this.iterations = iterations;
+	}
+
+	/*************************************************************************
+	 * Compares the old "concatenate and evaluate the whole script" approach
+	 * with the compiled script that is invoked as function.
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+
+	public void runParserBenchmark() throws Exception {
+		final UrlPacScriptSource source = new UrlPacScriptSource(this.pacFile.toURI().toURL().toString());
+		final NashornSandbox legacyEngine = createLegacyEngine();
+		measure("eval script per call (before)", new Evaluation() {
+			public String evaluate() throws Exception {
+				StringBuilder script = new StringBuilder(source.getScriptContent());
+				script.append(" ;FindProxyForURL (\"" + TEST_URL + "\",\"" + TEST_HOST + "\")");
+				return (String) legacyEngine.eval(script.toString());
+			}
+		}, Math.max(1, this.iterations / 100));
+
+		final JavaxPacScriptParser parser = new JavaxPacScriptParser(source);
+		measure("invoke compiled function (after)", new Evaluation() {
+			public String evaluate() throws Exception {
+				return parser.evaluate(TEST_URL, TEST_HOST);
+			}
+		}, this.iterations);
+	}
+
+	/*************************************************************************
+	 * Compares all PAC parser backends available in this runtime. For each
+	 * backend the time to set it up and evaluate the first URL (warm-up) and
+	 * the steady state time per evaluation are printed.
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+
+	public void runEvaluatorBenchmark() throws Exception {
+		String url = this.pacFile.toURI().toURL().toString();
+		for (PacScriptParserFactory factory : PacScriptParserRegistry.getFactories()) {
+			PacScriptSource source = createSource(url, factory);
+			if (!factory.isAvailable()) {
+				System.out.println(String.format(Locale.ENGLISH, "%-40s not available", factory.getName()));
+				continue;
+			}
+			long start = System.nanoTime();
+			PacScriptParser parser = factory.createParser(source, 1);
+			parser.evaluate(TEST_URL, TEST_HOST);
+			System.out.println(String.format(Locale.ENGLISH, "%-40s %12.1f ms first evaluation", factory.getName(),
+			        (System.nanoTime() - start) / 1000000.0));
+			measureParser(factory.getName(), parser);
+		}
+	}
+
+	/*************************************************************************
+	 * Measures the time from creating a selector to the result of its first
+	 * select for the JavaScript backends. The first run includes loading the
+	 * engine classes, the following runs show the time a new engine needs in
+	 * a warm JVM, e.g. when the engine pool grows.
+	 *
+	 * @param runs
+	 *            the number of selectors to create per backend.
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+
+	public void runFirstSelectBenchmark(int runs) throws Exception {
+		String url = this.pacFile.toURI().toURL().toString();
+		URI uri = URI.create(TEST_URL);
+		PacScriptParserFactory[] factories = { StandardPacScriptParserFactory.SANDBOX,
+		        StandardPacScriptParserFactory.NASHORN };
+		for (PacScriptParserFactory factory : factories) {
+			if (!factory.isAvailable()) {
+				continue;
+			}
+			long first = 0;
+			long total = 0;
+			for (int i = 0; i < runs; i++) {
+				long start = System.nanoTime();
+				PacProxySelector selector = new PacProxySelector(createSource(url, factory), 1, factory);
+				selector.select(uri);
+				long duration = System.nanoTime() - start;
+				if (i == 0) {
+					first = duration;
+				} else {
+					total += duration;
+				}
+			}
+			System.out.println(String.format(Locale.ENGLISH, "%-40s %12.1f ms first, %8.1f ms later selectors",
+			        "first select " + factory.getName(), first / 1000000.0,
+			        total / 1000000.0 / Math.max(1, runs - 1)));
+		}
+	}
+
+	/*************************************************************************
+	 * Compares selecting the proxies for a batch of URIs one by one with
+	 * {@link PacProxySelector#selectAll(List)}. One operation is the whole
+	 * batch.
+	 *
+	 * @param batchSize
+	 *            the number of URIs per batch, every fourth one is a duplicate.
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+
+	public void runBatchBenchmark(int batchSize) throws Exception {
+		UrlPacScriptSource source = new UrlPacScriptSource(this.pacFile.toURI().toURL().toString());
+		final PacProxySelector selector = new PacProxySelector(source, 1, StandardPacScriptParserFactory.SANDBOX);
+		final List<URI> uris = new ArrayList<URI>(batchSize);
+		for (int i = 0; i < batchSize; i++) {
+			int host = i % 4 == 3 ? i - 1 : i;
+			uris.add(URI.create("http://host" + host + ".rule" + (host % 400) + ".example.invalid/index.html"));
+		}
+		int count = Math.max(1, this.iterations / 50);
+		measure("select per URI (" + batchSize + " URIs)", new Evaluation() {
+			public String evaluate() throws Exception {
+				for (URI uri : uris) {
+					selector.select(uri);
+				}
+				return null;
+			}
+		}, count);
+		measure("selectAll (" + batchSize + " URIs)", new Evaluation() {
+			public String evaluate() throws Exception {
+				selector.selectAll(uris);
+				return null;
+			}
+		}, count);
+	}
+
+	/*************************************************************************
+	 * Compares the shExpMatch implementation that tokenized the pattern on
+	 * every call with the compiled and cached patterns. One operation matches
+	 * a host against a typical set of PAC patterns.
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+
+	public void runShExpMatchBenchmark() throws Exception {
+		final String[] patterns = { "*.rule1.example.invalid", "*.rule2.example.invalid", "intranet.*",
+		        "*.corp.*.invalid", "10.*", "host??.unit-test.invalid", "*unit-test*", TEST_HOST };
+		final PacScriptMethods methods = new PacScriptMethods();
+		int count = this.iterations * 100;
+		measure("shExpMatch tokenizer (before)", new Evaluation() {
+			public String evaluate() throws Exception {
+				boolean result = false;
+				for (String pattern : patterns) {
+					result ^= legacyShExpMatch(TEST_HOST, pattern);
+				}
+				return String.valueOf(result);
+			}
+		}, count);
+		measure("shExpMatch compiled (after)", new Evaluation() {
+			public String evaluate() throws Exception {
+				boolean result = false;
+				for (String pattern : patterns) {
+					result ^= methods.shExpMatch(TEST_HOST, pattern);
+				}
+				return String.valueOf(result);
+			}
+		}, count);
+	}
+
+	/*************************************************************************
+	 * Compares isInNet and isInNetEx before and after the addresses were
+	 * parsed into primitives. One operation is one call of each with an IP
+	 * literal as host, like most PAC scripts do after dnsResolve.
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+
+	public void runIsInNetBenchmark() throws Exception {
+		final PacScriptMethods methods = new PacScriptMethods();
+		final String host = "10.13.75.47";
+		int count = this.iterations * 100;
+		measure("isInNet split/BigInteger (before)", new Evaluation() {
+			public String evaluate() throws Exception {
+				long lhost = legacyParseIp(host);
+				boolean result = (lhost & legacyParseIp("255.255.252.0")) == legacyParseIp("10.13.72.0");
+				return String.valueOf(result ^ legacyIsInNetEx(host, "10.13.72.0/22"));
+			}
+		}, count);
+		measure("isInNet primitives (after)", new Evaluation() {
+			public String evaluate() throws Exception {
+				boolean result = methods.isInNet(host, "10.13.72.0", "255.255.252.0");
+				return String.valueOf(result ^ methods.isInNetEx(host, "10.13.72.0/22"));
+			}
+		}, count);
+	}
+
+	/*************************************************************************
+	 * Compares the time functions before and after the per-evaluation time
+	 * snapshot. One operation is a weekdayRange and a timeRange call like in
+	 * a rule that sends office hours to another proxy. The clock is fixed, so
+	 * the results do not change during the run.
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+
+	public void runTimeRangeBenchmark() throws Exception {
+		final PacScriptMethods methods = new PacScriptMethods();
+		methods.setClock(Clock.fixed(Instant.parse("2016-06-15T10:30:00Z"), ZoneId.systemDefault()));
+		int count = this.iterations * 100;
+		measure("timeRange Calendar (before)", new Evaluation() {
+			public String evaluate() throws Exception {
+				boolean result = legacyWeekdayRange(1, 5);
+				return String.valueOf(result && legacyTimeRange(8, 18));
+			}
+		}, count);
+		measure("timeRange snapshot (after)", new Evaluation() {
+			public String evaluate() throws Exception {
+				methods.beginEvaluation();
+				try {
+					boolean result = methods.weekdayRange("MON", "FRI", "undefined");
+					return String.valueOf(result && methods.timeRange(8, 18, "undefined", "undefined", "undefined",
+					        "undefined", "undefined"));
+				} finally {
+					methods.endEvaluation();
+				}
+			}
+		}, count);
+	}
+
+	/*************************************************************************
+	 * Compares the conversion of the script result to proxies before and
+	 * after the parsed results were cached. One operation converts a result
+	 * with a primary and a backup proxy and a DIRECT fallback.
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+
+	public void runResultParserBenchmark() throws Exception {
+		final String pacResult = "PROXY proxy.unit-test.invalid:8080; SOCKS5 backup.unit-test.invalid:1080; DIRECT";
+		int count = this.iterations * 100;
+		measure("result split/regex (before)", new Evaluation() {
+			public String evaluate() throws Exception {
+				return legacyParsePacResult(pacResult).isEmpty() ? null : TEST_HOST;
+			}
+		}, count);
+		measure("result cached (after)", new Evaluation() {
+			public String evaluate() throws Exception {
+				return PacResultParser.parse(pacResult).isEmpty() ? null : TEST_HOST;
+			}
+		}, count);
+	}
+
+	/*************************************************************************
+	 * The conversion of the script result before it was cached.
+	 *
+	 * @param pacResult
+	 *            the semicolon separated proxy definitions.
+	 * @return the proxies.
+	 ************************************************************************/
+
+	private static List<Proxy> legacyParsePacResult(String pacResult) {
+		List<Proxy> proxies = new ArrayList<Proxy>();
+		for (String proxyDef : pacResult.split("[;]")) {
+			if (proxyDef.trim().length() == 0) {
+				continue;
+			}
+			if (proxyDef.trim().length() < 6 || proxyDef.trim().toUpperCase().startsWith("DIRECT")) {
+				proxies.add(Proxy.NO_PROXY);
+				continue;
+			}
+			String def = proxyDef.trim();
+			Proxy.Type type = def.toUpperCase().startsWith("SOCKS") ? Proxy.Type.SOCKS : Proxy.Type.HTTP;
+			String host = def.substring(6);
+			int port = 80;
+			int indexOfPort = host.indexOf(':');
+			if (indexOfPort != -1 && host.lastIndexOf(']') < indexOfPort) {
+				port = Integer.parseInt(host.substring(indexOfPort + 1).trim());
+				host = host.substring(0, indexOfPort).trim();
+			}
+			proxies.add(new Proxy(type, InetSocketAddress.createUnresolved(host, port)));
+		}
+		return proxies;
+	}
+
+	/*************************************************************************
+	 * The weekdayRange implementation before the time snapshot.
+	 *
+	 * @param from
+	 *            the first day, 0 = Sunday.
+	 * @param to
+	 *            the last day.
+	 * @return true if today is in the range.
+	 ************************************************************************/
+
+	private static boolean legacyWeekdayRange(int from, int to) {
+		Calendar cal = Calendar.getInstance(TimeZone.getDefault());
+		int currentDay = cal.get(Calendar.DAY_OF_WEEK) - 1;
+		return currentDay >= from && currentDay <= to;
+	}
+
+	/*************************************************************************
+	 * The timeRange implementation with two hours before the time snapshot.
+	 *
+	 * @param hour1
+	 *            the first hour.
+	 * @param hour2
+	 *            the last hour.
+	 * @return true if the current time is in the range.
+	 ************************************************************************/
+
+	private static boolean legacyTimeRange(int hour1, int hour2) {
+		Calendar cal = Calendar.getInstance(TimeZone.getDefault());
+		cal.set(Calendar.MILLISECOND, 0);
+		Date current = cal.getTime();
+		cal.set(Calendar.HOUR_OF_DAY, hour1);
+		cal.set(Calendar.MINUTE, 0);
+		cal.set(Calendar.SECOND, 0);
+		Date from = cal.getTime();
+		cal.set(Calendar.HOUR_OF_DAY, hour2);
+		cal.set(Calendar.MINUTE, 59);
+		cal.set(Calendar.SECOND, 59);
+		Date to = cal.getTime();
+		return current.compareTo(from) >= 0 && current.compareTo(to) <= 0;
+	}
+
+	/*************************************************************************
+	 * The IP parser of isInNet before it was made allocation free.
+	 *
+	 * @param address
+	 *            the IPv4 address.
+	 * @return the address as long.
+	 ************************************************************************/
+
+	private static long legacyParseIp(String address) {
+		long result = 0;
+		long shift = 24;
+		for (String part : address.split("\\.")) {
+			result |= (Long.parseLong(part) << shift);
+			shift -= 8;
+		}
+		return result;
+	}
+
+	/*************************************************************************
+	 * The isInNetEx implementation before the ranges were cached.
+	 *
+	 * @param ipOrHost
+	 *            the address.
+	 * @param cidr
+	 *            the range.
+	 * @return true if the address is in the range.
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+
+	private static boolean legacyIsInNetEx(String ipOrHost, String cidr) throws Exception {
+		String[] cidrParts = cidr.split("/");
+		int cidrBits = Integer.parseInt(cidrParts[1]);
+		byte[] addressBytes = InetAddress.getByName(ipOrHost).getAddress();
+		BigInteger ip = new BigInteger(addressBytes);
+		BigInteger mask = new BigInteger(new byte[] { -1, -1, -1, -1 }).shiftLeft(32 - cidrBits);
+		BigInteger lowIP = new BigInteger(InetAddress.getByName(cidrParts[0]).getAddress()).and(mask);
+		BigInteger highIP = lowIP.add(mask.not());
+		return lowIP.compareTo(ip) <= 0 && highIP.compareTo(ip) >= 0;
+	}
+
+	/*************************************************************************
+	 * The shExpMatch implementation before the patterns were compiled.
+	 *
+	 * @param str
+	 *            the string to match.
+	 * @param shexp
+	 *            the pattern.
+	 * @return true if it matches.
+	 ************************************************************************/
+
+	private static boolean legacyShExpMatch(String str, String shexp) {
+		StringTokenizer tokenizer = new StringTokenizer(shexp, "*");
+		int startPos = 0;
+		while (tokenizer.hasMoreTokens()) {
+			String token = tokenizer.nextToken();
+			int temp = str.indexOf(token, startPos);
+			if (startPos == 0 && !shexp.startsWith("*") && temp != 0) {
+				return false;
+			}
+			if (!tokenizer.hasMoreTokens() && !shexp.endsWith("*") && !str.endsWith(token)) {
+				return false;
+			}
+			if (temp == -1) {
+				return false;
+			} else {
+				startPos = temp + token.length();
+			}
+		}
+		return true;
+	}
+
+	/*************************************************************************
+	 * Creates the script source for a backend. The source is trusted for the
+	 * backends without sandbox, otherwise they fall back to the sandbox.
+	 *
+	 * @param url
+	 *            the URL of the PAC file.
+	 * @param factory
+	 *            the backend.
+	 * @return the source.
+	 ************************************************************************/
+
+	private static PacScriptSource createSource(String url, PacScriptParserFactory factory) {
+		PacScriptSource source = new UrlPacScriptSource(url);
+		if (factory == StandardPacScriptParserFactory.NASHORN || factory == StandardPacScriptParserFactory.GRAALJS) {
+			return new TrustedPacScriptSource(source);
+		}
+		return source;
+	}
+
+	/*************************************************************************
+	 * Measures the evaluations of a parser.
+	 *
+	 * @param name
+	 *            of the scenario.
+	 * @param parser
+	 *            to measure.
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+
+	protected void measureParser(String name, final PacScriptParser parser) throws Exception {
+		measure(name, new Evaluation() {
+			public String evaluate() throws Exception {
+				return parser.evaluate(TEST_URL, TEST_HOST);
+			}
+		}, this.iterations);
+	}
+
+	/*************************************************************************
+	 * Runs the given evaluation and prints time and allocation per call.
+	 *
+	 * @param name
+	 *            of the scenario.
+	 * @param evaluation
+	 *            to measure.
+	 * @param count
+	 *            number of measured calls.
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+
+	protected void measure(String name, Evaluation evaluation, int count) throws Exception {
+		// Warm up
+		for (int i = 0; i < Math.min(count, 1000); i++) {
+			evaluation.evaluate();
+		}
+
+		long bytesBefore = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			evaluation.evaluate();
+		}
+		long duration = System.nanoTime() - start;
+		long bytes = allocatedBytes() - bytesBefore;
+
+		System.out.println(String.format(Locale.ENGLISH, "%-40s %12.1f us/op %14d bytes/op", name,
+		        duration / 1000.0 / count, bytes / count));
+	}
+
+	/*************************************************************************
+	 * Gets the number of bytes allocated by the current thread if the JVM
+	 * supports to measure it.
+	 *
+	 * @return allocated bytes or 0 if not supported.
+	 ************************************************************************/
+
+	private long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+	/*************************************************************************
+	 * Sets up a sandbox the same way the parser did before the script was
+	 * compiled only once.
+	 *
+	 * @return the engine.
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+
+	private NashornSandbox createLegacyEngine() throws Exception {
+		NashornSandbox engine = NashornSandboxes.create();
+		engine.inject(JavaxPacScriptParser.SCRIPT_METHODS_OBJECT, new PacScriptMethods());
+		engine.allow(String.class);
+		engine.eval("shExpMatch = function(arg0,arg1) {return " + JavaxPacScriptParser.SCRIPT_METHODS_OBJECT
+		        + ".shExpMatch(arg0,arg1); }");
+		engine.eval("dnsDomainIs = function(arg0,arg1) {return " + JavaxPacScriptParser.SCRIPT_METHODS_OBJECT
+		        + ".dnsDomainIs(arg0,arg1); }");
+		return engine;
+	}
+
+	/*************************************************************************
+	 * Writes a large PAC file similar to the ones used in big companies. It
+	 * contains a long list of host rules and the test host is in the middle.
+	 *
+	 * @param rules
+	 *            the number of rules to generate.
+	 * @return the generated file.
+	 * @throws IOException
+	 *             on write error.
+	 ************************************************************************/
+
+	public static File createLargePacFile(int rules) throws IOException {
+		File file = File.createTempFile("benchmark", ".pac");
+		file.deleteOnExit();
+		Writer w = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			w.write("function FindProxyForURL(url, host) {\n");
+			for (int i = 0; i < rules; i++) {
+				w.write("  if (shExpMatch(host, \"*.rule" + i + ".example.invalid\")\n");
+				w.write("      || dnsDomainIs(host, \".domain" + i + ".example.invalid\")) {\n");
+				w.write("    return \"PROXY proxy" + (i % 8) + ".example.invalid:8080\";\n");
+				w.write("  }\n");
+				if (i == rules / 2) {
+					w.write("  if (dnsDomainIs(host, \".unit-test.invalid\")) {\n");
+					w.write("    return \"PROXY http_proxy.unit-test.invalid:8090\";\n");
+					w.write("  }\n");
+				}
+			}
+			w.write("  return \"DIRECT\";\n");
+			w.write("}\n");
+		} finally {
+			w.close();
+		}
+		return file;
+	}
+
+	/*************************************************************************
+	 * A single measured operation.
+	 ************************************************************************/
+
+	protected interface Evaluation {
+		public String evaluate() throws Exception;
+	}
+
+	/*************************************************************************
+	 * Main entry point for the benchmark.
+	 *
+	 * @param args
+	 *            optional number of rules and iterations.
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+
+	public static void main(String[] args) throws Exception {
+		int rules = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+
+		File pacFile = createLargePacFile(rules);
+		System.out.println("PAC file size: " + pacFile.length() / 1024 + " KB");
+		PacBenchmark benchmark = new PacBenchmark(pacFile, iterations);
+		benchmark.runFirstSelectBenchmark(10);
+		benchmark.runParserBenchmark();
+		benchmark.runEvaluatorBenchmark();
+		benchmark.runBatchBenchmark(1000);
+		benchmark.runShExpMatchBenchmark();
+		benchmark.runIsInNetBenchmark();
+		benchmark.runTimeRangeBenchmark();
+		benchmark.runResultParserBenchmark();
+	}
+
+}
@@ -0,0 +1,178 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/*****************************************************************************
+ * Tests for the DNS resolvers of the PAC functions.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public class PacDnsResolverTest {
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void customResolverShouldBeUsedByPacFunctions() {
+		PacDnsResolver stub = new PacDnsResolver() {
+			public InetAddress[] resolve(String host) throws UnknownHostException {
+				if (!"intranet.example.com".equals(host)) {
+					throw new UnknownHostException(host);
+				}
+				return new InetAddress[] { InetAddress.getByAddress(host, new byte[] { 10, 1, 2, 3 }),
+				        InetAddress.getByAddress(host, new byte[] { 10, 1, 2, 4 }) };
+			}
+		};
+		PacScriptMethods methods = new PacScriptMethods(new DnsCache(10, 60000, 60000, stub));
+		assertTrue(methods.isInNet("intranet.example.com", "10.0.0.0", "255.0.0.0"));
+		assertEquals("10.1.2.3; 10.1.2.4; ", methods.dnsResolveEx("intranet.example.com"));
+		assertFalse(methods.isResolvable("other.example.com"));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void slowLookupShouldTimeOut() {
+		final CountDownLatch release = new CountDownLatch(1);
+		JdkPacDnsResolver resolver = new JdkPacDnsResolver(100, null) {
+			@Override
+			protected InetAddress[] lookup(String host) throws UnknownHostException {
+				try {
+					release.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return super.lookup(host);
+			}
+		};
+		long start = System.currentTimeMillis();
+		try {
+			resolver.resolve("slow.example.com");
+			fail("Lookup should time out");
+		} catch (UnknownHostException e) {
+			assertTrue(System.currentTimeMillis() - start < 5000);
+		} finally {
+			release.countDown();
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void lookupsBeyondLimitShouldBeRejected() {
+		final CountDownLatch release = new CountDownLatch(1);
+		JdkPacDnsResolver resolver = new JdkPacDnsResolver(100, JdkPacDnsResolver.createExecutor(1)) {
+			@Override
+			protected InetAddress[] lookup(String host) throws UnknownHostException {
+				try {
+					release.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					// Keep the thread busy like a lookup that ignores the interrupt
+					try {
+						release.await(10, TimeUnit.SECONDS);
+					} catch (InterruptedException e2) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				throw new UnknownHostException(host);
+			}
+		};
+		try {
+			try {
+				resolver.resolve("slow.example.com");
+				fail("Lookup should time out");
+			} catch (UnknownHostException e) {
+				assertTrue(e.getMessage().contains("timed out"));
+			}
+			long start = System.currentTimeMillis();
+			try {
+				resolver.resolve("other.example.com");
+				fail("Lookup should be rejected");
+			} catch (UnknownHostException e) {
+				assertTrue(e.getMessage().contains("rejected"));
+				assertTrue(System.currentTimeMillis() - start < 1000);
+			}
+		} finally {
+			release.countDown();
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void defaultTimeoutShouldBeFinite() {
+		assertTrue(new JdkPacDnsResolver().getTimeout() > 0);
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws UnknownHostException
+	 *             on resolve error.
+	 ************************************************************************/
+	@Test
+	public void addressTypesShouldBeQueriedInParallel() throws UnknownHostException {
+		final CountDownLatch bothStarted = new CountDownLatch(2);
+		ParallelPacDnsResolver resolver = new ParallelPacDnsResolver(5000, null) {
+			@Override
+			protected List<InetAddress> query(String host, String type) throws UnknownHostException {
+				bothStarted.countDown();
+				try {
+					// Only succeeds if the other query runs at the same time
+					if (!bothStarted.await(2, TimeUnit.SECONDS)) {
+						throw new UnknownHostException("Not parallel");
+					}
+				} catch (InterruptedException e) {
+					throw new UnknownHostException("Interrupted");
+				}
+				byte[] address = "A".equals(type) ? new byte[] { 10, 0, 0, 1 }
+				        : new byte[] { 0x20, 0x01, 0x0d, (byte) 0xb8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1 };
+				return Collections.singletonList(InetAddress.getByAddress(host, address));
+			}
+
+			@Override
+			protected InetAddress[] lookup(String host) throws UnknownHostException {
+				throw new UnknownHostException("Fallback not expected");
+			}
+		};
+		InetAddress[] result = resolver.resolve("dual.example.com");
+		assertEquals(2, result.length);
+		assertEquals("10.0.0.1", result[0].getHostAddress());
+		assertEquals(16, result[1].getAddress().length);
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws UnknownHostException
+	 *             on resolve error.
+	 ************************************************************************/
+	@Test
+	public void missingRecordsShouldFallBackToJdkResolver() throws UnknownHostException {
+		ParallelPacDnsResolver resolver = new ParallelPacDnsResolver(5000, null) {
+			@Override
+			protected List<InetAddress> query(String host, String type) throws UnknownHostException {
+				return Collections.emptyList();
+			}
+		};
+		assertTrue(resolver.resolve("localhost")[0].isLoopbackAddress());
+		assertEquals("127.0.0.1", resolver.resolve("127.0.0.1")[0].getHostAddress());
+	}
+
+}
@@ -1,6 +1,7 @@
 package com.github.markusbernhardt.proxy.selector.pac;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
@@ -11,6 +12,11 @@ import java.net.Proxy.Type;
 import java.net.ProxySelector;
 import java.net.SocketAddress;
 import java.net.URI;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.junit.Test;
@@ -137,6 +143,201 @@ public class PacProxySelectorTest {
 
 	}
 
+	/*************************************************************************
+	 * Test method for the evaluation timeout.
+	 * 
+	 * @throws MalformedURLException
+	 *             on URL erros
+	 ************************************************************************/
+	@Test
+	public void timeoutShouldReturnLastResult() throws MalformedURLException {
+		SlowParserFactory factory = new SlowParserFactory();
+		PacProxySelector pacProxySelector = new PacProxySelector(new UrlPacScriptSource(toUrl("test1.pac")), 1,
+		        factory);
+		pacProxySelector.setEvaluationTimeout(200);
+		Proxy expected = new Proxy(Type.HTTP, InetSocketAddress.createUnresolved("fast.unit-test.invalid", 8080));
+		assertEquals(expected, pacProxySelector.select(TestUtil.HTTP_TEST_URI).get(0));
+
+		factory.slow = true;
+		long start = System.currentTimeMillis();
+		assertEquals(expected, pacProxySelector.select(TestUtil.HTTP_TEST_URI).get(0));
+		assertEquals(Proxy.NO_PROXY, pacProxySelector.select(URI.create("http://other.unit-test.invalid/")).get(0));
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertEquals(2, pacProxySelector.getTimeoutCount());
+	}
+
+	/*************************************************************************
+	 * Test method for the evaluation timeout.
+	 * 
+	 * @throws MalformedURLException
+	 *             on URL erros
+	 ************************************************************************/
+	@Test
+	public void timeoutShouldReturnFixedProxy() throws MalformedURLException {
+		SlowParserFactory factory = new SlowParserFactory();
+		factory.slow = true;
+		PacProxySelector pacProxySelector = new PacProxySelector(new UrlPacScriptSource(toUrl("test1.pac")), 1,
+		        factory);
+		pacProxySelector.setEvaluationTimeout(100);
+		pacProxySelector.setTimeoutFallback(PacProxySelector.TimeoutFallback.FIXED_PROXY);
+		pacProxySelector.setTimeoutFallbackProxy(TestUtil.HTTP_TEST_PROXY);
+		assertEquals(TestUtil.HTTP_TEST_PROXY, pacProxySelector.select(TestUtil.HTTP_TEST_URI).get(0));
+		assertEquals(1, pacProxySelector.getTimeoutCount());
+	}
+
+	/*************************************************************************
+	 * Test method for an evaluation that does not stop after its timeout.
+	 * 
+	 * @throws MalformedURLException
+	 *             on URL erros
+	 ************************************************************************/
+	@Test
+	public void stuckEvaluationShouldNotBlockNextSelect() throws MalformedURLException {
+		PacProxySelector pacProxySelector = new PacProxySelector(
+		        new TrustedPacScriptSource(new UrlPacScriptSource(toUrl("testLoop.pac"))), 1,
+		        StandardPacScriptParserFactory.NASHORN);
+		pacProxySelector.setEvaluationTimeout(1000);
+		pacProxySelector.setTimeoutFallback(PacProxySelector.TimeoutFallback.DIRECT);
+
+		assertEquals(Proxy.NO_PROXY, pacProxySelector.select(URI.create("http://loop.unit-test.invalid/")).get(0));
+		assertEquals(1, pacProxySelector.getStuckEvaluationCount());
+
+		Proxy expected = new Proxy(Type.HTTP, InetSocketAddress.createUnresolved("http_proxy.unit-test.invalid", 8090));
+		assertEquals(expected, pacProxySelector.select(TestUtil.HTTP_TEST_URI).get(0));
+		assertEquals(1, pacProxySelector.getTimeoutCount());
+		assertEquals(1, ((PooledPacScriptParser) pacProxySelector.getPacScriptParser()).getAbandonedCount());
+	}
+
+	/*************************************************************************
+	 * Test method for the batch selection.
+	 * 
+	 * @throws MalformedURLException
+	 *             on URL erros
+	 ************************************************************************/
+	@Test
+	public void selectAllShouldReturnResultsInInputOrder() throws MalformedURLException {
+		URI intranet = URI.create("http://www.intranet.unit-test.invalid/");
+		List<URI> uris = Arrays.asList(TestUtil.HTTP_TEST_URI, intranet, TestUtil.FTP_TEST_URI, intranet,
+		        TestUtil.HTTP_TEST_URI);
+		for (PacScriptParserFactory factory : new PacScriptParserFactory[] { StandardPacScriptParserFactory.SANDBOX,
+		        StandardPacScriptParserFactory.NASHORN }) {
+			PacProxySelector pacProxySelector = new PacProxySelector(
+			        new UrlPacScriptSource(toUrl("testEnterprise.pac")), 1, factory);
+			List<List<Proxy>> result = pacProxySelector.selectAll(uris);
+
+			assertEquals(uris.size(), result.size());
+			for (int i = 0; i < uris.size(); i++) {
+				assertEquals(pacProxySelector.select(uris.get(i)), result.get(i));
+			}
+			assertEquals(3, result.get(0).size());
+			assertEquals(Proxy.NO_PROXY, result.get(1).get(0));
+			assertEquals(Type.SOCKS, result.get(2).get(0).type());
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 * 
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void selectShouldReportValidityOfTimeBasedResults() throws Exception {
+		// 10:30 GMT, the office hours end at 18:00 GMT
+		PacScriptMethods.setDefaultClock(Clock.fixed(Instant.parse("2016-06-15T10:30:00Z"), ZoneOffset.UTC));
+		try {
+			for (PacScriptParserFactory factory : new PacScriptParserFactory[] {
+			        StandardPacScriptParserFactory.SANDBOX, StandardPacScriptParserFactory.NASHORN,
+			        StandardPacScriptParserFactory.JAVA, StandardPacScriptParserFactory.COMPILED }) {
+				PacProxySelector officeHours = new PacProxySelector(
+				        new UrlPacScriptSource(toUrl("testOfficeHours.pac")), 1, factory);
+				long[] validFor = new long[] { -1 };
+				assertEquals(TestUtil.HTTP_TEST_PROXY, officeHours.select(TestUtil.HTTP_TEST_URI, validFor).get(0));
+				assertEquals(factory.getName(), 7 * 3600000L + 1800000L, validFor[0]);
+
+				PacProxySelector noTime = new PacProxySelector(new UrlPacScriptSource(toUrl("test1.pac")), 1,
+				        factory);
+				noTime.select(TestUtil.HTTP_TEST_URI, validFor);
+				assertEquals(factory.getName(), Long.MAX_VALUE, validFor[0]);
+			}
+
+			// Sandbox with CPU limit runs the script on another thread
+			JavaxPacScriptParser limited = new JavaxPacScriptParser(
+			        new UrlPacScriptSource(toUrl("testOfficeHours.pac")), 5000, null);
+			long[] validFor = new long[1];
+			limited.evaluate(TestUtil.HTTP_TEST_URI.toString(), TestUtil.HTTP_TEST_URI.getHost(), validFor);
+			assertEquals(7 * 3600000L + 1800000L, validFor[0]);
+		} finally {
+			PacScriptMethods.setDefaultClock(null);
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 * 
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void downloadShouldOnlyBypassSelectorOnDownloadingThread() throws Exception {
+		final PacProxySelector pacProxySelector = new PacProxySelector(new UrlPacScriptSource(toUrl("test1.pac")));
+		final List<Proxy> downloadResult = new ArrayList<Proxy>();
+		final long[] downloadValidFor = new long[] { -1 };
+		PacProxySelector.beginScriptDownload();
+		try {
+			Thread other = new Thread() {
+				@Override
+				public void run() {
+					downloadResult.addAll(pacProxySelector.select(TestUtil.HTTP_TEST_URI, downloadValidFor));
+				}
+			};
+			other.start();
+			other.join();
+			List<Proxy> result = pacProxySelector.select(TestUtil.HTTP_TEST_URI, downloadValidFor);
+			assertEquals(Proxy.NO_PROXY, result.get(0));
+			assertEquals(0, downloadValidFor[0]);
+		} finally {
+			PacProxySelector.endScriptDownload();
+		}
+		assertEquals(TestUtil.HTTP_TEST_PROXY, downloadResult.get(0));
+		assertEquals(TestUtil.HTTP_TEST_PROXY, pacProxySelector.select(TestUtil.HTTP_TEST_URI).get(0));
+	}
+
+	/*************************************************************************
+	 * Parser backend that can be switched to block until it is interrupted.
+	 ************************************************************************/
+
+	private static class SlowParserFactory implements PacScriptParserFactory {
+		volatile boolean slow;
+
+		public String getName() {
+			return "slow";
+		}
+
+		public boolean isAvailable() {
+			return true;
+		}
+
+		public PacScriptParser createParser(final PacScriptSource source, int enginePoolSize) {
+			return new PacScriptParser() {
+				public PacScriptSource getScriptSource() {
+					return source;
+				}
+
+				public String evaluate(String url, String host) throws ProxyEvaluationException {
+					if (slow) {
+						try {
+							Thread.sleep(60000);
+						} catch (InterruptedException e) {
+							throw new ProxyEvaluationException("Interrupted", e);
+						}
+					}
+					return "PROXY fast.unit-test.invalid:8080";
+				}
+			};
+		}
+	}
+
 	/*************************************************************************
 	 * Helper method to build the url to the given test file
 	 * 
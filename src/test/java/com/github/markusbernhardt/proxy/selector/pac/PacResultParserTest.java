@@ -0,0 +1,81 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Proxy.Type;
+import java.util.List;
+
+import org.junit.Test;
+
+/*****************************************************************************
+ * Tests for the conversion of PAC script results to proxies.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public class PacResultParserTest {
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testAllProxyTypes() {
+		List<Proxy> proxies = PacResultParser
+		        .parse("PROXY p1:8080; HTTPS p2:8443; SOCKS s1:1080; socks4 s2:1081; SOCKS5 s3:1082; DIRECT");
+		assertEquals(6, proxies.size());
+		assertEquals(new Proxy(Type.HTTP, InetSocketAddress.createUnresolved("p1", 8080)), proxies.get(0));
+		assertEquals(new Proxy(Type.HTTP, InetSocketAddress.createUnresolved("p2", 8443)), proxies.get(1));
+		assertEquals(new Proxy(Type.SOCKS, InetSocketAddress.createUnresolved("s1", 1080)), proxies.get(2));
+		assertEquals(new Proxy(Type.SOCKS, InetSocketAddress.createUnresolved("s2", 1081)), proxies.get(3));
+		assertEquals(new Proxy(Type.SOCKS, InetSocketAddress.createUnresolved("s3", 1082)), proxies.get(4));
+		assertEquals(Proxy.NO_PROXY, proxies.get(5));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testWhitespaceAndDefaultPort() {
+		List<Proxy> proxies = PacResultParser.parse("  PROXY  p1 : 8080 ;;\tPROXY p2 ; PROXY [::1]:3128;");
+		assertEquals(3, proxies.size());
+		assertEquals(new Proxy(Type.HTTP, InetSocketAddress.createUnresolved("p1", 8080)), proxies.get(0));
+		assertEquals(new Proxy(Type.HTTP, InetSocketAddress.createUnresolved("p2", 80)), proxies.get(1));
+		assertEquals(new Proxy(Type.HTTP, InetSocketAddress.createUnresolved("[::1]", 3128)), proxies.get(2));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testInvalidEntriesAreSkipped() {
+		List<Proxy> proxies = PacResultParser.parse("PROXY p1:99999; UNKNOWN p2:80; PROXY p3:x; PROXY p4:81");
+		assertEquals(1, proxies.size());
+		assertEquals(new Proxy(Type.HTTP, InetSocketAddress.createUnresolved("p4", 81)), proxies.get(0));
+
+		assertEquals(Proxy.NO_PROXY, PacResultParser.parse("PROXY").get(0));
+		assertTrue(PacResultParser.parse(" ").isEmpty());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testRepeatedResultReturnsSameList() {
+		String result = "PROXY p1:8080; DIRECT";
+		List<Proxy> proxies = PacResultParser.parse(result);
+		assertSame(proxies, PacResultParser.parse(new String(result)));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test(expected = UnsupportedOperationException.class)
+	public void testResultIsImmutable() {
+		PacResultParser.parse("PROXY p1:8080; PROXY p2:8080").clear();
+	}
+
+}
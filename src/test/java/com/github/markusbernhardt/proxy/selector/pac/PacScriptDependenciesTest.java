@@ -0,0 +1,185 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URI;
+
+import org.junit.Test;
+
+import com.github.markusbernhardt.proxy.TestUtil;
+import com.github.markusbernhardt.proxy.selector.misc.BufferedProxySelector;
+import com.github.markusbernhardt.proxy.selector.misc.BufferedProxySelector.CacheScope;
+
+/*****************************************************************************
+ * Tests for the static analysis of PAC script dependencies.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public class PacScriptDependenciesTest {
+
+	/*************************************************************************
+	 * Script source whose content can be changed by the test.
+	 ************************************************************************/
+
+	private static class MutableScriptSource implements PacScriptSource {
+		volatile String content;
+
+		MutableScriptSource(String content) {
+			this.content = content;
+		}
+
+		public String getScriptContent() throws IOException {
+			return this.content;
+		}
+
+		public boolean isScriptValid() {
+			return true;
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws IOException
+	 *             on read error.
+	 ************************************************************************/
+	@Test
+	public void testPureScript() throws IOException {
+		PacScriptDependencies dependencies = analyze("test1.pac");
+		assertTrue(dependencies.isAnalyzed());
+		assertTrue(dependencies.isPure());
+		assertFalse(dependencies.usesUrl());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws IOException
+	 *             on read error.
+	 ************************************************************************/
+	@Test
+	public void testScriptUsingUrlAndDns() throws IOException {
+		PacScriptDependencies dependencies = analyze("testEnterprise.pac");
+		assertTrue(dependencies.isAnalyzed());
+		assertTrue(dependencies.usesUrl());
+		assertTrue(dependencies.usesDns());
+		assertFalse(dependencies.usesLocalAddress());
+		assertFalse(dependencies.usesTime());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws IOException
+	 *             on read error.
+	 ************************************************************************/
+	@Test
+	public void testScriptUsingLocalAddressAndTime() throws IOException {
+		assertTrue(analyze("testLocalIP.pac").usesLocalAddress());
+		assertFalse(analyze("testLocalIP.pac").isPure());
+		assertTrue(analyze("testTimeRange.pac").usesTime());
+		assertFalse(analyze("testTimeRange.pac").usesDns());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testDependenciesOfHelperFunctions() {
+		PacScriptDependencies dependencies = PacScriptDependencies
+		        .analyze("function isLocal(h) { return isResolvable(h); }\n"
+		                + "function FindProxyForURL(url, host) { var u = 1; return isLocal(host) ? \"DIRECT\" : \"PROXY p:80\"; }");
+		assertTrue(dependencies.isAnalyzed());
+		assertTrue(dependencies.usesDns());
+		assertFalse(dependencies.usesUrl());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws IOException
+	 *             on read error.
+	 ************************************************************************/
+	@Test
+	public void testUnsupportedScriptIsNotAnalyzed() throws IOException {
+		PacScriptDependencies dependencies = analyze("testRemoteCodeExecution.pac");
+		assertFalse(dependencies.isAnalyzed());
+		assertTrue(dependencies.usesUrl());
+		assertFalse(dependencies.isPure());
+		assertFalse(PacScriptDependencies.analyze(null).isAnalyzed());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void selectorShouldTrackScriptChanges() {
+		MutableScriptSource source = new MutableScriptSource(
+		        "function FindProxyForURL(url, host) { return \"DIRECT\"; }");
+		PacProxySelector selector = new PacProxySelector(source);
+		long version = selector.getResultVersion();
+		assertTrue(selector.getScriptDependencies().isPure());
+		assertEquals(version, selector.getResultVersion());
+
+		source.content = "function FindProxyForURL(url, host) { return \"PROXY \" + myIpAddress() + \":80\"; }";
+		assertEquals(version + 1, selector.getResultVersion());
+		assertTrue(selector.getScriptDependencies().usesLocalAddress());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void automaticCachingShouldFollowScriptChanges() {
+		MutableScriptSource source = new MutableScriptSource(
+		        "function FindProxyForURL(url, host) { return \"PROXY a.unit-test.invalid:8080\"; }");
+		PacProxySelector pacSelector = new PacProxySelector(source, 1, StandardPacScriptParserFactory.JAVA);
+		pacSelector.setAutomaticCacheTtl(60000);
+		BufferedProxySelector selector = new BufferedProxySelector(100, Long.MAX_VALUE, pacSelector,
+		        CacheScope.CACHE_SCOPE_HOST);
+		URI first = URI.create("http://www.unit-test.invalid/a");
+		URI second = URI.create("http://www.unit-test.invalid/b");
+		Proxy a = new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved("a.unit-test.invalid", 8080));
+		Proxy b = new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved("b.unit-test.invalid", 8080));
+
+		assertEquals(CacheScope.CACHE_SCOPE_HOST, pacSelector.getCacheScope());
+		long[] validFor = new long[] { Long.MAX_VALUE };
+		pacSelector.select(first, validFor);
+		assertEquals(Long.MAX_VALUE, validFor[0]);
+		assertEquals(a, selector.select(first).get(0));
+
+		// The new script reads the URL and the local address
+		source.content = "function FindProxyForURL(url, host) { var ip = myIpAddress();\n"
+		        + " if (url.indexOf(\"/b\") != -1) return \"PROXY b.unit-test.invalid:8080\";\n"
+		        + " return \"PROXY a.unit-test.invalid:8080\"; }";
+		assertEquals(CacheScope.CACHE_SCOPE_URL, pacSelector.getCacheScope());
+		assertEquals(a, selector.select(first).get(0));
+		assertEquals(b, selector.select(second).get(0));
+		validFor[0] = Long.MAX_VALUE;
+		pacSelector.select(first, validFor);
+		assertEquals(60000, validFor[0]);
+	}
+
+	/*************************************************************************
+	 * Analyzes a PAC file of the test data.
+	 *
+	 * @param testFile
+	 *            the file name.
+	 * @return the dependencies.
+	 * @throws IOException
+	 *             on read error.
+	 ************************************************************************/
+
+	private PacScriptDependencies analyze(String testFile) throws IOException {
+		String url = new File(TestUtil.TEST_DATA_FOLDER + "pac", testFile).toURI().toURL().toString();
+		return PacScriptDependencies.analyze(new UrlPacScriptSource(url).getScriptContent());
+	}
+
+}
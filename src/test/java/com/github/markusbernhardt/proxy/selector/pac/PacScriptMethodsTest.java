@@ -3,11 +3,18 @@ package com.github.markusbernhardt.proxy.selector.pac;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.util.Calendar;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.Test;
 
@@ -122,6 +129,28 @@ public class PacScriptMethodsTest {
 		assertEquals(false, buildParser().isInNetEx("3ffe:8312:ffff:1111:0:0:0:0", "3ffe:8311:ffff::/48"));
 	}
 
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testIsInNetEdgeCases() {
+		PacScriptMethods methods = buildParser();
+		assertEquals(true, methods.isInNet("10.1.2.3", "0.0.0.0", "0.0.0.0"));
+		assertEquals(true, methods.isInNet("255.255.255.255", "255.255.255.0", "255.255.255.0"));
+		assertEquals(false, methods.isInNet("10.1.2.3", "10.1.2", "255.255.255.0"));
+		assertEquals(false, methods.isInNet("10.1.2.3", "10.1.2.0", "invalid"));
+		assertEquals(false, methods.isInNet("", "10.0.0.0", "255.0.0.0"));
+		assertEquals(true, methods.isInNet("localhost", "127.0.0.0", "255.0.0.0"));
+
+		assertEquals(true, methods.isInNetEx("10.1.2.3", "0.0.0.0/0"));
+		assertEquals(true, methods.isInNetEx("10.1.2.3", "10.1.2.0/23"));
+		assertEquals(false, methods.isInNetEx("10.1.4.3", "10.1.2.0/23"));
+		assertEquals(false, methods.isInNetEx("10.1.2.3", "3ffe:8311:ffff::/48"));
+		assertEquals(false, methods.isInNetEx("3ffe:8311:ffff::", "10.0.0.0/8"));
+		assertEquals(false, methods.isInNetEx("10.1.2.3", "10.0.0.0/33"));
+		assertEquals(false, methods.isInNetEx("10.1.2.3", "10.0.0.0"));
+	}
+
 	/*************************************************************************
 	 * Test Method sortIpAddressList(2001:4898:28:3:201:2ff:feea:fc14;
 	 * 157.59.139.22; fe80::5efe:157.59.139.22"); returns
@@ -193,6 +222,27 @@ public class PacScriptMethodsTest {
 		assertEquals(false, buildParser().shExpMatch("202.310.65.6", "*.65"));
 	}
 
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testShExpMatchWildcards() {
+		PacScriptMethods methods = buildParser();
+		assertEquals(true, methods.shExpMatch("host1.unit-test.invalid", "host?.unit-test.invalid"));
+		assertEquals(false, methods.shExpMatch("host12.unit-test.invalid", "host?.unit-test.invalid"));
+		assertEquals(true, methods.shExpMatch("http://a.b.c/d/e", "http://*/*/?"));
+		assertEquals(true, methods.shExpMatch("abcabc", "*abc"));
+		assertEquals(true, methods.shExpMatch("aXbYb", "a*b*b"));
+		assertEquals(false, methods.shExpMatch("ab", "a*b*b"));
+		assertEquals(false, methods.shExpMatch("aba", "ab*ba"));
+		assertEquals(true, methods.shExpMatch("abba", "ab**ba"));
+		assertEquals(true, methods.shExpMatch("anything", "*"));
+		assertEquals(true, methods.shExpMatch("exact.unit-test.invalid", "exact.unit-test.invalid"));
+		assertEquals(false, methods.shExpMatch("exact.unit-test.invalid", "exact.unit-test"));
+		assertEquals(true, methods.shExpMatch("www.unit-test.invalid", "*unit-test*"));
+		assertEquals(false, methods.shExpMatch("x", "??"));
+	}
+
 	/*************************************************************************
 	 * Test method
 	 ************************************************************************/
@@ -242,4 +292,120 @@ public class PacScriptMethodsTest {
 		assertEquals(false, buildParser().timeRange(12, 50, 00, 9, 30, 00, "GMT"));
 	}
 
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testTimeRangeOverMidnight() {
+		PacScriptMethods methods = new PacScriptMethods();
+		// 23:30 and 00:30 GMT are both in a range from 22:00 to 02:00
+		methods.setClock(Clock.fixed(Instant.parse("1994-12-15T23:30:00Z"), ZoneOffset.UTC));
+		assertTrue(methods.timeRange(22, 2, "GMT", "undefined", "undefined", "undefined", "undefined"));
+		methods.setClock(Clock.fixed(Instant.parse("1994-12-16T00:30:00Z"), ZoneOffset.UTC));
+		assertTrue(methods.timeRange(22, 2, "GMT", "undefined", "undefined", "undefined", "undefined"));
+		methods.setClock(Clock.fixed(Instant.parse("1994-12-16T12:00:00Z"), ZoneOffset.UTC));
+		assertFalse(methods.timeRange(22, 2, "GMT", "undefined", "undefined", "undefined", "undefined"));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testClockZoneAndGmt() {
+		PacScriptMethods methods = new PacScriptMethods();
+		// Friday 1 January 2016 03:00 GMT is Thursday 31 December 2015 in
+		// New York
+		methods.setClock(Clock.fixed(Instant.parse("2016-01-01T03:00:00Z"), ZoneId.of("America/New_York")));
+		assertTrue(methods.weekdayRange("THU", "undefined", "undefined"));
+		assertTrue(methods.weekdayRange("FRI", "GMT", "undefined"));
+		assertTrue(methods.dateRange(31, "DEC", 2015, "undefined", "undefined", "undefined", "undefined"));
+		assertTrue(methods.dateRange(1, "JAN", 2016, "undefined", "undefined", "undefined", "GMT"));
+		assertTrue(methods.timeRange(22, "undefined", "undefined", "undefined", "undefined", "undefined",
+		        "undefined"));
+		assertTrue(methods.timeRange(3, "GMT", "undefined", "undefined", "undefined", "undefined", "undefined"));
+		// Leap day
+		methods.setClock(Clock.fixed(Instant.parse("2016-02-29T12:00:00Z"), ZoneOffset.UTC));
+		assertTrue(methods.dateRange(29, "FEB", "undefined", "undefined", "undefined", "undefined", "undefined"));
+		assertTrue(methods.dateRange("JAN", "MAR", "undefined", "undefined", "undefined", "undefined", "undefined"));
+		assertFalse(methods.dateRange("MAR", "NOV", "undefined", "undefined", "undefined", "undefined", "undefined"));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testTimeIsTakenOncePerEvaluation() {
+		final AtomicLong now = new AtomicLong(Instant.parse("1994-12-15T12:59:59Z").toEpochMilli());
+		final AtomicInteger reads = new AtomicInteger();
+		// Moves one second forward on every read
+		Clock ticking = new Clock() {
+			@Override
+			public ZoneId getZone() {
+				return ZoneOffset.UTC;
+			}
+
+			@Override
+			public Clock withZone(ZoneId zone) {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public Instant instant() {
+				reads.incrementAndGet();
+				return Instant.ofEpochMilli(now.getAndAdd(1000));
+			}
+		};
+		PacScriptMethods methods = new PacScriptMethods();
+		methods.setClock(ticking);
+
+		methods.beginEvaluation();
+		try {
+			for (int i = 0; i < 5; i++) {
+				assertTrue(methods.timeRange(12, "undefined", "undefined", "undefined", "undefined", "undefined",
+				        "undefined"));
+				assertTrue(methods.weekdayRange("THU", "undefined", "undefined"));
+			}
+		} finally {
+			methods.endEvaluation();
+		}
+		assertEquals(1, reads.get());
+
+		// Outside of an evaluation every call reads the clock
+		assertFalse(methods.timeRange(12, "undefined", "undefined", "undefined", "undefined", "undefined",
+		        "undefined"));
+		assertEquals(2, reads.get());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void testValidityOfTimeFunctions() {
+		PacScriptMethods methods = new PacScriptMethods();
+		methods.setClock(Clock.fixed(Instant.parse("2016-06-15T10:30:00Z"), ZoneOffset.UTC));
+
+		methods.beginEvaluation();
+		methods.isPlainHostName("host");
+		assertEquals(Long.MAX_VALUE, methods.endEvaluation());
+
+		// weekdayRange and dateRange change at midnight
+		methods.beginEvaluation();
+		methods.weekdayRange("MON", "FRI", "undefined");
+		assertEquals(13 * 3600000L + 1800000L, methods.endEvaluation());
+
+		// timeRange changes at its start or after its end, whatever is first
+		methods.beginEvaluation();
+		methods.dateRange("JUN", "undefined", "undefined", "undefined", "undefined", "undefined", "undefined");
+		methods.timeRange(8, 17, "undefined", "undefined", "undefined", "undefined", "undefined");
+		assertEquals(7 * 3600000L + 1800000L, methods.endEvaluation());
+
+		methods.beginEvaluation();
+		methods.timeRange(11, 45, 12, 0, "undefined", "undefined", "undefined");
+		assertEquals(75 * 60000L, methods.endEvaluation());
+
+		methods.beginEvaluation();
+		methods.timeRange(9, 0, 0, 10, 29, 59, "undefined");
+		assertEquals(22 * 3600000L + 1800000L, methods.endEvaluation());
+	}
+
 }
@@ -0,0 +1,175 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Proxy;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.github.markusbernhardt.proxy.TestUtil;
+import com.github.markusbernhardt.proxy.util.ProxyException;
+
+/*****************************************************************************
+ * Tests for the registry of PAC script parser backends.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public class PacScriptParserRegistryTest {
+
+	/*************************************************************************
+	 * Resets the engine selection.
+	 ************************************************************************/
+	@After
+	public void cleanup() {
+		PacScriptParserRegistry.setDefaultEngine(null);
+		System.clearProperty(PacProxySelector.OVERRIDE_ENGINE);
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void standardBackendsShouldBeRegistered() {
+		for (String name : new String[] { PacProxySelector.ENGINE_JAVAX, PacProxySelector.ENGINE_NASHORN,
+		        PacProxySelector.ENGINE_GRAALJS, PacProxySelector.ENGINE_JAVA, PacProxySelector.ENGINE_COMPILED }) {
+			assertEquals(name, PacScriptParserRegistry.getFactory(name).getName());
+		}
+		assertSame(PacScriptParserRegistry.getFactory("java"), PacScriptParserRegistry.getFactory(" JAVA "));
+		assertNull(PacScriptParserRegistry.getFactory("unknown"));
+		assertTrue(PacScriptParserRegistry.getFactory(PacProxySelector.ENGINE_JAVA).isAvailable());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void engineShouldBeSelectedByPropertyOrApi() {
+		assertSame(StandardPacScriptParserFactory.SANDBOX, PacScriptParserRegistry.getDefaultFactory());
+
+		System.setProperty(PacProxySelector.OVERRIDE_ENGINE, PacProxySelector.ENGINE_JAVA);
+		assertSame(StandardPacScriptParserFactory.JAVA, PacScriptParserRegistry.getDefaultFactory());
+
+		PacScriptParserRegistry.setDefaultEngine(PacProxySelector.ENGINE_COMPILED);
+		assertSame(StandardPacScriptParserFactory.COMPILED, PacScriptParserRegistry.getDefaultFactory());
+
+		PacScriptParserRegistry.setDefaultEngine("unknown");
+		assertSame(StandardPacScriptParserFactory.SANDBOX, PacScriptParserRegistry.getDefaultFactory());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws ProxyException
+	 *             on proxy detection error.
+	 * @throws MalformedURLException
+	 *             on URL erros
+	 ************************************************************************/
+	@Test
+	public void customBackendShouldBeUsedBySelector() throws ProxyException, MalformedURLException {
+		PacScriptParserRegistry.register(new PacScriptParserFactory() {
+			public String getName() {
+				return "unit-test";
+			}
+
+			public boolean isAvailable() {
+				return true;
+			}
+
+			public PacScriptParser createParser(final PacScriptSource source, int enginePoolSize) {
+				return new PacScriptParser() {
+					public PacScriptSource getScriptSource() {
+						return source;
+					}
+
+					public String evaluate(String url, String host) {
+						return "PROXY custom.unit-test.invalid:8080";
+					}
+				};
+			}
+		});
+		assertTrue(PacScriptParserRegistry.getFactories().contains(PacScriptParserRegistry.getFactory("unit-test")));
+
+		PacScriptParserRegistry.setDefaultEngine("unit-test");
+		PacProxySelector selector = new PacProxySelector(new UrlPacScriptSource(toUrl("test2.pac")));
+		List<Proxy> result = selector.select(TestUtil.HTTP_TEST_URI);
+		assertEquals("custom.unit-test.invalid", ((InetSocketAddress) result.get(0).address()).getHostName());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws ProxyException
+	 *             on proxy detection error.
+	 * @throws MalformedURLException
+	 *             on URL erros
+	 ************************************************************************/
+	@Test
+	public void allAvailableBackendsShouldGiveSameResult() throws ProxyException, MalformedURLException {
+		UrlPacScriptSource source = new UrlPacScriptSource(toUrl("test1.pac"));
+		for (PacScriptParserFactory factory : PacScriptParserRegistry.getFactories()) {
+			if (factory instanceof StandardPacScriptParserFactory && factory.isAvailable()) {
+				PacScriptParser parser = factory.createParser(source, 2);
+				assertEquals(factory.getName(), "PROXY http_proxy.unit-test.invalid:8090",
+				        parser.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid"));
+			}
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws ProxyException
+	 *             on proxy detection error.
+	 ************************************************************************/
+	@Test
+	public void untrustedScriptShouldKeepSandbox() throws ProxyException {
+		PacScriptSource source = new PacScriptSource() {
+			public String getScriptContent() {
+				return "function FindProxyForURL(url, host) { return String(java.lang.System.getProperty(\"java.version\")); }";
+			}
+
+			public boolean isScriptValid() {
+				return true;
+			}
+		};
+		String url = TestUtil.HTTP_TEST_URI.toString();
+		for (PacScriptParserFactory factory : new PacScriptParserFactory[] { StandardPacScriptParserFactory.NASHORN,
+		        StandardPacScriptParserFactory.GRAALJS }) {
+			if (!factory.isAvailable()) {
+				continue;
+			}
+			try {
+				factory.createParser(source, 1).evaluate(url, "host1.unit-test.invalid");
+				fail("Java access of untrusted script with " + factory.getName());
+			} catch (ProxyEvaluationException e) {
+				// Expected, the sandbox denies access to Java classes
+			}
+			assertEquals(System.getProperty("java.version"), factory
+			        .createParser(new TrustedPacScriptSource(source), 1).evaluate(url, "host1.unit-test.invalid"));
+		}
+	}
+
+	/*************************************************************************
+	 * Helper method to build the url to the given test file
+	 *
+	 * @param testFile
+	 *            the name of the test file.
+	 * @return the URL.
+	 * @throws MalformedURLException
+	 ************************************************************************/
+
+	private String toUrl(String testFile) throws MalformedURLException {
+		return new File(TestUtil.TEST_DATA_FOLDER + "pac", testFile).toURI().toURL().toString();
+	}
+
+}
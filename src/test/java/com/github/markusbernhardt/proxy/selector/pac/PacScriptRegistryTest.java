@@ -0,0 +1,212 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URI;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/*****************************************************************************
+ * Tests for the PacScriptRegistry.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public class PacScriptRegistryTest {
+
+	private static final String SCRIPT = "function FindProxyForURL(url, host) { return \"DIRECT\"; }\n";
+
+	/*************************************************************************
+	 * Serves a script and counts the downloads.
+	 ************************************************************************/
+
+	private static class ScriptHandler implements HttpHandler {
+		final String body;
+		volatile int requests;
+
+		ScriptHandler(String body) {
+			this.body = body;
+		}
+
+		public void handle(HttpExchange exchange) throws IOException {
+			this.requests++;
+			exchange.getResponseHeaders().add("Cache-Control", "max-age=3600");
+			byte[] bytes = this.body.getBytes("ISO-8859-1");
+			exchange.sendResponseHeaders(200, bytes.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(bytes);
+			out.close();
+			exchange.close();
+		}
+	}
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private HttpServer server;
+	private ScriptHandler proxyPac;
+	private ScriptHandler wpadDat;
+	private String baseUrl;
+
+	/*************************************************************************
+	 * Starts the embedded HTTP server.
+	 *
+	 * @throws IOException
+	 *             if the server cannot be started.
+	 ************************************************************************/
+	@Before
+	public void startServer() throws IOException {
+		this.proxyPac = new ScriptHandler(SCRIPT);
+		this.wpadDat = new ScriptHandler(SCRIPT);
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		this.server.createContext("/proxy.pac", this.proxyPac);
+		this.server.createContext("/wpad.dat", this.wpadDat);
+		this.server.createContext("/invalid.pac", new ScriptHandler("<html></html>"));
+		this.server.start();
+		this.baseUrl = "http://127.0.0.1:" + this.server.getAddress().getPort();
+	}
+
+	/*************************************************************************
+	 * Stops the embedded HTTP server.
+	 ************************************************************************/
+	@After
+	public void stopServer() {
+		this.server.stop(0);
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void selectorsForSameUrlShouldShareScript() {
+		PacScriptRegistry registry = new PacScriptRegistry(60000);
+		PacProxySelector first = registry.getSelector(this.baseUrl + "/proxy.pac");
+		PacProxySelector second = registry.getSelector(this.baseUrl + "/proxy.pac");
+
+		assertNotSame(first, second);
+		assertSame(first.getPacScriptParser(), second.getPacScriptParser());
+		assertEquals(1, this.proxyPac.requests);
+		assertEquals(1, registry.size());
+		assertEquals(Proxy.NO_PROXY, second.select(URI.create("http://www.example.com/")).get(0));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void urlsWithSameScriptShouldShareParser() {
+		PacScriptRegistry registry = new PacScriptRegistry(60000);
+		PacProxySelector first = registry.getSelector(this.baseUrl + "/proxy.pac");
+		PacProxySelector second = registry.getSelector(this.baseUrl + "/wpad.dat");
+		PacProxySelector third = registry.getSelector(this.baseUrl + "/wpad.dat");
+
+		assertNotSame(first.getPacScriptParser(), second.getPacScriptParser());
+		assertSame(second.getPacScriptParser(), third.getPacScriptParser());
+		assertEquals(1, this.wpadDat.requests);
+		assertEquals(2, registry.size());
+		assertEquals(1, registry.getParserCount());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void urlShouldFollowOnlyItsOwnScript() throws Exception {
+		File first = this.folder.newFile("first.pac");
+		File second = this.folder.newFile("second.pac");
+		write(first, SCRIPT);
+		write(second, SCRIPT);
+		PacScriptRegistry registry = new PacScriptRegistry(60000);
+		PacProxySelector firstSelector = registry.getSelector(first.toURI().toString());
+		PacProxySelector secondSelector = registry.getSelector(second.toURI().toString());
+		assertEquals(1, registry.getParserCount());
+
+		write(second, "function FindProxyForURL(url, host) { return \"PROXY second.unit-test.invalid:8080\"; }\n");
+		URI uri = URI.create("http://www.example.com/");
+		Proxy expected = new Proxy(Proxy.Type.HTTP,
+		        InetSocketAddress.createUnresolved("second.unit-test.invalid", 8080));
+		long end = System.currentTimeMillis() + 10000;
+		while (!expected.equals(secondSelector.select(uri).get(0)) && System.currentTimeMillis() < end) {
+			Thread.sleep(50);
+		}
+		assertEquals(expected, secondSelector.select(uri).get(0));
+		assertEquals(Proxy.NO_PROXY, firstSelector.select(uri).get(0));
+		assertEquals(2, registry.getParserCount());
+		firstSelector.close();
+		secondSelector.close();
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws IOException
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void unusedEntryShouldBeEvicted() throws IOException {
+		PacScriptRegistry registry = new PacScriptRegistry(0);
+		PacProxySelector first = registry.getSelector(this.baseUrl + "/proxy.pac");
+		PacProxySelector second = registry.getSelector(this.baseUrl + "/proxy.pac");
+
+		first.close();
+		first.close();
+		assertEquals(1, registry.size());
+		second.close();
+		assertEquals(0, registry.size());
+
+		PacProxySelector third = registry.getSelector(this.baseUrl + "/proxy.pac");
+		assertNotSame(second.getPacScriptParser(), third.getPacScriptParser());
+		assertEquals(2, this.proxyPac.requests);
+	}
+
+	/*************************************************************************
+	 * Test method
+	 ************************************************************************/
+	@Test
+	public void invalidScriptShouldNotBeRegistered() {
+		PacScriptRegistry registry = new PacScriptRegistry(60000);
+		assertNull(registry.getSelector(this.baseUrl + "/invalid.pac"));
+		assertEquals(0, registry.size());
+	}
+
+	/*************************************************************************
+	 * Writes a script file.
+	 *
+	 * @param file
+	 *            the file.
+	 * @param script
+	 *            the content.
+	 * @throws IOException
+	 *             on write error.
+	 ************************************************************************/
+
+	private static void write(File file, String script) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(script.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+}
@@ -0,0 +1,89 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.github.markusbernhardt.proxy.TestUtil;
+
+/*****************************************************************************
+ * Tests for the pool of PAC script engines.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public class PooledPacScriptParserTest {
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void concurrentEvaluationsShouldNotExceedPoolSize() throws Exception {
+		final PooledPacScriptParser parser = new PooledPacScriptParser(new UrlPacScriptSource(toUrl("test1.pac")),
+		        2);
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for (int i = 0; i < 200; i++) {
+				results.add(executor.submit(new Callable<String>() {
+					public String call() throws Exception {
+						return parser.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid");
+					}
+				}));
+			}
+			for (Future<String> result : results) {
+				assertEquals("PROXY http_proxy.unit-test.invalid:8090", result.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		assertTrue(parser.getSize() <= 2);
+		assertEquals(200, parser.getEvaluationCount());
+		assertTrue(parser.getTotalWaitTimeNanos() >= parser.getMaxWaitTimeNanos());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws Exception
+	 *             on error.
+	 ************************************************************************/
+	@Test
+	public void sequentialEvaluationsShouldReuseOneEngine() throws Exception {
+		PooledPacScriptParser parser = new PooledPacScriptParser(new UrlPacScriptSource(toUrl("test2.pac")), 4);
+		for (int i = 0; i < 10; i++) {
+			assertEquals("DIRECT", parser.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid"));
+		}
+		assertEquals(1, parser.getSize());
+		assertEquals(0, parser.getWaitCount());
+	}
+
+	/*************************************************************************
+	 * Helper method to build the url to the given test file
+	 *
+	 * @param testFile
+	 *            the name of the test file.
+	 * @return the URL.
+	 * @throws MalformedURLException
+	 ************************************************************************/
+
+	private String toUrl(String testFile) throws MalformedURLException {
+		return new File(TestUtil.TEST_DATA_FOLDER + "pac", testFile).toURI().toURL().toString();
+	}
+
+}
@@ -0,0 +1,225 @@
+package com.github.markusbernhardt.proxy.selector.pac;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+
+import org.junit.Test;
+
+import com.github.markusbernhardt.proxy.TestUtil;
+import com.github.markusbernhardt.proxy.util.ProxyException;
+
+/*****************************************************************************
+ * Tests for the PAC script parser that evaluates scripts in Java.
+ *
+ * @author Markus Bernhardt, Copyright 2016
+ ****************************************************************************/
+
+public class PureJavaPacScriptParserTest {
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws ProxyException
+	 *             on proxy detection error.
+	 * @throws MalformedURLException
+	 *             on URL erros
+	 ************************************************************************/
+	@Test
+	public void testScriptExecution() throws ProxyException, MalformedURLException {
+		PureJavaPacScriptParser p = new PureJavaPacScriptParser(new UrlPacScriptSource(toUrl("test1.pac")));
+		assertEquals("PROXY http_proxy.unit-test.invalid:8090",
+		        p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid"));
+		assertTrue(p.isScriptSupported());
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws ProxyException
+	 *             on proxy detection error.
+	 * @throws MalformedURLException
+	 *             on URL erros
+	 ************************************************************************/
+	@Test
+	public void testCommentsInScript() throws ProxyException, MalformedURLException {
+		PureJavaPacScriptParser p = new PureJavaPacScriptParser(new UrlPacScriptSource(toUrl("test2.pac")));
+		assertEquals("DIRECT", p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid"));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws ProxyException
+	 *             on proxy detection error.
+	 * @throws MalformedURLException
+	 *             on URL erros
+	 ************************************************************************/
+	@Test
+	public void testDateAndTimeScripts() throws ProxyException, MalformedURLException {
+		for (String script : new String[] { "testWeekDay.pac", "testDateRange.pac", "testTimeRange.pac" }) {
+			PureJavaPacScriptParser p = new PureJavaPacScriptParser(new UrlPacScriptSource(toUrl(script)));
+			assertEquals("DIRECT", p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid"));
+			assertTrue(p.isScriptSupported());
+		}
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws ProxyException
+	 *             on proxy detection error.
+	 * @throws MalformedURLException
+	 *             on URL erros
+	 ************************************************************************/
+	@Test
+	public void methodsShouldReturnJsTypes() throws ProxyException, MalformedURLException {
+		PureJavaPacScriptParser p = new PureJavaPacScriptParser(new UrlPacScriptSource(toUrl("testReturnTypes.pac")));
+		assertEquals("number boolean string", p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host1.unit-test.invalid"));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws ProxyException
+	 *             on proxy detection error.
+	 * @throws MalformedURLException
+	 *             on URL erros
+	 ************************************************************************/
+	@Test
+	public void shouldGiveSameResultsAsJavaScriptEngine() throws ProxyException, MalformedURLException {
+		UrlPacScriptSource source = new UrlPacScriptSource(toUrl("testEnterprise.pac"));
+		PureJavaPacScriptParser pureJava = new PureJavaPacScriptParser(source);
+		JavaxPacScriptParser javax = new JavaxPacScriptParser(source);
+		assertTrue(pureJava.isScriptSupported());
+
+		String[][] tests = { { "http://myhost/", "myhost" }, { "http://localhost/", "LOCALHOST" },
+		        { "http://www.intranet.unit-test.invalid/", "www.intranet.unit-test.invalid" },
+		        { "http://www.corp.unit-test.invalid/", "www.corp.unit-test.invalid" },
+		        { "http://10.1.2.3/", "10.1.2.3" }, { "ftp://192.0.2.1/", "192.0.2.1" },
+		        { "https://192.0.2.7/", "192.0.2.7" } };
+		for (String[] test : tests) {
+			assertEquals(test[1], javax.evaluate(test[0], test[1]), pureJava.evaluate(test[0], test[1]));
+		}
+		assertEquals("SOCKS socks.unit-test.invalid:1080", pureJava.evaluate("ftp://192.0.2.1/", "192.0.2.1"));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws ProxyException
+	 *             on proxy detection error.
+	 ************************************************************************/
+	@Test
+	public void shouldEvaluateOperators() throws ProxyException {
+		assertEquals("true", eval("return String(1 + 2 == 3);", false));
+		assertEquals("12", eval("return '1' + 2;"));
+		assertEquals("3", eval("return 1 + 2;"));
+		assertEquals("0.5", eval("return 1 / 2;"));
+		assertEquals("true", eval("return '10' == 10;"));
+		assertEquals("false", eval("return '10' === 10;"));
+		assertEquals("b", eval("return '' || 'b';"));
+		assertEquals("a", eval("var x = 'a'; return x && x;"));
+		assertEquals("yes", eval("return 'abc'.indexOf('c') > 1 ? 'yes' : 'no';"));
+		assertEquals("bc", eval("return 'abcd'.substr(1, 2);"));
+		assertEquals("cd", eval("return 'abcd'.substring(4, 2);"));
+		assertEquals("4", eval("var s = 'ab'; s += 'cd'; return s.length;"));
+		assertEquals("undefined", eval("var s; return typeof s;"));
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws ProxyException
+	 *             on proxy detection error.
+	 * @throws MalformedURLException
+	 *             on URL erros
+	 ************************************************************************/
+	@Test(expected = Exception.class)
+	public void shouldFallBackToSandboxForUnsupportedScripts() throws ProxyException, MalformedURLException {
+		PureJavaPacScriptParser p = new PureJavaPacScriptParser(
+		        new UrlPacScriptSource(toUrl("testRemoteCodeExecution.pac")));
+		assertFalse(p.isScriptSupported());
+		p.evaluate(TestUtil.HTTP_TEST_URI.toString(), "host.does.not.matter");
+	}
+
+	/*************************************************************************
+	 * Test method
+	 *
+	 * @throws ProxyException
+	 *             on proxy detection error.
+	 ************************************************************************/
+	@Test
+	public void unsupportedConstructsShouldBeDetected() throws ProxyException {
+		String[] scripts = { "for (var i = 0; i < 3; i++) {}", "var a = [1, 2];", "var o = {};",
+		        "alert(host);", "undeclared = 1;", "var x = /abc/;", "x = new Date();" };
+		for (String body : scripts) {
+			PureJavaPacScriptParser p = new PureJavaPacScriptParser(
+			        new StringPacScriptSource("function FindProxyForURL(url, host) { " + body + " return 'DIRECT'; }"));
+			assertFalse(body, p.isScriptSupported());
+		}
+	}
+
+	/*************************************************************************
+	 * Evaluates a FindProxyForURL body with the Java evaluator and compares it
+	 * with the JavaScript engine.
+	 *
+	 * @param body
+	 *            the function body.
+	 * @return the result.
+	 * @throws ProxyException
+	 *             on error.
+	 ************************************************************************/
+
+	private String eval(String body) throws ProxyException {
+		return eval(body, true);
+	}
+
+	private String eval(String body, boolean supported) throws ProxyException {
+		StringPacScriptSource source = new StringPacScriptSource(
+		        "function FindProxyForURL(url, host) { " + body + " }");
+		PureJavaPacScriptParser pureJava = new PureJavaPacScriptParser(source);
+		assertEquals(body, supported, pureJava.isScriptSupported());
+		String result = pureJava.evaluate("http://host/", "host");
+		assertEquals(body, new JavaxPacScriptParser(source).evaluate("http://host/", "host"), result);
+		return result;
+	}
+
+	/*************************************************************************
+	 * Script source for inline test scripts.
+	 ************************************************************************/
+
+	private static class StringPacScriptSource implements PacScriptSource {
+		private final String script;
+
+		StringPacScriptSource(String script) {
+			this.script = script;
+		}
+
+		public String getScriptContent() throws IOException {
+			return this.script;
+		}
+
+		public boolean isScriptValid() {
+			return true;
+		}
+	}
+
+	/*************************************************************************
+	 * Helper method to build the url to the given test file
+	 *
+	 * @param testFile
+	 *            the name of the test file.
+	 * @return the URL.
+	 * @throws MalformedURLException
+	 ************************************************************************/
+
+	private String toUrl(String testFile) throws MalformedURLException {
+		return new File(TestUtil.TEST_DATA_FOLDER + "pac", testFile).toURI().toURL().toString();
+	}
+
+}
@@ -1,10 +1,28 @@
 package com.github.markusbernhardt.proxy.selector.pac;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import com.github.markusbernhardt.proxy.selector.pac.UrlPacScriptSource;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 
 /*****************************************************************************
  * Tests for the UrlPacScriptSource.
@@ -15,6 +33,86 @@ import com.github.markusbernhardt.proxy.selector.pac.UrlPacScriptSource;
 
 public class UrlPacScriptSourceTest {
 
+	private static final String SCRIPT = "function FindProxyForURL(url, host) { return \"DIRECT\"; }\n";
+
+	// Runs the background revalidation on the calling thread
+	private static final Executor SAME_THREAD = new Executor() {
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	/*************************************************************************
+	 * Serves the test script and records the conditional request headers.
+	 ************************************************************************/
+
+	private static class ScriptHandler implements HttpHandler {
+		volatile int status = 200;
+		volatile boolean gzip;
+		volatile int requests;
+		volatile String ifNoneMatch;
+		volatile String ifModifiedSince;
+
+		public void handle(HttpExchange exchange) throws IOException {
+			this.requests++;
+			this.ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+			this.ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+			exchange.getResponseHeaders().add("Cache-Control", "max-age=0");
+			exchange.getResponseHeaders().add("ETag", "\"v1\"");
+			exchange.getResponseHeaders().add("Last-Modified", "Wed, 15 Jun 2016 10:30:00 GMT");
+			if (this.status == 200 && "\"v1\"".equals(this.ifNoneMatch)) {
+				exchange.sendResponseHeaders(304, -1);
+			} else if (this.status != 200) {
+				exchange.sendResponseHeaders(this.status, -1);
+			} else {
+				byte[] body = SCRIPT.getBytes("ISO-8859-1");
+				if (this.gzip && exchange.getRequestHeaders().getFirst("Accept-Encoding").contains("gzip")) {
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					GZIPOutputStream out = new GZIPOutputStream(bytes);
+					out.write(body);
+					out.close();
+					body = bytes.toByteArray();
+					exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+				}
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+			exchange.close();
+		}
+	}
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private HttpServer server;
+	private ScriptHandler handler;
+	private String scriptUrl;
+
+	/*************************************************************************
+	 * Starts the embedded HTTP server.
+	 * 
+	 * @throws IOException
+	 *             if the server cannot be started.
+	 ************************************************************************/
+	@Before
+	public void startServer() throws IOException {
+		this.handler = new ScriptHandler();
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		this.server.createContext("/proxy.pac", this.handler);
+		this.server.start();
+		this.scriptUrl = "http://127.0.0.1:" + this.server.getAddress().getPort() + "/proxy.pac";
+	}
+
+	/*************************************************************************
+	 * Stops the embedded HTTP server.
+	 ************************************************************************/
+	@After
+	public void stopServer() {
+		this.server.stop(0);
+	}
+
 	/*************************************************************************
 	 * Unit Test
 	 ************************************************************************/
@@ -59,4 +157,197 @@ public class UrlPacScriptSourceTest {
 		assertEquals(1000, timeout);
 	}
 
+	/*************************************************************************
+	 * Unit Test
+	 * 
+	 * @throws IOException
+	 *             on read error.
+	 ************************************************************************/
+	@Test
+	public void expiredScriptShouldBeRevalidatedConditionally() throws IOException {
+		UrlPacScriptSource scriptSource = new UrlPacScriptSource(this.scriptUrl);
+		scriptSource.setRefreshExecutor(SAME_THREAD);
+		assertEquals(SCRIPT, scriptSource.getScriptContent());
+		assertNull(this.handler.ifNoneMatch);
+
+		assertEquals(SCRIPT, scriptSource.getScriptContent());
+		assertEquals(2, this.handler.requests);
+		assertEquals("\"v1\"", this.handler.ifNoneMatch);
+		assertEquals("Wed, 15 Jun 2016 10:30:00 GMT", this.handler.ifModifiedSince);
+		assertEquals(SCRIPT, scriptSource.getScriptContent());
+	}
+
+	/*************************************************************************
+	 * Unit Test
+	 * 
+	 * @throws IOException
+	 *             on read error.
+	 ************************************************************************/
+	@Test
+	public void gzipEncodedScriptShouldBeDecoded() throws IOException {
+		this.handler.gzip = true;
+		UrlPacScriptSource scriptSource = new UrlPacScriptSource(this.scriptUrl);
+		assertEquals(SCRIPT, scriptSource.getScriptContent());
+	}
+
+	/*************************************************************************
+	 * Unit Test
+	 * 
+	 * @throws IOException
+	 *             on read error.
+	 ************************************************************************/
+	@Test
+	public void lastKnownGoodScriptShouldBeKeptOnFailure() throws IOException {
+		UrlPacScriptSource scriptSource = new UrlPacScriptSource(this.scriptUrl);
+		scriptSource.setRefreshExecutor(SAME_THREAD);
+		assertEquals(SCRIPT, scriptSource.getScriptContent());
+
+		this.handler.status = 500;
+		assertEquals(SCRIPT, scriptSource.getScriptContent());
+		assertEquals(SCRIPT, scriptSource.getScriptContent());
+		// The retry waits for the backoff delay
+		assertEquals(2, this.handler.requests);
+	}
+
+	/*************************************************************************
+	 * Unit Test
+	 * 
+	 * @throws IOException
+	 *             on read error.
+	 ************************************************************************/
+	@Test
+	public void failedDownloadShouldBeRetriedAfterDelay() throws IOException {
+		this.handler.status = 500;
+		UrlPacScriptSource scriptSource = new UrlPacScriptSource(this.scriptUrl);
+		for (int i = 0; i < 2; i++) {
+			try {
+				scriptSource.getScriptContent();
+				fail("No script expected");
+			} catch (IOException e) {
+				// Expected
+			}
+		}
+		assertEquals(1, this.handler.requests);
+	}
+
+	/*************************************************************************
+	 * Unit Test
+	 * 
+	 * @throws IOException
+	 *             on read error.
+	 ************************************************************************/
+	@Test
+	public void cachedScriptShouldBeUsedAfterRestart() throws IOException {
+		File cacheDirectory = this.folder.newFolder("pac");
+		UrlPacScriptSource first = new UrlPacScriptSource(this.scriptUrl);
+		first.setCacheDirectory(cacheDirectory);
+		assertEquals(SCRIPT, first.getScriptContent());
+
+		// Server down, the cached script is used
+		this.handler.status = 500;
+		UrlPacScriptSource second = new UrlPacScriptSource(this.scriptUrl);
+		second.setCacheDirectory(cacheDirectory);
+		second.setRefreshExecutor(SAME_THREAD);
+		assertEquals(SCRIPT, second.getScriptContent());
+		assertEquals(2, this.handler.requests);
+
+		// Server up again, the cached script is revalidated
+		this.handler.status = 200;
+		UrlPacScriptSource third = new UrlPacScriptSource(this.scriptUrl);
+		third.setCacheDirectory(cacheDirectory);
+		third.setRefreshExecutor(SAME_THREAD);
+		assertEquals(SCRIPT, third.getScriptContent());
+		assertEquals(3, this.handler.requests);
+		assertEquals("\"v1\"", this.handler.ifNoneMatch);
+	}
+
+	/*************************************************************************
+	 * Unit Test
+	 * 
+	 * @throws IOException
+	 *             on read error.
+	 ************************************************************************/
+	@Test
+	public void damagedCachedScriptShouldBeIgnored() throws IOException {
+		File cacheDirectory = this.folder.newFolder("pac");
+		UrlPacScriptSource first = new UrlPacScriptSource(this.scriptUrl);
+		first.setCacheDirectory(cacheDirectory);
+		first.getScriptContent();
+		for (File file : cacheDirectory.listFiles()) {
+			if (file.getName().endsWith(".pac")) {
+				FileOutputStream out = new FileOutputStream(file, true);
+				out.write(';');
+				out.close();
+			}
+		}
+
+		this.handler.status = 500;
+		UrlPacScriptSource second = new UrlPacScriptSource(this.scriptUrl);
+		second.setCacheDirectory(cacheDirectory);
+		try {
+			second.getScriptContent();
+			fail("Damaged script must not be used");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	/*************************************************************************
+	 * Unit Test
+	 * 
+	 * @throws IOException
+	 *             on read error.
+	 ************************************************************************/
+	@Test
+	public void unchangedCachedScriptShouldNotBeRewritten() throws IOException {
+		File cacheDirectory = this.folder.newFolder("pac");
+		UrlPacScriptSource first = new UrlPacScriptSource(this.scriptUrl);
+		first.setCacheDirectory(cacheDirectory);
+		first.getScriptContent();
+		File scriptFile = null;
+		for (File file : cacheDirectory.listFiles()) {
+			if (file.getName().endsWith(".pac")) {
+				scriptFile = file;
+			}
+		}
+		scriptFile.setLastModified(1000);
+
+		// Revalidated with 304, only the properties are written
+		UrlPacScriptSource second = new UrlPacScriptSource(this.scriptUrl);
+		second.setCacheDirectory(cacheDirectory);
+		second.setRefreshExecutor(SAME_THREAD);
+		assertEquals(SCRIPT, second.getScriptContent());
+		assertEquals("\"v1\"", this.handler.ifNoneMatch);
+		assertEquals(1000, scriptFile.lastModified());
+		assertEquals(2, cacheDirectory.listFiles().length);
+	}
+
+	/*************************************************************************
+	 * Unit Test
+	 * 
+	 * @throws IOException
+	 *             on read error.
+	 ************************************************************************/
+	@Test
+	public void localFileShouldBeDecodedLikeFileSource() throws IOException {
+		File file = this.folder.newFile("proxy.pac");
+		String script = "// Gr\u00fc\u00dfe\r\n" + SCRIPT;
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(new byte[] { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF });
+			out.write(script.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+
+		String content = new UrlPacScriptSource(file.toURI().toURL().toString()).getScriptContent();
+		assertEquals(script, content);
+		FilePacScriptSource fileSource = new FilePacScriptSource(file);
+		try {
+			assertEquals(fileSource.getScriptContent(), content);
+		} finally {
+			fileSource.close();
+		}
+	}
+
 }